@@ -24,6 +24,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -83,6 +85,14 @@ public class TileStitcher extends ReaderWrapper {
     return 1;
   }
 
+  /* @see IFormatReader#getResolutionCount() */
+  public int getResolutionCount() {
+    if (tileX == 1 && tileY == 1) {
+      return reader.getResolutionCount();
+    }
+    return 1;
+  }
+
   /* @see IFormatReader#openBytes(int) */
   public byte[] openBytes(int no) throws FormatException, IOException {
     return openBytes(no, 0, 0, getSizeX(), getSizeY());
@@ -167,6 +177,50 @@ public class TileStitcher extends ReaderWrapper {
     return buf;
   }
 
+  /* @see IFormatReader#openMappedBytes(int) */
+  public ByteBuffer openMappedBytes(int no)
+    throws FormatException, IOException
+  {
+    return openMappedBytes(no, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openMappedBytes(int, int, int, int, int) */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+
+    if (tileX == 1 && tileY == 1) {
+      return super.openMappedBytes(no, x, y, w, h);
+    }
+    return null;
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer) */
+  public Buffer openPlane(int no, Buffer buf)
+    throws FormatException, IOException
+  {
+    return openPlane(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer, int, int, int, int) */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+
+    if (tileX == 1 && tileY == 1) {
+      return super.openPlane(no, buf, x, y, w, h);
+    }
+    return FormatTools.openPlane(this, no, buf, x, y, w, h);
+  }
+
+  /* @see IFormatReader#isThreadSafe() */
+  public boolean isThreadSafe() {
+    // stitching switches the active series of the underlying reader
+    return tileX == 1 && tileY == 1 && super.isThreadSafe();
+  }
+
   /* @see IFormatReader#setId(String) */
   public void setId(String id) throws FormatException, IOException {
     super.setId(id);
@@ -195,9 +195,9 @@ public class CellSensReader extends FormatReader {
   {
     FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
 
-    if (getSeries() < getSeriesCount() - ifds.size()) {
-      int tileRows = rows[getSeries()];
-      int tileCols = cols[getSeries()];
+    if (getCoreIndex() < core.length - ifds.size()) {
+      int tileRows = rows[getCoreIndex()];
+      int tileCols = cols[getCoreIndex()];
 
       Region image = new Region(x, y, w, h);
       int outputRow = 0, outputCol = 0;
@@ -210,8 +210,8 @@ public class CellSensReader extends FormatReader {
 
       for (int row=0; row<tileRows; row++) {
         for (int col=0; col<tileCols; col++) {
-          int width = tileX[getSeries()];
-          int height = tileY[getSeries()];
+          int width = tileX[getCoreIndex()];
+          int height = tileY[getCoreIndex()];
           Region tile = new Region(col * width, row * height, width, height);
           if (!tile.intersects(image)) {
             continue;
@@ -248,7 +248,7 @@ public class CellSensReader extends FormatReader {
       return buf;
     }
     else {
-      int ifdIndex = getSeries() - (usedFiles.length - 1);
+      int ifdIndex = getCoreIndex() - (usedFiles.length - 1);
       return parser.getSamples(ifds.get(ifdIndex), buf, x, y, w, h);
     }
   }
@@ -395,18 +395,18 @@ public class CellSensReader extends FormatReader {
   private int getTileSize() {
     int channels = getRGBChannelCount();
     int bpp = FormatTools.getBytesPerPixel(getPixelType());
-    return bpp * channels * tileX[getSeries()] * tileY[getSeries()];
+    return bpp * channels * tileX[getCoreIndex()] * tileY[getCoreIndex()];
   }
 
   private byte[] decodeTile(int no, int row, int col)
     throws FormatException, IOException
   {
-    if (tileMap[getSeries()] == null) {
+    if (tileMap[getCoreIndex()] == null) {
       return new byte[getTileSize()];
     }
 
     int[] zct = getZCTCoords(no);
-    TileCoordinate t = new TileCoordinate(nDimensions[getSeries()]);
+    TileCoordinate t = new TileCoordinate(nDimensions[getCoreIndex()]);
     t.coordinate[0] = col;
     t.coordinate[1] = row;
 
@@ -424,14 +424,14 @@ public class CellSensReader extends FormatReader {
       }
     }
 
-    Integer index = (Integer) tileMap[getSeries()].get(t);
+    Integer index = (Integer) tileMap[getCoreIndex()].get(t);
     if (index == null) {
       return new byte[getTileSize()];
     }
 
-    Long offset = tileOffsets[getSeries()][index];
+    Long offset = tileOffsets[getCoreIndex()][index];
     RandomAccessInputStream ets =
-      new RandomAccessInputStream(usedFiles[getSeries()]);
+      new RandomAccessInputStream(usedFiles[getCoreIndex()]);
     ets.seek(offset);
 
     CodecOptions options = new CodecOptions();
@@ -439,18 +439,18 @@ public class CellSensReader extends FormatReader {
     options.littleEndian = isLittleEndian();
     int tileSize = getTileSize();
     if (tileSize == 0) {
-      tileSize = tileX[getSeries()] * tileY[getSeries()] * 10;
+      tileSize = tileX[getCoreIndex()] * tileY[getCoreIndex()] * 10;
     }
     options.maxBytes = (int) (offset + tileSize);
 
     byte[] buf = null;
-    long end = index < tileOffsets[getSeries()].length - 1 ?
-      tileOffsets[getSeries()][index + 1] : ets.length();
+    long end = index < tileOffsets[getCoreIndex()].length - 1 ?
+      tileOffsets[getCoreIndex()][index + 1] : ets.length();
 
     IFormatReader reader = null;
     String file = null;
 
-    switch (compressionType[getSeries()]) {
+    switch (compressionType[getCoreIndex()]) {
       case RAW:
         buf = new byte[tileSize];
         ets.read(buf);
@@ -831,8 +831,8 @@ public class CellSensReader extends FormatReader {
 
     public int hashCode() {
       int[] lengths = new int[coordinate.length];
-      lengths[0] = rows[getSeries()];
-      lengths[1] = cols[getSeries()];
+      lengths[0] = rows[getCoreIndex()];
+      lengths[1] = cols[getCoreIndex()];
 
       for (String dim : dimensionOrdering.keySet()) {
         int index = dimensionOrdering.get(dim) + 2;
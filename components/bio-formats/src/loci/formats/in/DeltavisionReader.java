@@ -24,6 +24,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats.in;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 
 import loci.common.DataTools;
@@ -172,43 +174,39 @@ public class DeltavisionReader extends FormatReader {
   {
     FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
 
-    int[] coords = getZCTCoords(no);
-
-    int[] newCoords = new int[4];
-    int coordIndex = 0;
-    int dimIndex = 2;
-
-    while (coordIndex < newCoords.length) {
-      char dim = getDimensionOrder().charAt(dimIndex++);
-
-      switch (dim) {
-        case 'Z':
-          newCoords[coordIndex++] = coords[0];
-          break;
-        case 'C':
-          newCoords[coordIndex++] = coords[1];
-          break;
-        case 'T':
-          newCoords[coordIndex++] = getSeries();
-          newCoords[coordIndex++] = coords[2];
-          break;
-      }
-    }
-
-    int planeIndex = FormatTools.positionToRaster(lengths, newCoords);
-
-    // read the image plane's pixel data
-    long planeSize = (long) FormatTools.getPlaneSize(this);
-    long planeOffset = planeSize * planeIndex;
-    long offset = planeOffset + HEADER_LENGTH + extSize;
+    long offset = getPlaneOffset(no);
     if (offset < in.length()) {
-      in.seek(HEADER_LENGTH + extSize + planeOffset);
+      in.seek(offset);
       readPlane(in, x, y, w, h, buf);
     }
 
     return buf;
   }
 
+  /**
+   * @see loci.formats.IFormatReader#openMappedBytes(int, int, int, int, int)
+   */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, -1, x, y, w, h);
+    return mapPlane(currentId, getPlaneOffset(no), x, y, w, h);
+  }
+
+  /**
+   * @see loci.formats.IFormatReader#openPlane(int, Buffer, int, int, int, int)
+   */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf, x, y, w, h);
+
+    long offset = getPlaneOffset(no);
+    if (offset >= in.length()) return super.openPlane(no, buf, x, y, w, h);
+    in.seek(offset);
+    return readPlane(in, x, y, w, h, buf);
+  }
+
   /* @see loci.formats.IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
@@ -755,6 +753,37 @@ public class DeltavisionReader extends FormatReader {
 
   // -- Helper methods --
 
+  /** Gets the offset to the pixel data of the given plane. */
+  private long getPlaneOffset(int no) {
+    int[] coords = getZCTCoords(no);
+
+    int[] newCoords = new int[4];
+    int coordIndex = 0;
+    int dimIndex = 2;
+
+    while (coordIndex < newCoords.length) {
+      char dim = getDimensionOrder().charAt(dimIndex++);
+
+      switch (dim) {
+        case 'Z':
+          newCoords[coordIndex++] = coords[0];
+          break;
+        case 'C':
+          newCoords[coordIndex++] = coords[1];
+          break;
+        case 'T':
+          newCoords[coordIndex++] = getSeries();
+          newCoords[coordIndex++] = coords[2];
+          break;
+      }
+    }
+
+    int planeIndex = FormatTools.positionToRaster(lengths, newCoords);
+
+    long planeSize = (long) FormatTools.getPlaneSize(this);
+    return HEADER_LENGTH + extSize + planeSize * planeIndex;
+  }
+
   /** Get a descriptive string representing the pixel type. */
   private String getPixelString(int filePixelType) {
      switch (filePixelType) {
@@ -1129,7 +1129,7 @@ public class FlexReader extends FormatReader {
       RandomAccessInputStream s = new RandomAccessInputStream(file);
       TiffParser parser = new TiffParser(s);
       IFD firstIFD = parser.getFirstIFD();
-      int ifdCount = parser.getIFDOffsets().length;
+      int ifdCount = parser.getIFDCount();
       s.close();
       boolean compressed =
         firstIFD.getCompression() != TiffCompression.UNCOMPRESSED;
@@ -86,7 +86,7 @@ public class HamamatsuVMSReader extends FormatReader {
     }
 
     ArrayList<String> f = new ArrayList<String>();
-    f.add(jpeg[getSeries()].getCurrentFile());
+    f.add(jpeg[getCoreIndex()].getCurrentFile());
     f.addAll(files);
     return f.toArray(new String[f.size()]);
   }
@@ -99,7 +99,7 @@ public class HamamatsuVMSReader extends FormatReader {
   {
     FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
 
-    jpeg[getSeries()].openBytes(no, buf, x, y, w, h);
+    jpeg[getCoreIndex()].openBytes(no, buf, x, y, w, h);
     return buf;
   }
 
@@ -25,6 +25,9 @@ package loci.formats.in;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import loci.common.RandomAccessInputStream;
 import loci.formats.FormatException;
@@ -111,6 +114,36 @@ public class MRCReader extends FormatReader {
     return buf;
   }
 
+  /**
+   * @see loci.formats.IFormatReader#openPlane(int, Buffer, int, int, int, int)
+   */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf, x, y, w, h);
+
+    long planeSize = FormatTools.getPlaneSize(this);
+    long offset = HEADER_SIZE + extHeaderSize + no * planeSize;
+    if (offset + planeSize > in.length() || offset < 0) {
+      return super.openPlane(no, buf, x, y, w, h);
+    }
+
+    // planes are stored with the origin in the lower-left corner,
+    // so the rows are read from the bottom up
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    ByteBuffer row = ByteBuffer.allocate(w * bpp);
+    row.order(isLittleEndian() ?
+      ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    for (int r=0; r<h; r++) {
+      long fileRow = getSizeY() - y - r - 1;
+      in.seek(offset + (fileRow * getSizeX() + x) * bpp);
+      in.readFully(row.array());
+      row.clear();
+      FormatTools.copySamples(row, bpp, buf);
+    }
+    return buf;
+  }
+
   /* @see loci.formats.IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
@@ -91,14 +91,14 @@ public class NDPIReader extends BaseTiffReader {
       return buf;
     }
     else if (getSizeX() <= MAX_SIZE && getSizeY() <= MAX_SIZE) {
-      int ifdIndex = getIFDIndex(getSeries(), no);
+      int ifdIndex = getIFDIndex(getCoreIndex(), no);
       in = new RandomAccessInputStream(currentId);
       tiffParser = new TiffParser(in);
       tiffParser.setUse64BitOffsets(true);
       return tiffParser.getSamples(ifds.get(ifdIndex), buf, x, y, w, h);
     }
 
-    if (initializedSeries != getSeries() || initializedPlane != no) {
+    if (initializedSeries != getCoreIndex() || initializedPlane != no) {
       if (x == 0 && y == 0 && w == getOptimalTileWidth() &&
         h == getOptimalTileHeight())
       {
@@ -109,7 +109,7 @@ public class NDPIReader extends BaseTiffReader {
         // it looks like we'll only read one tile
         setupService(y, h, no);
       }
-      initializedSeries = getSeries();
+      initializedSeries = getCoreIndex();
       initializedPlane = no;
     }
     else if (decoder.getScanline(y) == null) {
@@ -136,7 +136,7 @@ public class NDPIReader extends BaseTiffReader {
   public byte[] openThumbBytes(int no) throws FormatException, IOException {
     FormatTools.assertId(currentId, true, 1);
 
-    int currentSeries = getSeries();
+    int currentSeries = getCoreIndex();
     if (currentSeries >= pyramidHeight) {
       return super.openThumbBytes(no);
     }
@@ -145,7 +145,7 @@ public class NDPIReader extends BaseTiffReader {
     int thumbY = getThumbSizeY();
     int rgbCount = getRGBChannelCount();
 
-    setSeries(pyramidHeight - 1);
+    setCoreIndex(pyramidHeight - 1);
 
     byte[] thumb = null;
 
@@ -153,12 +153,12 @@ public class NDPIReader extends BaseTiffReader {
       rgbCount == getRGBChannelCount())
     {
       thumb = FormatTools.openThumbBytes(this, no);
-      setSeries(currentSeries);
+      setCoreIndex(currentSeries);
     }
     else {
       // find the smallest series with the same aspect ratio
-      for (int s=getSeriesCount()-1; s>=0; s--) {
-        setSeries(s);
+      for (int s=core.length-1; s>=0; s--) {
+        setCoreIndex(s);
         if (thumbX == getThumbSizeX() && thumbY == getThumbSizeY() &&
           s != currentSeries && rgbCount == getRGBChannelCount())
         {
@@ -166,7 +166,7 @@ public class NDPIReader extends BaseTiffReader {
           break;
         }
       }
-      setSeries(currentSeries);
+      setCoreIndex(currentSeries);
       if (thumb == null) {
         thumb = FormatTools.openThumbBytes(this, no);
       }
@@ -270,7 +270,7 @@ public class NDPIReader extends BaseTiffReader {
     }
 
     for (int s=0; s<core.length; s++) {
-      setSeries(s);
+      setCoreIndex(s);
       core[s] = new CoreMetadata();
 
       IFD ifd = ifds.get(getIFDIndex(s, 0));
@@ -294,8 +294,9 @@ public class NDPIReader extends BaseTiffReader {
       core[s].dimensionOrder = "XYCZT";
       core[s].thumbnail = s != 0;
     }
+    core[0].resolutionCount = pyramidHeight;
 
-    setSeries(0);
+    setCoreIndex(0);
   }
 
   /* @see loci.formats.BaseTiffReader#initMetadataStore() */
@@ -308,7 +309,7 @@ public class NDPIReader extends BaseTiffReader {
       store.setImageName("Series " + (i + 1), i);
 
       if (i > 0) {
-        int ifdIndex = getIFDIndex(i, 0);
+        int ifdIndex = getIFDIndex(seriesToCoreIndex(i), 0);
         String creationDate = ifds.get(ifdIndex).getIFDTextValue(IFD.DATE_TIME);
         creationDate = DateTools.formatDate(creationDate, DATE_FORMATS);
         store.setImageAcquiredDate(creationDate, i);
@@ -341,7 +342,7 @@ public class NDPIReader extends BaseTiffReader {
   {
     decoder.close();
 
-    IFD ifd = ifds.get(getIFDIndex(getSeries(), z));
+    IFD ifd = ifds.get(getIFDIndex(getCoreIndex(), z));
 
     long offset = ifd.getStripOffsets()[0];
     int byteCount = (int) ifd.getStripByteCounts()[0];
@@ -25,6 +25,7 @@ package loci.formats.in;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 
 import loci.common.ByteArrayHandle;
@@ -69,6 +70,16 @@ public class NativeND2Reader extends FormatReader {
   public static final long ND2_MAGIC_BYTES_1 = 0xdacebe0aL;
   public static final long ND2_MAGIC_BYTES_2 = 0x6a502020L;
 
+  /**
+   * Signature at the end of newer ND2 files, followed by the offset to the
+   * chunk map.
+   */
+  private static final String CHUNK_MAP_SIGNATURE =
+    "ND2 CHUNK MAP SIGNATURE 0000001!";
+
+  /** ND2_MAGIC_BYTES_1, read as a little-endian int. */
+  private static final int BLOCK_MAGIC = 0x0abeceda;
+
   // -- Fields --
 
   /** Array of image offsets. */
@@ -100,6 +111,9 @@ public class NativeND2Reader extends FormatReader {
 
   private int nXFields;
 
+  /** Number of bytes read from the file by initFile. */
+  private long initBytesRead;
+
   // -- Constructor --
 
   /** Constructs a new ND2 reader. */
@@ -109,6 +123,17 @@ public class NativeND2Reader extends FormatReader {
     domains = new String[] {FormatTools.LM_DOMAIN};
   }
 
+  // -- NativeND2Reader API methods --
+
+  /**
+   * Gets the number of bytes that were read from the file while it was
+   * being initialized.  When the chunk map can be used this should not grow
+   * with the amount of pixel data in the file.
+   */
+  public long getInitializationBytesRead() {
+    return initBytesRead;
+  }
+
   // -- IFormatReader API methods --
 
   /* @see loci.formats.IFormatReader#isThisType(RandomAccessInputStream) */
@@ -303,6 +328,7 @@ public class NativeND2Reader extends FormatReader {
       channelColors = null;
       split = false;
       nXFields = 0;
+      initBytesRead = 0;
     }
   }
 
@@ -318,12 +344,19 @@ public class NativeND2Reader extends FormatReader {
 
     if (in.read() == -38 && in.read() == -50) {
       // newer version of ND2 - doesn't use JPEG2000
-      LOGGER.info("Searching for blocks");
 
       isJPEG = false;
-      in.seek(0);
       in.order(true);
 
+      // use the chunk map to find each block if possible, otherwise
+      // search the whole file for block signatures
+      long[] chunkOffsets = readChunkMap();
+      int chunk = 0;
+      if (chunkOffsets == null) {
+        LOGGER.info("Searching for blocks");
+      }
+      in.seek(0);
+
       // assemble offsets to each block
 
       ArrayList<String> imageNames = new ArrayList<String>();
@@ -337,11 +370,22 @@ public class NativeND2Reader extends FormatReader {
 
       // search for blocks
       byte[] sigBytes = {-38, -50, -66, 10}; // 0xDACEBE0A
-      while (in.getFilePointer() < in.length() - 1 && in.getFilePointer() >= 0)
+      while (chunkOffsets == null ? in.getFilePointer() < in.length() - 1 &&
+        in.getFilePointer() >= 0 : chunk < chunkOffsets.length)
       {
+        if (chunkOffsets != null) {
+          in.seek(chunkOffsets[chunk++]);
+          if (in.readInt() != BLOCK_MAGIC) {
+            LOGGER.debug("Invalid block at {}",
+              in.getFilePointer() - sigBytes.length);
+            continue;
+          }
+        }
         byte[] buf = new byte[1024];
-        int foundIndex = -1;
-        in.read(buf, 0, sigBytes.length);
+        int foundIndex = chunkOffsets == null ? -1 : 0;
+        if (chunkOffsets == null) {
+          in.read(buf, 0, sigBytes.length);
+        }
         while (foundIndex == -1 && in.getFilePointer() < in.length()) {
           int n = in.read(buf, sigBytes.length, buf.length - sigBytes.length);
           for (int i=0; i<buf.length-sigBytes.length; i++) {
@@ -858,6 +902,7 @@ public class NativeND2Reader extends FormatReader {
       }
 
       populateMetadataStore(handler);
+      initBytesRead = in.getBytesRead();
       return;
     }
     else in.seek(0);
@@ -1095,10 +1140,78 @@ public class NativeND2Reader extends FormatReader {
     }
 
     populateMetadataStore(handler);
+    initBytesRead = in.getBytesRead();
   }
 
   // -- Helper methods --
 
+  /**
+   * Reads the chunk map that newer ND2 files store at the end of the file.
+   * @return the offsets to every block listed in the chunk map, in file
+   *   order, or null if there is no valid chunk map
+   */
+  private long[] readChunkMap() throws IOException {
+    int trailerSize = CHUNK_MAP_SIGNATURE.length() + 8;
+    if (in.length() < trailerSize) {
+      return null;
+    }
+    in.seek(in.length() - trailerSize);
+    if (!in.readString(CHUNK_MAP_SIGNATURE.length()).equals(
+      CHUNK_MAP_SIGNATURE))
+    {
+      return null;
+    }
+    long mapOffset = in.readLong();
+    if (mapOffset <= 0 || mapOffset > in.length() - trailerSize - 16) {
+      return null;
+    }
+
+    in.seek(mapOffset);
+    if (in.readInt() != BLOCK_MAGIC) {
+      return null;
+    }
+    int nameLength = in.readInt();
+    long dataLength = in.readLong();
+    in.skipBytes(nameLength);
+    if (nameLength < 0 || dataLength <= 0 ||
+      in.getFilePointer() + dataLength > in.length())
+    {
+      return null;
+    }
+
+    // each entry is a block name ending in '!', followed by the offset
+    // and length of the block
+    byte[] map = new byte[(int) dataLength];
+    in.readFully(map);
+    ArrayList<Long> chunkOffsets = new ArrayList<Long>();
+    int pos = 0;
+    while (pos < map.length) {
+      int end = pos;
+      while (end < map.length && map[end] != '!') {
+        end++;
+      }
+      if (end + 17 > map.length) {
+        return null;
+      }
+      String name = new String(map, pos, end - pos + 1, Constants.ENCODING);
+      if (name.equals(CHUNK_MAP_SIGNATURE)) {
+        long[] offsets = new long[chunkOffsets.size()];
+        for (int i=0; i<offsets.length; i++) {
+          offsets[i] = chunkOffsets.get(i);
+        }
+        Arrays.sort(offsets);
+        return offsets;
+      }
+      long offset = DataTools.bytesToLong(map, end + 1, true);
+      if (offset < 0 || offset > in.length() - 16) {
+        return null;
+      }
+      chunkOffsets.add(offset);
+      pos = end + 17;
+    }
+    return null;
+  }
+
   private void populateMetadataStore(ND2Handler handler) throws FormatException
   {
     MetadataStore store = makeFilterMetadata();
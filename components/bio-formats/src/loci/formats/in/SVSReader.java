@@ -24,6 +24,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats.in;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,6 +62,9 @@ public class SVSReader extends BaseTiffReader {
   private float[] pixelSize;
   private String[] comments;
 
+  /** Index of the IFD corresponding to each core metadata entry. */
+  private int[] ifdMap;
+
   // -- Constructor --
 
   /** Constructs a new SVS reader. */
@@ -116,26 +121,31 @@ public class SVSReader extends BaseTiffReader {
   public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
     throws FormatException, IOException
   {
-    if (getSeriesCount() == 1) {
+    if (core.length == 1) {
       return super.openBytes(no, buf, x, y, w, h);
     }
     FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
-    tiffParser.getSamples(ifds.get(series), buf, x, y, w, h);
+    getTiffParser().getSamples(ifds.get(ifdMap[getCoreIndex()]), buf,
+      x, y, w, h);
     return buf;
   }
 
   /* @see loci.formats.IFormatReader#openThumbBytes(int) */
   public byte[] openThumbBytes(int no) throws FormatException, IOException {
-    if (getSeriesCount() == 1 || getSeries() >= getSeriesCount() - 2) {
+    FormatTools.assertId(currentId, true, 1);
+    if (core.length == 1 || getSeries() >= getSeriesCount() - 2) {
       return super.openThumbBytes(no);
     }
 
-    int smallestSeries = getSeriesCount() - 3;
-    if (smallestSeries >= 0) {
-      int thisSeries = getSeries();
-      setSeries(smallestSeries);
+    // the smallest resolution is the pyramid level closest in size to
+    // the thumbnail
+    int smallestIndex = hasFlattenedResolutions() ? getSeriesCount() - 3 :
+      seriesToCoreIndex(getSeries()) + getResolutionCount() - 1;
+    if (smallestIndex >= 0) {
+      int thisIndex = getCoreIndex();
+      setCoreIndex(smallestIndex);
       byte[] thumb = FormatTools.openThumbBytes(this, no);
-      setSeries(thisSeries);
+      setCoreIndex(thisIndex);
       return thumb;
     }
     return super.openThumbBytes(no);
@@ -147,6 +157,7 @@ public class SVSReader extends BaseTiffReader {
     if (!fileOnly) {
       pixelSize = null;
       comments = null;
+      ifdMap = null;
     }
   }
 
@@ -154,7 +165,7 @@ public class SVSReader extends BaseTiffReader {
   public int getOptimalTileWidth() {
     FormatTools.assertId(currentId, true, 1);
     try {
-      return (int) ifds.get(getSeries()).getTileWidth();
+      return (int) ifds.get(ifdMap[getCoreIndex()]).getTileWidth();
     }
     catch (FormatException e) {
       LOGGER.debug("", e);
@@ -166,7 +177,7 @@ public class SVSReader extends BaseTiffReader {
   public int getOptimalTileHeight() {
     FormatTools.assertId(currentId, true, 1);
     try {
-      return (int) ifds.get(getSeries()).getTileLength();
+      return (int) ifds.get(ifdMap[getCoreIndex()]).getTileLength();
     }
     catch (FormatException e) {
       LOGGER.debug("", e);
@@ -183,16 +194,41 @@ public class SVSReader extends BaseTiffReader {
     ifds = tiffParser.getIFDs();
 
     core = new CoreMetadata[ifds.size()];
+    for (int i=0; i<core.length; i++) {
+      core[i] = new CoreMetadata();
+      tiffParser.fillInIFD(ifds.get(i));
+    }
+
+    // the first IFD is the full resolution image, followed by a stripped
+    // thumbnail, the tiled pyramid levels, and the label and macro images
+    int resolutionCount = 1;
+    ifdMap = new int[ifds.size()];
+    for (int i=0; i<ifdMap.length; i++) ifdMap[i] = i;
+    if (!hasFlattenedResolutions()) {
+      List<Integer> pyramid = new ArrayList<Integer>();
+      List<Integer> others = new ArrayList<Integer>();
+      pyramid.add(0);
+      long width = ifds.get(0).getImageWidth();
+      for (int i=1; i<ifds.size(); i++) {
+        IFD ifd = ifds.get(i);
+        if (ifd.isTiled() && ifd.getImageWidth() < width) {
+          pyramid.add(i);
+          width = ifd.getImageWidth();
+        }
+        else others.add(i);
+      }
+      resolutionCount = pyramid.size();
+      pyramid.addAll(others);
+      for (int i=0; i<ifdMap.length; i++) ifdMap[i] = pyramid.get(i);
+    }
 
     pixelSize = new float[core.length];
     comments = new String[core.length];
     for (int i=0; i<core.length; i++) {
-      setSeries(i);
-      core[i] = new CoreMetadata();
-      tiffParser.fillInIFD(ifds.get(i));
+      setCoreIndex(i);
 
       if (getMetadataOptions().getMetadataLevel() != MetadataLevel.MINIMUM) {
-        String comment = ifds.get(i).getComment();
+        String comment = ifds.get(ifdMap[i]).getComment();
         String[] lines = comment.split("\n");
         String[] tokens;
         String key, value;
@@ -213,12 +249,12 @@ public class SVSReader extends BaseTiffReader {
         }
       }
     }
-    setSeries(0);
+    setCoreIndex(0);
 
     // repopulate core metadata
 
     for (int s=0; s<core.length; s++) {
-      IFD ifd = ifds.get(s);
+      IFD ifd = ifds.get(ifdMap[s]);
       PhotoInterp p = ifd.getPhotometricInterpretation();
       int samples = ifd.getSamplesPerPixel();
       core[s].rgb = samples > 1 || p == PhotoInterp.RGB;
@@ -239,6 +275,7 @@ public class SVSReader extends BaseTiffReader {
       core[s].dimensionOrder = "XYCZT";
       core[s].thumbnail = s != 0;
     }
+    core[0].resolutionCount = resolutionCount;
   }
 
   /* @see loci.formats.BaseTiffReader#initMetadataStore() */
@@ -249,7 +286,7 @@ public class SVSReader extends BaseTiffReader {
 
     for (int i=0; i<getSeriesCount(); i++) {
       store.setImageName("Series " + (i + 1), i);
-      store.setImageDescription(comments[i], i);
+      store.setImageDescription(comments[seriesToCoreIndex(i)], i);
     }
   }
 
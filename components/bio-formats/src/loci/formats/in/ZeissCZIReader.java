@@ -26,6 +26,7 @@ package loci.formats.in;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Stack;
 import javax.xml.parsers.DocumentBuilder;
@@ -98,6 +99,9 @@ public class ZeissCZIReader extends FormatReader {
   private MetadataStore store;
 
   private ArrayList<SubBlock> planes;
+
+  /** The SubBlock for each plane, indexed by series and plane number. */
+  private SubBlock[][] planeIndex;
   private int rotations = 1;
   private int positions = 1;
   private int illuminations = 1;
@@ -236,16 +240,11 @@ public class ZeissCZIReader extends FormatReader {
 
     previousChannel = getZCTCoords(no)[1];
 
-    int currentSeries = getSeries();
+    int currentSeries = getCoreIndex();
 
-    for (SubBlock plane : planes) {
-      if (plane.seriesIndex == currentSeries && plane.planeIndex == no) {
-        byte[] rawData = plane.readPixelData();
-        RandomAccessInputStream s = new RandomAccessInputStream(rawData);
-        readPlane(s, x, y, w, h, buf);
-        s.close();
-        break;
-      }
+    SubBlock plane = planeIndex[currentSeries][no];
+    if (plane != null) {
+      plane.readRegion(buf, x, y, w, h);
     }
     return buf;
   }
@@ -255,6 +254,7 @@ public class ZeissCZIReader extends FormatReader {
     super.close(fileOnly);
     if (!fileOnly) {
       planes = null;
+      planeIndex = null;
       rotations = 1;
       positions = 1;
       illuminations = 1;
@@ -308,12 +308,19 @@ public class ZeissCZIReader extends FormatReader {
     ArrayList<Segment> segments = new ArrayList<Segment>();
     planes = new ArrayList<SubBlock>();
 
-    while (in.getFilePointer() < in.length()) {
-      Segment segment = readSegment();
-      segments.add(segment);
+    if (!readDirectory(segments)) {
+      // no usable SubBlock directory, so walk through every segment
+      segments.clear();
+      planes.clear();
+      in.seek(0);
+
+      while (in.getFilePointer() < in.length()) {
+        Segment segment = readSegment();
+        segments.add(segment);
 
-      if (segment instanceof SubBlock) {
-        planes.add((SubBlock) segment);
+        if (segment instanceof SubBlock) {
+          planes.add((SubBlock) segment);
+        }
       }
     }
 
@@ -325,8 +332,7 @@ public class ZeissCZIReader extends FormatReader {
     int planeSize =
       getSizeX() * getSizeY() * FormatTools.getBytesPerPixel(getPixelType());
     for (int i=0; i<planes.size(); i++) {
-      byte[] pixels = planes.get(i).readPixelData();
-      if (pixels.length < planeSize) {
+      if (!planes.get(i).isFullPlane(planeSize)) {
         planes.remove(i);
         i--;
       }
@@ -363,6 +369,16 @@ public class ZeissCZIReader extends FormatReader {
 
     assignPlaneIndices();
 
+    planeIndex = new SubBlock[seriesCount][getImageCount()];
+    for (SubBlock plane : planes) {
+      if (plane.seriesIndex < seriesCount &&
+        plane.planeIndex < getImageCount() &&
+        planeIndex[plane.seriesIndex][plane.planeIndex] == null)
+      {
+        planeIndex[plane.seriesIndex][plane.planeIndex] = plane;
+      }
+    }
+
     // populate the OME metadata
 
     store = makeFilterMetadata();
@@ -431,37 +447,40 @@ public class ZeissCZIReader extends FormatReader {
           DateTools.getTime(acquiredDate, DateTools.ISO8601_FORMAT) / 1000d;
       }
       for (int plane=0; plane<getImageCount(); plane++) {
-        for (SubBlock p : planes) {
-          if (p.seriesIndex == i && p.planeIndex == plane) {
-            if (startTime == null) {
-              startTime = p.timestamp;
-            }
+        SubBlock p = planeIndex[i][plane];
+        if (p == null) {
+          continue;
+        }
+        // the SubBlock header holds the stage position and timestamp
+        p.load();
 
-            if (p.stageX != null) {
-              store.setPlanePositionX(p.stageX, i, plane);
-            }
-            else if (positionsX != null && i < positionsX.length) {
-              store.setPlanePositionX(positionsX[i], i, plane);
-            }
+        if (startTime == null) {
+          startTime = p.timestamp;
+        }
 
-            if (p.stageY != null) {
-              store.setPlanePositionY(p.stageY, i, plane);
-            }
-            else if (positionsY != null && i < positionsY.length) {
-              store.setPlanePositionY(positionsY[i], i, plane);
-            }
+        if (p.stageX != null) {
+          store.setPlanePositionX(p.stageX, i, plane);
+        }
+        else if (positionsX != null && i < positionsX.length) {
+          store.setPlanePositionX(positionsX[i], i, plane);
+        }
 
-            if (positionsZ != null && i < positionsZ.length) {
-              store.setPlanePositionZ(positionsZ[i], i, plane);
-            }
+        if (p.stageY != null) {
+          store.setPlanePositionY(p.stageY, i, plane);
+        }
+        else if (positionsY != null && i < positionsY.length) {
+          store.setPlanePositionY(positionsY[i], i, plane);
+        }
 
-            if (p.timestamp != null) {
-              store.setPlaneDeltaT(p.timestamp - startTime, i, plane);
-            }
-            if (p.exposureTime != null) {
-              store.setPlaneExposureTime(p.exposureTime, i, plane);
-            }
-          }
+        if (positionsZ != null && i < positionsZ.length) {
+          store.setPlanePositionZ(positionsZ[i], i, plane);
+        }
+
+        if (p.timestamp != null) {
+          store.setPlaneDeltaT(p.timestamp - startTime, i, plane);
+        }
+        if (p.exposureTime != null) {
+          store.setPlaneExposureTime(p.exposureTime, i, plane);
         }
       }
 
@@ -1451,6 +1470,69 @@ public class ZeissCZIReader extends FormatReader {
     nameStack.pop();
   }
 
+  /**
+   * Reads the file header, the metadata segment and the SubBlock directory,
+   * so that the SubBlocks can be found without walking through the file.
+   * @return false if the file has no usable directory
+   */
+  private boolean readDirectory(ArrayList<Segment> segments)
+    throws IOException
+  {
+    in.seek(0);
+    Segment segment = readSegment();
+    if (!(segment instanceof FileHeader)) {
+      return false;
+    }
+    FileHeader header = (FileHeader) segment;
+    segments.add(header);
+
+    if (header.updatePending || header.directoryPosition <= 0 ||
+      header.directoryPosition >= in.length())
+    {
+      return false;
+    }
+
+    if (header.metadataPosition > 0 && header.metadataPosition < in.length())
+    {
+      in.seek(header.metadataPosition);
+      segment = readSegment();
+      if (!(segment instanceof Metadata)) {
+        return false;
+      }
+      segments.add(segment);
+    }
+
+    in.seek(header.directoryPosition);
+    segment = readSegment();
+    if (!(segment instanceof Directory)) {
+      return false;
+    }
+    for (DirectoryEntry entry : ((Directory) segment).entries) {
+      // SubBlocks in other parts of a multi-file dataset are not read
+      if (entry.filePart == 0) {
+        planes.add(new SubBlock(entry));
+      }
+    }
+
+    // each SubBlock ends before the next segment whose position is known
+    long[] boundaries = new long[planes.size() + 4];
+    for (int i=0; i<planes.size(); i++) {
+      boundaries[i] = planes.get(i).startingPosition;
+    }
+    boundaries[planes.size()] = header.directoryPosition;
+    boundaries[planes.size() + 1] = header.metadataPosition;
+    boundaries[planes.size() + 2] = header.attachmentDirectoryPosition;
+    boundaries[planes.size() + 3] = in.length();
+    Arrays.sort(boundaries);
+    for (SubBlock plane : planes) {
+      int next = Arrays.binarySearch(boundaries, plane.startingPosition + 1);
+      if (next < 0) next = -next - 1;
+      plane.segmentEnd =
+        next < boundaries.length ? boundaries[next] : in.length();
+    }
+    return planes.size() > 0;
+  }
+
   private Segment readSegment() throws IOException {
     // align the stream to a multiple of 32 bytes
     int skip =
@@ -1471,6 +1553,9 @@ public class ZeissCZIReader extends FormatReader {
     else if (segmentID.equals("ZISRAWSUBBLOCK")) {
       segment = new SubBlock();
     }
+    else if (segmentID.equals("ZISRAWDIRECTORY")) {
+      segment = new Directory();
+    }
     else if (segmentID.equals("ZISRAWATTACH")) {
       segment = new Attachment();
     }
@@ -1614,8 +1699,28 @@ public class ZeissCZIReader extends FormatReader {
 
     private Double stageX, stageY, timestamp, exposureTime;
 
+    /** Whether the SubBlock header and metadata have been read. */
+    private boolean loaded;
+
+    /** Upper bound on the end of this SubBlock, from the directory. */
+    private long segmentEnd = -1;
+
+    public SubBlock() {
+    }
+
+    /**
+     * Constructs a SubBlock from its directory entry; the SubBlock header
+     * and metadata are not read until {@link #load()} is called.
+     */
+    public SubBlock(DirectoryEntry entry) {
+      directoryEntry = entry;
+      startingPosition = entry.filePosition;
+      id = "ZISRAWSUBBLOCK";
+    }
+
     public void fillInData() throws IOException {
       super.fillInData();
+      loaded = true;
 
       long fp = in.getFilePointer();
       metadataSize = in.readInt();
@@ -1633,7 +1738,71 @@ public class ZeissCZIReader extends FormatReader {
 
     // -- SubBlock API methods --
 
+    /** Reads the SubBlock header and metadata, if not already read. */
+    public void load() throws IOException {
+      if (!loaded) {
+        in.seek(startingPosition + 16);
+        fillInData();
+      }
+    }
+
+    /**
+     * Checks whether the stored pixels cover a whole plane of the given
+     * size, without reading them.
+     */
+    public boolean isFullPlane(int planeSize) throws IOException {
+      long storedPixels = 1;
+      for (DimensionEntry dimension : directoryEntry.dimensionEntries) {
+        char d = dimension.dimension.charAt(0);
+        if (d == 'X' || d == 'Y') {
+          storedPixels *= dimension.storedSize > 0 ?
+            dimension.storedSize : dimension.size;
+        }
+      }
+      int bpp = FormatTools.getBytesPerPixel(getPixelType());
+      if (storedPixels * bpp < planeSize) {
+        return false;
+      }
+      if (directoryEntry.compression == UNCOMPRESSED) {
+        return getMaxDataSize() >= planeSize;
+      }
+      return true;
+    }
+
+    /**
+     * Gets the size of the pixel data, or an upper bound on it if the
+     * SubBlock header has not been read: the space between the fixed part of
+     * the header and the next segment.
+     */
+    private long getMaxDataSize() {
+      if (loaded || segmentEnd < 0) {
+        return dataSize;
+      }
+      int entrySize = 32 + 20 * directoryEntry.dimensionCount;
+      long headerSize = HEADER_SIZE + Math.max(256, 16 + entrySize);
+      return segmentEnd - startingPosition - headerSize;
+    }
+
+    /** Reads the given region of this SubBlock's plane into the buffer. */
+    public void readRegion(byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException
+    {
+      load();
+      if (directoryEntry.compression == UNCOMPRESSED) {
+        // only the requested rows need to be read
+        in.seek(dataOffset);
+        readPlane(in, x, y, w, h, buf);
+      }
+      else {
+        byte[] rawData = readPixelData();
+        RandomAccessInputStream s = new RandomAccessInputStream(rawData);
+        readPlane(s, x, y, w, h, buf);
+        s.close();
+      }
+    }
+
     public byte[] readPixelData() throws FormatException, IOException {
+      load();
       in.seek(dataOffset);
       byte[] data = new byte[(int) dataSize];
       in.read(data);
@@ -1721,6 +1890,23 @@ public class ZeissCZIReader extends FormatReader {
     }
   }
 
+  /** Segment with ID "ZISRAWDIRECTORY". */
+  class Directory extends Segment {
+    public int entryCount;
+    public DirectoryEntry[] entries;
+
+    public void fillInData() throws IOException {
+      super.fillInData();
+
+      entryCount = in.readInt();
+      in.skipBytes(124); // reserved
+      entries = new DirectoryEntry[entryCount];
+      for (int i=0; i<entries.length; i++) {
+        entries[i] = new DirectoryEntry();
+      }
+    }
+  }
+
   /** Segment with ID "ZISRAWATTACH". */
   class Attachment extends Segment {
     public int dataSize;
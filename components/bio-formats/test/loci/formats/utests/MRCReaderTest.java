@@ -0,0 +1,159 @@
+//
+// MRCReaderTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+import loci.common.DataTools;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.in.MRCReader;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link MRCReader} returns the rows of each plane top-down,
+ * although they are stored bottom-up, through both openBytes and openPlane.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/test/loci/formats/utests/MRCReaderTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/test/loci/formats/utests/MRCReaderTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class MRCReaderTest {
+
+  private static final int SIZE_X = 12;
+
+  private static final int SIZE_Y = 9;
+
+  private static final int SIZE_Z = 3;
+
+  private File file;
+
+  private MRCReader reader;
+
+  @BeforeClass
+  public void setUp() throws FormatException, IOException {
+    file = File.createTempFile("MRCReaderTest", ".mrc");
+    file.deleteOnExit();
+    RandomAccessOutputStream out =
+      new RandomAccessOutputStream(file.getAbsolutePath());
+    out.order(true);
+    out.writeInt(SIZE_X);
+    out.writeInt(SIZE_Y);
+    out.writeInt(SIZE_Z);
+    out.writeInt(1); // 16-bit signed pixels
+    out.skipBytes(12);
+    out.writeInt(SIZE_X);
+    out.writeInt(SIZE_Y);
+    out.writeInt(SIZE_Z);
+    out.skipBytes(36);
+    out.writeFloat(0f); // minimum
+    out.writeFloat(SIZE_Z * 1000f); // maximum
+    out.seek(212);
+    out.writeBytes("DA"); // little-endian
+    out.seek(1024);
+    for (int z=0; z<SIZE_Z; z++) {
+      // the first row in the file is the bottom row of the plane
+      for (int row=SIZE_Y-1; row>=0; row--) {
+        for (int col=0; col<SIZE_X; col++) {
+          out.writeShort(getSample(z, col, row));
+        }
+      }
+    }
+    out.close();
+
+    reader = new MRCReader();
+    reader.setId(file.getAbsolutePath());
+  }
+
+  @AfterClass
+  public void tearDown() throws IOException {
+    reader.close();
+    file.delete();
+  }
+
+  /** Gets the sample at the given column and row, counted from the top. */
+  private short getSample(int z, int col, int row) {
+    return (short) (z * 1000 + row * SIZE_X + col);
+  }
+
+  @Test
+  public void testDimensions() {
+    assertEquals(SIZE_X, reader.getSizeX());
+    assertEquals(SIZE_Y, reader.getSizeY());
+    assertEquals(SIZE_Z, reader.getImageCount());
+    assertEquals(FormatTools.INT16, reader.getPixelType());
+    assertEquals(true, reader.isLittleEndian());
+  }
+
+  @Test
+  public void testOpenBytes() throws FormatException, IOException {
+    assertOpenBytes(1, 0, 0, SIZE_X, SIZE_Y);
+    assertOpenBytes(2, 3, 2, 5, 4);
+  }
+
+  @Test
+  public void testOpenPlane() throws FormatException, IOException {
+    assertOpenPlane(0, 0, 0, SIZE_X, SIZE_Y);
+    assertOpenPlane(2, 3, 2, 5, 4);
+    assertOpenPlane(1, 0, SIZE_Y - 1, SIZE_X, 1);
+  }
+
+  // -- Helper methods --
+
+  private void assertOpenBytes(int z, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    short[] samples = (short[]) DataTools.makeDataArray(
+      reader.openBytes(z, x, y, w, h), 2, false, true);
+    assertEquals(w * h, samples.length);
+    for (int row=0; row<h; row++) {
+      for (int col=0; col<w; col++) {
+        assertEquals(getSample(z, x + col, y + row), samples[row * w + col]);
+      }
+    }
+  }
+
+  private void assertOpenPlane(int z, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    ShortBuffer buf = ShortBuffer.allocate(w * h);
+    reader.openPlane(z, buf, x, y, w, h);
+    assertEquals(w * h, buf.position());
+    for (int row=0; row<h; row++) {
+      for (int col=0; col<w; col++) {
+        assertEquals(getSample(z, x + col, y + row), buf.get(row * w + col));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,151 @@
+//
+// OMEModelHandlerTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests.xml;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.common.xml.XMLTools;
+import loci.formats.ome.OMEModelHandler;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+import ome.xml.model.OME;
+import ome.xml.model.OMEModel;
+import ome.xml.model.OMEModelImpl;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link OMEModelHandler} constructs the same model as the
+ * DOM-based model constructors.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/test/loci/formats/utests/xml/OMEModelHandlerTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/test/loci/formats/utests/xml/OMEModelHandlerTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class OMEModelHandlerTest {
+
+  private static final int PLANE_COUNT = 6;
+
+  private OMEXMLService service;
+
+  @BeforeMethod
+  public void setUp() throws DependencyException {
+    ServiceFactory sf = new ServiceFactory();
+    service = sf.getInstance(OMEXMLService.class);
+  }
+
+  /** Creates OME-XML with two images, each with Plane and TiffData. */
+  private String createXML() throws ServiceException {
+    OMEXMLMetadata meta = service.createOMEXMLMetadata();
+    meta.setCommentAnnotationID("Annotation:0", 0);
+    meta.setCommentAnnotationValue("first plane", 0);
+    for (int image=0; image<2; image++) {
+      meta.setImageID("Image:" + image, image);
+      meta.setPixelsID("Pixels:" + image, image);
+      meta.setPixelsDimensionOrder(
+        ome.xml.model.enums.DimensionOrder.XYZCT, image);
+      meta.setPixelsType(PixelType.UINT8, image);
+      meta.setPixelsSizeX(new PositiveInteger(4), image);
+      meta.setPixelsSizeY(new PositiveInteger(4), image);
+      meta.setPixelsSizeZ(new PositiveInteger(PLANE_COUNT), image);
+      meta.setPixelsSizeC(new PositiveInteger(1), image);
+      meta.setPixelsSizeT(new PositiveInteger(1), image);
+      meta.setChannelID("Channel:" + image + ":0", image, 0);
+      meta.setChannelSamplesPerPixel(new PositiveInteger(1), image, 0);
+      for (int p=0; p<PLANE_COUNT; p++) {
+        meta.setPlaneTheZ(new NonNegativeInteger(p), image, p);
+        meta.setPlaneTheC(new NonNegativeInteger(0), image, p);
+        meta.setPlaneTheT(new NonNegativeInteger(0), image, p);
+        meta.setPlaneDeltaT(image * 100.0 + p, image, p);
+        meta.setTiffDataIFD(
+          new NonNegativeInteger(image * PLANE_COUNT + p), image, p);
+        meta.setTiffDataFirstZ(new NonNegativeInteger(p), image, p);
+        meta.setTiffDataPlaneCount(new NonNegativeInteger(1), image, p);
+        meta.setUUIDValue("urn:uuid:" + image, image, p);
+        meta.setUUIDFileName("image" + image + ".ome.tif", image, p);
+      }
+    }
+    meta.setPlaneAnnotationRef("Annotation:0", 1, 0, 0);
+    return service.getOMEXML(meta);
+  }
+
+  private String parseWithDOM(String xml) throws Exception {
+    OMEModel model = new OMEModelImpl();
+    OME root = new OME(XMLTools.parseDOM(xml).getDocumentElement(), model);
+    model.resolveReferences();
+    OMEXMLMetadata meta = service.createOMEXMLMetadata();
+    meta.setRoot(root);
+    return service.getOMEXML(meta);
+  }
+
+  @Test
+  public void testPlanesAndTiffData() throws Exception {
+    String xml = createXML();
+    OMEXMLMetadata meta = service.createOMEXMLMetadata(xml);
+    assertEquals(2, meta.getImageCount());
+    for (int image=0; image<2; image++) {
+      assertEquals(PLANE_COUNT, meta.getPlaneCount(image));
+      assertEquals(PLANE_COUNT, meta.getTiffDataCount(image));
+      assertEquals(image * 100.0 + 3, meta.getPlaneDeltaT(image, 3));
+      assertEquals(image * PLANE_COUNT + 5,
+        meta.getTiffDataIFD(image, 5).getValue().intValue());
+      assertEquals("image" + image + ".ome.tif",
+        meta.getUUIDFileName(image, 2));
+    }
+    assertEquals("Annotation:0", meta.getPlaneAnnotationRef(1, 0, 0));
+    assertEquals(parseWithDOM(xml), service.getOMEXML(meta));
+  }
+
+  @Test
+  public void testUpgradedSamples() throws Exception {
+    String[] files = {"2008-09.ome", "2010-06.ome"};
+    for (String file : files) {
+      InputStream s = OMEModelHandlerTest.class.getResourceAsStream(file);
+      byte[] b = new byte[s.available()];
+      s.read(b);
+      s.close();
+      String xml = service.transformToLatestVersion(new String(b));
+      assertEquals(file, parseWithDOM(xml),
+        service.getOMEXML(service.createOMEXMLMetadata(xml)));
+    }
+  }
+
+  @Test
+  public void testGetOMEXMLVersion() throws ServiceException, IOException {
+    assertEquals(service.getLatestVersion(),
+      service.getOMEXMLVersion(createXML()));
+    assertEquals(null, service.getOMEXMLVersion("not XML"));
+  }
+
+}
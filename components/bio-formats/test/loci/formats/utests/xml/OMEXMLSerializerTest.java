@@ -0,0 +1,135 @@
+//
+// OMEXMLSerializerTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests.xml;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import loci.common.Constants;
+import loci.common.services.ServiceFactory;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.ome.OMEXMLSerializer;
+import loci.formats.services.OMEXMLService;
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link OMEXMLSerializer} writes the same OME-XML as
+ * {@link OMEXMLService#getOMEXML}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/test/loci/formats/utests/xml/OMEXMLSerializerTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/test/loci/formats/utests/xml/OMEXMLSerializerTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class OMEXMLSerializerTest {
+
+  private OMEXMLService service;
+
+  private OMEXMLMetadata meta;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    ServiceFactory sf = new ServiceFactory();
+    service = sf.getInstance(OMEXMLService.class);
+    meta = service.createOMEXMLMetadata();
+    meta.setUUID("urn:uuid:0");
+    meta.setImageID("Image:0", 0);
+    meta.setImageName("a <b> & \"c\"\t", 0);
+    meta.setImageDescription("first line\nsecond line & <x>", 0);
+    meta.setPixelsID("Pixels:0", 0);
+    meta.setPixelsDimensionOrder(DimensionOrder.XYZCT, 0);
+    meta.setPixelsType(PixelType.UINT8, 0);
+    meta.setPixelsSizeX(new PositiveInteger(4), 0);
+    meta.setPixelsSizeY(new PositiveInteger(4), 0);
+    meta.setPixelsSizeZ(new PositiveInteger(2), 0);
+    meta.setPixelsSizeC(new PositiveInteger(1), 0);
+    meta.setPixelsSizeT(new PositiveInteger(1), 0);
+    meta.setChannelID("Channel:0:0", 0, 0);
+    for (int p=0; p<2; p++) {
+      meta.setPlaneTheZ(new NonNegativeInteger(p), 0, p);
+      meta.setTiffDataIFD(new NonNegativeInteger(p), 0, p);
+      meta.setUUIDValue("urn:uuid:0", 0, p);
+      meta.setUUIDFileName("test.ome.tif", 0, p);
+    }
+    meta.setCommentAnnotationID("Annotation:0", 0);
+    meta.setCommentAnnotationValue("comment", 0);
+    meta.setXMLAnnotationID("Annotation:1", 0);
+    meta.setXMLAnnotationValue("<foo a=\"1\">bar<!-- baz --></foo>", 0);
+    meta.setImageAnnotationRef("Annotation:0", 0, 0);
+    meta.setPlateID("Plate:0", 0);
+    meta.setWellID("Well:0", 0, 0);
+    meta.setWellColumn(new NonNegativeInteger(0), 0, 0);
+    meta.setWellRow(new NonNegativeInteger(0), 0, 0);
+    meta.setROIID("ROI:0", 0);
+    meta.setRectangleID("Shape:0", 0, 0);
+    meta.setRectangleX(1.0, 0, 0);
+    meta.setImageROIRef("ROI:0", 0, 0);
+  }
+
+  private String write(OMEXMLMetadata omexml) throws Exception {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    new OMEXMLSerializer(omexml).write(stream);
+    return stream.toString(Constants.ENCODING);
+  }
+
+  @Test
+  public void testSameAsService() throws Exception {
+    assertEquals(service.getOMEXML(meta), write(meta));
+  }
+
+  @Test
+  public void testEmptyRoot() throws Exception {
+    OMEXMLMetadata empty = service.createOMEXMLMetadata();
+    empty.createRoot();
+    assertEquals(service.getOMEXML(empty), write(empty));
+  }
+
+  @Test
+  public void testStartTagAndContent() throws Exception {
+    OMEXMLSerializer serializer = new OMEXMLSerializer(meta);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    stream.write(OMEXMLSerializer.DECLARATION.getBytes(Constants.ENCODING));
+    serializer.writeStartTag(stream, "urn:uuid:1");
+    serializer.writeContent(stream);
+    String xml = stream.toString(Constants.ENCODING);
+
+    meta.setUUID("urn:uuid:1");
+    assertEquals(service.getOMEXML(meta), xml);
+  }
+
+  @Test
+  public void testNonASCII() throws Exception {
+    String name = "\u00b5m \u03bb=488";
+    meta.setImageName(name, 0);
+    assertTrue(write(meta).indexOf("Name=\"" + name + "\"") > 0);
+  }
+
+}
@@ -0,0 +1,90 @@
+//
+// DetectionBenchmark.java
+//
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import loci.formats.DetectionIndex;
+import loci.formats.FormatException;
+import loci.formats.ImageReader;
+
+/**
+ * Measures how long format detection takes for the given files or
+ * directories: with a full scan of all readers, with the detection index,
+ * and with the detection index and cached detection results.
+ * Usage: java DetectionBenchmark [-iterations n] file-or-directory ...
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/utils/DetectionBenchmark.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/utils/DetectionBenchmark.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class DetectionBenchmark {
+
+  private static final String[] MODES = {
+    "full scan", "detection index", "detection index + cache"
+  };
+
+  public static void main(String[] args) throws Exception {
+    int iterations = 5;
+    List<String> ids = new ArrayList<String>();
+    for (int i=0; i<args.length; i++) {
+      if (args[i].equals("-iterations")) {
+        iterations = Integer.parseInt(args[++i]);
+        continue;
+      }
+      File f = new File(args[i]);
+      if (f.isDirectory()) {
+        File[] list = f.listFiles();
+        for (File child : list) {
+          if (!child.isDirectory()) ids.add(child.getAbsolutePath());
+        }
+      }
+      else ids.add(f.getAbsolutePath());
+    }
+    if (ids.size() == 0) {
+      System.out.println(
+        "Usage: java DetectionBenchmark [-iterations n] file-or-directory ...");
+      return;
+    }
+
+    // detected format of each file, used to check that all modes agree
+    String[] formats = new String[ids.size()];
+
+    for (int mode=0; mode<MODES.length; mode++) {
+      ImageReader reader = new ImageReader();
+      reader.setDetectionIndexEnabled(mode > 0);
+      DetectionIndex.cacheDetectionResults(mode > 1);
+
+      long[] times = new long[iterations];
+      int mismatches = 0;
+      for (int iteration=0; iteration<iterations; iteration++) {
+        long start = System.nanoTime();
+        for (int i=0; i<ids.size(); i++) {
+          String format = null;
+          try {
+            format = reader.getReader(ids.get(i)).getFormat();
+          }
+          catch (FormatException e) {
+            format = "unknown";
+          }
+          reader.close();
+          if (formats[i] == null) formats[i] = format;
+          else if (!formats[i].equals(format)) mismatches++;
+        }
+        times[iteration] = System.nanoTime() - start;
+      }
+      DetectionIndex.cacheDetectionResults(false);
+
+      // the first iteration includes class loading and cold file caches
+      long best = Long.MAX_VALUE;
+      for (long time : times) best = Math.min(best, time);
+      System.out.println(MODES[mode] + ": first " +
+        (times[0] / 1000000.0 / ids.size()) + " ms/file, best " +
+        (best / 1000000.0 / ids.size()) + " ms/file" +
+        (mismatches > 0 ? " (" + mismatches + " mismatched formats)" : ""));
+    }
+  }
+
+}
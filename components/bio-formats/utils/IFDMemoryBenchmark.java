@@ -0,0 +1,96 @@
+//
+// IFDMemoryBenchmark.java
+//
+
+import loci.common.ByteArrayHandle;
+import loci.common.IRandomAccess;
+import loci.common.NIOFileHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffRational;
+import loci.formats.tiff.TiffSaver;
+
+/**
+ * Compares the heap retained by the IFDs of a TIFF file, and the time taken
+ * to parse them, when they are stored in ordinary hash map based IFDs and
+ * when they are stored as compact IFDs.  If no file is given, a TIFF with
+ * many small planes is generated in memory.
+ * Usage: java IFDMemoryBenchmark [-planes n] [file]
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/utils/IFDMemoryBenchmark.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/utils/IFDMemoryBenchmark.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class IFDMemoryBenchmark {
+
+  private static final String[] MODES = {"IFD", "CompactIFD"};
+
+  public static void main(String[] args) throws Exception {
+    int planes = 100000;
+    String file = null;
+    for (int i=0; i<args.length; i++) {
+      if (args[i].equals("-planes")) planes = Integer.parseInt(args[++i]);
+      else file = args[i];
+    }
+
+    IRandomAccess handle = file == null ?
+      createTIFF(planes) : new NIOFileHandle(file, "r");
+
+    for (int mode=0; mode<MODES.length; mode++) {
+      long before = getUsedMemory();
+      long start = System.nanoTime();
+      RandomAccessInputStream in = new RandomAccessInputStream(handle);
+      TiffParser parser = new TiffParser(in);
+      parser.setCompactIFDs(mode == 1);
+      IFDList ifds = parser.getIFDs();
+      long time = System.nanoTime() - start;
+      long used = getUsedMemory() - before;
+
+      System.out.println(MODES[mode] + ": " + ifds.size() + " IFDs, " +
+        (used / 1024) + " KB (" + (used / ifds.size()) + " bytes/IFD), " +
+        (time / 1000000.0) + " ms");
+    }
+    handle.close();
+  }
+
+  /**
+   * Creates a TIFF with the given number of 1x1 planes, each of which has
+   * the entries that a typical microscope TIFF has.
+   */
+  private static IRandomAccess createTIFF(int planes) throws Exception {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setWritingSequentially(true);
+    saver.writeHeader();
+    byte[] plane = new byte[2];
+    for (int p=0; p<planes; p++) {
+      IFD ifd = new IFD();
+      ifd.put(IFD.IMAGE_WIDTH, 1);
+      ifd.put(IFD.IMAGE_LENGTH, 1);
+      ifd.put(IFD.LITTLE_ENDIAN, Boolean.FALSE);
+      ifd.put(IFD.COMPRESSION, TiffCompression.UNCOMPRESSED.getCode());
+      ifd.put(IFD.X_RESOLUTION, new TiffRational(1, 1));
+      ifd.put(IFD.Y_RESOLUTION, new TiffRational(1, 1));
+      ifd.put(IFD.RESOLUTION_UNIT, 1);
+      ifd.put(IFD.SOFTWARE, "IFDMemoryBenchmark");
+      ifd.put(IFD.DATE_TIME, "2000:01:01 00:00:00");
+      out.seek(out.length());
+      saver.writeImage(plane, ifd, p, FormatTools.UINT16, p == planes - 1);
+    }
+    out.close();
+    return handle;
+  }
+
+  private static long getUsedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i=0; i<4; i++) System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+}
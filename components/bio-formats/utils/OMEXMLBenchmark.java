@@ -0,0 +1,141 @@
+//
+// OMEXMLBenchmark.java
+//
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+
+import loci.common.services.ServiceFactory;
+import loci.common.xml.XMLTools;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+import ome.xml.model.OME;
+import ome.xml.model.OMEModel;
+import ome.xml.model.OMEModelImpl;
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+
+/**
+ * Compares the time and peak heap usage of populating the OME-XML model
+ * from a DOM tree with populating it directly from a SAX stream, for
+ * generated documents with increasing numbers of Plane and TiffData
+ * elements.
+ * Usage: java OMEXMLBenchmark [-iterations n] [plane-count ...]
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/utils/OMEXMLBenchmark.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/utils/OMEXMLBenchmark.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class OMEXMLBenchmark {
+
+  private static final String[] MODES = {"DOM", "SAX"};
+
+  private static OMEXMLService service;
+
+  public static void main(String[] args) throws Exception {
+    int iterations = 3;
+    int[] planeCounts = {1000, 10000, 100000};
+    int countIndex = 0;
+    for (int i=0; i<args.length; i++) {
+      if (args[i].equals("-iterations")) {
+        iterations = Integer.parseInt(args[++i]);
+        continue;
+      }
+      if (countIndex == 0) planeCounts = new int[args.length - i];
+      planeCounts[countIndex++] = Integer.parseInt(args[i]);
+    }
+    if (countIndex > 0 && countIndex < planeCounts.length) {
+      int[] counts = new int[countIndex];
+      System.arraycopy(planeCounts, 0, counts, 0, countIndex);
+      planeCounts = counts;
+    }
+
+    ServiceFactory factory = new ServiceFactory();
+    service = factory.getInstance(OMEXMLService.class);
+
+    for (int planeCount : planeCounts) {
+      String xml = createXML(planeCount);
+      System.out.println(planeCount + " planes (" +
+        (xml.length() / 1024) + " KB of OME-XML):");
+      for (int mode=0; mode<MODES.length; mode++) {
+        long best = Long.MAX_VALUE;
+        long peak = 0;
+        for (int iteration=0; iteration<iterations; iteration++) {
+          System.gc();
+          resetPeakUsage();
+          long start = System.nanoTime();
+          Object root = mode == 0 ? parseDOM(xml) : parseSAX(xml);
+          best = Math.min(best, System.nanoTime() - start);
+          peak = Math.max(peak, getPeakUsage());
+          if (root == null) throw new IllegalStateException("no root");
+        }
+        System.out.println("  " + MODES[mode] + ": best " +
+          (best / 1000000.0) + " ms, peak heap " +
+          (peak / (1024 * 1024)) + " MB");
+      }
+    }
+  }
+
+  /** Creates OME-XML for a single image with the given number of planes. */
+  private static String createXML(int planeCount) throws Exception {
+    OMEXMLMetadata meta = service.createOMEXMLMetadata();
+    meta.setImageID("Image:0", 0);
+    meta.setPixelsID("Pixels:0", 0);
+    meta.setPixelsDimensionOrder(DimensionOrder.XYZCT, 0);
+    meta.setPixelsType(PixelType.UINT16, 0);
+    meta.setPixelsSizeX(new PositiveInteger(512), 0);
+    meta.setPixelsSizeY(new PositiveInteger(512), 0);
+    meta.setPixelsSizeZ(new PositiveInteger(1), 0);
+    meta.setPixelsSizeC(new PositiveInteger(1), 0);
+    meta.setPixelsSizeT(new PositiveInteger(planeCount), 0);
+    meta.setChannelID("Channel:0:0", 0, 0);
+    meta.setChannelSamplesPerPixel(new PositiveInteger(1), 0, 0);
+    for (int p=0; p<planeCount; p++) {
+      meta.setPlaneTheZ(new NonNegativeInteger(0), 0, p);
+      meta.setPlaneTheC(new NonNegativeInteger(0), 0, p);
+      meta.setPlaneTheT(new NonNegativeInteger(p), 0, p);
+      meta.setPlaneDeltaT(p * 0.5, 0, p);
+      meta.setPlaneExposureTime(0.1, 0, p);
+      meta.setTiffDataIFD(new NonNegativeInteger(p), 0, p);
+      meta.setTiffDataFirstT(new NonNegativeInteger(p), 0, p);
+      meta.setTiffDataPlaneCount(new NonNegativeInteger(1), 0, p);
+      meta.setUUIDValue("urn:uuid:0", 0, p);
+      meta.setUUIDFileName("benchmark.ome.tif", 0, p);
+    }
+    return service.getOMEXML(meta);
+  }
+
+  private static Object parseDOM(String xml) throws Exception {
+    OMEModel model = new OMEModelImpl();
+    OME root = new OME(XMLTools.parseDOM(xml).getDocumentElement(), model);
+    model.resolveReferences();
+    return root;
+  }
+
+  private static Object parseSAX(String xml) throws Exception {
+    return service.createOMEXMLMetadata(xml).getRoot();
+  }
+
+  private static void resetPeakUsage() {
+    List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+    for (MemoryPoolMXBean pool : pools) {
+      if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+    }
+  }
+
+  private static long getPeakUsage() {
+    long peak = 0;
+    List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+    for (MemoryPoolMXBean pool : pools) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+}
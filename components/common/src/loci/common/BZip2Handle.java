@@ -45,7 +45,10 @@ public class BZip2Handle extends StreamHandle {
   // -- Constructor --
 
   /**
-   * Construct a new BZip2Handle corresponding to the given file.
+   * Construct a new BZip2Handle corresponding to the given file.  If a seek
+   * point spacing has been set, the file is indexed so that seeking
+   * backwards does not decompress it from the beginning.
+   * @see SeekPointIndex#setSpacing(long)
    *
    * @throws HandleException if the given file is not a BZip2 file.
    */
@@ -56,6 +59,15 @@ public class BZip2Handle extends StreamHandle {
       throw new HandleException(file + " is not a BZip2 file.");
     }
 
+    long spacing = SeekPointIndex.getSpacing();
+    if (spacing > 0) {
+      seekPoints = SeekPointIndex.createBZip2Index(file, spacing);
+      seekSource = new NIOFileHandle(file, "r");
+      length = seekPoints.getLength();
+      resetStream();
+      return;
+    }
+
     resetStream();
 
     length = 0;
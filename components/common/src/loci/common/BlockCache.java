@@ -0,0 +1,310 @@
+//
+// BlockCache.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A least-recently-used cache of fixed-size file blocks, keyed by file and
+ * block index, that can be shared by every {@link CachedFileHandle} in the
+ * process.  Repeated reads of the same headers, IFDs or tiles by different
+ * readers (or different threads) are then served from memory.
+ *
+ * Blocks are held on the heap by default, or in direct buffers if the cache
+ * is created as off-heap.  The total size of all cached blocks is kept below
+ * a configurable budget; the least recently used blocks are evicted first.
+ *
+ * The shared cache is disabled unless it is configured with
+ * {@link #setSharedCache(BlockCache)} or the <code>blockCacheSize</code>
+ * system property (a size in bytes) is set; <code>blockCacheOffHeap</code>
+ * additionally selects off-heap storage for the latter.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/src/loci/common/BlockCache.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/src/loci/common/BlockCache.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see CachedFileHandle
+ */
+public class BlockCache {
+
+  // -- Constants --
+
+  /** Default size of a cached block. */
+  public static final int DEFAULT_BLOCK_SIZE = 65536;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(BlockCache.class);
+
+  // -- Static fields --
+
+  /** Cache used by handles returned from {@link Location#getHandle}. */
+  private static BlockCache sharedCache;
+
+  static {
+    String size = System.getProperty("blockCacheSize");
+    if (size != null) {
+      try {
+        boolean offHeap =
+          Boolean.parseBoolean(System.getProperty("blockCacheOffHeap"));
+        sharedCache =
+          new BlockCache(Long.parseLong(size), DEFAULT_BLOCK_SIZE, offHeap);
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid block cache size: {}", size);
+      }
+    }
+  }
+
+  // -- Fields --
+
+  private final int blockSize;
+
+  private final boolean offHeap;
+
+  /** Maximum number of bytes to cache. */
+  private long maxSize;
+
+  /** Number of bytes currently cached. */
+  private long size;
+
+  private long hits, misses, evictions;
+
+  /** Cached blocks, in least-recently-used order. */
+  private final LinkedHashMap<Key, ByteBuffer> blocks =
+    new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+
+  // -- Constructors --
+
+  /** Constructs a heap cache of at most the given number of bytes. */
+  public BlockCache(long maxSize) {
+    this(maxSize, DEFAULT_BLOCK_SIZE, false);
+  }
+
+  /**
+   * Constructs a cache of at most <code>maxSize</code> bytes, split into
+   * blocks of <code>blockSize</code> bytes.
+   * @param offHeap true if blocks should be stored in direct buffers
+   */
+  public BlockCache(long maxSize, int blockSize, boolean offHeap) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    }
+    this.maxSize = maxSize;
+    this.blockSize = blockSize;
+    this.offHeap = offHeap;
+  }
+
+  // -- Static BlockCache API methods --
+
+  /**
+   * Gets the cache shared by all files opened through
+   * {@link Location#getHandle(String)}, or null if caching is disabled.
+   */
+  public static synchronized BlockCache getSharedCache() {
+    return sharedCache;
+  }
+
+  /**
+   * Sets the cache shared by all files subsequently opened through
+   * {@link Location#getHandle(String)}; null disables caching.
+   */
+  public static synchronized void setSharedCache(BlockCache cache) {
+    sharedCache = cache;
+  }
+
+  /**
+   * Gets the key under which the blocks of the given file are cached.
+   * The key includes the file's length and modification time, so that
+   * blocks of a file that has since been rewritten are never returned.
+   */
+  public static String getFileKey(File file) throws IOException {
+    return file.getCanonicalPath() + ":" + file.length() + ":" +
+      file.lastModified();
+  }
+
+  // -- BlockCache API methods --
+
+  /** Gets the size of each cached block in bytes. */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /** Returns true if blocks are stored outside of the Java heap. */
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  /** Gets the maximum number of bytes held by this cache. */
+  public synchronized long getMaxSize() {
+    return maxSize;
+  }
+
+  /** Sets the maximum number of bytes held by this cache. */
+  public synchronized void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    evict();
+  }
+
+  /** Gets the number of bytes currently held by this cache. */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /** Gets the number of blocks currently held by this cache. */
+  public synchronized int getBlockCount() {
+    return blocks.size();
+  }
+
+  /** Gets the number of block requests that were served from memory. */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /** Gets the number of block requests that had to be read from disk. */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /** Gets the number of blocks that were evicted to stay within budget. */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /** Resets the hit, miss and eviction counters. */
+  public synchronized void resetStatistics() {
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+  }
+
+  /** Removes all blocks from this cache. */
+  public synchronized void clear() {
+    blocks.clear();
+    size = 0;
+  }
+
+  /** Removes all blocks belonging to the given file key. */
+  public synchronized void invalidate(String fileKey) {
+    Iterator<Map.Entry<Key, ByteBuffer>> it = blocks.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Key, ByteBuffer> entry = it.next();
+      if (entry.getKey().file.equals(fileKey)) {
+        size -= entry.getValue().capacity();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Gets a block of the given file, reading it from the channel if it is not
+   * already cached.
+   *
+   * @param fileKey key identifying the file, see {@link #getFileKey(File)}
+   * @param block index of the block within the file
+   * @param channel channel from which to read the block on a miss
+   * @param length length of the file
+   * @return a read-only view of the block, positioned at 0; the final block
+   *   of a file may be shorter than {@link #getBlockSize()}
+   */
+  public ByteBuffer getBlock(String fileKey, long block, FileChannel channel,
+    long length) throws IOException
+  {
+    Key key = new Key(fileKey, block);
+    synchronized (this) {
+      ByteBuffer cached = blocks.get(key);
+      if (cached != null) {
+        hits++;
+        return cached.asReadOnlyBuffer();
+      }
+      misses++;
+    }
+
+    // read outside of the lock, so that misses on other blocks can proceed
+    long start = block * blockSize;
+    int len = (int) Math.max(0, Math.min(blockSize, length - start));
+    ByteBuffer data =
+      offHeap ? ByteBuffer.allocateDirect(len) : ByteBuffer.allocate(len);
+    while (data.hasRemaining()) {
+      int n = channel.read(data, start + data.position());
+      if (n < 0) break;
+    }
+    data.flip();
+
+    synchronized (this) {
+      ByteBuffer cached = blocks.get(key);
+      if (cached != null) return cached.asReadOnlyBuffer();
+      if (data.capacity() <= maxSize) {
+        blocks.put(key, data);
+        size += data.capacity();
+        evict();
+      }
+    }
+    return data.asReadOnlyBuffer();
+  }
+
+  // -- Helper methods --
+
+  /** Evicts least recently used blocks until the cache is within budget. */
+  private void evict() {
+    Iterator<ByteBuffer> it = blocks.values().iterator();
+    while (size > maxSize && it.hasNext()) {
+      size -= it.next().capacity();
+      it.remove();
+      evictions++;
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Identifies a single block of a file. */
+  private static class Key {
+    private final String file;
+    private final long block;
+
+    public Key(String file, long block) {
+      this.file = file;
+      this.block = block;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return block == k.block && file.equals(k.file);
+    }
+
+    public int hashCode() {
+      return file.hashCode() * 31 + (int) (block ^ (block >>> 32));
+    }
+  }
+
+}
@@ -48,6 +48,7 @@ package loci.common;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -225,6 +226,21 @@ public class CBZip2InputStream extends InputStream {
    */
   private CBZip2InputStream.Data data;
 
+  /** Whether to check the CRC of the whole stream when it ends. */
+  private final boolean checkCombinedCRC;
+
+  /** Number of bytes read from the underlying stream. */
+  private long bytesRead;
+
+  /** Number of bytes decompressed. */
+  private long position;
+
+  /**
+   * List to which the decompressed and compressed (in bits) offsets of
+   * each block are added, or null.
+   */
+  private final List<long[]> blockOffsets;
+
   /**
    * Constructs a new CBZip2InputStream which decompresses bytes read from
    * the specified stream.
@@ -241,9 +257,27 @@ public class CBZip2InputStream extends InputStream {
    *   if <tt>in == null</tt>
    */
   public CBZip2InputStream(final InputStream in) throws IOException {
+    this(in, true, null);
+  }
+
+  /**
+   * Constructs a new CBZip2InputStream which decompresses bytes read from
+   * the specified stream, as above.
+   *
+   * @param checkCombinedCRC false if the stream does not start at the
+   *   first block, so that the CRC of the whole stream cannot be checked.
+   * @param blockOffsets if not null, the decompressed offset and the
+   *   compressed offset in bits (relative to the first byte read from
+   *   <tt>in</tt>) of each block are added to this list as it is read.
+   */
+  CBZip2InputStream(final InputStream in, boolean checkCombinedCRC,
+    List<long[]> blockOffsets) throws IOException
+  {
     super();
 
     this.in = in;
+    this.checkCombinedCRC = checkCombinedCRC;
+    this.blockOffsets = blockOffsets;
     init();
   }
 
@@ -278,6 +312,7 @@ public class CBZip2InputStream extends InputStream {
 
   private int read0() throws IOException {
     final int retChar = this.currentChar;
+    if (this.currentState != EOF) this.position++;
 
     switch (this.currentState) {
       case EOF:
@@ -329,12 +364,14 @@ public class CBZip2InputStream extends InputStream {
     }
 
     this.blockSize100k = blockSize - '0';
+    this.bytesRead = 2;
 
     initBlock();
     setupBlock();
   }
 
   private void initBlock() throws IOException {
+    long bitOffset = this.bytesRead * 8 - this.bsLive;
     char magic0 = bsGetUByte();
     char magic1 = bsGetUByte();
     char magic2 = bsGetUByte();
@@ -362,6 +399,9 @@ public class CBZip2InputStream extends InputStream {
       throw new IOException("bad block header");
     }
     else {
+      if (this.blockOffsets != null) {
+        this.blockOffsets.add(new long[] {this.position, bitOffset});
+      }
       this.storedBlockCRC = bsGetInt();
       this.blockRandomised = bsR(1) == 1;
 
@@ -403,7 +443,9 @@ public class CBZip2InputStream extends InputStream {
     this.currentState = EOF;
     this.data = null;
 
-    if (this.storedCombinedCRC != this.computedCombinedCRC) {
+    if (this.checkCombinedCRC &&
+      this.storedCombinedCRC != this.computedCombinedCRC)
+    {
       reportCRCError();
     }
   }
@@ -434,6 +476,7 @@ public class CBZip2InputStream extends InputStream {
 
         bsBuffShadow = (bsBuffShadow << 8) | thech;
         bsLiveShadow += 8;
+        this.bytesRead++;
       }
       while (bsLiveShadow < n);
 
@@ -658,6 +701,7 @@ public class CBZip2InputStream extends InputStream {
             if (thech >= 0) {
               bsBuffShadow = (bsBuffShadow << 8) | thech;
               bsLiveShadow += 8;
+              this.bytesRead++;
               continue;
             }
             throw new IOException("unexpected end of stream");
@@ -672,6 +716,7 @@ public class CBZip2InputStream extends InputStream {
               if (thech >= 0) {
                 bsBuffShadow = (bsBuffShadow << 8) | thech;
                 bsLiveShadow += 8;
+                this.bytesRead++;
                 continue;
               }
               throw new IOException("unexpected end of stream");
@@ -729,6 +774,7 @@ public class CBZip2InputStream extends InputStream {
           if (thech >= 0) {
             bsBuffShadow = (bsBuffShadow << 8) | thech;
             bsLiveShadow += 8;
+            this.bytesRead++;
             continue;
           }
           throw new IOException("unexpected end of stream");
@@ -743,6 +789,7 @@ public class CBZip2InputStream extends InputStream {
             if (thech >= 0) {
               bsBuffShadow = (bsBuffShadow << 8) | thech;
               bsLiveShadow += 8;
+              this.bytesRead++;
               continue;
             }
             throw new IOException("unexpected end of stream");
@@ -779,6 +826,7 @@ public class CBZip2InputStream extends InputStream {
         if (thech >= 0) {
           bsBuffShadow = (bsBuffShadow << 8) | thech;
           bsLiveShadow += 8;
+          this.bytesRead++;
           continue;
         }
         throw new IOException("unexpected end of stream");
@@ -0,0 +1,404 @@
+//
+// CachedFileHandle.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only IRandomAccess implementation for files on disk whose reads are
+ * served from a {@link BlockCache}, so that blocks read through one handle
+ * are available to every other handle on the same file.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/src/loci/common/CachedFileHandle.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/src/loci/common/CachedFileHandle.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see IRandomAccess
+ * @see BlockCache
+ */
+public class CachedFileHandle implements IRandomAccess {
+
+  // -- Constants --
+
+  private static final String EOF_ERROR_MSG =
+    "Attempting to read beyond end of file.";
+
+  // -- Fields --
+
+  private final BlockCache cache;
+
+  private final RandomAccessFile raf;
+
+  private final FileChannel channel;
+
+  /** Key identifying this file's blocks in the cache. */
+  private final String fileKey;
+
+  private final long length;
+
+  /** The absolute position within the file. */
+  private long position = 0;
+
+  private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+  /** The most recently used block, and its index. */
+  private ByteBuffer block;
+  private long blockIndex = -1;
+
+  /** Scratch buffer for values that span two blocks. */
+  private final byte[] scratch = new byte[8];
+
+  // -- Constructors --
+
+  /** Opens the given file for reading through the given cache. */
+  public CachedFileHandle(File file, BlockCache cache) throws IOException {
+    this.cache = cache;
+    raf = new RandomAccessFile(file, "r");
+    channel = raf.getChannel();
+    length = raf.length();
+    fileKey = BlockCache.getFileKey(file);
+  }
+
+  /** Opens the named file for reading through the given cache. */
+  public CachedFileHandle(String name, BlockCache cache) throws IOException {
+    this(new File(name), cache);
+  }
+
+  // -- CachedFileHandle API methods --
+
+  /** Gets the cache backing this handle. */
+  public BlockCache getCache() {
+    return cache;
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess.close() */
+  public void close() throws IOException {
+    block = null;
+    raf.close();
+  }
+
+  /* @see IRandomAccess.getFilePointer() */
+  public long getFilePointer() {
+    return position;
+  }
+
+  /* @see IRandomAccess.length() */
+  public long length() {
+    return length;
+  }
+
+  /* @see IRandomAccess.getOrder() */
+  public ByteOrder getOrder() {
+    return order;
+  }
+
+  /* @see IRandomAccess.setOrder(ByteOrder) */
+  public void setOrder(ByteOrder order) {
+    this.order = order;
+    if (block != null) block.order(order);
+  }
+
+  /* @see IRandomAccess.read(byte[]) */
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  /* @see IRandomAccess.read(byte[], int, int) */
+  public int read(byte[] b, int off, int len) throws IOException {
+    int total = 0;
+    while (total < len && position < length) {
+      ByteBuffer buf = buffer(position);
+      int n = Math.min(len - total, buf.remaining());
+      buf.get(b, off + total, n);
+      position += n;
+      total += n;
+    }
+    return total;
+  }
+
+  /* @see IRandomAccess.read(ByteBuffer) */
+  public int read(ByteBuffer buf) throws IOException {
+    return read(buf, 0, buf.capacity());
+  }
+
+  /* @see IRandomAccess.read(ByteBuffer, int, int) */
+  public int read(ByteBuffer buf, int off, int len) throws IOException {
+    buf.position(off);
+    buf.limit(off + len);
+    int total = 0;
+    while (total < len && position < length) {
+      ByteBuffer src = buffer(position);
+      int n = Math.min(len - total, src.remaining());
+      src.limit(src.position() + n);
+      buf.put(src);
+      src.limit(src.capacity());
+      position += n;
+      total += n;
+    }
+    return total;
+  }
+
+  /* @see IRandomAccess.seek(long) */
+  public void seek(long pos) {
+    position = pos;
+  }
+
+  // -- DataInput API methods --
+
+  /* @see java.io.DataInput.readBoolean() */
+  public boolean readBoolean() throws IOException {
+    return readByte() == 1;
+  }
+
+  /* @see java.io.DataInput.readByte() */
+  public byte readByte() throws IOException {
+    if (position >= length) throw new EOFException(EOF_ERROR_MSG);
+    byte b = buffer(position).get();
+    position++;
+    return b;
+  }
+
+  /* @see java.io.DataInput.readChar() */
+  public char readChar() throws IOException {
+    return primitive(2).getChar();
+  }
+
+  /* @see java.io.DataInput.readDouble() */
+  public double readDouble() throws IOException {
+    return primitive(8).getDouble();
+  }
+
+  /* @see java.io.DataInput.readFloat() */
+  public float readFloat() throws IOException {
+    return primitive(4).getFloat();
+  }
+
+  /* @see java.io.DataInput.readFully(byte[]) */
+  public void readFully(byte[] b) throws IOException {
+    read(b);
+  }
+
+  /* @see java.io.DataInput.readFully(byte[], int, int) */
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    read(b, off, len);
+  }
+
+  /* @see java.io.DataInput.readInt() */
+  public int readInt() throws IOException {
+    return primitive(4).getInt();
+  }
+
+  /* @see java.io.DataInput.readLine() */
+  public String readLine() throws IOException {
+    if (position >= length) return null;
+    StringBuffer line = new StringBuffer();
+    while (position < length) {
+      int c = readUnsignedByte();
+      if (c == '\n') break;
+      if (c == '\r') {
+        if (position < length && buffer(position).get() == '\n') position++;
+        break;
+      }
+      line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  /* @see java.io.DataInput.readLong() */
+  public long readLong() throws IOException {
+    return primitive(8).getLong();
+  }
+
+  /* @see java.io.DataInput.readShort() */
+  public short readShort() throws IOException {
+    return primitive(2).getShort();
+  }
+
+  /* @see java.io.DataInput.readUnsignedByte() */
+  public int readUnsignedByte() throws IOException {
+    return readByte() & 0xff;
+  }
+
+  /* @see java.io.DataInput.readUnsignedShort() */
+  public int readUnsignedShort() throws IOException {
+    return readShort() & 0xffff;
+  }
+
+  /* @see java.io.DataInput.readUTF() */
+  public String readUTF() throws IOException {
+    ByteOrder o = order;
+    order = ByteOrder.BIG_ENDIAN;
+    int len;
+    try {
+      len = readUnsignedShort();
+    }
+    finally {
+      order = o;
+    }
+    byte[] b = new byte[len + 2];
+    b[0] = (byte) (len >> 8);
+    b[1] = (byte) len;
+    if (read(b, 2, len) < len) throw new EOFException(EOF_ERROR_MSG);
+    return new DataInputStream(new ByteArrayInputStream(b)).readUTF();
+  }
+
+  /* @see java.io.DataInput.skipBytes(int) */
+  public int skipBytes(int n) {
+    if (n < 1) return 0;
+    long skip = Math.min(n, Math.max(0, length - position));
+    position += skip;
+    return (int) skip;
+  }
+
+  // -- DataOutput API methods --
+
+  /* @see java.io.DataOutput.write(byte[]) */
+  public void write(byte[] b) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.write(byte[], int, int) */
+  public void write(byte[] b, int off, int len) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see IRandomAccess.write(ByteBuffer) */
+  public void write(ByteBuffer buf) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see IRandomAccess.write(ByteBuffer, int, int) */
+  public void write(ByteBuffer buf, int off, int len) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.write(int) */
+  public void write(int b) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeBoolean(boolean) */
+  public void writeBoolean(boolean v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeByte(int) */
+  public void writeByte(int v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeBytes(String) */
+  public void writeBytes(String s) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeChar(int) */
+  public void writeChar(int v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeChars(String) */
+  public void writeChars(String s) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeDouble(double) */
+  public void writeDouble(double v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeFloat(float) */
+  public void writeFloat(float v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeInt(int) */
+  public void writeInt(int v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeLong(long) */
+  public void writeLong(long v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeShort(int) */
+  public void writeShort(int v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeUTF(String) */
+  public void writeUTF(String str) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Gets the cached block containing the given position, positioned at the
+   * corresponding offset.
+   */
+  private ByteBuffer buffer(long pos) throws IOException {
+    int blockSize = cache.getBlockSize();
+    long index = pos / blockSize;
+    if (index != blockIndex || block == null) {
+      block = cache.getBlock(fileKey, index, channel, length);
+      block.order(order);
+      blockIndex = index;
+    }
+    block.limit(block.capacity());
+    block.position((int) (pos - index * blockSize));
+    return block;
+  }
+
+  /**
+   * Gets a buffer from which the next <code>size</code> bytes can be read as
+   * a primitive value, and advances the file pointer past them.
+   */
+  private ByteBuffer primitive(int size) throws IOException {
+    if (position + size > length) {
+      position = length;
+      throw new EOFException(EOF_ERROR_MSG);
+    }
+    ByteBuffer buf = buffer(position);
+    if (buf.remaining() < size) {
+      // the value spans two blocks
+      read(scratch, 0, size);
+      return ByteBuffer.wrap(scratch, 0, size).order(order);
+    }
+    position += size;
+    return buf;
+  }
+
+}
@@ -46,7 +46,10 @@ public class GZipHandle extends StreamHandle {
   // -- Constructor --
 
   /**
-   * Construct a new GZipHandle for the given file.
+   * Construct a new GZipHandle for the given file.  If a seek point spacing
+   * has been set, the file is indexed so that seeking backwards does not
+   * decompress it from the beginning.
+   * @see SeekPointIndex#setSpacing(long)
    *
    * @throws HandleException if the given file name is not a GZip file.
    */
@@ -57,6 +60,15 @@ public class GZipHandle extends StreamHandle {
       throw new HandleException(file + " is not a gzip file.");
     }
 
+    long spacing = SeekPointIndex.getSpacing();
+    if (spacing > 0) {
+      seekPoints = SeekPointIndex.createGZipIndex(file, spacing);
+      seekSource = new NIOFileHandle(file, "r");
+      length = seekPoints.getLength();
+      resetStream();
+      return;
+    }
+
     resetStream();
 
     length = 0;
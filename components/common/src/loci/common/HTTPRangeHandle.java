@@ -0,0 +1,738 @@
+//
+// HTTPRangeHandle.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A read-only IRandomAccess implementation for files on HTTP servers that
+ * support range requests.  Unlike {@link URLHandle}, seeking never
+ * re-downloads the file: each block of the file is fetched with a
+ * <code>Range: bytes=</code> request and kept in a bounded cache.
+ * Sequential reads trigger read-ahead of the following blocks, and a read
+ * that spans several missing blocks (such as a run of tiles) fetches them
+ * with several concurrent requests.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/src/loci/common/HTTPRangeHandle.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/src/loci/common/HTTPRangeHandle.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see IRandomAccess
+ * @see URLHandle
+ */
+public class HTTPRangeHandle implements IRandomAccess {
+
+  // -- Constants --
+
+  /** Default size of a fetched block. */
+  public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+  /** Default maximum number of bytes cached by each handle. */
+  public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
+  /** Default maximum number of concurrent requests made by each handle. */
+  public static final int DEFAULT_CONNECTIONS = 4;
+
+  /** Maximum number of blocks read ahead of sequential reads. */
+  private static final int MAX_READ_AHEAD = 16;
+
+  private static final String EOF_ERROR_MSG =
+    "Attempting to read beyond end of file.";
+
+  // -- Static fields --
+
+  /** Threads used for read-ahead and concurrent fetches. */
+  private static ExecutorService fetchExecutor;
+
+  // -- Fields --
+
+  private final URL url;
+
+  private final int blockSize;
+
+  private final int maxBlocks;
+
+  private final int connections;
+
+  private long length;
+
+  /** The absolute position within the file. */
+  private long position = 0;
+
+  private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+  /** Fetched (or pending) blocks, in least-recently-used order. */
+  private final LinkedHashMap<Long, Block> blocks;
+
+  /** The most recently used block, and its index. */
+  private ByteBuffer block;
+  private long blockIndex = -1;
+
+  /**
+   * Number of blocks read ahead of sequential reads, and the index of the
+   * first block after those already read ahead.
+   */
+  private int readAheadWindow = 1;
+  private long readAheadEnd;
+
+  /** Number of range requests made. */
+  private int requestCount;
+
+  /** Scratch buffer for values that span two blocks. */
+  private final byte[] scratch = new byte[8];
+
+  // -- Constructors --
+
+  /**
+   * Opens the given URL with the default block size, cache size and
+   * number of connections.
+   * @throws HandleException if the server does not support range requests
+   */
+  public HTTPRangeHandle(String url) throws IOException {
+    this(url, DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_SIZE, DEFAULT_CONNECTIONS);
+  }
+
+  /**
+   * Opens the given URL.
+   * @param blockSize number of bytes fetched by each request
+   * @param cacheSize maximum number of bytes to cache
+   * @param connections maximum number of concurrent requests for one read
+   * @throws HandleException if the server does not support range requests
+   */
+  public HTTPRangeHandle(String url, int blockSize, long cacheSize,
+    int connections) throws IOException
+  {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    }
+    if (!url.startsWith("http")) url = "http://" + url;
+    this.url = new URL(url);
+    this.blockSize = blockSize;
+    this.connections = Math.max(1, connections);
+    maxBlocks = (int) Math.max(2, Math.min(Integer.MAX_VALUE,
+      cacheSize / blockSize));
+    blocks = new LinkedHashMap<Long, Block>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest) {
+        return size() > maxBlocks;
+      }
+    };
+
+    // fetch the first block, which also tells us the length of the file
+    length = -1;
+    Block first = new Block();
+    first.set(fetch(0, blockSize));
+    if (length > 0) blocks.put(0L, first);
+  }
+
+  // -- HTTPRangeHandle API methods --
+
+  /** Gets the URL of the file. */
+  public String getURL() {
+    return url.toString();
+  }
+
+  /** Gets the number of bytes fetched by each request. */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /** Gets the number of range requests made so far. */
+  public synchronized int getRequestCount() {
+    return requestCount;
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess.close() */
+  public void close() {
+    synchronized (blocks) {
+      for (Block b : blocks.values()) {
+        b.cancel(false);
+      }
+      blocks.clear();
+    }
+    block = null;
+  }
+
+  /* @see IRandomAccess.getFilePointer() */
+  public long getFilePointer() {
+    return position;
+  }
+
+  /* @see IRandomAccess.length() */
+  public long length() {
+    return length;
+  }
+
+  /* @see IRandomAccess.getOrder() */
+  public ByteOrder getOrder() {
+    return order;
+  }
+
+  /* @see IRandomAccess.setOrder(ByteOrder) */
+  public void setOrder(ByteOrder order) {
+    this.order = order;
+    if (block != null) block.order(order);
+  }
+
+  /* @see IRandomAccess.read(byte[]) */
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  /* @see IRandomAccess.read(byte[], int, int) */
+  public int read(byte[] b, int off, int len) throws IOException {
+    fetchConcurrently(position, len);
+    int total = 0;
+    while (total < len && position < length) {
+      ByteBuffer buf = buffer(position);
+      int n = Math.min(len - total, buf.remaining());
+      buf.get(b, off + total, n);
+      position += n;
+      total += n;
+    }
+    return total;
+  }
+
+  /* @see IRandomAccess.read(ByteBuffer) */
+  public int read(ByteBuffer buf) throws IOException {
+    return read(buf, 0, buf.capacity());
+  }
+
+  /* @see IRandomAccess.read(ByteBuffer, int, int) */
+  public int read(ByteBuffer buf, int off, int len) throws IOException {
+    fetchConcurrently(position, len);
+    buf.position(off);
+    buf.limit(off + len);
+    int total = 0;
+    while (total < len && position < length) {
+      ByteBuffer src = buffer(position);
+      int n = Math.min(len - total, src.remaining());
+      src.limit(src.position() + n);
+      buf.put(src);
+      src.limit(src.capacity());
+      position += n;
+      total += n;
+    }
+    return total;
+  }
+
+  /* @see IRandomAccess.seek(long) */
+  public void seek(long pos) {
+    position = pos;
+  }
+
+  // -- DataInput API methods --
+
+  /* @see java.io.DataInput.readBoolean() */
+  public boolean readBoolean() throws IOException {
+    return readByte() == 1;
+  }
+
+  /* @see java.io.DataInput.readByte() */
+  public byte readByte() throws IOException {
+    if (position >= length) throw new EOFException(EOF_ERROR_MSG);
+    byte b = buffer(position).get();
+    position++;
+    return b;
+  }
+
+  /* @see java.io.DataInput.readChar() */
+  public char readChar() throws IOException {
+    return primitive(2).getChar();
+  }
+
+  /* @see java.io.DataInput.readDouble() */
+  public double readDouble() throws IOException {
+    return primitive(8).getDouble();
+  }
+
+  /* @see java.io.DataInput.readFloat() */
+  public float readFloat() throws IOException {
+    return primitive(4).getFloat();
+  }
+
+  /* @see java.io.DataInput.readFully(byte[]) */
+  public void readFully(byte[] b) throws IOException {
+    read(b);
+  }
+
+  /* @see java.io.DataInput.readFully(byte[], int, int) */
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    read(b, off, len);
+  }
+
+  /* @see java.io.DataInput.readInt() */
+  public int readInt() throws IOException {
+    return primitive(4).getInt();
+  }
+
+  /* @see java.io.DataInput.readLine() */
+  public String readLine() throws IOException {
+    if (position >= length) return null;
+    StringBuffer line = new StringBuffer();
+    while (position < length) {
+      int c = readUnsignedByte();
+      if (c == '\n') break;
+      if (c == '\r') {
+        if (position < length && buffer(position).get() == '\n') position++;
+        break;
+      }
+      line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  /* @see java.io.DataInput.readLong() */
+  public long readLong() throws IOException {
+    return primitive(8).getLong();
+  }
+
+  /* @see java.io.DataInput.readShort() */
+  public short readShort() throws IOException {
+    return primitive(2).getShort();
+  }
+
+  /* @see java.io.DataInput.readUnsignedByte() */
+  public int readUnsignedByte() throws IOException {
+    return readByte() & 0xff;
+  }
+
+  /* @see java.io.DataInput.readUnsignedShort() */
+  public int readUnsignedShort() throws IOException {
+    return readShort() & 0xffff;
+  }
+
+  /* @see java.io.DataInput.readUTF() */
+  public String readUTF() throws IOException {
+    ByteOrder o = order;
+    order = ByteOrder.BIG_ENDIAN;
+    int len;
+    try {
+      len = readUnsignedShort();
+    }
+    finally {
+      order = o;
+    }
+    byte[] b = new byte[len + 2];
+    b[0] = (byte) (len >> 8);
+    b[1] = (byte) len;
+    if (read(b, 2, len) < len) throw new EOFException(EOF_ERROR_MSG);
+    return new DataInputStream(new ByteArrayInputStream(b)).readUTF();
+  }
+
+  /* @see java.io.DataInput.skipBytes(int) */
+  public int skipBytes(int n) {
+    if (n < 1) return 0;
+    long skip = Math.min(n, Math.max(0, length - position));
+    position += skip;
+    return (int) skip;
+  }
+
+  // -- DataOutput API methods --
+
+  /* @see java.io.DataOutput.write(byte[]) */
+  public void write(byte[] b) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.write(byte[], int, int) */
+  public void write(byte[] b, int off, int len) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see IRandomAccess.write(ByteBuffer) */
+  public void write(ByteBuffer buf) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see IRandomAccess.write(ByteBuffer, int, int) */
+  public void write(ByteBuffer buf, int off, int len) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.write(int) */
+  public void write(int b) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeBoolean(boolean) */
+  public void writeBoolean(boolean v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeByte(int) */
+  public void writeByte(int v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeBytes(String) */
+  public void writeBytes(String s) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeChar(int) */
+  public void writeChar(int v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeChars(String) */
+  public void writeChars(String s) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeDouble(double) */
+  public void writeDouble(double v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeFloat(float) */
+  public void writeFloat(float v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeInt(int) */
+  public void writeInt(int v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeLong(long) */
+  public void writeLong(long v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeShort(int) */
+  public void writeShort(int v) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  /* @see java.io.DataOutput.writeUTF(String) */
+  public void writeUTF(String str) throws IOException {
+    throw new HandleException("This stream is read-only.");
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Gets the block containing the given position, positioned at the
+   * corresponding offset.
+   */
+  private ByteBuffer buffer(long pos) throws IOException {
+    long index = pos / blockSize;
+    if (index != blockIndex || block == null) {
+      boolean sequential = index == blockIndex + 1;
+      block = ByteBuffer.wrap(getBlock(index)).order(order);
+      blockIndex = index;
+      if (!sequential) {
+        readAheadWindow = 1;
+        readAheadEnd = index + 1;
+      }
+      else if (index + 1 + readAheadWindow / 2 >= readAheadEnd) {
+        // half of the blocks read ahead have been used; read further ahead
+        readAheadWindow = Math.min(Math.min(MAX_READ_AHEAD, maxBlocks / 2),
+          readAheadWindow * 2);
+        long first = Math.max(index + 1, readAheadEnd);
+        readAheadEnd = index + 1 + readAheadWindow;
+        readAhead(first, (int) (readAheadEnd - first));
+      }
+    }
+    block.order(order);
+    block.limit(block.capacity());
+    block.position((int) (pos - index * blockSize));
+    return block;
+  }
+
+  /**
+   * Gets a buffer from which the next <code>size</code> bytes can be read as
+   * a primitive value, and advances the file pointer past them.
+   */
+  private ByteBuffer primitive(int size) throws IOException {
+    if (position + size > length) {
+      position = length;
+      throw new EOFException(EOF_ERROR_MSG);
+    }
+    ByteBuffer buf = buffer(position);
+    if (buf.remaining() < size) {
+      // the value spans two blocks
+      read(scratch, 0, size);
+      return ByteBuffer.wrap(scratch, 0, size).order(order);
+    }
+    position += size;
+    return buf;
+  }
+
+  /** Gets the given block, fetching it on this thread if necessary. */
+  private byte[] getBlock(long index) throws IOException {
+    Block b;
+    boolean fetch = false;
+    synchronized (blocks) {
+      b = blocks.get(index);
+      if (b == null) {
+        b = new Block();
+        blocks.put(index, b);
+        fetch = true;
+      }
+    }
+    if (fetch) fetchBlocks(index, new Block[] {b});
+    try {
+      return b.get();
+    }
+    catch (InterruptedException e) {
+      throw new HandleException("Interrupted while fetching " + url);
+    }
+    catch (ExecutionException e) {
+      synchronized (blocks) {
+        if (blocks.get(index) == b) blocks.remove(index);
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      IOException io = new IOException("Could not fetch " + url);
+      io.initCause(cause);
+      throw io;
+    }
+  }
+
+  /**
+   * Marks the missing blocks in the given range as pending.
+   * @return the runs of consecutive missing blocks, as a list of
+   *   block arrays whose first element is at the index in the
+   *   corresponding entry of <code>starts</code>
+   */
+  private List<Block[]> reserve(long first, long last, List<Long> starts) {
+    List<Block[]> runs = new ArrayList<Block[]>();
+    List<Block> run = new ArrayList<Block>();
+    synchronized (blocks) {
+      for (long index=first; index<=last; index++) {
+        if (blocks.get(index) == null) {
+          if (run.size() == 0) starts.add(index);
+          Block b = new Block();
+          blocks.put(index, b);
+          run.add(b);
+        }
+        else if (run.size() > 0) {
+          runs.add(run.toArray(new Block[run.size()]));
+          run.clear();
+        }
+      }
+    }
+    if (run.size() > 0) runs.add(run.toArray(new Block[run.size()]));
+    return runs;
+  }
+
+  /** Starts fetching the given number of blocks in the background. */
+  private void readAhead(long first, int count) {
+    long last = Math.min(first + count, (length + blockSize - 1) / blockSize) - 1;
+    if (last < first) return;
+    List<Long> starts = new ArrayList<Long>();
+    List<Block[]> runs = reserve(first, last, starts);
+    for (int i=0; i<runs.size(); i++) {
+      submit(starts.get(i), runs.get(i));
+    }
+  }
+
+  /**
+   * Fetches the missing blocks needed to read <code>len</code> bytes from
+   * the given position, using up to {@link #connections} concurrent
+   * requests.  Reads that fit in one block are left to {@link #buffer}.
+   */
+  private void fetchConcurrently(long pos, int len) throws IOException {
+    if (len <= 0 || pos >= length) return;
+    long first = pos / blockSize;
+    long last = (Math.min(pos + len, length) - 1) / blockSize;
+    if (first == last) return;
+
+    List<Long> starts = new ArrayList<Long>();
+    List<Block[]> runs = reserve(first, last, starts);
+    int missing = 0;
+    for (Block[] run : runs) {
+      missing += run.length;
+    }
+    if (missing == 0) return;
+
+    // split the missing blocks into at most one request per connection
+    int perRequest = (missing + connections - 1) / connections;
+    List<Long> requestStarts = new ArrayList<Long>();
+    List<Block[]> requests = new ArrayList<Block[]>();
+    for (int i=0; i<runs.size(); i++) {
+      Block[] run = runs.get(i);
+      for (int j=0; j<run.length; j+=perRequest) {
+        Block[] request = new Block[Math.min(perRequest, run.length - j)];
+        System.arraycopy(run, j, request, 0, request.length);
+        requestStarts.add(starts.get(i) + j);
+        requests.add(request);
+      }
+    }
+
+    // the last request is made on this thread; reads wait for the others
+    for (int i=0; i<requests.size()-1; i++) {
+      submit(requestStarts.get(i), requests.get(i));
+    }
+    int lastRequest = requests.size() - 1;
+    fetchBlocks(requestStarts.get(lastRequest), requests.get(lastRequest));
+  }
+
+  /** Fetches the given consecutive blocks on a background thread. */
+  private void submit(final long first, final Block[] run) {
+    getExecutor().execute(new Runnable() {
+      public void run() {
+        fetchBlocks(first, run);
+      }
+    });
+  }
+
+  /**
+   * Fetches the given consecutive blocks with a single request, and
+   * completes them.
+   */
+  private void fetchBlocks(long first, Block[] run) {
+    try {
+      long start = first * blockSize;
+      byte[] data = fetch(start, run.length * blockSize);
+      for (int i=0; i<run.length; i++) {
+        int offset = i * blockSize;
+        int n = Math.max(0, Math.min(blockSize, data.length - offset));
+        byte[] b = new byte[n];
+        System.arraycopy(data, offset, b, 0, n);
+        run[i].set(b);
+      }
+    }
+    catch (Throwable t) {
+      for (Block b : run) {
+        b.setException(t);
+      }
+    }
+  }
+
+  /**
+   * Fetches up to <code>len</code> bytes starting at the given offset.
+   * The first request also determines the length of the file.
+   */
+  private byte[] fetch(long start, int len) throws IOException {
+    if (length >= 0) len = (int) Math.min(len, length - start);
+    if (len <= 0) return new byte[0];
+    synchronized (this) {
+      requestCount++;
+    }
+
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("Range",
+      "bytes=" + start + "-" + (start + len - 1));
+    int code = conn.getResponseCode();
+    if (code == 416 && start == 0) {
+      // the file is empty
+      length = 0;
+      conn.disconnect();
+      return new byte[0];
+    }
+    if (code != HttpURLConnection.HTTP_PARTIAL) {
+      conn.disconnect();
+      throw new HandleException(
+        url + " does not support range requests (status " + code + ")");
+    }
+    if (length < 0) {
+      // Content-Range: bytes start-end/length
+      String range = conn.getHeaderField("Content-Range");
+      int slash = range == null ? -1 : range.lastIndexOf("/");
+      try {
+        length = Long.parseLong(range.substring(slash + 1).trim());
+      }
+      catch (RuntimeException e) {
+        conn.disconnect();
+        throw new HandleException("Unknown length of " + url);
+      }
+      len = (int) Math.min(len, length - start);
+    }
+
+    byte[] data = new byte[len];
+    InputStream in = conn.getInputStream();
+    try {
+      int total = 0;
+      while (total < len) {
+        int n = in.read(data, total, len - total);
+        if (n < 0) throw new EOFException("Incomplete response from " + url);
+        total += n;
+      }
+    }
+    finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (fetchExecutor == null) {
+      fetchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "HTTPRangeHandle-fetch");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return fetchExecutor;
+  }
+
+  // -- Helper classes --
+
+  /** A block that has been fetched, or is being fetched. */
+  private static class Block extends FutureTask<byte[]> {
+    private static final Callable<byte[]> NONE = new Callable<byte[]>() {
+      public byte[] call() {
+        throw new IllegalStateException();
+      }
+    };
+
+    Block() {
+      super(NONE);
+    }
+
+    public void set(byte[] data) {
+      super.set(data);
+    }
+
+    public void setException(Throwable t) {
+      super.setException(t);
+    }
+  }
+
+}
@@ -0,0 +1,409 @@
+//
+// InflateScanner.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A simple decoder for raw deflate streams (RFC 1951) that reports the
+ * boundaries between compressed blocks, along with the sliding window
+ * needed to restart decompression at each boundary.  It is only used to
+ * build a {@link SeekPointIndex}; data is read using
+ * {@link java.util.zip.Inflater}, which does not expose block boundaries.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/src/loci/common/InflateScanner.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/src/loci/common/InflateScanner.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see SeekPointIndex
+ */
+class InflateScanner {
+
+  // -- Constants --
+
+  /** Size of the deflate sliding window. */
+  static final int WINDOW_SIZE = 32768;
+
+  private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+  private static final int MAX_BITS = 15;
+
+  /** Number of bits decoded with a single table lookup. */
+  private static final int FAST_BITS = 9;
+
+  private static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59,
+    67, 83, 99, 115, 131, 163, 195, 227, 258
+  };
+
+  private static final int[] LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4,
+    5, 5, 5, 5, 0
+  };
+
+  private static final int[] DISTANCE_BASE = {
+    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513,
+    769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+  };
+
+  private static final int[] DISTANCE_EXTRA = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10,
+    11, 11, 12, 12, 13, 13
+  };
+
+  /** Order in which code length code lengths are stored. */
+  private static final int[] CODE_LENGTH_ORDER = {
+    16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+  };
+
+  private static final Huffman FIXED_LENGTHS, FIXED_DISTANCES;
+
+  static {
+    int[] lengths = new int[288];
+    for (int i=0; i<lengths.length; i++) {
+      lengths[i] = i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8;
+    }
+    FIXED_LENGTHS = new Huffman(lengths, 0, lengths.length);
+    lengths = new int[30];
+    for (int i=0; i<lengths.length; i++) {
+      lengths[i] = 5;
+    }
+    FIXED_DISTANCES = new Huffman(lengths, 0, lengths.length);
+  }
+
+  // -- Fields --
+
+  private final InputStream in;
+
+  private final byte[] buffer = new byte[65536];
+  private int bufferOffset, bufferLength;
+
+  /** Bit offset of the first byte read from the stream. */
+  private final long startBit;
+
+  /** Number of bytes moved from the buffer into the bit buffer. */
+  private long bytesConsumed;
+
+  private long bitBuffer;
+  private int bitCount;
+
+  private final byte[] window = new byte[WINDOW_SIZE];
+
+  /** Number of bytes decompressed since {@link #resetWindow()}. */
+  private long windowPosition;
+
+  /** Total number of bytes decompressed. */
+  private long position;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a scanner for the deflate data in the given stream.
+   * @param startBit the offset, in bits, of the stream's first byte; used
+   *   only to report absolute offsets from {@link #getBitOffset()}
+   */
+  InflateScanner(InputStream in, long startBit) {
+    this.in = in;
+    this.startBit = startBit;
+  }
+
+  // -- InflateScanner API methods --
+
+  /** Returns the total number of bytes decompressed so far. */
+  long getPosition() {
+    return position;
+  }
+
+  /** Returns the offset, in bits, of the next unread bit. */
+  long getBitOffset() {
+    return startBit + bytesConsumed * 8 - bitCount;
+  }
+
+  /**
+   * Returns a copy of the last (up to 32 KB) bytes decompressed since
+   * the window was last reset.
+   */
+  byte[] getWindow() {
+    int length = (int) Math.min(WINDOW_SIZE, windowPosition);
+    byte[] copy = new byte[length];
+    int start = (int) ((windowPosition - length) & WINDOW_MASK);
+    int first = Math.min(length, WINDOW_SIZE - start);
+    System.arraycopy(window, start, copy, 0, first);
+    System.arraycopy(window, 0, copy, first, length - first);
+    return copy;
+  }
+
+  /** Empties the sliding window, as at the start of a new gzip member. */
+  void resetWindow() {
+    windowPosition = 0;
+  }
+
+  /** Skips any bits remaining in the current byte. */
+  void alignToByte() {
+    int skip = bitCount & 7;
+    bitBuffer >>>= skip;
+    bitCount -= skip;
+  }
+
+  /**
+   * Reads the next byte-aligned byte.
+   * @return the byte, or -1 if the end of the stream has been reached
+   */
+  int readByte() throws IOException {
+    alignToByte();
+    if (bitCount == 0 && !fill(8)) return -1;
+    return bits(8);
+  }
+
+  /**
+   * Decompresses the next deflate block.
+   * @return true if the block was the last in the stream
+   */
+  boolean inflateBlock() throws IOException {
+    boolean last = bits(1) == 1;
+    int type = bits(2);
+    switch (type) {
+      case 0:
+        inflateStored();
+        break;
+      case 1:
+        inflateCodes(FIXED_LENGTHS, FIXED_DISTANCES);
+        break;
+      case 2:
+        inflateDynamic();
+        break;
+      default:
+        throw new IOException("Invalid deflate block type: " + type);
+    }
+    return last;
+  }
+
+  // -- Helper methods --
+
+  private void inflateStored() throws IOException {
+    alignToByte();
+    int length = bits(16);
+    int check = bits(16);
+    if (length != (~check & 0xffff)) {
+      throw new IOException("Invalid stored block length");
+    }
+    for (int i=0; i<length; i++) {
+      output(bits(8));
+    }
+  }
+
+  private void inflateDynamic() throws IOException {
+    int nLengths = bits(5) + 257;
+    int nDistances = bits(5) + 1;
+    int nCodes = bits(4) + 4;
+    if (nLengths > 286 || nDistances > 30) {
+      throw new IOException("Invalid dynamic block code counts");
+    }
+
+    int[] lengths = new int[19];
+    for (int i=0; i<nCodes; i++) {
+      lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+    }
+    Huffman codeLengths = new Huffman(lengths, 0, 19);
+
+    lengths = new int[nLengths + nDistances];
+    for (int i=0; i<lengths.length;) {
+      int symbol = decode(codeLengths);
+      if (symbol < 16) {
+        lengths[i++] = symbol;
+        continue;
+      }
+      int value = 0, repeat;
+      if (symbol == 16) {
+        if (i == 0) throw new IOException("Invalid repeated code length");
+        value = lengths[i - 1];
+        repeat = 3 + bits(2);
+      }
+      else if (symbol == 17) repeat = 3 + bits(3);
+      else repeat = 11 + bits(7);
+      if (i + repeat > lengths.length) {
+        throw new IOException("Too many code lengths");
+      }
+      while (repeat-- > 0) lengths[i++] = value;
+    }
+    if (lengths[256] == 0) {
+      throw new IOException("Missing end-of-block code");
+    }
+
+    inflateCodes(new Huffman(lengths, 0, nLengths),
+      new Huffman(lengths, nLengths, nDistances));
+  }
+
+  private void inflateCodes(Huffman lengths, Huffman distances)
+    throws IOException
+  {
+    while (true) {
+      int symbol = decode(lengths);
+      if (symbol < 256) {
+        output(symbol);
+      }
+      else if (symbol == 256) {
+        return;
+      }
+      else {
+        symbol -= 257;
+        if (symbol >= LENGTH_BASE.length) {
+          throw new IOException("Invalid length code");
+        }
+        int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+        symbol = decode(distances);
+        if (symbol >= DISTANCE_BASE.length) {
+          throw new IOException("Invalid distance code");
+        }
+        int distance = DISTANCE_BASE[symbol] + bits(DISTANCE_EXTRA[symbol]);
+        if (distance > windowPosition) {
+          throw new IOException("Distance too far back");
+        }
+        copy(distance, length);
+      }
+    }
+  }
+
+  private void output(int b) {
+    window[(int) (windowPosition & WINDOW_MASK)] = (byte) b;
+    windowPosition++;
+    position++;
+  }
+
+  private void copy(int distance, int length) {
+    int dest = (int) (windowPosition & WINDOW_MASK);
+    int src = (dest - distance) & WINDOW_MASK;
+    for (int i=0; i<length; i++) {
+      window[dest] = window[src];
+      dest = (dest + 1) & WINDOW_MASK;
+      src = (src + 1) & WINDOW_MASK;
+    }
+    windowPosition += length;
+    position += length;
+  }
+
+  /** Decodes one symbol using the given code. */
+  private int decode(Huffman h) throws IOException {
+    fill(MAX_BITS);
+    int entry = h.fast[(int) (bitBuffer & ((1 << FAST_BITS) - 1))];
+    int length = entry >>> 16;
+    if (length > 0 && length <= bitCount) {
+      bitBuffer >>>= length;
+      bitCount -= length;
+      return entry & 0xffff;
+    }
+
+    // codes longer than FAST_BITS are decoded one bit at a time
+    int code = 0, first = 0, index = 0;
+    for (int len=1; len<=MAX_BITS; len++) {
+      code |= bits(1);
+      int count = h.count[len];
+      if (code - count < first) return h.symbol[index + code - first];
+      index += count;
+      first = (first + count) << 1;
+      code <<= 1;
+    }
+    throw new IOException("Invalid Huffman code");
+  }
+
+  /** Reads the given number of bits (at most 24), least significant first. */
+  private int bits(int n) throws IOException {
+    if (n == 0) return 0;
+    if (!fill(n)) throw new EOFException("Unexpected end of deflate stream");
+    int value = (int) (bitBuffer & ((1 << n) - 1));
+    bitBuffer >>>= n;
+    bitCount -= n;
+    return value;
+  }
+
+  /**
+   * Ensures that at least n bits are buffered, if possible.
+   * @return false if the end of the stream was reached first
+   */
+  private boolean fill(int n) throws IOException {
+    while (bitCount < n) {
+      if (bufferOffset == bufferLength) {
+        bufferLength = in.read(buffer, 0, buffer.length);
+        bufferOffset = 0;
+        if (bufferLength <= 0) {
+          bufferLength = 0;
+          return false;
+        }
+      }
+      bitBuffer |= (long) (buffer[bufferOffset++] & 0xff) << bitCount;
+      bitCount += 8;
+      bytesConsumed++;
+    }
+    return true;
+  }
+
+  // -- Helper classes --
+
+  /** A canonical Huffman code. */
+  private static class Huffman {
+    /** Number of codes of each length. */
+    final int[] count = new int[MAX_BITS + 1];
+
+    /** Symbols ordered by code. */
+    final int[] symbol;
+
+    /**
+     * Symbol and code length for each possible value of the next
+     * FAST_BITS bits, or 0 if the code is longer than FAST_BITS.
+     */
+    final int[] fast = new int[1 << FAST_BITS];
+
+    Huffman(int[] lengths, int offset, int n) {
+      symbol = new int[n];
+      for (int i=0; i<n; i++) {
+        count[lengths[offset + i]]++;
+      }
+      count[0] = 0;
+
+      int[] offsets = new int[MAX_BITS + 2];
+      for (int len=1; len<=MAX_BITS; len++) {
+        offsets[len + 1] = offsets[len] + count[len];
+      }
+      for (int i=0; i<n; i++) {
+        int len = lengths[offset + i];
+        if (len != 0) symbol[offsets[len]++] = i;
+      }
+
+      // assign canonical codes and fill the lookup table
+      int code = 0, index = 0;
+      for (int len=1; len<=FAST_BITS; len++) {
+        for (int i=0; i<count[len]; i++, index++) {
+          int reversed = Integer.reverse(code + i) >>> (32 - len);
+          for (int fill=reversed; fill<fast.length; fill+=1<<len) {
+            fast[fill] = (len << 16) | symbol[index];
+          }
+        }
+        code = (code + count[len]) << 1;
+      }
+    }
+  }
+
+}
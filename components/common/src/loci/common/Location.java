@@ -267,9 +267,16 @@ public class Location {
     if (handle == null) {
       LOGGER.trace("no handle was mapped for this ID");
       String mapId = getMappedId(id);
+      BlockCache cache = writable ? null : BlockCache.getSharedCache();
 
       if (id.startsWith("http://")) {
-        handle = new URLHandle(mapId);
+        try {
+          handle = new HTTPRangeHandle(mapId);
+        }
+        catch (HandleException e) {
+          LOGGER.debug("Range requests are not supported for {}", id, e);
+          handle = new URLHandle(mapId);
+        }
       }
       else if (ZipHandle.isZipFile(id)) {
         handle = new ZipHandle(mapId);
@@ -280,6 +287,9 @@ public class Location {
       else if (BZip2Handle.isBZip2File(id)) {
         handle = new BZip2Handle(mapId);
       }
+      else if (cache != null) {
+        handle = new CachedFileHandle(mapId, cache);
+      }
       else {
         handle = new NIOFileHandle(mapId, writable ? "rw" : "r");
       }
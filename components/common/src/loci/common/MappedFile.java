@@ -0,0 +1,195 @@
+//
+// MappedFile.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only memory mapping of a file on disk, shared by every caller
+ * that opens the same file.
+ *
+ * The file is mapped lazily in fixed-size segments; consecutive segments
+ * overlap by one segment length so that any region no larger than
+ * {@link #SEGMENT_SIZE} lies entirely within a single mapping.  Each call
+ * to {@link #open(String)} must be balanced by a call to {@link #close()};
+ * the underlying channel is closed once the last reference is released.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/src/loci/common/MappedFile.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/src/loci/common/MappedFile.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class MappedFile {
+
+  // -- Constants --
+
+  /** Largest region that is guaranteed to be served from a shared segment. */
+  public static final int SEGMENT_SIZE = 256 * 1024 * 1024;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(MappedFile.class);
+
+  /** Open mappings, keyed by canonical path. */
+  private static final Map<String, MappedFile> FILES =
+    new HashMap<String, MappedFile>();
+
+  // -- Fields --
+
+  private final String path;
+
+  private final RandomAccessFile file;
+
+  private final FileChannel channel;
+
+  private final long length;
+
+  /** Mapped segments, keyed by segment index. */
+  private final Map<Long, ByteBuffer> segments = new HashMap<Long, ByteBuffer>();
+
+  /** Number of outstanding {@link #open(String)} calls. */
+  private int references;
+
+  // -- Constructor --
+
+  private MappedFile(String path) throws IOException {
+    this.path = path;
+    file = new RandomAccessFile(path, "r");
+    channel = file.getChannel();
+    length = channel.size();
+  }
+
+  // -- Static utility methods --
+
+  /**
+   * Obtains the shared mapping of the given file, creating it if necessary.
+   *
+   * @return the mapping, or null if the given ID does not refer to a plain
+   *   file on disk (e.g. it is a URL, a compressed file or is mapped to an
+   *   in-memory handle via {@link Location#mapFile(String, IRandomAccess)})
+   */
+  public static MappedFile open(String id) throws IOException {
+    if (!isMappable(id)) return null;
+    String key = new File(Location.getMappedId(id)).getCanonicalPath();
+    synchronized (FILES) {
+      MappedFile mapping = FILES.get(key);
+      if (mapping == null) {
+        mapping = new MappedFile(key);
+        FILES.put(key, mapping);
+        LOGGER.debug("Mapping {}", key);
+      }
+      mapping.references++;
+      return mapping;
+    }
+  }
+
+  /** Returns true if the given ID can be memory mapped. */
+  public static boolean isMappable(String id) throws IOException {
+    if (id == null || Location.getMappedFile(id) != null) return false;
+    String mapId = Location.getMappedId(id);
+    if (id.startsWith("http://") || ZipHandle.isZipFile(id) ||
+      GZipHandle.isGZipFile(mapId) || BZip2Handle.isBZip2File(mapId))
+    {
+      return false;
+    }
+    return new File(mapId).isFile();
+  }
+
+  // -- MappedFile API methods --
+
+  /** Gets the canonical path of the mapped file. */
+  public String getPath() {
+    return path;
+  }
+
+  /** Gets the length of the mapped file in bytes. */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * Returns a read-only view of the given region of the file.  The returned
+   * buffer has position 0, limit <code>len</code> and big-endian byte order.
+   *
+   * @throws IOException if the region extends past the end of the file
+   */
+  public ByteBuffer map(long offset, int len) throws IOException {
+    if (offset < 0 || len < 0 || offset + len > length) {
+      throw new IOException("Region [" + offset + ", " + (offset + len) +
+        ") is outside of " + path + " (length " + length + ")");
+    }
+    if (len > SEGMENT_SIZE) {
+      // too large to share; map the region on its own
+      return channel.map(MapMode.READ_ONLY, offset, len).asReadOnlyBuffer();
+    }
+
+    long index = offset / SEGMENT_SIZE;
+    long start = index * SEGMENT_SIZE;
+    ByteBuffer segment;
+    synchronized (this) {
+      if (references <= 0) {
+        throw new IOException(path + " is no longer mapped");
+      }
+      segment = segments.get(index);
+      if (segment == null) {
+        long size = Math.min(2L * SEGMENT_SIZE, length - start);
+        segment = channel.map(MapMode.READ_ONLY, start, size);
+        segments.put(index, segment);
+      }
+    }
+
+    ByteBuffer view = segment.duplicate();
+    int position = (int) (offset - start);
+    view.limit(position + len);
+    view.position(position);
+    return view.slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Releases this reference to the mapping.  Buffers returned by
+   * {@link #map(long, int)} remain valid until they are garbage collected.
+   */
+  public void close() throws IOException {
+    synchronized (FILES) {
+      if (references <= 0) return;
+      references--;
+      if (references > 0) return;
+      FILES.remove(path);
+    }
+    synchronized (this) {
+      segments.clear();
+    }
+    LOGGER.debug("Unmapping {}", path);
+    file.close();
+  }
+
+}
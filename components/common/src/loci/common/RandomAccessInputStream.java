@@ -29,6 +29,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,6 +63,9 @@ public class RandomAccessInputStream extends InputStream implements DataInput {
   /** Maximum number of bytes to search when searching through the stream. */
   protected static final int MAX_SEARCH_SIZE = 512 * 1024 * 1024; // 512 MB
 
+  /** Maximum number of bytes to fetch at once when coalescing ranges. */
+  public static final int MAX_COALESCED_READ = 16 * 1024 * 1024; // 16 MB
+
   // -- Fields --
 
   protected IRandomAccess raf;
@@ -72,6 +77,9 @@ public class RandomAccessInputStream extends InputStream implements DataInput {
 
   protected long markedPos = -1;
 
+  /** Number of bytes read from the stream. */
+  protected long bytesRead = 0;
+
   // -- Constructors --
 
   /**
@@ -101,6 +109,22 @@ public class RandomAccessInputStream extends InputStream implements DataInput {
 
   // -- RandomAccessInputStream API methods --
 
+  /**
+   * Gets the name of the file from which this stream reads, or null if the
+   * stream was constructed around a handle or a byte array.
+   */
+  public String getFilename() {
+    return file;
+  }
+
+  /**
+   * Gets the number of bytes that have been read from this stream since it
+   * was opened.  Bytes that are skipped or seeked past are not counted.
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
   /** Seeks to the given offset within the stream. */
   public void seek(long pos) throws IOException {
     raf.seek(pos);
@@ -311,31 +335,37 @@ public class RandomAccessInputStream extends InputStream implements DataInput {
 
   /** Read an input byte and return true if the byte is nonzero. */
   public boolean readBoolean() throws IOException {
+    bytesRead += 1;
     return raf.readBoolean();
   }
 
   /** Read one byte and return it. */
   public byte readByte() throws IOException {
+    bytesRead += 1;
     return raf.readByte();
   }
 
   /** Read an input char. */
   public char readChar() throws IOException {
+    bytesRead += 2;
     return raf.readChar();
   }
 
   /** Read eight bytes and return a double value. */
   public double readDouble() throws IOException {
+    bytesRead += 8;
     return raf.readDouble();
   }
 
   /** Read four bytes and return a float value. */
   public float readFloat() throws IOException {
+    bytesRead += 4;
     return raf.readFloat();
   }
 
   /** Read four input bytes and return an int value. */
   public int readInt() throws IOException {
+    bytesRead += 4;
     return raf.readInt();
   }
 
@@ -362,27 +392,34 @@ public class RandomAccessInputStream extends InputStream implements DataInput {
 
   /** Read eight input bytes and return a long value. */
   public long readLong() throws IOException {
+    bytesRead += 8;
     return raf.readLong();
   }
 
   /** Read two input bytes and return a short value. */
   public short readShort() throws IOException {
+    bytesRead += 2;
     return raf.readShort();
   }
 
   /** Read an input byte and zero extend it appropriately. */
   public int readUnsignedByte() throws IOException {
+    bytesRead += 1;
     return raf.readUnsignedByte();
   }
 
   /** Read two bytes and return an int in the range 0 through 65535. */
   public int readUnsignedShort() throws IOException {
+    bytesRead += 2;
     return raf.readUnsignedShort();
   }
 
   /** Read a string that has been encoded using a modified UTF-8 format. */
   public String readUTF() throws IOException {
-    return raf.readUTF();
+    long fp = raf.getFilePointer();
+    String utf = raf.readUTF();
+    bytesRead += raf.getFilePointer() - fp;
+    return utf;
   }
 
   /** Skip n bytes within the stream. */
@@ -393,6 +430,7 @@ public class RandomAccessInputStream extends InputStream implements DataInput {
   /** Read bytes from the stream into the given array. */
   public int read(byte[] array) throws IOException {
     int rtn = raf.read(array);
+    if (rtn > 0) bytesRead += rtn;
     if (rtn == 0 && raf.getFilePointer() >= raf.length() - 1) rtn = -1;
     return rtn;
   }
@@ -402,25 +440,133 @@ public class RandomAccessInputStream extends InputStream implements DataInput {
    */
   public int read(byte[] array, int offset, int n) throws IOException {
     int rtn = raf.read(array, offset, n);
+    if (rtn > 0) bytesRead += rtn;
     if (rtn == 0 && raf.getFilePointer() >= raf.length() - 1) rtn = -1;
     return rtn;
   }
 
   /** Read bytes from the stream into the given buffer. */
   public int read(ByteBuffer buf) throws IOException {
-    return raf.read(buf);
+    int rtn = raf.read(buf);
+    if (rtn > 0) bytesRead += rtn;
+    return rtn;
   }
 
   /**
    * Read n bytes from the stream into the given buffer at the specified offset.
    */
   public int read(ByteBuffer buf, int offset, int n) throws IOException {
-    return raf.read(buf, offset, n);
+    int rtn = raf.read(buf, offset, n);
+    if (rtn > 0) bytesRead += rtn;
+    return rtn;
+  }
+
+  /**
+   * Reads several ranges of the stream into the given arrays, using as few
+   * reads as possible.  The i-th range starts at <code>offsets[i]</code> and
+   * fills <code>buffers[i]</code> entirely.
+   *
+   * @see #read(long[], int[], byte[][], int[], int)
+   */
+  public int read(long[] offsets, byte[][] buffers, int maxGap)
+    throws IOException
+  {
+    int[] lengths = new int[buffers.length];
+    for (int i=0; i<buffers.length; i++) {
+      lengths[i] = buffers[i].length;
+    }
+    return read(offsets, lengths, buffers, new int[buffers.length], maxGap);
+  }
+
+  /**
+   * Reads several ranges of the stream using as few reads as possible.
+   * The i-th range starts at <code>offsets[i]</code>, is
+   * <code>lengths[i]</code> bytes long and is copied into
+   * <code>buffers[i]</code> starting at <code>bufferOffsets[i]</code>.
+   *
+   * Ranges are sorted by offset; ranges that overlap, touch, or are separated
+   * by no more than <code>maxGap</code> bytes are fetched with a single read
+   * (of at most {@link #MAX_COALESCED_READ} bytes, unless a single range is
+   * longer) and then sliced back into the destination arrays.  Any part of a
+   * range that lies beyond the end of the stream is left untouched.
+   *
+   * The file pointer is left at the end of the last read.
+   *
+   * @return the number of reads issued to the underlying handle.
+   */
+  public int read(long[] offsets, int[] lengths, byte[][] buffers,
+    int[] bufferOffsets, int maxGap) throws IOException
+  {
+    final long[] starts = offsets;
+    Integer[] order = new Integer[offsets.length];
+    for (int i=0; i<order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long diff = starts[a] - starts[b];
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+    });
+
+    long streamLength = length();
+    int reads = 0;
+    int first = 0;
+    while (first < order.length) {
+      // skip ranges that are empty or lie entirely beyond the end of stream
+      int index = order[first];
+      if (lengths[index] <= 0 || offsets[index] >= streamLength) {
+        first++;
+        continue;
+      }
+
+      // extend the group while the next range is close enough
+      long groupStart = offsets[index];
+      long groupEnd = Math.min(groupStart + lengths[index], streamLength);
+      int last = first;
+      while (last + 1 < order.length) {
+        int next = order[last + 1];
+        if (lengths[next] <= 0) {
+          last++;
+          continue;
+        }
+        long nextEnd = Math.min(offsets[next] + lengths[next], streamLength);
+        if (offsets[next] - groupEnd > maxGap ||
+          Math.max(groupEnd, nextEnd) - groupStart > MAX_COALESCED_READ)
+        {
+          break;
+        }
+        groupEnd = Math.max(groupEnd, nextEnd);
+        last++;
+      }
+
+      seek(groupStart);
+      if (first == last) {
+        readFully(buffers[index], bufferOffsets[index],
+          (int) (groupEnd - groupStart));
+      }
+      else {
+        byte[] block = new byte[(int) (groupEnd - groupStart)];
+        readFully(block);
+        for (int i=first; i<=last; i++) {
+          int range = order[i];
+          int start = (int) (offsets[range] - groupStart);
+          if (lengths[range] <= 0 || start >= block.length) continue;
+          int len = (int) Math.min(lengths[range], block.length - start);
+          System.arraycopy(block, start, buffers[range], bufferOffsets[range],
+            len);
+        }
+      }
+      reads++;
+      first = last + 1;
+    }
+    return reads;
   }
 
   /** Read bytes from the stream into the given array. */
   public void readFully(byte[] array) throws IOException {
     raf.readFully(array);
+    bytesRead += array.length;
   }
 
   /**
@@ -428,6 +574,7 @@ public class RandomAccessInputStream extends InputStream implements DataInput {
    */
   public void readFully(byte[] array, int offset, int n) throws IOException {
     raf.readFully(array, offset, n);
+    bytesRead += n;
   }
 
   // -- InputStream API methods --
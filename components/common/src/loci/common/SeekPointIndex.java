@@ -0,0 +1,680 @@
+//
+// SeekPointIndex.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of points at which decompression of a gzip, bzip2 or deflate
+ * stream can be restarted, so that seeking backwards (or far forwards)
+ * within a compressed file does not require decompressing it from the
+ * beginning.
+ *
+ * The index is built by decompressing the whole stream once; a seek point
+ * is recorded at the first deflate or bzip2 block boundary after every
+ * <code>spacing</code> bytes of decompressed data.  Deflate seek points are
+ * only recorded at block boundaries that fall on a byte boundary, and also
+ * store the preceding 32 KB of decompressed data, which later blocks may
+ * refer back to.
+ *
+ * Indexing is disabled unless it is enabled with {@link #setSpacing(long)}
+ * or the <code>seekPointSpacing</code> system property (a size in bytes).
+ * Indexes of gzip and bzip2 files can also be saved next to the compressed
+ * file, so that the file does not need to be decompressed when it is next
+ * opened; see {@link #setSidecarFiles(boolean)} and the
+ * <code>seekPointIndexFiles</code> system property.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/src/loci/common/SeekPointIndex.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/src/loci/common/SeekPointIndex.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see StreamHandle
+ */
+public class SeekPointIndex {
+
+  // -- Constants --
+
+  /** Suffix appended to the name of a compressed file to name its index. */
+  public static final String SIDECAR_SUFFIX = ".bfidx";
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(SeekPointIndex.class);
+
+  private static final int GZIP = 0;
+  private static final int DEFLATE = 1;
+  private static final int BZIP2 = 2;
+
+  private static final int SIDECAR_MAGIC = 0x42465350; // BFSP
+  private static final int SIDECAR_VERSION = 2;
+
+  private static final int BUFFER_SIZE = 65536;
+
+  // -- Static fields --
+
+  /** Decompressed bytes between seek points; 0 if indexing is disabled. */
+  private static long spacing;
+
+  /** Whether indexes of gzip and bzip2 files are saved and reused. */
+  private static boolean sidecarFiles;
+
+  static {
+    String size = System.getProperty("seekPointSpacing");
+    if (size != null) {
+      try {
+        spacing = Long.parseLong(size);
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid seek point spacing: {}", size);
+      }
+    }
+    sidecarFiles = Boolean.parseBoolean(
+      System.getProperty("seekPointIndexFiles"));
+  }
+
+  // -- Fields --
+
+  private final int type;
+
+  /** Block size of a bzip2 stream, in units of 100 KB. */
+  private int blockSize100k;
+
+  /** Length of the decompressed stream. */
+  private long length;
+
+  private int count;
+
+  /** Decompressed offset of each seek point. */
+  private long[] positions = new long[16];
+
+  /** Compressed offset, in bits, of each seek point. */
+  private long[] bitOffsets = new long[16];
+
+  /** Preceding decompressed data needed by each deflate seek point. */
+  private byte[][] windows = new byte[16][];
+
+  /** Whether each seek point is the start of a gzip member. */
+  private boolean[] memberStarts = new boolean[16];
+
+  // -- Constructor --
+
+  private SeekPointIndex(int type) {
+    this.type = type;
+  }
+
+  // -- Static SeekPointIndex API methods --
+
+  /**
+   * Sets the number of decompressed bytes between seek points in indexes
+   * created by compressed file handles.
+   * @param bytes the spacing, or 0 to disable indexing
+   */
+  public static void setSpacing(long bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Invalid spacing: " + bytes);
+    }
+    spacing = bytes;
+  }
+
+  /**
+   * Gets the number of decompressed bytes between seek points in indexes
+   * created by compressed file handles; 0 if indexing is disabled.
+   */
+  public static long getSpacing() {
+    return spacing;
+  }
+
+  /**
+   * Sets whether indexes of gzip and bzip2 files are saved in (and loaded
+   * from) a file next to the compressed file.  The saved index is ignored
+   * if the compressed file's length or modification time has changed.
+   */
+  public static void setSidecarFiles(boolean sidecar) {
+    sidecarFiles = sidecar;
+  }
+
+  /** Gets whether indexes of gzip and bzip2 files are saved and reused. */
+  public static boolean isSidecarFiles() {
+    return sidecarFiles;
+  }
+
+  /** Creates or loads an index of the given gzip file. */
+  public static SeekPointIndex createGZipIndex(String file, long spacing)
+    throws IOException
+  {
+    SeekPointIndex index = readSidecar(file, GZIP);
+    if (index == null) {
+      NIOFileHandle handle = new NIOFileHandle(file, "r");
+      try {
+        index = new SeekPointIndex(GZIP);
+        index.scanDeflate(handle, 0, spacing);
+      }
+      finally {
+        handle.close();
+      }
+      writeSidecar(file, index);
+    }
+    return index;
+  }
+
+  /** Creates or loads an index of the given bzip2 file. */
+  public static SeekPointIndex createBZip2Index(String file, long spacing)
+    throws IOException
+  {
+    SeekPointIndex index = readSidecar(file, BZIP2);
+    if (index == null) {
+      index = new SeekPointIndex(BZIP2);
+      index.scanBZip2(file, spacing);
+      writeSidecar(file, index);
+    }
+    return index;
+  }
+
+  /**
+   * Creates an index of the raw deflate stream (as stored in a Zip entry)
+   * that starts at the given offset of a handle.
+   */
+  public static SeekPointIndex createDeflateIndex(IRandomAccess handle,
+    long offset, long spacing) throws IOException
+  {
+    SeekPointIndex index = new SeekPointIndex(DEFLATE);
+    index.scanDeflate(handle, offset, spacing);
+    return index;
+  }
+
+  // -- SeekPointIndex API methods --
+
+  /** Returns the length of the decompressed stream. */
+  public long getLength() {
+    return length;
+  }
+
+  /** Returns the number of seek points. */
+  public int getSeekPointCount() {
+    return count;
+  }
+
+  /** Returns the decompressed offset of the given seek point. */
+  public long getPosition(int point) {
+    return positions[point];
+  }
+
+  /**
+   * Returns the index of the last seek point at or before the given
+   * decompressed offset.
+   */
+  public int getSeekPoint(long position) {
+    int low = 0, high = count - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (positions[mid] <= position) low = mid;
+      else high = mid - 1;
+    }
+    return low;
+  }
+
+  /**
+   * Opens a stream of the decompressed data, starting at the given seek
+   * point.  Compressed data is read from the given handle, which is
+   * repositioned before each read and is not closed with the stream.
+   */
+  public InputStream open(IRandomAccess handle, int point)
+    throws IOException
+  {
+    if (type == BZIP2) {
+      InputStream bits = new BitShiftInputStream(
+        new HandleInputStream(handle, bitOffsets[point] >> 3),
+        (int) (bitOffsets[point] & 7));
+      InputStream header = new ByteArrayInputStream(
+        new byte[] {'h', (byte) ('0' + blockSize100k)});
+      return new CBZip2InputStream(
+        new SequenceInputStream(header, bits), false, null);
+    }
+    return new IndexedInflaterStream(handle, point);
+  }
+
+  // -- Helper methods --
+
+  private void addSeekPoint(long position, long bitOffset, byte[] window,
+    boolean memberStart)
+  {
+    if (count == positions.length) {
+      int size = count * 2;
+      long[] p = new long[size];
+      long[] b = new long[size];
+      byte[][] w = new byte[size][];
+      boolean[] m = new boolean[size];
+      System.arraycopy(positions, 0, p, 0, count);
+      System.arraycopy(bitOffsets, 0, b, 0, count);
+      System.arraycopy(windows, 0, w, 0, count);
+      System.arraycopy(memberStarts, 0, m, 0, count);
+      positions = p;
+      bitOffsets = b;
+      windows = w;
+      memberStarts = m;
+    }
+    positions[count] = position;
+    bitOffsets[count] = bitOffset;
+    windows[count] = window;
+    memberStarts[count] = memberStart;
+    count++;
+  }
+
+  /** Decompresses a gzip or raw deflate stream, recording seek points. */
+  private void scanDeflate(IRandomAccess handle, long offset, long spacing)
+    throws IOException
+  {
+    InflateScanner scanner =
+      new InflateScanner(new HandleInputStream(handle, offset), offset * 8);
+    boolean first = true;
+    while (type == DEFLATE ? first : readGZipHeader(scanner, first)) {
+      first = false;
+      scanner.resetWindow();
+      long last = scanner.getPosition();
+      addSeekPoint(last, scanner.getBitOffset(), null, true);
+      boolean end = false;
+      while (!end) {
+        long position = scanner.getPosition();
+        // stored blocks are aligned to bytes of the original stream, so
+        // decompression can only restart from a byte boundary
+        if (spacing > 0 && position - last >= spacing &&
+          (scanner.getBitOffset() & 7) == 0)
+        {
+          addSeekPoint(position, scanner.getBitOffset(), scanner.getWindow(),
+            false);
+          last = position;
+        }
+        end = scanner.inflateBlock();
+      }
+      if (type == GZIP) {
+        // skip the CRC and length of the member
+        for (int i=0; i<8; i++) {
+          if (scanner.readByte() < 0) {
+            throw new EOFException("Truncated gzip member");
+          }
+        }
+      }
+    }
+    length = scanner.getPosition();
+  }
+
+  /**
+   * Reads the header of the next gzip member.
+   * @return false if there are no more members
+   */
+  private static boolean readGZipHeader(InflateScanner scanner, boolean first)
+    throws IOException
+  {
+    // as with GZIPInputStream, anything after the last member is ignored
+    int id1 = scanner.readByte();
+    int id2 = id1 < 0 ? -1 : scanner.readByte();
+    if (id1 != 0x1f || id2 != 0x8b) {
+      if (first) throw new IOException("Not a gzip stream");
+      return false;
+    }
+    int method = scanner.readByte();
+    if (method != 8) {
+      throw new IOException("Unsupported gzip compression method: " + method);
+    }
+    int flags = scanner.readByte();
+    skip(scanner, 6);
+    if ((flags & 4) != 0) {
+      int extra = scanner.readByte() | (scanner.readByte() << 8);
+      skip(scanner, extra);
+    }
+    if ((flags & 8) != 0) skipString(scanner);
+    if ((flags & 16) != 0) skipString(scanner);
+    if ((flags & 2) != 0) skip(scanner, 2);
+    return true;
+  }
+
+  private static void skip(InflateScanner scanner, int n) throws IOException {
+    for (int i=0; i<n; i++) {
+      if (scanner.readByte() < 0) throw new EOFException("Truncated header");
+    }
+  }
+
+  private static void skipString(InflateScanner scanner) throws IOException {
+    int b;
+    do {
+      b = scanner.readByte();
+      if (b < 0) throw new EOFException("Truncated header");
+    }
+    while (b != 0);
+  }
+
+  /** Decompresses a bzip2 file, recording the start of some blocks. */
+  private void scanBZip2(String file, long spacing) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file),
+      RandomAccessInputStream.MAX_OVERHEAD);
+    try {
+      byte[] header = new byte[4];
+      new DataInputStream(in).readFully(header);
+      if (header[0] != 'B' || header[1] != 'Z' || header[2] != 'h') {
+        throw new IOException("Not a bzip2 stream");
+      }
+      blockSize100k = header[3] - '0';
+
+      // CBZip2InputStream reads the 'h' and block size itself
+      List<long[]> blocks = new ArrayList<long[]>();
+      InputStream blockSize = new ByteArrayInputStream(header, 2, 2);
+      CBZip2InputStream bzip = new CBZip2InputStream(
+        new SequenceInputStream(blockSize, in), true, blocks);
+      byte[] buf = new byte[BUFFER_SIZE];
+      long total = 0;
+      int n;
+      while ((n = bzip.read(buf, 0, buf.length)) > 0) {
+        total += n;
+      }
+      length = total;
+
+      long last = -spacing;
+      for (long[] block : blocks) {
+        if (block[0] - last >= spacing || count == 0) {
+          // offsets are relative to the 'h', two bytes into the file
+          addSeekPoint(block[0], block[1] + 16, null, false);
+          last = block[0];
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /** Loads the saved index of the given file, if it is present and valid. */
+  private static SeekPointIndex readSidecar(String file, int type) {
+    if (!sidecarFiles) return null;
+    File compressed = new File(file);
+    File sidecar = new File(file + SIDECAR_SUFFIX);
+    if (!sidecar.exists()) return null;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(
+        new GZIPInputStream(new FileInputStream(sidecar))));
+      if (in.readInt() != SIDECAR_MAGIC || in.readInt() != SIDECAR_VERSION ||
+        in.readInt() != type || in.readLong() != compressed.length() ||
+        in.readLong() != compressed.lastModified())
+      {
+        LOGGER.debug("Ignoring out of date index {}", sidecar);
+        return null;
+      }
+      SeekPointIndex index = new SeekPointIndex(type);
+      index.blockSize100k = in.readInt();
+      index.length = in.readLong();
+      int n = in.readInt();
+      for (int i=0; i<n; i++) {
+        long position = in.readLong();
+        long bitOffset = in.readLong();
+        boolean memberStart = in.readBoolean();
+        byte[] window = null;
+        int windowLength = in.readInt();
+        if (windowLength >= 0) {
+          window = new byte[windowLength];
+          in.readFully(window);
+        }
+        index.addSeekPoint(position, bitOffset, window, memberStart);
+      }
+      return index;
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not read index " + sidecar, e);
+      return null;
+    }
+    finally {
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch (IOException e) { }
+      }
+    }
+  }
+
+  /** Saves the index of the given file, if enabled. */
+  private static void writeSidecar(String file, SeekPointIndex index) {
+    if (!sidecarFiles) return;
+    File compressed = new File(file);
+    File sidecar = new File(file + SIDECAR_SUFFIX);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(
+        new GZIPOutputStream(new FileOutputStream(sidecar)));
+      out.writeInt(SIDECAR_MAGIC);
+      out.writeInt(SIDECAR_VERSION);
+      out.writeInt(index.type);
+      out.writeLong(compressed.length());
+      out.writeLong(compressed.lastModified());
+      out.writeInt(index.blockSize100k);
+      out.writeLong(index.length);
+      out.writeInt(index.count);
+      for (int i=0; i<index.count; i++) {
+        out.writeLong(index.positions[i]);
+        out.writeLong(index.bitOffsets[i]);
+        out.writeBoolean(index.memberStarts[i]);
+        byte[] window = index.windows[i];
+        out.writeInt(window == null ? -1 : window.length);
+        if (window != null) out.write(window);
+      }
+      out.close();
+      out = null;
+    }
+    catch (IOException e) {
+      // the directory may not be writable; the index is rebuilt next time
+      LOGGER.debug("Could not write index " + sidecar, e);
+      sidecar.delete();
+    }
+    finally {
+      if (out != null) {
+        try {
+          out.close();
+        }
+        catch (IOException e) { }
+        sidecar.delete();
+      }
+    }
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Reads bytes from a handle, starting at a given offset.  The handle is
+   * repositioned before every read, so it may be shared.
+   */
+  private static class HandleInputStream extends InputStream {
+    private final IRandomAccess handle;
+    private long offset;
+
+    HandleInputStream(IRandomAccess handle, long offset) {
+      this.handle = handle;
+      this.offset = offset;
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      long remaining = handle.length() - offset;
+      if (remaining <= 0) return -1;
+      if (len > remaining) len = (int) remaining;
+      handle.seek(offset);
+      int n = handle.read(b, off, len);
+      if (n <= 0) return -1;
+      offset += n;
+      return n;
+    }
+  }
+
+  /**
+   * Presents a stream of bits that starts partway through a byte as a
+   * stream of whole bytes.  Bits are packed as in bzip2, starting with the
+   * most significant bit of each byte.
+   */
+  private static class BitShiftInputStream extends InputStream {
+    private final InputStream in;
+    private final int shift;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferOffset, bufferLength;
+    private int current;
+
+    BitShiftInputStream(InputStream in, int shift) throws IOException {
+      this.in = in;
+      this.shift = shift;
+      current = next();
+    }
+
+    public int read() throws IOException {
+      if (current < 0) return -1;
+      int value = current;
+      current = next();
+      if (shift > 0) {
+        int following = current < 0 ? 0 : current;
+        value = (value << shift) | (following >>> (8 - shift));
+      }
+      return value & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (current < 0) return -1;
+      int n = 0;
+      while (n < len && current >= 0) {
+        b[off + n++] = (byte) read();
+      }
+      return n;
+    }
+
+    private int next() throws IOException {
+      if (bufferOffset == bufferLength) {
+        bufferLength = in.read(buffer, 0, buffer.length);
+        bufferOffset = 0;
+        if (bufferLength <= 0) {
+          bufferLength = 0;
+          return -1;
+        }
+      }
+      return buffer[bufferOffset++] & 0xff;
+    }
+  }
+
+  /**
+   * Decompresses a gzip or deflate stream from a seek point, continuing
+   * into any later gzip members.
+   */
+  private class IndexedInflaterStream extends InputStream {
+    private final IRandomAccess handle;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private Inflater inflater;
+    private InputStream input;
+    private int point;
+    private long position;
+
+    IndexedInflaterStream(IRandomAccess handle, int point) throws IOException
+    {
+      this.handle = handle;
+      start(point);
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      while (inflater != null) {
+        int n;
+        try {
+          n = inflater.inflate(b, off, len);
+        }
+        catch (DataFormatException e) {
+          IOException io = new IOException("Invalid compressed data");
+          io.initCause(e);
+          throw io;
+        }
+        if (n > 0) {
+          position += n;
+          return n;
+        }
+        if (inflater.finished()) {
+          nextMember();
+        }
+        else if (inflater.needsInput()) {
+          int r = input.read(buffer, 0, buffer.length);
+          if (r <= 0) throw new EOFException("Unexpected end of stream");
+          inflater.setInput(buffer, 0, r);
+        }
+        else {
+          throw new IOException("Missing dictionary");
+        }
+      }
+      return -1;
+    }
+
+    public void close() {
+      if (inflater != null) inflater.end();
+      inflater = null;
+    }
+
+    private void start(int p) throws IOException {
+      if (inflater != null) inflater.end();
+      point = p;
+      position = positions[p];
+      inflater = new Inflater(true);
+      if (windows[p] != null) inflater.setDictionary(windows[p]);
+      input = new HandleInputStream(handle, bitOffsets[p] >> 3);
+    }
+
+    /** Continues with the next gzip member, if there is one. */
+    private void nextMember() throws IOException {
+      for (int p=point+1; p<count; p++) {
+        if (memberStarts[p] && positions[p] == position) {
+          start(p);
+          return;
+        }
+      }
+      close();
+    }
+  }
+
+}
@@ -23,6 +23,7 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package loci.common;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -67,6 +68,15 @@ public abstract class StreamHandle implements IRandomAccess {
   /** Byte ordering of this stream. */
   protected ByteOrder order;
 
+  /**
+   * Points at which decompression can be restarted when seeking, or null
+   * if seeking backwards must restart from the beginning of the stream.
+   */
+  protected SeekPointIndex seekPoints;
+
+  /** Handle from which compressed data is read at {@link #seekPoints}. */
+  protected IRandomAccess seekSource;
+
   // -- Constructor --
 
   /**
@@ -86,8 +96,11 @@ public abstract class StreamHandle implements IRandomAccess {
     length = fp = mark = 0;
     if (stream != null) stream.close();
     if (outStream != null) outStream.close();
+    if (seekSource != null) seekSource.close();
     stream = null;
     outStream = null;
+    seekSource = null;
+    seekPoints = null;
     file = null;
   }
 
@@ -142,7 +155,20 @@ public abstract class StreamHandle implements IRandomAccess {
     long diff = pos - fp;
     fp = pos;
 
-    if (diff < 0) {
+    if (seekPoints != null) {
+      // restart at the nearest seek point if it is closer than the
+      // current position
+      int point = seekPoints.getSeekPoint(pos);
+      long start = seekPoints.getPosition(point);
+      if (diff < 0 || start > pos - diff) {
+        if (stream != null) stream.close();
+        stream = new DataInputStream(new BufferedInputStream(
+          seekPoints.open(seekSource, point),
+          RandomAccessInputStream.MAX_OVERHEAD));
+        diff = pos - start;
+      }
+    }
+    else if (diff < 0) {
       resetStream();
       diff = fp;
     }
@@ -28,6 +28,7 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -68,29 +69,25 @@ public class ZipHandle extends StreamHandle {
     if (slash < 0) slash = innerFile.lastIndexOf("/");
     if (slash >= 0) innerFile = innerFile.substring(slash + 1);
 
-    // look for Zip entry with same prefix as the original Zip file
+    // look for Zip entry with same prefix as the original Zip file,
+    // counting all of the entries in the same pass
     entry = null;
+    ZipEntry first = null;
 
     while (true) {
       ZipEntry ze = zip.getNextEntry();
       if (ze == null) break;
       entryCount++;
-    }
-    resetStream();
-
-    while (true) {
-      ZipEntry ze = zip.getNextEntry();
-      if (ze == null) break;
-      if (entry == null) entry = ze;
-      if (ze.getName().startsWith(innerFile)) {
+      if (first == null) first = ze;
+      if (entry == null && ze.getName().startsWith(innerFile)) {
         // found entry with matching name
         entry = ze;
-        break;
       }
     }
+    if (entry == null) entry = first;
 
     resetStream();
-    populateLength();
+    if (!indexEntry()) populateLength();
   }
 
   /**
@@ -108,7 +105,7 @@ public class ZipHandle extends StreamHandle {
     entryCount = 1;
     this.entry = entry;
     resetStream();
-    populateLength();
+    if (!indexEntry()) populateLength();
   }
 
   // -- ZipHandle API methods --
@@ -185,6 +182,83 @@ public class ZipHandle extends StreamHandle {
     resetStream();
   }
 
+  /**
+   * Indexes the backing entry so that seeking backwards does not
+   * decompress it from the beginning, if the entry is deflated and a seek
+   * point spacing has been set.
+   * @return true if the entry was indexed
+   * @see SeekPointIndex#setSpacing(long)
+   */
+  private boolean indexEntry() throws IOException {
+    long spacing = SeekPointIndex.getSpacing();
+    if (spacing <= 0 || entry == null || file.startsWith("http://") ||
+      entry.getMethod() != ZipEntry.DEFLATED)
+    {
+      return false;
+    }
+    IRandomAccess handle = getHandle(file);
+    long offset = findEntryData(handle, entry.getName());
+    if (offset < 0) {
+      handle.close();
+      return false;
+    }
+    seekPoints = SeekPointIndex.createDeflateIndex(handle, offset, spacing);
+    seekSource = handle;
+    length = seekPoints.getLength();
+    return true;
+  }
+
+  /**
+   * Finds the offset of the named entry's data, using the central
+   * directory at the end of the archive.
+   * @return the offset, or -1 if it could not be found
+   */
+  private static long findEntryData(IRandomAccess handle, String name)
+    throws IOException
+  {
+    handle.setOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // the end of central directory record is 22 bytes long, and is
+    // followed by a comment of at most 65535 bytes
+    int tailLength = (int) Math.min(handle.length(), 22 + 65535);
+    byte[] tail = new byte[tailLength];
+    handle.seek(handle.length() - tailLength);
+    handle.readFully(tail);
+    int end = -1;
+    for (int i=tailLength-22; i>=0 && end<0; i--) {
+      if (DataTools.bytesToInt(tail, i, true) == 0x06054b50) end = i;
+    }
+    if (end < 0) return -1;
+    int entries = DataTools.bytesToInt(tail, end + 10, 2, true);
+    long directory = DataTools.bytesToInt(tail, end + 16, true) & 0xffffffffL;
+    if (directory >= handle.length()) return -1;
+
+    handle.seek(directory);
+    for (int i=0; i<entries; i++) {
+      if (handle.readInt() != 0x02014b50) return -1;
+      handle.skipBytes(24);
+      int nameLength = handle.readShort() & 0xffff;
+      int extraLength = handle.readShort() & 0xffff;
+      int commentLength = handle.readShort() & 0xffff;
+      handle.skipBytes(8);
+      long local = handle.readInt() & 0xffffffffL;
+      byte[] entryName = new byte[nameLength];
+      handle.readFully(entryName);
+      handle.skipBytes(extraLength + commentLength);
+
+      if (new String(entryName, Constants.ENCODING).equals(name)) {
+        if (local + 30 > handle.length()) return -1;
+        handle.seek(local);
+        if (handle.readInt() != 0x04034b50) return -1;
+        handle.skipBytes(22);
+        nameLength = handle.readShort() & 0xffff;
+        extraLength = handle.readShort() & 0xffff;
+        return local + 30 + nameLength + extraLength;
+      }
+    }
+    return -1;
+  }
+
   private static IRandomAccess getHandle(String file) throws IOException {
     return file.startsWith("http://") ?
       new URLHandle(file) : new NIOFileHandle(file, "r");
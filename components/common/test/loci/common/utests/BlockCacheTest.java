@@ -0,0 +1,160 @@
+//
+// BlockCacheTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import loci.common.BlockCache;
+import loci.common.CachedFileHandle;
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.RandomAccessInputStream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the loci.common.BlockCache class.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/test/loci/common/utests/BlockCacheTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/test/loci/common/utests/BlockCacheTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see loci.common.BlockCache
+ * @see loci.common.CachedFileHandle
+ */
+public class BlockCacheTest {
+
+  private static final int BLOCK_SIZE = 64;
+
+  private static final int FILE_SIZE = 1000;
+
+  // -- Fields --
+
+  private File file;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    file = File.createTempFile("block-cache", ".dat");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    for (int i=0; i<FILE_SIZE; i++) {
+      out.write(i);
+    }
+    out.close();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    BlockCache.setSharedCache(null);
+    file.delete();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testSharedBetweenHandles() throws IOException {
+    BlockCache cache = new BlockCache(FILE_SIZE * 2, BLOCK_SIZE, false);
+    byte[] first = read(new CachedFileHandle(file, cache));
+    assertEquals(16, cache.getMissCount());
+    assertEquals(16, cache.getBlockCount());
+    assertEquals(FILE_SIZE, cache.getSize());
+
+    cache.resetStatistics();
+    byte[] second = read(new CachedFileHandle(file, cache));
+    assertEquals(0, cache.getMissCount());
+    assertEquals(16, cache.getHitCount());
+    for (int i=0; i<FILE_SIZE; i++) {
+      assertEquals((byte) i, first[i]);
+      assertEquals((byte) i, second[i]);
+    }
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    BlockCache cache = new BlockCache(BLOCK_SIZE * 4, BLOCK_SIZE, true);
+    read(new CachedFileHandle(file, cache));
+    assertEquals(4, cache.getBlockCount());
+    assertTrue(cache.getSize() <= BLOCK_SIZE * 4);
+    assertEquals(12, cache.getEvictionCount());
+
+    // the most recently used blocks are kept
+    cache.resetStatistics();
+    IRandomAccess handle = new CachedFileHandle(file, cache);
+    handle.seek(FILE_SIZE - 1);
+    assertEquals((byte) (FILE_SIZE - 1), handle.readByte());
+    handle.seek(0);
+    assertEquals(0, handle.readByte());
+    handle.close();
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    cache.setMaxSize(0);
+    assertEquals(0, cache.getBlockCount());
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void testSharedCache() throws IOException {
+    BlockCache cache = new BlockCache(FILE_SIZE * 2, BLOCK_SIZE, false);
+    BlockCache.setSharedCache(cache);
+    RandomAccessInputStream in =
+      new RandomAccessInputStream(file.getAbsolutePath());
+    try {
+      // read a value that spans two blocks
+      in.seek(BLOCK_SIZE - 1);
+      assertEquals(((BLOCK_SIZE - 1) << 8) | BLOCK_SIZE, in.readShort());
+    }
+    finally {
+      in.close();
+    }
+    assertEquals(2, cache.getMissCount());
+
+    IRandomAccess handle = Location.getHandle(file.getAbsolutePath(), true);
+    assertTrue(!(handle instanceof CachedFileHandle));
+    handle.close();
+  }
+
+  // -- Helper methods --
+
+  private byte[] read(IRandomAccess handle) throws IOException {
+    byte[] b = new byte[FILE_SIZE];
+    try {
+      assertEquals(FILE_SIZE, handle.read(b));
+    }
+    finally {
+      handle.close();
+    }
+    return b;
+  }
+
+}
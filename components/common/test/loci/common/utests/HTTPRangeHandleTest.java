@@ -0,0 +1,217 @@
+//
+// HTTPRangeHandleTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import loci.common.HTTPRangeHandle;
+import loci.common.HandleException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for the loci.common.HTTPRangeHandle class, using an embedded
+ * HTTP server.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/test/loci/common/utests/HTTPRangeHandleTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/test/loci/common/utests/HTTPRangeHandleTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see loci.common.HTTPRangeHandle
+ */
+public class HTTPRangeHandleTest {
+
+  private static final int BLOCK_SIZE = 1024;
+
+  private static final int FILE_SIZE = 40 * BLOCK_SIZE + 100;
+
+  // -- Fields --
+
+  private byte[] data;
+
+  private HttpServer server;
+
+  private AtomicInteger requests = new AtomicInteger();
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    data = new byte[FILE_SIZE];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i * 7 + (i >> 8));
+    }
+    requests.set(0);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/ranges", new FileHandler(true));
+    server.createContext("/noranges", new FileHandler(false));
+    server.start();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private String getURL(String path) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+  }
+
+  private HTTPRangeHandle open() throws IOException {
+    return new HTTPRangeHandle(getURL("/ranges"), BLOCK_SIZE,
+      16 * BLOCK_SIZE, 4);
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testLength() throws IOException {
+    HTTPRangeHandle handle = open();
+    assertEquals(FILE_SIZE, handle.length());
+    assertEquals(1, handle.getRequestCount());
+    handle.close();
+  }
+
+  @Test
+  public void testRandomReads() throws IOException {
+    HTTPRangeHandle handle = open();
+    long[] offsets = {5000, 17, FILE_SIZE - 1, 20000, BLOCK_SIZE - 2};
+    for (long offset : offsets) {
+      handle.seek(offset);
+      assertEquals(data[(int) offset], handle.readByte());
+    }
+
+    // a value that spans two blocks
+    handle.seek(BLOCK_SIZE - 2);
+    handle.setOrder(ByteOrder.LITTLE_ENDIAN);
+    int expected = (data[BLOCK_SIZE - 2] & 0xff) |
+      ((data[BLOCK_SIZE - 1] & 0xff) << 8) |
+      ((data[BLOCK_SIZE] & 0xff) << 16) |
+      ((data[BLOCK_SIZE + 1] & 0xff) << 24);
+    assertEquals(expected, handle.readInt());
+    assertEquals(BLOCK_SIZE + 2, handle.getFilePointer());
+    handle.close();
+  }
+
+  @Test
+  public void testBackwardSeekIsCached() throws IOException {
+    HTTPRangeHandle handle = open();
+    handle.seek(10 * BLOCK_SIZE);
+    handle.readByte();
+    handle.seek(30 * BLOCK_SIZE);
+    handle.readByte();
+    int count = handle.getRequestCount();
+
+    handle.seek(10 * BLOCK_SIZE + 5);
+    assertEquals(data[10 * BLOCK_SIZE + 5], handle.readByte());
+    handle.seek(3);
+    assertEquals(data[3], handle.readByte());
+    assertEquals(count, handle.getRequestCount());
+    handle.close();
+  }
+
+  @Test
+  public void testLargeRead() throws IOException {
+    HTTPRangeHandle handle = open();
+    // the read ends at the end of the file, so there is nothing to read ahead
+    byte[] b = new byte[12 * BLOCK_SIZE + 100];
+    int offset = FILE_SIZE - b.length;
+    handle.seek(offset);
+    handle.readFully(b);
+    for (int i=0; i<b.length; i++) {
+      assertEquals(data[offset + i], b[i]);
+    }
+    // at most one request per connection, plus the initial request
+    assertEquals(5, handle.getRequestCount());
+
+    // reading past the end of the file returns what is there
+    handle.seek(FILE_SIZE - 50);
+    assertEquals(50, handle.read(b));
+    handle.close();
+  }
+
+  @Test
+  public void testSequentialReadAhead() throws IOException {
+    HTTPRangeHandle handle = open();
+    int blocks = FILE_SIZE / BLOCK_SIZE;
+    for (int i=0; i<blocks; i++) {
+      handle.seek(i * BLOCK_SIZE);
+      for (int j=0; j<BLOCK_SIZE; j+=256) {
+        assertEquals(data[i * BLOCK_SIZE + j], handle.readByte());
+        handle.skipBytes(255);
+      }
+    }
+    assertTrue(handle.getRequestCount() < blocks / 2);
+    handle.close();
+  }
+
+  @Test(expectedExceptions={ HandleException.class })
+  public void testNoRangeSupport() throws IOException {
+    new HTTPRangeHandle(getURL("/noranges"));
+  }
+
+  // -- Helper classes --
+
+  /** Serves the test data, optionally honouring Range headers. */
+  private class FileHandler implements HttpHandler {
+    private boolean ranges;
+
+    public FileHandler(boolean ranges) {
+      this.ranges = ranges;
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+      requests.incrementAndGet();
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      int start = 0, end = data.length - 1;
+      int status = 200;
+      if (ranges && range != null && range.startsWith("bytes=")) {
+        String[] bounds = range.substring(6).split("-");
+        start = Integer.parseInt(bounds[0]);
+        end = Math.min(end, Integer.parseInt(bounds[1]));
+        status = 206;
+        exchange.getResponseHeaders().set("Content-Range",
+          "bytes " + start + "-" + end + "/" + data.length);
+      }
+      exchange.sendResponseHeaders(status, end - start + 1);
+      OutputStream out = exchange.getResponseBody();
+      out.write(data, start, end - start + 1);
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,143 @@
+//
+// MappedFileTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import loci.common.ByteArrayHandle;
+import loci.common.Location;
+import loci.common.MappedFile;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the loci.common.MappedFile class.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/test/loci/common/utests/MappedFileTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/test/loci/common/utests/MappedFileTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see loci.common.MappedFile
+ */
+public class MappedFileTest {
+
+  // -- Fields --
+
+  private File file;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    file = File.createTempFile("mapped", ".dat");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    for (int i=0; i<256; i++) {
+      out.write(i);
+    }
+    out.close();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    file.delete();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testMap() throws IOException {
+    MappedFile mapping = MappedFile.open(file.getAbsolutePath());
+    try {
+      assertEquals(256, mapping.length());
+      ByteBuffer region = mapping.map(16, 32);
+      assertTrue(region.isReadOnly());
+      assertEquals(0, region.position());
+      assertEquals(32, region.limit());
+      for (int i=0; i<32; i++) {
+        assertEquals((byte) (16 + i), region.get());
+      }
+    }
+    finally {
+      mapping.close();
+    }
+  }
+
+  @Test(expectedExceptions={IOException.class})
+  public void testMapPastEnd() throws IOException {
+    MappedFile mapping = MappedFile.open(file.getAbsolutePath());
+    try {
+      mapping.map(250, 8);
+    }
+    finally {
+      mapping.close();
+    }
+  }
+
+  @Test
+  public void testShared() throws IOException {
+    MappedFile first = MappedFile.open(file.getAbsolutePath());
+    MappedFile second = MappedFile.open(
+      file.getParent() + File.separator + "." + File.separator +
+      file.getName());
+    assertSame(first, second);
+    first.close();
+
+    // the mapping stays open while it is still referenced
+    assertEquals((byte) 100, second.map(100, 1).get());
+    MappedFile third = MappedFile.open(file.getAbsolutePath());
+    assertSame(second, third);
+    second.close();
+    third.close();
+
+    MappedFile reopened = MappedFile.open(file.getAbsolutePath());
+    assertNotSame(first, reopened);
+    reopened.close();
+  }
+
+  @Test
+  public void testNotMappable() throws IOException {
+    String id = "mapped-file-test.dat";
+    Location.mapFile(id, new ByteArrayHandle(16));
+    try {
+      assertNull(MappedFile.open(id));
+    }
+    finally {
+      Location.mapFile(id, null);
+    }
+    assertNull(MappedFile.open(file.getParent()));
+  }
+
+}
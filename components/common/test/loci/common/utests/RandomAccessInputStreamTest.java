@@ -127,4 +127,61 @@ public class RandomAccessInputStreamTest {
     }
   }
 
+  @Test
+  public void testCoalescedRead() throws IOException {
+    long[] offsets = new long[] {40, 0, 4, 20};
+    byte[][] buffers = new byte[offsets.length][4];
+    assertEquals(3, stream.read(offsets, buffers, 0));
+    for (int i=0; i<offsets.length; i++) {
+      for (int j=0; j<buffers[i].length; j++) {
+        assertEquals(PAGE[(int) offsets[i] + j], buffers[i][j]);
+      }
+    }
+
+    buffers = new byte[offsets.length][4];
+    assertEquals(1, stream.read(offsets, buffers, 16));
+    for (int i=0; i<offsets.length; i++) {
+      for (int j=0; j<buffers[i].length; j++) {
+        assertEquals(PAGE[(int) offsets[i] + j], buffers[i][j]);
+      }
+    }
+  }
+
+  @Test
+  public void testCoalescedReadIntoSingleBuffer() throws IOException {
+    byte[] buf = new byte[8];
+    long[] offsets = new long[] {16, 8};
+    int[] lengths = new int[] {4, 4};
+    int[] bufferOffsets = new int[] {0, 4};
+    stream.read(offsets, lengths, new byte[][] {buf, buf}, bufferOffsets, 8);
+    for (int i=0; i<4; i++) {
+      assertEquals(PAGE[16 + i], buf[i]);
+      assertEquals(PAGE[8 + i], buf[4 + i]);
+    }
+  }
+
+  @Test
+  public void testCoalescedReadPastEnd() throws IOException {
+    long[] offsets = new long[] {PAGE.length - 2, PAGE.length + 4};
+    byte[][] buffers = new byte[offsets.length][4];
+    assertEquals(1, stream.read(offsets, buffers, 0));
+    assertEquals(PAGE[PAGE.length - 2], buffers[0][0]);
+    assertEquals(PAGE[PAGE.length - 1], buffers[0][1]);
+    assertEquals(0, buffers[0][2]);
+    assertEquals(0, buffers[1][0]);
+  }
+
+  @Test
+  public void testBytesRead() throws IOException {
+    assertEquals(0, stream.getBytesRead());
+    stream.seek(8);
+    stream.readInt();
+    stream.skipBytes(4);
+    stream.readShort();
+    stream.read(new byte[6]);
+    stream.seek(0);
+    stream.readFully(new byte[3]);
+    assertEquals(15, stream.getBytesRead());
+  }
+
 }
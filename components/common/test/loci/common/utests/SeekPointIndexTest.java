@@ -0,0 +1,255 @@
+//
+// SeekPointIndexTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import loci.common.BZip2Handle;
+import loci.common.GZipHandle;
+import loci.common.IRandomAccess;
+import loci.common.SeekPointIndex;
+import loci.common.ZipHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the loci.common.SeekPointIndex class.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/test/loci/common/utests/SeekPointIndexTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/test/loci/common/utests/SeekPointIndexTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see loci.common.SeekPointIndex
+ */
+public class SeekPointIndexTest {
+
+  private static final int DATA_SIZE = 1500000;
+
+  private static final long SPACING = 65536;
+
+  /** Length of each run of random data in {@link #testMixedBlocks()}. */
+  private static final int MIXED_RUN = 40000;
+
+  private static final String[] WORDS = {
+    "pixel", "plane", "channel", "series", "tile", "strip", "offset",
+    "image", "stage", "micron", "objective", "laser", "detector", "\n"
+  };
+
+  // -- Fields --
+
+  private byte[] data;
+
+  private File directory;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    // repetitive text, so that blocks refer back to earlier blocks
+    StringBuffer text = new StringBuffer();
+    long seed = 1;
+    while (text.length() < DATA_SIZE) {
+      seed = (seed * 25214903917L + 11) & ((1L << 48) - 1);
+      text.append(WORDS[(int) ((seed >>> 17) % WORDS.length)]);
+      text.append((seed >>> 40) % 7 == 0 ? (int) (seed >>> 30) % 1000 : ' ');
+    }
+    data = text.substring(0, DATA_SIZE).getBytes("UTF-8");
+
+    directory = File.createTempFile("seek-points", "");
+    directory.delete();
+    directory.mkdir();
+    SeekPointIndex.setSpacing(SPACING);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    SeekPointIndex.setSpacing(0);
+    SeekPointIndex.setSidecarFiles(false);
+    for (File f : directory.listFiles()) {
+      f.delete();
+    }
+    directory.delete();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testGZip() throws IOException {
+    File file = new File(directory, "data.gz");
+    OutputStream out = new FileOutputStream(file);
+    int half = DATA_SIZE / 2;
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(data, 0, half);
+    gzip.finish();
+
+    // a second member, stored without compression
+    gzip = new GZIPOutputStream(out) {
+      {
+        def.setLevel(Deflater.NO_COMPRESSION);
+      }
+    };
+    gzip.write(data, half, DATA_SIZE - half);
+    gzip.close();
+
+    SeekPointIndex index =
+      SeekPointIndex.createGZipIndex(file.getAbsolutePath(), SPACING);
+    assertEquals(DATA_SIZE, index.getLength());
+    assertTrue(index.getSeekPointCount() > 2);
+    assertEquals(half, index.getPosition(index.getSeekPoint(half)));
+
+    assertReads(new GZipHandle(file.getAbsolutePath()));
+  }
+
+  @Test
+  public void testMixedBlocks() throws IOException {
+    // random runs are written as stored blocks, which are byte-aligned,
+    // between compressed blocks, which generally are not
+    Random random = new Random(1);
+    for (int offset=0; offset<DATA_SIZE; offset+=2*MIXED_RUN) {
+      byte[] run = new byte[Math.min(MIXED_RUN, DATA_SIZE - offset)];
+      random.nextBytes(run);
+      System.arraycopy(run, 0, data, offset, run.length);
+    }
+
+    for (final int level : new int[] {1, 6, 9}) {
+      File file = new File(directory, "mixed" + level + ".gz");
+      GZIPOutputStream gzip = new GZIPOutputStream(new FileOutputStream(file))
+      {
+        {
+          def.setLevel(level);
+        }
+      };
+      gzip.write(data);
+      gzip.close();
+
+      SeekPointIndex index =
+        SeekPointIndex.createGZipIndex(file.getAbsolutePath(), SPACING);
+      assertEquals(DATA_SIZE, index.getLength());
+      assertTrue(index.getSeekPointCount() > 2);
+      assertReads(new GZipHandle(file.getAbsolutePath()));
+    }
+  }
+
+  @Test
+  public void testBZip2() throws IOException, InterruptedException {
+    File raw = new File(directory, "data");
+    FileOutputStream out = new FileOutputStream(raw);
+    out.write(data);
+    out.close();
+
+    // 100 KB blocks
+    Process p = Runtime.getRuntime().exec(
+      new String[] {"bzip2", "-1", raw.getAbsolutePath()});
+    assertEquals(0, p.waitFor());
+    String file = raw.getAbsolutePath() + ".bz2";
+
+    SeekPointIndex index = SeekPointIndex.createBZip2Index(file, SPACING);
+    assertEquals(DATA_SIZE, index.getLength());
+    assertTrue(index.getSeekPointCount() > 10);
+
+    assertReads(new BZip2Handle(file));
+  }
+
+  @Test
+  public void testZip() throws IOException {
+    File file = new File(directory, "data.zip");
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+    zip.putNextEntry(new ZipEntry("other.txt"));
+    zip.write(data, 0, 1000);
+    zip.putNextEntry(new ZipEntry("data.txt"));
+    zip.write(data);
+    zip.close();
+
+    ZipHandle handle = new ZipHandle(file.getAbsolutePath());
+    assertEquals(2, handle.getEntryCount());
+    assertEquals("data.txt", handle.getEntryName());
+    assertReads(handle);
+  }
+
+  @Test
+  public void testSidecarFile() throws IOException {
+    SeekPointIndex.setSidecarFiles(true);
+    File file = new File(directory, "data.gz");
+    GZIPOutputStream gzip = new GZIPOutputStream(new FileOutputStream(file));
+    gzip.write(data);
+    gzip.close();
+
+    SeekPointIndex index =
+      SeekPointIndex.createGZipIndex(file.getAbsolutePath(), SPACING);
+    File sidecar =
+      new File(file.getAbsolutePath() + SeekPointIndex.SIDECAR_SUFFIX);
+    assertTrue(sidecar.exists());
+
+    SeekPointIndex saved =
+      SeekPointIndex.createGZipIndex(file.getAbsolutePath(), SPACING);
+    assertEquals(index.getLength(), saved.getLength());
+    assertEquals(index.getSeekPointCount(), saved.getSeekPointCount());
+    assertReads(new GZipHandle(file.getAbsolutePath()));
+
+    // a modified file is indexed again
+    long modified = sidecar.lastModified();
+    assertTrue(file.setLastModified(file.lastModified() - 10000));
+    assertTrue(sidecar.setLastModified(modified - 10000));
+    SeekPointIndex.createGZipIndex(file.getAbsolutePath(), SPACING);
+    assertTrue(sidecar.lastModified() > modified - 10000);
+  }
+
+  // -- Helper methods --
+
+  /** Checks reads after seeking backwards and forwards. */
+  private void assertReads(IRandomAccess handle) throws IOException {
+    long[] offsets = {
+      DATA_SIZE - 5000, 10, DATA_SIZE / 2 - 100, DATA_SIZE / 3, 0,
+      DATA_SIZE - 1000, SPACING * 3 + 1
+    };
+    try {
+      assertEquals(DATA_SIZE, handle.length());
+      byte[] b = new byte[1000];
+      for (long offset : offsets) {
+        handle.seek(offset);
+        handle.readFully(b);
+        for (int i=0; i<b.length; i++) {
+          assertEquals("offset " + (offset + i), data[(int) offset + i], b[i]);
+        }
+      }
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+}
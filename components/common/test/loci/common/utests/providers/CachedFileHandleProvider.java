@@ -0,0 +1,63 @@
+//
+// CachedFileHandleProvider.java
+//
+
+/*
+LOCI Common package: utilities for I/O, reflection and miscellaneous tasks.
+Copyright (C) 2005-@year@ Melissa Linkert and Curtis Rueden.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.common.utests.providers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import loci.common.BlockCache;
+import loci.common.CachedFileHandle;
+import loci.common.IRandomAccess;
+
+/**
+ * Implementation of IRandomAccessProvider that produces instances of
+ * loci.common.CachedFileHandle.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/test/loci/common/utests/providers/CachedFileHandleProvider.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/test/loci/common/utests/providers/CachedFileHandleProvider.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see IRandomAccessProvider
+ * @see loci.common.CachedFileHandle
+ */
+class CachedFileHandleProvider implements IRandomAccessProvider {
+
+  public IRandomAccess createMock(
+      byte[] page, String mode, int bufferSize) throws IOException {
+    File pageFile = File.createTempFile("page", ".dat");
+    OutputStream stream = new FileOutputStream(pageFile);
+    try {
+      stream.write(page);
+    } finally {
+      stream.close();
+    }
+    pageFile.deleteOnExit();
+    // use tiny blocks so that most values span a block boundary
+    BlockCache cache = new BlockCache(1048576, 16, false);
+    return new CachedFileHandle(pageFile, cache);
+  }
+
+}
@@ -46,6 +46,7 @@ public class IRandomAccessProviderFactory {
       new ExistingByteArrayHandleProvider());
     providers.put("ByteArrayHandle", new ByteArrayHandleProvider());
     providers.put("BZip2Handle", new BZip2HandleProvider());
+    providers.put("CachedFileHandle", new CachedFileHandleProvider());
     providers.put("GZipHandle", new GZipHandleProvider());
     providers.put("NIOFileHandle", new NIOFileHandleProvider());
     providers.put("URLHandle", new URLHandleProvider());
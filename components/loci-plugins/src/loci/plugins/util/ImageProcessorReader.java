@@ -33,6 +33,8 @@ import ij.process.LUT;
 import ij.process.ShortProcessor;
 
 import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 
 import loci.common.DataTools;
 import loci.formats.FormatException;
@@ -184,6 +186,11 @@ public class ImageProcessorReader extends ReaderWrapper {
   public ImageProcessor[] openProcessors(int no, int x, int y, int w, int h)
     throws FormatException, IOException
   {
+    if (getRGBChannelCount() == 1) {
+      ImageProcessor ip = openTypedProcessor(no, x, y, w, h);
+      if (ip != null) return new ImageProcessor[] {ip};
+    }
+
     // read byte array
     byte[] b = openBytes(no, x, y, w, h);
 
@@ -283,6 +290,30 @@ public class ImageProcessorReader extends ReaderWrapper {
 
   // -- Helper methods --
 
+  /**
+   * Reads a single-channel 16-bit or 32-bit floating point plane straight
+   * into the pixel array of a new processor.
+   *
+   * @return the processor, or null if the plane has another pixel type
+   */
+  private ImageProcessor openTypedProcessor(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    int type = getPixelType();
+    if (type == FormatTools.INT16 || type == FormatTools.UINT16) {
+      short[] q = new short[w * h];
+      openPlane(no, ShortBuffer.wrap(q), x, y, w, h);
+      if (type == FormatTools.INT16) q = DataTools.makeSigned(q);
+      return new ShortProcessor(w, h, q, createColorModel());
+    }
+    if (type == FormatTools.FLOAT) {
+      float[] q = new float[w * h];
+      openPlane(no, FloatBuffer.wrap(q), x, y, w, h);
+      return new FloatProcessor(w, h, q, null);
+    }
+    return null;
+  }
+
   private LUT createColorModel() throws FormatException, IOException {
     // NB: If a color table is present, we might as well use it,
     // regardless of the value of isIndexed.
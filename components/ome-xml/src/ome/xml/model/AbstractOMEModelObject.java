@@ -23,6 +23,7 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package ome.xml.model;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -41,7 +42,11 @@ import org.w3c.dom.NodeList;
  * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/src/loci/formats/in/AbstractOMEModelObject.java">Trac</a>,
  * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/src/loci/formats/in/AbstractOMEModelObject.java;hb=HEAD">Gitweb</a></dd></dl>
  */
-public abstract class AbstractOMEModelObject implements OMEModelObject {
+public abstract class AbstractOMEModelObject
+  implements OMEModelObject, Serializable
+{
+
+  private static final long serialVersionUID = -4743244923032227255L;
 
   public AbstractOMEModelObject() {
     super();
@@ -23,6 +23,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package ome.xml.model.primitives;
 
+import java.io.Serializable;
+
 /**
  * A primitive type from an XSD definition with a given set of constraints.
  *
@@ -32,7 +34,9 @@ package ome.xml.model.primitives;
  * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/src/loci/formats/in/PrimitiveType.java">Trac</a>,
  * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/src/loci/formats/in/PrimitiveType.java;hb=HEAD">Gitweb</a></dd></dl>
  */
-public abstract class PrimitiveType<T> {
+public abstract class PrimitiveType<T> implements Serializable {
+
+  private static final long serialVersionUID = 2907611285824504114L;
 
   /** The delegate value. */
   final T value;
@@ -24,6 +24,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 
 import loci.common.DataTools;
 import loci.formats.meta.MetadataStore;
@@ -237,6 +239,49 @@ public class ChannelFiller extends ReaderWrapper {
     return buf;
   }
 
+  /* @see IFormatReader#openMappedBytes(int) */
+  @Override
+  public ByteBuffer openMappedBytes(int no)
+    throws FormatException, IOException
+  {
+    return openMappedBytes(no, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openMappedBytes(int, int, int, int, int) */
+  @Override
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    // filled pixels are computed from the color table and cannot be mapped
+    if (!isFilled()) return reader.openMappedBytes(no, x, y, w, h);
+    return null;
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer) */
+  @Override
+  public Buffer openPlane(int no, Buffer buf)
+    throws FormatException, IOException
+  {
+    return openPlane(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer, int, int, int, int) */
+  @Override
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    // filled pixels are computed from the color table
+    if (!isFilled()) return reader.openPlane(no, buf, x, y, w, h);
+    return FormatTools.openPlane(this, no, buf, x, y, w, h);
+  }
+
+  /* @see IFormatReader#isThreadSafe() */
+  @Override
+  public boolean isThreadSafe() {
+    // filling reads the color table of the most recently opened plane
+    return !isFilled() && reader.isThreadSafe();
+  }
+
   // -- IFormatHandler API methods --
 
   /* @see IFormatHandler#getNativeDataType() */
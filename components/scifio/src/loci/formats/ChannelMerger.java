@@ -24,6 +24,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 
 import loci.common.DataTools;
 
@@ -161,6 +163,38 @@ public class ChannelMerger extends ReaderWrapper {
     return buf;
   }
 
+  /* @see IFormatReader#openMappedBytes(int) */
+  public ByteBuffer openMappedBytes(int no)
+    throws FormatException, IOException
+  {
+    return openMappedBytes(no, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openMappedBytes(int, int, int, int, int) */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    if (!canMerge()) return super.openMappedBytes(no, x, y, w, h);
+    return null;
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer) */
+  public Buffer openPlane(int no, Buffer buf)
+    throws FormatException, IOException
+  {
+    return openPlane(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer, int, int, int, int) */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    if (!canMerge()) return super.openPlane(no, buf, x, y, w, h);
+    return FormatTools.openPlane(this, no, buf, x, y, w, h);
+  }
+
   public int getIndex(int z, int c, int t) {
     return FormatTools.getIndex(this, z, c, t);
   }
@@ -24,6 +24,11 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 import loci.common.DataTools;
 
@@ -44,28 +49,25 @@ public class ChannelSeparator extends ReaderWrapper {
     return new ChannelSeparator(r);
   }
 
-  // -- Fields --
-
-  /** Last image opened. */
-  private byte[] lastImage;
-
-  /** Index of last image opened. */
-  private int lastImageIndex = -1;
-
-  /** Series of last image opened. */
-  private int lastImageSeries = -1;
+  // -- Constants --
 
-  /** X index of last image opened. */
-  private int lastImageX = -1;
+  /**
+   * Default number of decoded source regions kept by each separator.  Only
+   * the most recent region is kept, as each one may be a whole RGB plane.
+   */
+  public static final int DEFAULT_REGION_CACHE_SIZE = 1;
 
-  /** Y index of last image opened. */
-  private int lastImageY = -1;
+  // -- Fields --
 
-  /** Width of last image opened. */
-  private int lastImageWidth = -1;
+  /**
+   * Most recently decoded regions of the wrapped reader's planes, most
+   * recently used first.  Each region holds all of its channels, so one
+   * decode serves every channel of the region.
+   */
+  private List<SourceRegion> regions = new ArrayList<SourceRegion>();
 
-  /** Height of last image opened. */
-  private int lastImageHeight = -1;
+  /** Maximum number of decoded regions to keep. */
+  private int regionCacheSize = DEFAULT_REGION_CACHE_SIZE;
 
   // -- Constructors --
 
@@ -96,6 +98,80 @@ public class ChannelSeparator extends ReaderWrapper {
     return reader.getIndex(coords[0], coords[1], coords[2]);
   }
 
+  /**
+   * Sets the number of decoded regions of the wrapped reader's planes that
+   * are kept, so that each channel of a recently read region can be returned
+   * without decoding the region again.  Reading the channels of several
+   * neighboring tiles in turn needs one entry per tile; 0 disables caching.
+   * Each entry holds all channels of a region, so callers reading whole
+   * planes should keep the default of 1.
+   */
+  public void setRegionCacheSize(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("Invalid region cache size: " + size);
+    }
+    regionCacheSize = size;
+    while (regions.size() > size) regions.remove(regions.size() - 1);
+  }
+
+  /** Gets the number of decoded regions that are kept. */
+  public int getRegionCacheSize() {
+    return regionCacheSize;
+  }
+
+  /**
+   * Obtains every channel that was stored in the same plane of the wrapped
+   * reader as the given image plane.
+   *
+   * @see #openChannels(int, int, int, int, int)
+   */
+  public byte[][] openChannels(int no) throws FormatException, IOException {
+    return openChannels(no, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /**
+   * Obtains a sub-image of every channel that was stored in the same plane
+   * of the wrapped reader as the given image plane, decoding the region only
+   * once.  Element i of the result is the sub-image of plane
+   * <code>getIndex(z, c - c % n + i, t)</code>, where (z, c, t) are the
+   * coordinates of <code>no</code> and n is the wrapped reader's RGB channel
+   * count.  If the wrapped reader's channels do not need to be separated,
+   * the result holds the given plane only.
+   *
+   * @param no the image index of any of the channels within the file.
+   * @return one array per channel, as returned by
+   *   {@link #openBytes(int, int, int, int, int)}
+   */
+  public byte[][] openChannels(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    FormatTools.checkPlaneParameters(this, no, -1, x, y, w, h);
+
+    if (!reader.isRGB() || reader.isIndexed()) {
+      return new byte[][] {reader.openBytes(no, x, y, w, h)};
+    }
+
+    int c = getSizeC() / reader.getEffectiveSizeC();
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    int[] zct = getZCTCoords(no);
+    int firstChannel = zct[1] - zct[1] % c;
+    SourceRegion region = getSourceRegion(getOriginalIndex(no), x, y, w, h);
+    byte[][] channels = new byte[c][];
+    for (int i=0; i<c; i++) {
+      if (region == null) {
+        // too large to decode at once; each channel is read in strips
+        channels[i] = openBytes(getIndex(zct[0], firstChannel + i, zct[2]),
+          x, y, w, h);
+      }
+      else {
+        channels[i] = DataTools.allocate(w, h, bpp);
+        region.extract(i, c, bpp, isInterleaved(), x, y, w, h, channels[i], 0);
+      }
+    }
+    return channels;
+  }
+
   // -- IFormatReader API methods --
 
   /* @see IFormatReader#getImageCount() */
@@ -157,57 +233,28 @@ public class ChannelSeparator extends ReaderWrapper {
       int c = getSizeC() / reader.getEffectiveSizeC();
       int source = getOriginalIndex(no);
       int channel = no % c;
-      int series = getSeries();
       int bpp = FormatTools.getBytesPerPixel(getPixelType());
+      boolean interleaved = isInterleaved();
 
-      if (source != lastImageIndex || series != lastImageSeries ||
-        x != lastImageX || y != lastImageY || w != lastImageWidth ||
-        h != lastImageHeight)
-      {
-        int strips = 1;
-
-        // check how big the original image is; if it's larger than the
-        // available memory, we will need to split it into strips
-
-        Runtime rt = Runtime.getRuntime();
-        long availableMemory = rt.freeMemory();
-        long planeSize = DataTools.safeMultiply64(w, h, bpp, c);
-
-        if (availableMemory < planeSize || planeSize > Integer.MAX_VALUE) {
-          strips = (int) Math.sqrt(h);
-        }
-
-        int stripHeight = h / strips;
-        int lastStripHeight = stripHeight + (h - (stripHeight * strips));
-        byte[] strip = strips == 1 ? buf : new byte[stripHeight * w * bpp];
-        for (int i=0; i<strips; i++) {
-          lastImage = reader.openBytes(source, x, y + i * stripHeight, w,
-            i == strips - 1 ? lastStripHeight : stripHeight);
-          lastImageIndex = source;
-          lastImageSeries = series;
-          lastImageX = x;
-          lastImageY = y + i * stripHeight;
-          lastImageWidth = w;
-          lastImageHeight = i == strips - 1 ? lastStripHeight : stripHeight;
-
-          if (strips != 1 && lastStripHeight != stripHeight && i == strips - 1)
-          {
-            strip = new byte[lastStripHeight * w * bpp];
-          }
-
-          ImageTools.splitChannels(lastImage, strip, channel, c, bpp,
-            false, isInterleaved(), strips == 1 ? w * h * bpp : strip.length);
-          if (strips != 1) {
-            System.arraycopy(strip, 0, buf, i * stripHeight * w * bpp,
-              strip.length);
-          }
-        }
-      }
-      else {
-        ImageTools.splitChannels(lastImage, buf, channel, c, bpp,
-          false, isInterleaved(), w * h * bpp);
+      SourceRegion region = getSourceRegion(source, x, y, w, h);
+      if (region != null) {
+        region.extract(channel, c, bpp, interleaved, x, y, w, h, buf, 0);
+        return buf;
       }
 
+      // the region is larger than the available memory,
+      // so it is decoded in strips
+      int strips = (int) Math.sqrt(h);
+      int stripHeight = h / strips;
+      int lastStripHeight = stripHeight + (h - (stripHeight * strips));
+      for (int i=0; i<strips; i++) {
+        int stripY = y + i * stripHeight;
+        int height = i == strips - 1 ? lastStripHeight : stripHeight;
+        SourceRegion strip = new SourceRegion(getCoreIndex(), source,
+          x, stripY, w, height, reader.openBytes(source, x, stripY, w, height));
+        strip.extract(channel, c, bpp, interleaved, x, stripY, w, height, buf,
+          i * stripHeight * w * bpp);
+      }
       return buf;
     }
     return reader.openBytes(no, buf, x, y, w, h);
@@ -227,18 +274,69 @@ public class ChannelSeparator extends ReaderWrapper {
     return ImageTools.splitChannels(thumb, channel, c, bpp, false, false);
   }
 
+  /* @see IFormatReader#isThreadSafe() */
+  public boolean isThreadSafe() {
+    // split RGB planes are cached between calls
+    if (reader.isRGB() && !reader.isIndexed()) return false;
+    return reader.isThreadSafe();
+  }
+
   /* @see IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
-    if (!fileOnly) {
-      lastImage = null;
-      lastImageIndex = -1;
-      lastImageSeries = -1;
-      lastImageX = -1;
-      lastImageY = -1;
-      lastImageWidth = -1;
-      lastImageHeight = -1;
+    if (!fileOnly) regions.clear();
+  }
+
+  /* @see IFormatReader#openMappedBytes(int) */
+  public ByteBuffer openMappedBytes(int no)
+    throws FormatException, IOException
+  {
+    return openMappedBytes(no, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openMappedBytes(int, int, int, int, int) */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    FormatTools.checkPlaneNumber(this, no);
+
+    if (!reader.isRGB() || reader.isIndexed()) {
+      return reader.openMappedBytes(no, x, y, w, h);
     }
+
+    // only planar data has each channel stored contiguously
+    if (reader.isInterleaved()) return null;
+    ByteBuffer plane = reader.openMappedBytes(getOriginalIndex(no), x, y, w, h);
+    if (plane == null) return null;
+
+    int c = getSizeC() / reader.getEffectiveSizeC();
+    int channel = no % c;
+    int len = plane.capacity() / c;
+    ByteOrder order = plane.order();
+    plane.position(channel * len);
+    plane.limit((channel + 1) * len);
+    return plane.slice().order(order);
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer) */
+  public Buffer openPlane(int no, Buffer buf)
+    throws FormatException, IOException
+  {
+    return openPlane(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer, int, int, int, int) */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    FormatTools.checkPlaneNumber(this, no);
+
+    if (!reader.isRGB() || reader.isIndexed()) {
+      return reader.openPlane(no, buf, x, y, w, h);
+    }
+    return FormatTools.openPlane(this, no, buf, x, y, w, h);
   }
 
   public int getIndex(int z, int c, int t) {
@@ -260,14 +358,108 @@ public class ChannelSeparator extends ReaderWrapper {
   public void setId(String id) throws FormatException, IOException {
     super.setId(id);
 
-    // clear last image cache
-    lastImage = null;
-    lastImageIndex = -1;
-    lastImageSeries = -1;
-    lastImageX = -1;
-    lastImageY = -1;
-    lastImageWidth = -1;
-    lastImageHeight = -1;
+    // clear decoded region cache
+    regions.clear();
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Gets a decoded region of the given plane of the wrapped reader that
+   * contains the given sub-image, decoding the sub-image if no cached
+   * region contains it.
+   *
+   * @return the region, or null if the sub-image is too large to decode at
+   *   once
+   */
+  private SourceRegion getSourceRegion(int source, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    int coreIndex = getCoreIndex();
+    for (int i=0; i<regions.size(); i++) {
+      SourceRegion region = regions.get(i);
+      if (region.contains(coreIndex, source, x, y, w, h)) {
+        if (i > 0) regions.add(0, regions.remove(i));
+        return region;
+      }
+    }
+
+    // make room for the new region before decoding it, so that no more
+    // than regionCacheSize regions are held at once
+    while (regions.size() >= Math.max(regionCacheSize, 1)) {
+      regions.remove(regions.size() - 1);
+    }
+
+    // check how big the original image is; if it's larger than the
+    // available memory, we will need to split it into strips
+    long availableMemory = Runtime.getRuntime().freeMemory();
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    long planeSize =
+      DataTools.safeMultiply64(w, h, bpp, reader.getRGBChannelCount());
+    if (availableMemory < planeSize || planeSize > Integer.MAX_VALUE) {
+      return null;
+    }
+
+    SourceRegion region = new SourceRegion(coreIndex, source, x, y, w, h,
+      reader.openBytes(source, x, y, w, h));
+    if (regionCacheSize > 0) regions.add(0, region);
+    return region;
+  }
+
+  // -- Helper classes --
+
+  /** A decoded sub-image of one plane of the wrapped reader. */
+  private static class SourceRegion {
+    private int coreIndex, no;
+    private int x, y, w, h;
+    private byte[] pixels;
+
+    SourceRegion(int coreIndex, int no, int x, int y, int w, int h,
+      byte[] pixels)
+    {
+      this.coreIndex = coreIndex;
+      this.no = no;
+      this.x = x;
+      this.y = y;
+      this.w = w;
+      this.h = h;
+      this.pixels = pixels;
+    }
+
+    boolean contains(int coreIndex, int no, int x, int y, int w, int h) {
+      return this.coreIndex == coreIndex && this.no == no &&
+        x >= this.x && y >= this.y &&
+        x + w <= this.x + this.w && y + h <= this.y + this.h;
+    }
+
+    /**
+     * Copies one channel of the given sub-image of this region into the
+     * buffer, starting at the given offset.
+     */
+    void extract(int channel, int c, int bpp, boolean interleaved,
+      int x, int y, int w, int h, byte[] buf, int offset)
+    {
+      int rowLen = w * bpp;
+      for (int row=0; row<h; row++) {
+        int pixel = (y - this.y + row) * this.w + x - this.x;
+        int dest = offset + row * rowLen;
+        if (!interleaved) {
+          int src = (channel * this.w * this.h + pixel) * bpp;
+          System.arraycopy(pixels, src, buf, dest, rowLen);
+        }
+        else if (bpp == 1) {
+          for (int src=pixel*c + channel, col=0; col<w; col++, src+=c) {
+            buf[dest + col] = pixels[src];
+          }
+        }
+        else {
+          int src = (pixel * c + channel) * bpp;
+          for (int col=0; col<w; col++, src+=c*bpp, dest+=bpp) {
+            System.arraycopy(pixels, src, buf, dest, bpp);
+          }
+        }
+      }
+    }
   }
 
 }
@@ -23,6 +23,7 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package loci.formats;
 
+import java.io.Serializable;
 import java.util.Hashtable;
 
 /**
@@ -32,7 +33,11 @@ import java.util.Hashtable;
  * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/src/loci/formats/CoreMetadata.java">Trac</a>,
  * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/src/loci/formats/CoreMetadata.java;hb=HEAD">Gitweb</a></dd></dl>
  */
-public class CoreMetadata {
+public class CoreMetadata implements Serializable {
+
+  // -- Constants --
+
+  private static final long serialVersionUID = 6262357948479636299L;
 
   // -- Fields --
 
@@ -135,6 +140,13 @@ public class CoreMetadata {
    */
   public boolean thumbnail;
 
+  /**
+   * Number of resolutions in the series that this is the full-size image
+   * of.  The smaller resolutions follow this entry, in descending size
+   * order; they, like all single-resolution series, have a count of 1.
+   */
+  public int resolutionCount = 1;
+
   // -- Constructors --
 
   public CoreMetadata() {
@@ -142,8 +154,17 @@ public class CoreMetadata {
   }
 
   public CoreMetadata(IFormatReader r, int seriesNo) {
-    int series = r.getSeries();
+    this(r, seriesNo, 0);
+  }
+
+  /**
+   * Copies the core metadata of the given resolution of the given series;
+   * the reader's current series and resolution are left unchanged.
+   */
+  public CoreMetadata(IFormatReader r, int seriesNo, int resolution) {
+    int coreIndex = r.getCoreIndex();
     r.setSeries(seriesNo);
+    r.setResolution(resolution);
     sizeX = r.getSizeX();
     sizeY = r.getSizeY();
     sizeZ = r.getSizeZ();
@@ -166,7 +187,8 @@ public class CoreMetadata {
     metadataComplete = r.isMetadataComplete();
     seriesMetadata = r.getSeriesMetadata();
     thumbnail = r.isThumbnailSeries();
-    r.setSeries(series);
+    resolutionCount = resolution == 0 ? r.getResolutionCount() : 1;
+    r.setCoreIndex(coreIndex);
   }
 
   // -- Object methods --
@@ -200,6 +222,7 @@ public class CoreMetadata {
     sb.append("\n\tmetadataComplete = " + metadataComplete);
     sb.append("\n\tseriesMetadata = " + seriesMetadata.size() + " keys");
     sb.append("\n\tthumbnail = " + thumbnail);
+    sb.append("\n\tresolutionCount = " + resolutionCount);
     return sb.toString();
   }
 
@@ -106,11 +106,18 @@ public abstract class DelegateReader extends FormatReader {
     return nativeReader.isThisType(stream);
   }
 
-  /* @see IFormatReader#setSeries(int) */
-  public void setSeries(int no) {
-    super.setSeries(no);
-    if (nativeReaderInitialized) nativeReader.setSeries(no);
-    if (legacyReaderInitialized) legacyReader.setSeries(no);
+  /* @see IFormatReader#setCoreIndex(int) */
+  public void setCoreIndex(int no) {
+    super.setCoreIndex(no);
+    if (nativeReaderInitialized) nativeReader.setCoreIndex(no);
+    if (legacyReaderInitialized) legacyReader.setCoreIndex(no);
+  }
+
+  /* @see IFormatReader#setFlattenedResolutions(boolean) */
+  public void setFlattenedResolutions(boolean flatten) {
+    super.setFlattenedResolutions(flatten);
+    nativeReader.setFlattenedResolutions(flatten);
+    legacyReader.setFlattenedResolutions(flatten);
   }
 
   /* @see IFormatReader#setNormalized(boolean) */
@@ -0,0 +1,403 @@
+//
+// DetectionIndex.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.common.Location;
+import loci.common.RandomAccessInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DetectionIndex speeds up format detection in {@link ImageReader}.
+ *
+ * Many readers can only recognize a file whose first bytes match a known
+ * signature (for example, every TIFF-based reader requires a TIFF header).
+ * The first {@link #HEADER_LENGTH} bytes of a file are read once, and any
+ * reader whose registered signatures do not match is ruled out without
+ * opening the file again.  Readers are still checked in order, so the
+ * detected reader is always the same as with a full scan.
+ *
+ * A signature only applies to readers that do not override
+ * {@link FormatReader#isThisType(String, boolean)}, so that the file
+ * contents are known to be checked by
+ * {@link IFormatReader#isThisType(RandomAccessInputStream)}.
+ *
+ * DetectionIndex also maintains an optional cache of detection results,
+ * which is invalidated when the file or its parent directory is modified.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/DetectionIndex.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/DetectionIndex.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class DetectionIndex {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(DetectionIndex.class);
+
+  /** Number of bytes read from the start of each file. */
+  public static final int HEADER_LENGTH = 4096;
+
+  /** Maximum number of cached detection results. */
+  public static final int MAX_CACHED_RESULTS = 1024;
+
+  /** Classic and BigTIFF headers, in both byte orders. */
+  private static final byte[][] TIFF_SIGNATURES = {
+    {0x49, 0x49, 0x2a, 0x00}, {0x4d, 0x4d, 0x00, 0x2a},
+    {0x49, 0x49, 0x2b, 0x00}, {0x4d, 0x4d, 0x00, 0x2b}
+  };
+
+  private static final String[] TIFF_READERS = {
+    "loci.formats.in.SEQReader", "loci.formats.in.GelReader",
+    "loci.formats.in.ImaconReader", "loci.formats.in.LEOReader",
+    "loci.formats.in.MIASReader", "loci.formats.in.FluoviewReader",
+    "loci.formats.in.ImprovisionTiffReader",
+    "loci.formats.in.MetamorphTiffReader", "loci.formats.in.NikonTiffReader",
+    "loci.formats.in.OMETiffReader", "loci.formats.in.PhotoshopTiffReader",
+    "loci.formats.in.FEITiffReader", "loci.formats.in.SimplePCITiffReader",
+    "loci.formats.in.NikonElementsTiffReader", "loci.formats.in.SISReader",
+    "loci.formats.in.DNGReader", "loci.formats.in.ImarisTiffReader",
+    "loci.formats.in.NDPIReader", "loci.formats.in.MinimalTiffReader",
+    "loci.formats.in.TiffReader"
+  };
+
+  // -- Static fields --
+
+  /** Registered signatures, keyed by reader class name. */
+  private static final Map<String, List<Signature>> SIGNATURES =
+    new HashMap<String, List<Signature>>();
+
+  /** Whether or not detection results are cached. */
+  private static volatile boolean cacheResults = false;
+
+  /** Cached detection results, keyed by file name. */
+  private static final Map<String, CachedResult> RESULTS =
+    new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(
+        Map.Entry<String, CachedResult> eldest)
+      {
+        return size() > MAX_CACHED_RESULTS;
+      }
+    };
+
+  static {
+    for (String reader : TIFF_READERS) {
+      register(reader, 0, TIFF_SIGNATURES);
+    }
+    register("loci.formats.in.APNGReader", 0, new byte[][] {
+      {(byte) 0x89, 0x50, 0x4e, 0x47, 0x0d, 0x0a, 0x1a, 0x0a}});
+    register("loci.formats.in.OMEXMLReader", 0, "<?xml");
+    register("loci.formats.in.AVIReader", 0, "RIFF");
+    register("loci.formats.in.AVIReader", 8, "AVI ");
+    register("loci.formats.in.PSDReader", 0, "8BPS");
+    register("loci.formats.in.ZeissCZIReader", 0, "ZISRAWFILE");
+    register("loci.formats.in.LIFReader", 0, new byte[][] {{0x70}});
+    register("loci.formats.in.OpenlabReader", 0, new byte[][] {
+      {0x00, 0x00, (byte) 0xff, (byte) 0xff, 0x69, 0x6d, 0x70, 0x72}});
+    register("loci.formats.in.GatanReader", 0, new byte[][] {
+      {0x00, 0x00, 0x00, 0x03}, {0x00, 0x00, 0x00, 0x04}});
+  }
+
+  // -- Fields --
+
+  /** Classes of the readers being indexed, in detection order. */
+  private Class<?>[] readerClasses;
+
+  /**
+   * Signatures for each reader, in detection order; null for readers that
+   * cannot be ruled out by signature.
+   */
+  private Signature[][][] readerSignatures;
+
+  // -- Constructor --
+
+  /** Constructs an index for the given readers, in detection order. */
+  public DetectionIndex(IFormatReader[] readers) {
+    readerClasses = new Class<?>[readers.length];
+    readerSignatures = new Signature[readers.length][][];
+    for (int i=0; i<readers.length; i++) {
+      Class<?> c = readers[i].getClass();
+      readerClasses[i] = c;
+      if (!hasDefaultTypeCheck(c)) continue;
+      synchronized (SIGNATURES) {
+        // each signature group is a separate condition that must hold
+        List<Signature[]> groups = new ArrayList<Signature[]>();
+        List<Signature> signatures = SIGNATURES.get(c.getName());
+        if (signatures == null) continue;
+        Map<Long, List<Signature>> byOffset =
+          new LinkedHashMap<Long, List<Signature>>();
+        for (Signature s : signatures) {
+          List<Signature> group = byOffset.get(s.offset);
+          if (group == null) {
+            group = new ArrayList<Signature>();
+            byOffset.put(s.offset, group);
+          }
+          group.add(s);
+        }
+        for (List<Signature> group : byOffset.values()) {
+          groups.add(group.toArray(new Signature[group.size()]));
+        }
+        readerSignatures[i] = groups.toArray(new Signature[groups.size()][]);
+      }
+    }
+  }
+
+  // -- DetectionIndex API methods --
+
+  /**
+   * Returns true if the reader at the given index cannot recognize a file
+   * beginning with the given header, without accessing the file.
+   *
+   * @param reader the index of the reader, in detection order
+   * @param header the first bytes of the file, as returned by
+   *   {@link #readHeader(String)}
+   */
+  public boolean excludes(int reader, byte[] header) {
+    Signature[][] groups = readerSignatures[reader];
+    if (groups == null || header == null) return false;
+    for (Signature[] group : groups) {
+      boolean match = false;
+      for (Signature s : group) {
+        if (s.matches(header)) {
+          match = true;
+          break;
+        }
+      }
+      if (!match) return true;
+    }
+    return false;
+  }
+
+  /** Returns true if the reader at the given index has any signatures. */
+  public boolean isIndexed(int reader) {
+    return readerSignatures[reader] != null;
+  }
+
+  /**
+   * Returns the index of the reader previously detected for the given file,
+   * or -1 if there is no valid cached result.
+   */
+  public int getCachedReader(String id, boolean allowOpen) {
+    if (!cacheResults) return -1;
+    CachedResult result;
+    synchronized (RESULTS) {
+      result = RESULTS.get(id);
+    }
+    if (result == null || result.allowOpen != allowOpen ||
+      !Arrays.equals(result.readerClasses, readerClasses))
+    {
+      return -1;
+    }
+    long[] stamp = getTimestamp(id);
+    if (stamp == null || !Arrays.equals(stamp, result.timestamp)) {
+      synchronized (RESULTS) {
+        RESULTS.remove(id);
+      }
+      return -1;
+    }
+    return result.reader;
+  }
+
+  /** Caches the index of the reader detected for the given file. */
+  public void cacheReader(String id, boolean allowOpen, int reader) {
+    if (!cacheResults) return;
+    long[] stamp = getTimestamp(id);
+    if (stamp == null) return;
+    CachedResult result = new CachedResult();
+    result.readerClasses = readerClasses;
+    result.allowOpen = allowOpen;
+    result.timestamp = stamp;
+    result.reader = reader;
+    synchronized (RESULTS) {
+      RESULTS.put(id, result);
+    }
+  }
+
+  // -- Static DetectionIndex API methods --
+
+  /**
+   * Registers a signature for the given reader class.  Signatures registered
+   * at the same offset are alternatives; if signatures are registered at
+   * more than one offset, the file must match at every offset.  Readers
+   * constructed after this call will use the new signature.
+   *
+   * @param readerClass fully qualified name of the reader class
+   * @param offset offset of the signature from the start of the file;
+   *   must be less than {@link #HEADER_LENGTH}
+   * @param signatures the bytes that the file may contain at the offset
+   */
+  public static void register(String readerClass, long offset,
+    byte[][] signatures)
+  {
+    for (byte[] bytes : signatures) {
+      if (offset < 0 || offset + bytes.length > HEADER_LENGTH) {
+        throw new IllegalArgumentException("Signature of " + readerClass +
+          " does not fit in the first " + HEADER_LENGTH + " bytes");
+      }
+    }
+    synchronized (SIGNATURES) {
+      List<Signature> list = SIGNATURES.get(readerClass);
+      if (list == null) {
+        list = new ArrayList<Signature>();
+        SIGNATURES.put(readerClass, list);
+      }
+      for (byte[] bytes : signatures) {
+        list.add(new Signature(offset, bytes));
+      }
+    }
+  }
+
+  /** Registers an ASCII signature for the given reader class. */
+  public static void register(String readerClass, long offset,
+    String signature)
+  {
+    byte[] bytes = new byte[signature.length()];
+    for (int i=0; i<bytes.length; i++) {
+      bytes[i] = (byte) signature.charAt(i);
+    }
+    register(readerClass, offset, new byte[][] {bytes});
+  }
+
+  /**
+   * Reads the first {@link #HEADER_LENGTH} bytes of the given file, or the
+   * whole file if it is shorter.  Returns null if the file cannot be read,
+   * for example if it is a directory.
+   */
+  public static byte[] readHeader(String id) {
+    RandomAccessInputStream stream = null;
+    try {
+      stream = new RandomAccessInputStream(id);
+      int length = (int) Math.min(HEADER_LENGTH, stream.length());
+      byte[] header = new byte[length];
+      stream.readFully(header);
+      return header;
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not read header of {}", id, e);
+      return null;
+    }
+    finally {
+      if (stream != null) {
+        try {
+          stream.close();
+        }
+        catch (IOException e) {
+          LOGGER.debug("Could not close {}", id, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Turns caching of detection results on or off.  Caching is turned off by
+   * default.  A cached result is discarded when the file or the directory
+   * containing it is modified, but not when other files that a reader may
+   * look for (such as companion files in other directories) change.
+   */
+  public static void cacheDetectionResults(boolean cache) {
+    cacheResults = cache;
+    if (!cache) clearDetectionCache();
+  }
+
+  /** Returns true if detection results are cached. */
+  public static boolean isCachingDetectionResults() {
+    return cacheResults;
+  }
+
+  /** Removes all cached detection results. */
+  public static void clearDetectionCache() {
+    synchronized (RESULTS) {
+      RESULTS.clear();
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Returns true if the given reader class uses the file contents check
+   * provided by {@link FormatReader#isThisType(String, boolean)}.
+   */
+  private static boolean hasDefaultTypeCheck(Class<?> c) {
+    if (!FormatReader.class.isAssignableFrom(c)) return false;
+    try {
+      return c.getMethod("isThisType", String.class,
+        boolean.class).getDeclaringClass() == FormatReader.class;
+    }
+    catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Gets the length and modification time of the given file and the
+   * modification time of its parent directory, or null if the file does
+   * not exist.
+   */
+  private static long[] getTimestamp(String id) {
+    Location file = new Location(id);
+    if (!file.exists()) return null;
+    Location parent = file.getAbsoluteFile().getParentFile();
+    long parentModified = parent == null ? 0 : parent.lastModified();
+    return new long[] {file.length(), file.lastModified(), parentModified};
+  }
+
+  // -- Helper classes --
+
+  /** A sequence of bytes expected at a particular offset. */
+  private static class Signature {
+    public long offset;
+    public byte[] bytes;
+
+    public Signature(long offset, byte[] bytes) {
+      this.offset = offset;
+      this.bytes = bytes;
+    }
+
+    public boolean matches(byte[] header) {
+      if (offset + bytes.length > header.length) return false;
+      for (int i=0; i<bytes.length; i++) {
+        if (header[(int) offset + i] != bytes[i]) return false;
+      }
+      return true;
+    }
+  }
+
+  private static class CachedResult {
+    public Class<?>[] readerClasses;
+    public boolean allowOpen;
+    public long[] timestamp;
+    public int reader;
+  }
+
+}
@@ -24,6 +24,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 
 import loci.formats.meta.MetadataStore;
 
@@ -120,29 +122,31 @@ public class DimensionSwapper extends ReaderWrapper {
         "Cannot swap C dimension when RGB channel count > 1");
     }
 
-    dims[oldX] = getSizeX();
-    dims[oldY] = getSizeY();
-    dims[oldZ] = getSizeZ();
-    dims[oldC] = getSizeC();
-    dims[oldT] = getSizeT();
-
-    int series = getSeries();
-
-    core[series].sizeX = dims[newX];
-    core[series].sizeY = dims[newY];
-    core[series].sizeZ = dims[newZ];
-    core[series].sizeC = dims[newC];
-    core[series].sizeT = dims[newT];
-    //core.currentOrder[series] = order;
-    if (outputOrder[series] == null) {
-      outputOrder[series] = core[series].dimensionOrder;
-    }
-    core[series].dimensionOrder = order;
-
-    if (oldC != newC) {
-      // C was overridden; clear the sub-C dimensional metadata
-      core[series].cLengths = new int[] {getSizeC()};
-      core[series].cTypes = new String[] {FormatTools.CHANNEL};
+    // apply the new order to every resolution of the current series
+    int first = seriesToCoreIndex(getSeries());
+    int last = first + getResolutionCount();
+    for (int i=first; i<last; i++) {
+      dims[oldX] = core[i].sizeX;
+      dims[oldY] = core[i].sizeY;
+      dims[oldZ] = core[i].sizeZ;
+      dims[oldC] = core[i].sizeC;
+      dims[oldT] = core[i].sizeT;
+
+      core[i].sizeX = dims[newX];
+      core[i].sizeY = dims[newY];
+      core[i].sizeZ = dims[newZ];
+      core[i].sizeC = dims[newC];
+      core[i].sizeT = dims[newT];
+      if (outputOrder[i] == null) {
+        outputOrder[i] = core[i].dimensionOrder;
+      }
+      core[i].dimensionOrder = order;
+
+      if (oldC != newC) {
+        // C was overridden; clear the sub-C dimensional metadata
+        core[i].cLengths = new int[] {core[i].sizeC};
+        core[i].cTypes = new String[] {FormatTools.CHANNEL};
+      }
     }
 
     MetadataStore store = getMetadataStore();
@@ -161,12 +165,16 @@ public class DimensionSwapper extends ReaderWrapper {
    */
   public void setOutputOrder(String outputOrder) {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    this.outputOrder[getSeries()] = outputOrder;
+    int first = seriesToCoreIndex(getSeries());
+    int last = first + getResolutionCount();
+    for (int i=first; i<last; i++) {
+      this.outputOrder[i] = outputOrder;
+    }
   }
 
   public String getInputOrder() {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    return core[getSeries()].dimensionOrder;
+    return core[getCoreIndex()].dimensionOrder;
   }
 
   // -- IFormatReader API methods --
@@ -174,51 +182,51 @@ public class DimensionSwapper extends ReaderWrapper {
   /* @see IFormatReader#getSizeX() */
   public int getSizeX() {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    return core[getSeries()].sizeX;
+    return core[getCoreIndex()].sizeX;
   }
 
   /* @see IFormatReader#getSizeY() */
   public int getSizeY() {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    return core[getSeries()].sizeY;
+    return core[getCoreIndex()].sizeY;
   }
 
   /* @see IFormatReader#getSizeZ() */
   public int getSizeZ() {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    return core[getSeries()].sizeZ;
+    return core[getCoreIndex()].sizeZ;
   }
 
   /* @see IFormatReader#getSizeC() */
   public int getSizeC() {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    return core[getSeries()].sizeC;
+    return core[getCoreIndex()].sizeC;
   }
 
   /* @see IFormatReader#getSizeT() */
   public int getSizeT() {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    return core[getSeries()].sizeT;
+    return core[getCoreIndex()].sizeT;
   }
 
   /* @see IFormatReader#getChannelDimLengths() */
   public int[] getChannelDimLengths() {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    int[] cLengths = core[getSeries()].cLengths;
+    int[] cLengths = core[getCoreIndex()].cLengths;
     return cLengths == null ? super.getChannelDimLengths() : cLengths;
   }
 
   /* @see IFormatReader#getChannelDimTypes() */
   public String[] getChannelDimTypes() {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    String[] cTypes = core[getSeries()].cTypes;
+    String[] cTypes = core[getCoreIndex()].cTypes;
     return cTypes == null ? super.getChannelDimTypes() : cTypes;
   }
 
   /* @see IFormatReader#getDimensionOrder() */
   public String getDimensionOrder() {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    String outOrder = outputOrder[getSeries()];
+    String outOrder = outputOrder[getCoreIndex()];
     if (outOrder != null) return outOrder;
     return getInputOrder();
   }
@@ -249,6 +257,34 @@ public class DimensionSwapper extends ReaderWrapper {
     return super.openBytes(reorder(no), buf, x, y, w, h);
   }
 
+  /* @see IFormatReader#openMappedBytes(int) */
+  public ByteBuffer openMappedBytes(int no)
+    throws FormatException, IOException
+  {
+    return super.openMappedBytes(reorder(no));
+  }
+
+  /* @see IFormatReader#openMappedBytes(int, int, int, int, int) */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    return super.openMappedBytes(reorder(no), x, y, w, h);
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer) */
+  public Buffer openPlane(int no, Buffer buf)
+    throws FormatException, IOException
+  {
+    return super.openPlane(reorder(no), buf);
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer, int, int, int, int) */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    return super.openPlane(reorder(no), buf, x, y, w, h);
+  }
+
   /* @see IFormatReader#openThumbImage(int) */
   public byte[] openThumbBytes(int no) throws FormatException, IOException {
     return super.openThumbBytes(reorder(no));
@@ -278,13 +314,12 @@ public class DimensionSwapper extends ReaderWrapper {
     String oldFile = getCurrentFile();
     super.setId(id);
     if (!id.equals(oldFile) || outputOrder == null ||
-      outputOrder.length != getSeriesCount())
+      outputOrder.length != reader.getCoreMetadata().length)
     {
-      outputOrder = new String[getSeriesCount()];
-
       // NB: Create our own copy of the CoreMetadata,
       // which we can manipulate safely.
       core = copyCoreMetadata(reader);
+      outputOrder = new String[core.length];
     }
   }
 
@@ -25,6 +25,8 @@ package loci.formats;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -477,6 +479,47 @@ public class FileStitcher extends ReaderWrapper {
     return null;
   }
 
+  /* @see IFormatReader#openMappedBytes(int) */
+  public ByteBuffer openMappedBytes(int no)
+    throws FormatException, IOException
+  {
+    return openMappedBytes(no, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openMappedBytes(int, int, int, int, int) */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+
+    IFormatReader r = getReader(no);
+    int ino = getAdjustedIndex(no);
+    if (ino < r.getImageCount()) return r.openMappedBytes(ino, x, y, w, h);
+
+    return null;
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer) */
+  public Buffer openPlane(int no, Buffer buf)
+    throws FormatException, IOException
+  {
+    return openPlane(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer, int, int, int, int) */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+
+    IFormatReader r = getReader(no);
+    int ino = getAdjustedIndex(no);
+    if (ino < r.getImageCount()) return r.openPlane(ino, buf, x, y, w, h);
+
+    // missing planes are blank
+    return FormatTools.openPlane(this, no, buf, x, y, w, h);
+  }
+
   /* @see IFormatReader#openThumbBytes(int) */
   public byte[] openThumbBytes(int no) throws FormatException, IOException {
     FormatTools.assertId(getCurrentFile(), true, 2);
@@ -495,6 +538,12 @@ public class FileStitcher extends ReaderWrapper {
     close(false);
   }
 
+  /* @see IFormatReader#isThreadSafe() */
+  public boolean isThreadSafe() {
+    // the readers for the individual files are initialized on demand
+    return false;
+  }
+
   /* @see IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
@@ -538,6 +587,52 @@ public class FileStitcher extends ReaderWrapper {
     return reader.getSeries() > 0 ? reader.getSeries() : series;
   }
 
+  /* @see IFormatReader#getResolutionCount() */
+  public int getResolutionCount() {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    return noStitch ? reader.getResolutionCount() : 1;
+  }
+
+  /* @see IFormatReader#setResolution(int) */
+  public void setResolution(int no) {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    if (noStitch) reader.setResolution(no);
+    else if (no != 0) {
+      throw new IllegalArgumentException("Invalid resolution: " + no);
+    }
+  }
+
+  /* @see IFormatReader#getResolution() */
+  public int getResolution() {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    return noStitch ? reader.getResolution() : 0;
+  }
+
+  /* @see IFormatReader#getCoreIndex() */
+  public int getCoreIndex() {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    return noStitch ? reader.getCoreIndex() : getSeries();
+  }
+
+  /* @see IFormatReader#setCoreIndex(int) */
+  public void setCoreIndex(int no) {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    if (noStitch) reader.setCoreIndex(no);
+    else setSeries(no);
+  }
+
+  /* @see IFormatReader#seriesToCoreIndex(int) */
+  public int seriesToCoreIndex(int series) {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    return noStitch ? reader.seriesToCoreIndex(series) : series;
+  }
+
+  /* @see IFormatReader#coreIndexToSeries(int) */
+  public int coreIndexToSeries(int index) {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    return noStitch ? reader.coreIndexToSeries(index) : index;
+  }
+
   /* @see IFormatReader#setGroupFiles(boolean) */
   public void setGroupFiles(boolean group) {
     this.group = group;
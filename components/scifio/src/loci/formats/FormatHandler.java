@@ -23,6 +23,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package loci.formats;
 
+import java.io.Serializable;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,10 +39,14 @@ import org.slf4j.LoggerFactory;
  * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/src/loci/formats/FormatHandler.java">Trac</a>,
  * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/src/loci/formats/FormatHandler.java;hb=HEAD">Gitweb</a></dd></dl>
  */
-public abstract class FormatHandler implements IFormatHandler {
+public abstract class FormatHandler
+  implements IFormatHandler, Serializable
+{
 
   // -- Constants --
 
+  private static final long serialVersionUID = 7388191690850230824L;
+
   protected static final Logger LOGGER =
     LoggerFactory.getLogger(FormatHandler.class);
 
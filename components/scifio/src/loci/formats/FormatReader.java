@@ -24,6 +24,13 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Set;
@@ -31,6 +38,7 @@ import java.util.Vector;
 
 import loci.common.DataTools;
 import loci.common.Location;
+import loci.common.MappedFile;
 import loci.common.RandomAccessInputStream;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceFactory;
@@ -111,13 +119,25 @@ public abstract class FormatReader extends FormatHandler
 
   // -- Constants --
 
+  private static final long serialVersionUID = 2993132591831838138L;
+
   /** Default thumbnail width and height. */
   protected static final int THUMBNAIL_DIMENSION = 128;
 
+  /**
+   * Number of bytes read at a time by
+   * {@link #readPlane(RandomAccessInputStream, int, int, int, int, int,
+   * Buffer)}; a multiple of every sample size.
+   */
+  private static final int SAMPLE_CHUNK_SIZE = 65536;
+
   // -- Fields --
 
-  /** Current file. */
-  protected RandomAccessInputStream in;
+  /**
+   * Current file.  The stream is not serialized; a deserialized reader
+   * reopens it on {@link #currentId} if it was open when serialized.
+   */
+  protected transient RandomAccessInputStream in;
 
   /** Hashtable containing metadata key/value pairs. */
   protected Hashtable<String, Object> metadata;
@@ -161,20 +181,29 @@ public abstract class FormatReader extends FormatHandler
   /** Whether or not to group multi-file formats. */
   protected boolean group = true;
 
+  /** Whether or not each resolution is returned as a separate series. */
+  protected boolean flattenedResolutions = true;
+
   /** List of domains in which this format is used. */
   protected String[] domains = new String[0];
 
   /**
    * Current metadata store. Should never be accessed directly as the
    * semantics of {@link #getMetadataStore()} prevent "null" access.
+   * Not serialized; see {@link Memoizer}.
    */
-  protected MetadataStore metadataStore = new DummyMetadata();
+  protected transient MetadataStore metadataStore = new DummyMetadata();
 
   /** Metadata parsing options. */
-  protected MetadataOptions metadataOptions = new DefaultMetadataOptions();
+  protected transient MetadataOptions metadataOptions =
+    new DefaultMetadataOptions();
+
+  private transient ServiceFactory factory;
+  private transient OMEXMLService service;
 
-  private ServiceFactory factory;
-  private OMEXMLService service;
+  /** Files mapped by {@link #mapPlane}, released when the reader is closed. */
+  private transient Hashtable<String, MappedFile> mappedFiles =
+    new Hashtable<String, MappedFile>();
 
   // -- Constructors --
 
@@ -454,6 +483,133 @@ public abstract class FormatReader extends FormatHandler
     return buf;
   }
 
+  /** Reads a raw plane from disk into a typed buffer. */
+  protected Buffer readPlane(RandomAccessInputStream s, int x, int y,
+    int w, int h, Buffer buf) throws IOException
+  {
+    return readPlane(s, x, y, w, h, 0, buf);
+  }
+
+  /**
+   * Reads a raw plane from disk into a typed buffer, as described by
+   * {@link IFormatReader#openPlane(int, Buffer, int, int, int, int)}.  The
+   * pixels are read through a small scratch array and decoded straight into
+   * the buffer, so no plane-sized byte array is allocated.
+   */
+  protected Buffer readPlane(RandomAccessInputStream s, int x, int y,
+    int w, int h, int scanlinePad, Buffer buf) throws IOException
+  {
+    int c = getRGBChannelCount();
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    int pixel = isInterleaved() ? bpp * c : bpp;
+    int channels = isInterleaved() ? 1 : c;
+    long rowLen = (long) (getSizeX() + scanlinePad) * pixel;
+    long start = s.getFilePointer();
+
+    ByteBuffer scratch = ByteBuffer.allocate((int)
+      Math.min(SAMPLE_CHUNK_SIZE, Math.max(rowLen, (long) w * h * pixel)));
+    scratch.order(isLittleEndian() ?
+      ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+    for (int channel=0; channel<channels; channel++) {
+      long channelStart = start + channel * rowLen * getSizeY();
+      if (x == 0 && w == getSizeX() && scanlinePad == 0) {
+        s.seek(channelStart + y * rowLen);
+        readSamples(s, h * rowLen, bpp, scratch, buf);
+      }
+      else {
+        for (int row=0; row<h; row++) {
+          s.seek(channelStart + (y + row) * rowLen + (long) x * pixel);
+          readSamples(s, (long) w * pixel, bpp, scratch, buf);
+        }
+      }
+    }
+    return buf;
+  }
+
+  /**
+   * Reads <code>length</code> bytes of samples from the stream in chunks
+   * the size of the scratch buffer, copying each chunk into the given
+   * buffer.  Bytes beyond the end of the stream are treated as zeros.
+   */
+  private void readSamples(RandomAccessInputStream s, long length, int bpp,
+    ByteBuffer scratch, Buffer buf) throws IOException
+  {
+    byte[] bytes = scratch.array();
+    while (length > 0) {
+      int n = (int) Math.min(length, bytes.length);
+      int read = 0;
+      while (read < n) {
+        int r = s.read(bytes, read, n - read);
+        if (r <= 0) break;
+        read += r;
+      }
+      if (read < n) Arrays.fill(bytes, read, n, (byte) 0);
+      scratch.limit(n);
+      scratch.position(0);
+      FormatTools.copySamples(scratch, bpp, buf);
+      length -= n;
+    }
+  }
+
+  /**
+   * Maps a sub-image of an uncompressed plane that is stored in the
+   * standard layout read by {@link #readPlane}, starting at
+   * <code>offset</code> in the given file.
+   *
+   * @return a read-only view of the sub-image, or null if the sub-image is
+   *   not stored contiguously or the file cannot be mapped
+   */
+  protected ByteBuffer mapPlane(String file, long offset, int x, int y,
+    int w, int h) throws IOException
+  {
+    int c = getRGBChannelCount();
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    long rowLen = (long) getSizeX() * bpp;
+    if (isInterleaved()) rowLen *= c;
+
+    long start, length;
+    if (x == 0 && y == 0 && w == getSizeX() && h == getSizeY()) {
+      start = offset;
+      length = rowLen * getSizeY() * (isInterleaved() ? 1 : c);
+    }
+    else if (x == 0 && w == getSizeX() && (isInterleaved() || c == 1)) {
+      start = offset + y * rowLen;
+      length = h * rowLen;
+    }
+    else return null;
+
+    if (length > Integer.MAX_VALUE) return null;
+    return mapRegion(file, start, (int) length);
+  }
+
+  /**
+   * Maps the given region of a file, keeping the file mapped until this
+   * reader is closed.
+   *
+   * @return a read-only view of the region ordered according to
+   *   {@link #isLittleEndian()}, or null if the file cannot be mapped or
+   *   does not contain the whole region
+   */
+  protected ByteBuffer mapRegion(String file, long offset, int length)
+    throws IOException
+  {
+    MappedFile mapping;
+    synchronized (mappedFiles) {
+      mapping = mappedFiles.get(file);
+      if (mapping == null) {
+        mapping = MappedFile.open(file);
+        if (mapping == null) return null;
+        mappedFiles.put(file, mapping);
+      }
+    }
+    if (offset < 0 || offset + length > mapping.length()) return null;
+    ByteBuffer buffer = mapping.map(offset, length);
+    buffer.order(isLittleEndian() ?
+      ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    return buffer;
+  }
+
   /** Return a properly configured loci.formats.meta.FilterMetadata. */
   protected MetadataStore makeFilterMetadata() {
     return new FilterMetadata(getMetadataStore(), isMetadataFiltered());
@@ -757,6 +913,21 @@ public abstract class FormatReader extends FormatHandler
   public abstract byte[] openBytes(int no, byte[] buf, int x, int y,
     int w, int h) throws FormatException, IOException;
 
+  /* @see IFormatReader#openMappedBytes(int) */
+  public ByteBuffer openMappedBytes(int no)
+    throws FormatException, IOException
+  {
+    return openMappedBytes(no, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openMappedBytes(int, int, int, int, int) */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, -1, x, y, w, h);
+    return null;
+  }
+
   /* @see IFormatReader#openPlane(int, int, int, int, int int) */
   public Object openPlane(int no, int x, int y, int w, int h)
     throws FormatException, IOException
@@ -765,15 +936,40 @@ public abstract class FormatReader extends FormatHandler
     return openBytes(no, x, y, w, h);
   }
 
+  /* @see IFormatReader#openPlane(int, Buffer) */
+  public Buffer openPlane(int no, Buffer buf)
+    throws FormatException, IOException
+  {
+    return openPlane(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer, int, int, int, int) */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    return FormatTools.openPlane(this, no, buf, x, y, w, h);
+  }
+
   /* @see IFormatReader#openThumbBytes(int) */
   public byte[] openThumbBytes(int no) throws FormatException, IOException {
     FormatTools.assertId(currentId, true, 1);
     return FormatTools.openThumbBytes(this, no);
   }
 
+  /* @see IFormatReader#isThreadSafe() */
+  public boolean isThreadSafe() {
+    return false;
+  }
+
   /* @see IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     if (in != null) in.close();
+    synchronized (mappedFiles) {
+      for (MappedFile mapping : mappedFiles.values()) {
+        mapping.close();
+      }
+      mappedFiles.clear();
+    }
     if (!fileOnly) {
       in = null;
       currentId = null;
@@ -783,7 +979,10 @@ public abstract class FormatReader extends FormatHandler
   /* @see IFormatReader#getSeriesCount() */
   public int getSeriesCount() {
     FormatTools.assertId(currentId, true, 1);
-    return core.length;
+    if (hasFlattenedResolutions()) return core.length;
+    int count = 0;
+    for (int i=0; i<core.length; i+=core[i].resolutionCount) count++;
+    return count;
   }
 
   /* @see IFormatReader#setSeries(int) */
@@ -791,11 +990,87 @@ public abstract class FormatReader extends FormatHandler
     if (no < 0 || no >= getSeriesCount()) {
       throw new IllegalArgumentException("Invalid series: " + no);
     }
-    series = no;
+    setCoreIndex(seriesToCoreIndex(no));
   }
 
   /* @see IFormatReader#getSeries() */
   public int getSeries() {
+    if (hasFlattenedResolutions() || core == null) return series;
+    return coreIndexToSeries(series);
+  }
+
+  /* @see IFormatReader#getResolutionCount() */
+  public int getResolutionCount() {
+    FormatTools.assertId(currentId, true, 1);
+    if (hasFlattenedResolutions()) return 1;
+    return core[seriesToCoreIndex(getSeries())].resolutionCount;
+  }
+
+  /* @see IFormatReader#setResolution(int) */
+  public void setResolution(int no) {
+    if (no < 0 || no >= getResolutionCount()) {
+      throw new IllegalArgumentException("Invalid resolution: " + no);
+    }
+    setCoreIndex(seriesToCoreIndex(getSeries()) + no);
+  }
+
+  /* @see IFormatReader#getResolution() */
+  public int getResolution() {
+    if (hasFlattenedResolutions() || core == null) return 0;
+    return series - seriesToCoreIndex(getSeries());
+  }
+
+  /* @see IFormatReader#hasFlattenedResolutions() */
+  public boolean hasFlattenedResolutions() {
+    return flattenedResolutions;
+  }
+
+  /* @see IFormatReader#setFlattenedResolutions(boolean) */
+  public void setFlattenedResolutions(boolean flatten) {
+    FormatTools.assertId(currentId, false, 1);
+    flattenedResolutions = flatten;
+  }
+
+  /* @see IFormatReader#getCoreIndex() */
+  public int getCoreIndex() {
+    return series;
+  }
+
+  /* @see IFormatReader#setCoreIndex(int) */
+  public void setCoreIndex(int no) {
+    FormatTools.assertId(currentId, true, 1);
+    if (no < 0 || no >= core.length) {
+      throw new IllegalArgumentException("Invalid core index: " + no);
+    }
+    series = no;
+  }
+
+  /* @see IFormatReader#seriesToCoreIndex(int) */
+  public int seriesToCoreIndex(int series) {
+    if (hasFlattenedResolutions()) return series;
+    FormatTools.assertId(currentId, true, 1);
+    int index = 0;
+    for (int s=0; s<series && index<core.length; s++) {
+      index += core[index].resolutionCount;
+    }
+    if (series < 0 || index >= core.length) {
+      throw new IllegalArgumentException("Invalid series: " + series);
+    }
+    return index;
+  }
+
+  /* @see IFormatReader#coreIndexToSeries(int) */
+  public int coreIndexToSeries(int index) {
+    if (hasFlattenedResolutions()) return index;
+    FormatTools.assertId(currentId, true, 1);
+    if (index < 0 || index >= core.length) {
+      throw new IllegalArgumentException("Invalid core index: " + index);
+    }
+    int series = 0;
+    for (int i=core[0].resolutionCount; i<=index; i+=core[i].resolutionCount)
+    {
+      series++;
+    }
     return series;
   }
 
@@ -1133,6 +1408,36 @@ public abstract class FormatReader extends FormatHandler
     close(false);
   }
 
+  // -- Serialization methods --
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    // the stream is reopened on the file it was reading, which is not
+    // necessarily the current file (e.g. the pixels file of an ICS dataset)
+    String file = in == null ? null : in.getFilename();
+    if (in != null && file == null) {
+      throw new NotSerializableException(getClass().getName() +
+        " is not reading from a file");
+    }
+    out.defaultWriteObject();
+    out.writeObject(file);
+    out.writeBoolean(in != null && in.isLittleEndian());
+  }
+
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject();
+    String file = (String) in.readObject();
+    boolean little = in.readBoolean();
+    metadataStore = new DummyMetadata();
+    metadataOptions = new DefaultMetadataOptions();
+    mappedFiles = new Hashtable<String, MappedFile>();
+    if (file != null) {
+      this.in = new RandomAccessInputStream(file);
+      this.in.order(little);
+    }
+  }
+
   // -- Metadata enumeration convenience methods --
 
   /**
@@ -24,6 +24,13 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.Vector;
 
 import loci.common.DateTools;
@@ -715,6 +722,41 @@ public final class FormatTools {
     if (bufLength >= 0) checkBufferSize(r, bufLength, w, h);
   }
 
+  /**
+   * Convenience method for checking that the plane number and tile size are
+   * valid for the given reader, and that the given buffer can hold the
+   * samples of a w * h image as returned by
+   * {@link IFormatReader#openPlane(int, Buffer, int, int, int, int)}.
+   * @throws FormatException if the buffer is too small or its element type
+   *   does not match the reader's pixel type
+   */
+  public static void checkPlaneParameters(IFormatReader r, int no,
+    Buffer buf, int x, int y, int w, int h) throws FormatException
+  {
+    checkPlaneParameters(r, no, -1, x, y, w, h);
+
+    int pixelType = r.getPixelType();
+    int bpp = getBytesPerPixel(pixelType);
+    boolean valid;
+    if (buf instanceof ByteBuffer) valid = true;
+    else if (pixelType == FLOAT) valid = buf instanceof FloatBuffer;
+    else if (pixelType == DOUBLE) valid = buf instanceof DoubleBuffer;
+    else if (bpp == 2) valid = buf instanceof ShortBuffer;
+    else if (bpp == 4) valid = buf instanceof IntBuffer;
+    else valid = false;
+    if (!valid) {
+      throw new FormatException("Cannot read " + getPixelTypeString(pixelType) +
+        " samples into a " + buf.getClass().getName());
+    }
+
+    long size = (long) w * h * r.getRGBChannelCount();
+    if (buf instanceof ByteBuffer) size *= bpp;
+    if (size > buf.remaining()) {
+      throw new FormatException("Buffer too small (got " + buf.remaining() +
+        ", expected " + size + ").");
+    }
+  }
+
   /** Checks that the given plane number is valid for the given reader. */
   public static void checkPlaneNumber(IFormatReader r, int no)
     throws FormatException
@@ -942,6 +984,104 @@ public final class FormatTools {
     return rtn;
   }
 
+  /**
+   * Default implementation for
+   * {@link IFormatReader#openPlane(int, Buffer, int, int, int, int)}.
+   *
+   * The samples are copied from a memory mapped view of the plane if the
+   * reader provides one, and otherwise from the result of
+   * {@link IFormatReader#openBytes(int, int, int, int, int)}.
+   */
+  public static Buffer openPlane(IFormatReader reader, int no, Buffer buf,
+    int x, int y, int w, int h) throws FormatException, IOException
+  {
+    checkPlaneParameters(reader, no, buf, x, y, w, h);
+    ByteBuffer plane = reader.openMappedBytes(no, x, y, w, h);
+    if (plane == null) {
+      plane = ByteBuffer.wrap(reader.openBytes(no, x, y, w, h));
+      plane.order(reader.isLittleEndian() ?
+        ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    }
+    copySamples(plane, getBytesPerPixel(reader.getPixelType()), buf);
+    return buf;
+  }
+
+  /**
+   * Copies the samples remaining in the source buffer, which must be ordered
+   * according to the byte order of the samples, into the destination buffer.
+   * A typed destination receives the decoded samples; a ByteBuffer
+   * destination receives the samples in its own byte order.  The positions
+   * of both buffers are advanced past the copied samples.
+   *
+   * @param bpp the number of bytes in each sample
+   */
+  public static void copySamples(ByteBuffer src, int bpp, Buffer dest) {
+    int n = src.remaining() / bpp;
+    if (dest instanceof ByteBuffer) {
+      ByteBuffer b = (ByteBuffer) dest;
+      if (bpp == 1 || b.order().equals(src.order())) {
+        ByteBuffer s = src.duplicate();
+        s.limit(s.position() + n * bpp);
+        b.put(s);
+      }
+      else {
+        // the views decode and encode with opposite byte orders
+        switch (bpp) {
+          case 2:
+            b.asShortBuffer().put(src.asShortBuffer());
+            break;
+          case 4:
+            b.asIntBuffer().put(src.asIntBuffer());
+            break;
+          case 8:
+            b.asLongBuffer().put(src.asLongBuffer());
+            break;
+        }
+        b.position(b.position() + n * bpp);
+      }
+    }
+    else if (dest instanceof ShortBuffer) {
+      ShortBuffer d = (ShortBuffer) dest;
+      ShortBuffer s = src.asShortBuffer();
+      if (d.hasArray()) {
+        s.get(d.array(), d.arrayOffset() + d.position(), n);
+        d.position(d.position() + n);
+      }
+      else d.put(s);
+    }
+    else if (dest instanceof IntBuffer) {
+      IntBuffer d = (IntBuffer) dest;
+      IntBuffer s = src.asIntBuffer();
+      if (d.hasArray()) {
+        s.get(d.array(), d.arrayOffset() + d.position(), n);
+        d.position(d.position() + n);
+      }
+      else d.put(s);
+    }
+    else if (dest instanceof FloatBuffer) {
+      FloatBuffer d = (FloatBuffer) dest;
+      FloatBuffer s = src.asFloatBuffer();
+      if (d.hasArray()) {
+        s.get(d.array(), d.arrayOffset() + d.position(), n);
+        d.position(d.position() + n);
+      }
+      else d.put(s);
+    }
+    else if (dest instanceof DoubleBuffer) {
+      DoubleBuffer d = (DoubleBuffer) dest;
+      DoubleBuffer s = src.asDoubleBuffer();
+      if (d.hasArray()) {
+        s.get(d.array(), d.arrayOffset() + d.position(), n);
+        d.position(d.position() + n);
+      }
+      else d.put(s);
+    }
+    else {
+      throw new IllegalArgumentException("Unsupported buffer: " + dest);
+    }
+    src.position(src.position() + n * bpp);
+  }
+
   // -- Conversion convenience methods --
 
   /**
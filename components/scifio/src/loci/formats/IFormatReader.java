@@ -24,6 +24,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.Hashtable;
 
 import loci.common.RandomAccessInputStream;
@@ -273,6 +275,79 @@ public interface IFormatReader extends IFormatHandler, IMetadataConfigurable {
   byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
     throws FormatException, IOException;
 
+  /**
+   * Obtains a read-only view of the specified image plane, backed directly
+   * by a memory mapping of the file on disk rather than a copy.
+   *
+   * @param no the image index within the file.
+   * @return a buffer of (sizeX * sizeY * bytesPerPixel * RGB channel count)
+   *   bytes, ordered according to {@link #isLittleEndian()}, or null if this
+   *   plane cannot be mapped
+   * @see #openMappedBytes(int, int, int, int, int)
+   */
+  ByteBuffer openMappedBytes(int no) throws FormatException, IOException;
+
+  /**
+   * Obtains a read-only, memory mapped view of a sub-image of the specified
+   * image plane.  The pixels are laid out exactly as they would be by
+   * {@link #openBytes(int, int, int, int, int)}, but are not copied onto the
+   * heap.  Only uncompressed planes can be mapped, and only regions that are
+   * stored contiguously in the file - typically full-width bands of rows -
+   * are eligible; callers must fall back to <code>openBytes</code> when
+   * null is returned.  Mappings are shared between all readers of the same
+   * file and remain valid after the reader is closed.
+   *
+   * @param no the image index within the file.
+   * @param x X coordinate of the upper-left corner of the sub-image
+   * @param y Y coordinate of the upper-left corner of the sub-image
+   * @param w width of the sub-image
+   * @param h height of the sub-image
+   * @return a read-only buffer ordered according to {@link #isLittleEndian()},
+   *   or null if the sub-image cannot be mapped
+   * @throws FormatException if there was a problem parsing the metadata of the
+   *   file.
+   * @throws IOException if there was a problem mapping the file.
+   */
+  ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException;
+
+  /**
+   * Obtains the specified image plane into the given buffer.
+   *
+   * @see #openPlane(int, Buffer, int, int, int, int)
+   */
+  Buffer openPlane(int no, Buffer buf) throws FormatException, IOException;
+
+  /**
+   * Obtains a sub-image of the specified image plane as samples of the
+   * buffer's element type, without an intermediate byte array where the
+   * reader can avoid one.  A {@link java.nio.ShortBuffer} is used for 16-bit
+   * integer pixel types, an {@link java.nio.IntBuffer} for 32-bit integer
+   * pixel types, and a {@link java.nio.FloatBuffer} or
+   * {@link java.nio.DoubleBuffer} for floating point pixel types; to fill
+   * a <code>short[]</code>, pass <code>ShortBuffer.wrap(array)</code>.  A
+   * {@link ByteBuffer} may be used for any pixel type, and receives the
+   * samples in its own byte order regardless of {@link #isLittleEndian()}.
+   *
+   * The samples are laid out as by
+   * {@link #openBytes(int, int, int, int, int)} and are written starting at
+   * the buffer's position, which is then advanced past them.
+   *
+   * @param no the image index within the file.
+   * @param buf a buffer with room for at least (w * h * RGB channel count)
+   *   samples.
+   * @param x X coordinate of the upper-left corner of the sub-image
+   * @param y Y coordinate of the upper-left corner of the sub-image
+   * @param w width of the sub-image
+   * @param h height of the sub-image
+   * @return the buffer, for convenience
+   * @throws FormatException if there was a problem parsing the metadata of the
+   *   file, or the buffer is too small or of the wrong type.
+   * @throws IOException if there was a problem reading the file.
+   */
+  Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException;
+
   /**
    * Obtains the specified image plane (or sub-image thereof) in the reader's
    * native data structure. For most readers this is a byte array; however,
@@ -293,6 +368,16 @@ public interface IFormatReader extends IFormatHandler, IMetadataConfigurable {
    */
   byte[] openThumbBytes(int no) throws FormatException, IOException;
 
+  /**
+   * Returns true if, once the reader has been initialized, the
+   * <code>openBytes</code> methods may be called concurrently from multiple
+   * threads.  Each thread reads through its own view of the file, so a single
+   * initialized reader can serve many threads without paying the cost of
+   * {@link #setId(String)} again.  The active series and other settings must
+   * not be changed while such calls are in progress.
+   */
+  boolean isThreadSafe();
+
   /**
    * Closes the currently open file. If the flag is set, this is all that
    * happens; if unset, it is equivalent to calling
@@ -309,6 +394,62 @@ public interface IFormatReader extends IFormatHandler, IMetadataConfigurable {
   /** Gets the currently active series. */
   int getSeries();
 
+  /**
+   * Gets the number of resolutions in the current series.  Resolution 0 is
+   * the full-size image; each subsequent resolution is smaller than the one
+   * before it.  Always 1 if {@link #hasFlattenedResolutions()} is true, in
+   * which case each resolution is returned as a separate series.
+   */
+  int getResolutionCount();
+
+  /**
+   * Activates the specified resolution of the current series.  The size
+   * getters (e.g. {@link #getSizeX()}) and <code>openBytes</code> then
+   * refer to that resolution.  Changing the series resets the resolution
+   * to 0.
+   */
+  void setResolution(int resolution);
+
+  /** Gets the currently active resolution of the current series. */
+  int getResolution();
+
+  /**
+   * Returns true if each resolution of a multi-resolution image is returned
+   * as a separate series.  This is the default.
+   */
+  boolean hasFlattenedResolutions();
+
+  /**
+   * Specifies whether or not each resolution of a multi-resolution image
+   * should be returned as a separate series.  Must be called before
+   * {@link #setId(String)}.
+   */
+  void setFlattenedResolutions(boolean flatten);
+
+  /**
+   * Gets the index of the current series and resolution within the array
+   * returned by {@link #getCoreMetadata()}.
+   */
+  int getCoreIndex();
+
+  /**
+   * Activates the series and resolution at the given index within the array
+   * returned by {@link #getCoreMetadata()}.
+   */
+  void setCoreIndex(int no);
+
+  /**
+   * Gets the index within the array returned by {@link #getCoreMetadata()}
+   * of the first (full-size) resolution of the given series.
+   */
+  int seriesToCoreIndex(int series);
+
+  /**
+   * Gets the series that contains the given index within the array returned
+   * by {@link #getCoreMetadata()}.
+   */
+  int coreIndexToSeries(int index);
+
   /** Specifies whether or not to normalize float data. */
   void setNormalized(boolean normalize);
 
@@ -24,6 +24,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -99,6 +101,12 @@ public class ImageReader implements IFormatReader {
 
   private boolean allowOpen = true;
 
+  /** Signatures used to rule out readers without opening the file. */
+  private DetectionIndex detectionIndex;
+
+  /** Whether or not the detection index is used. */
+  private boolean useDetectionIndex = true;
+
   // -- Constructors --
 
   /**
@@ -129,6 +137,7 @@ public class ImageReader implements IFormatReader {
     }
     readers = new IFormatReader[list.size()];
     list.toArray(readers);
+    detectionIndex = new DetectionIndex(readers);
   }
 
   // -- ImageReader API methods --
@@ -141,6 +150,22 @@ public class ImageReader implements IFormatReader {
     this.allowOpen = allowOpen;
   }
 
+  /**
+   * Toggles whether or not the first bytes of the file are checked against
+   * the signatures in {@link DetectionIndex} during type detection, so that
+   * readers which cannot recognize the file are skipped without opening it.
+   * The detected reader is the same either way.  By default, the detection
+   * index is used.
+   */
+  public void setDetectionIndexEnabled(boolean enabled) {
+    useDetectionIndex = enabled;
+  }
+
+  /** Returns true if the detection index is used for type detection. */
+  public boolean isDetectionIndexEnabled() {
+    return useDetectionIndex;
+  }
+
   /** Gets a string describing the file format for the given file. */
   public String getFormat(String id) throws FormatException, IOException {
     return getReader(id).getFormat();
@@ -166,13 +191,11 @@ public class ImageReader implements IFormatReader {
       // initialize file
       boolean success = false;
       if (!invalid) {
-        for (int i=0; i<readers.length; i++) {
-          if (readers[i].isThisType(id, allowOpen)) {
-            current = i;
-            currentId = id;
-            success = true;
-            break;
-          }
+        int index = detectReader(id, fake || omero);
+        if (index >= 0) {
+          current = index;
+          currentId = id;
+          success = true;
         }
       }
       if (!success) {
@@ -203,6 +226,27 @@ public class ImageReader implements IFormatReader {
     return r;
   }
 
+  /**
+   * Replaces the constituent reader of the same class as the given reader,
+   * which must already be initialized on the given file, and makes it the
+   * current reader.  Used by {@link Memoizer} to install a restored reader.
+   *
+   * @throws IllegalArgumentException if no constituent reader has the
+   *   same class as the given reader
+   */
+  void setReader(String id, IFormatReader reader) {
+    for (int i=0; i<readers.length; i++) {
+      if (readers[i].getClass().equals(reader.getClass())) {
+        readers[i] = reader;
+        current = i;
+        currentId = id;
+        return;
+      }
+    }
+    throw new IllegalArgumentException(
+      "No reader of type " + reader.getClass().getName());
+  }
+
   // -- IMetadataConfigurable API methods --
 
   /* @see loci.formats.IMetadataConfigurable#getSupportedMetadataLevels() */
@@ -401,6 +445,34 @@ public class ImageReader implements IFormatReader {
     return getReader().openBytes(no, buf, x, y, w, h);
   }
 
+  /* @see IFormatReader#openMappedBytes(int) */
+  public ByteBuffer openMappedBytes(int no)
+    throws FormatException, IOException
+  {
+    return getReader().openMappedBytes(no);
+  }
+
+  /* @see IFormatReader#openMappedBytes(int, int, int, int, int) */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    return getReader().openMappedBytes(no, x, y, w, h);
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer) */
+  public Buffer openPlane(int no, Buffer buf)
+    throws FormatException, IOException
+  {
+    return getReader().openPlane(no, buf);
+  }
+
+  /* @see IFormatReader#openPlane(int, Buffer, int, int, int, int) */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    return getReader().openPlane(no, buf, x, y, w, h);
+  }
+
   /* @see IFormatReader#openPlane(int, int, int, int, int) */
   public Object openPlane(int no, int x, int y, int w, int h)
     throws FormatException, IOException
@@ -428,6 +500,55 @@ public class ImageReader implements IFormatReader {
     return getReader().getSeries();
   }
 
+  /* @see IFormatReader#getResolutionCount() */
+  public int getResolutionCount() {
+    return getReader().getResolutionCount();
+  }
+
+  /* @see IFormatReader#setResolution(int) */
+  public void setResolution(int no) {
+    getReader().setResolution(no);
+  }
+
+  /* @see IFormatReader#getResolution() */
+  public int getResolution() {
+    return getReader().getResolution();
+  }
+
+  /* @see IFormatReader#setFlattenedResolutions(boolean) */
+  public void setFlattenedResolutions(boolean flatten) {
+    FormatTools.assertId(currentId, false, 2);
+    for (int i=0; i<readers.length; i++) {
+      readers[i].setFlattenedResolutions(flatten);
+    }
+  }
+
+  /* @see IFormatReader#hasFlattenedResolutions() */
+  public boolean hasFlattenedResolutions() {
+    // NB: all readers should have the same flattening setting
+    return readers[0].hasFlattenedResolutions();
+  }
+
+  /* @see IFormatReader#getCoreIndex() */
+  public int getCoreIndex() {
+    return getReader().getCoreIndex();
+  }
+
+  /* @see IFormatReader#setCoreIndex(int) */
+  public void setCoreIndex(int no) {
+    getReader().setCoreIndex(no);
+  }
+
+  /* @see IFormatReader#seriesToCoreIndex(int) */
+  public int seriesToCoreIndex(int series) {
+    return getReader().seriesToCoreIndex(series);
+  }
+
+  /* @see IFormatReader#coreIndexToSeries(int) */
+  public int coreIndexToSeries(int index) {
+    return getReader().coreIndexToSeries(index);
+  }
+
   /* @see IFormatReader#getUsedFiles() */
   public String[] getUsedFiles() {
     return getReader().getUsedFiles();
@@ -498,6 +619,11 @@ public class ImageReader implements IFormatReader {
     return getReader().getCoreMetadata();
   }
 
+  /* @see IFormatReader#isThreadSafe() */
+  public boolean isThreadSafe() {
+    return getReader().isThreadSafe();
+  }
+
   /* @see IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     for (int i=0; i<readers.length; i++) readers[i].close(fileOnly);
@@ -685,4 +811,41 @@ public class ImageReader implements IFormatReader {
   /* @see IFormatHandler#close() */
   public void close() throws IOException { close(false); }
 
+  // -- Helper methods --
+
+  /**
+   * Returns the index of the first reader that recognizes the given file,
+   * or -1 if no reader recognizes it.
+   *
+   * @param virtual true if the ID does not refer to a file on disk
+   */
+  private int detectReader(String id, boolean virtual) {
+    if (!virtual) {
+      int cached = detectionIndex.getCachedReader(id, allowOpen);
+      if (cached >= 0) return cached;
+    }
+
+    boolean checkHeader = useDetectionIndex && allowOpen && !virtual;
+    byte[] header = null;
+    for (int i=0; i<readers.length; i++) {
+      if (checkHeader && header == null && detectionIndex.isIndexed(i)) {
+        // read the header once, when the first indexed reader is reached
+        header = DetectionIndex.readHeader(id);
+        checkHeader = header != null;
+      }
+      boolean match;
+      if (detectionIndex.excludes(i, header)) {
+        // the file contents cannot match, but the suffix alone still might
+        match = readers[i].isThisType(id, false);
+      }
+      else match = readers[i].isThisType(id, allowOpen);
+
+      if (match) {
+        if (!virtual) detectionIndex.cacheReader(id, allowOpen, i);
+        return i;
+      }
+    }
+    return -1;
+  }
+
 }
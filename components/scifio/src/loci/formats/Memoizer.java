@@ -0,0 +1,590 @@
+//
+// Memoizer.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import loci.common.Location;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.in.MetadataOptions;
+import loci.formats.meta.DummyMetadata;
+import loci.formats.meta.MetadataStore;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader wrapper that saves the state of a fully initialized reader to a
+ * memo file, and restores it instead of reinitializing the reader the next
+ * time the same file is opened.  Memo files are only used if the length and
+ * modification time of every file used by the reader (see
+ * {@link IFormatReader#getUsedFiles()}) have not changed since the memo was
+ * written, and if the reader is configured the same way (grouping,
+ * normalization, metadata filtering and metadata level).
+ *
+ * The state is saved with Java serialization, so a memo can only be written
+ * for readers whose fields are all serializable, and whose open stream (if
+ * any) reads from a file on disk; for other readers
+ * {@link #setId(String)} simply initializes the wrapped reader.  The OME-XML
+ * model of the metadata store is saved with the reader, and becomes the root
+ * of the caller's store when the memo is loaded.  Stores that are neither
+ * {@link DummyMetadata} nor OME-XML metadata objects are not saved, so a memo
+ * is never used with such a store.
+ *
+ * Memo files are kept in a per-user cache directory by default (see
+ * {@link #getDefaultDirectory()}), rather than alongside the data, and only
+ * Bio-Formats and OME model classes, and the JDK types they use, are
+ * deserialized from them.
+ *
+ * The Memoizer must wrap either an {@link ImageReader} or a format reader
+ * directly; other wrappers should be placed around it.  When a memo is loaded
+ * into a wrapped format reader, the wrapped reader is replaced by the
+ * restored instance; see {@link #getReader()}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/Memoizer.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/Memoizer.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class Memoizer extends ReaderWrapper {
+
+  // -- Constants --
+
+  /** Default minimum initialization time, in milliseconds, worth saving. */
+  public static final long DEFAULT_MINIMUM_ELAPSED = 100;
+
+  /** Suffix of memo file names. */
+  public static final String MEMO_SUFFIX = ".bfmemo";
+
+  /** Version of the memo file layout; memos of other versions are ignored. */
+  private static final int VERSION = 3;
+
+  /** Packages whose classes may be deserialized from a memo file. */
+  private static final String[] ALLOWED_PACKAGES = {"loci.", "ome.xml."};
+
+  /** Other classes that may be deserialized from a memo file. */
+  private static final Set<String> ALLOWED_CLASSES = new HashSet<String>(
+    Arrays.asList(new String[] {
+      "java.lang.Boolean", "java.lang.Byte", "java.lang.Character",
+      "java.lang.Double", "java.lang.Enum", "java.lang.Float",
+      "java.lang.Integer", "java.lang.Long", "java.lang.Number",
+      "java.lang.Object", "java.lang.Short", "java.lang.String",
+      "java.util.ArrayList", "java.util.HashMap", "java.util.HashSet",
+      "java.util.Hashtable", "java.util.LinkedHashMap",
+      "java.util.LinkedHashSet", "java.util.LinkedList", "java.util.Stack",
+      "java.util.TreeMap", "java.util.TreeSet", "java.util.Vector"
+    }));
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Memoizer.class);
+
+  // -- Fields --
+
+  /** Minimum time in milliseconds that initialization must take to be saved. */
+  private long minimumElapsed;
+
+  /** Directory in which memo files are stored. */
+  private File directory;
+
+  private boolean loadedFromMemo;
+  private boolean savedToMemo;
+
+  private long initTime = -1;
+  private long loadTime = -1;
+  private long saveTime = -1;
+
+  private OMEXMLService service;
+
+  // -- Constructors --
+
+  /** Constructs a memoizer around a new image reader. */
+  public Memoizer() {
+    this(DEFAULT_MINIMUM_ELAPSED);
+  }
+
+  /**
+   * Constructs a memoizer around a new image reader, that only saves readers
+   * whose initialization took at least the given number of milliseconds.
+   */
+  public Memoizer(long minimumElapsed) {
+    this(new ImageReader(), minimumElapsed);
+  }
+
+  /** Constructs a memoizer around the given reader. */
+  public Memoizer(IFormatReader r) {
+    this(r, DEFAULT_MINIMUM_ELAPSED);
+  }
+
+  /**
+   * Constructs a memoizer around the given reader, that only saves readers
+   * whose initialization took at least the given number of milliseconds.
+   */
+  public Memoizer(IFormatReader r, long minimumElapsed) {
+    this(r, minimumElapsed, null);
+  }
+
+  /**
+   * Constructs a memoizer around the given reader, that only saves readers
+   * whose initialization took at least the given number of milliseconds.
+   *
+   * @param directory directory in which memo files are stored, mirroring the
+   *   directory structure of the original files; if null, the
+   *   {@link #getDefaultDirectory() default directory} is used
+   */
+  public Memoizer(IFormatReader r, long minimumElapsed, File directory) {
+    super(r);
+    this.minimumElapsed = minimumElapsed;
+    this.directory = directory == null ? getDefaultDirectory() : directory;
+  }
+
+  // -- Memoizer API methods --
+
+  /**
+   * Gets the directory in which memo files are stored by default: a
+   * directory in the user's home directory that only the user can access.
+   */
+  public static File getDefaultDirectory() {
+    return new File(System.getProperty("user.home"), ".bioformats_memo");
+  }
+
+  /**
+   * Returns true if the reader state was loaded from a memo file by the
+   * most recent call to {@link #setId(String)}.
+   */
+  public boolean isLoadedFromMemo() {
+    return loadedFromMemo;
+  }
+
+  /**
+   * Returns true if the reader state was saved to a memo file by the
+   * most recent call to {@link #setId(String)}.
+   */
+  public boolean isSavedToMemo() {
+    return savedToMemo;
+  }
+
+  /**
+   * Gets the time in milliseconds taken to initialize the wrapped reader
+   * by the most recent call to {@link #setId(String)}, or -1 if the state was
+   * loaded from a memo file.
+   */
+  public long getInitTime() {
+    return initTime;
+  }
+
+  /**
+   * Gets the time in milliseconds taken to load the memo file by the most
+   * recent call to {@link #setId(String)}, or -1 if no memo was loaded.
+   */
+  public long getLoadTime() {
+    return loadTime;
+  }
+
+  /**
+   * Gets the time in milliseconds taken to save the memo file by the most
+   * recent call to {@link #setId(String)}, or -1 if no memo was saved.
+   */
+  public long getSaveTime() {
+    return saveTime;
+  }
+
+  /** Gets the minimum initialization time, in milliseconds, worth saving. */
+  public long getMinimumElapsed() {
+    return minimumElapsed;
+  }
+
+  /** Sets the minimum initialization time, in milliseconds, worth saving. */
+  public void setMinimumElapsed(long minimumElapsed) {
+    this.minimumElapsed = minimumElapsed;
+  }
+
+  /** Gets the directory in which memo files are stored. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Gets the memo file used for the given file, or null if the given ID does
+   * not refer to a file on disk.
+   */
+  public File getMemoFile(String id) {
+    File file = getFile(id);
+    if (file == null) return null;
+    String name = file.getName() + MEMO_SUFFIX;
+    return new File(new File(directory, file.getParent()), name);
+  }
+
+  // -- IFormatHandler API methods --
+
+  /* @see IFormatHandler#setId(String) */
+  public void setId(String id) throws FormatException, IOException {
+    if (id.equals(getCurrentFile())) return;
+    loadedFromMemo = false;
+    savedToMemo = false;
+    initTime = -1;
+    loadTime = -1;
+    saveTime = -1;
+
+    File memo = getMemoFile(id);
+    if (memo != null && memo.exists()) {
+      long start = System.currentTimeMillis();
+      loadedFromMemo = loadMemo(memo, id);
+      if (loadedFromMemo) {
+        loadTime = System.currentTimeMillis() - start;
+        LOGGER.debug("Loaded memo file {} in {} ms", memo, loadTime);
+        return;
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    reader.setId(id);
+    initTime = System.currentTimeMillis() - start;
+    LOGGER.debug("Initialized {} in {} ms", id, initTime);
+
+    if (memo != null && initTime >= minimumElapsed) {
+      start = System.currentTimeMillis();
+      savedToMemo = saveMemo(memo, id);
+      if (savedToMemo) {
+        saveTime = System.currentTimeMillis() - start;
+        LOGGER.debug("Saved memo file {} in {} ms", memo, saveTime);
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Gets the file on disk with the given ID, or null if there is none. */
+  private File getFile(String id) {
+    if (Location.getMappedFile(id) != null) return null;
+    File file = new File(Location.getMappedId(id)).getAbsoluteFile();
+    return file.isFile() ? file : null;
+  }
+
+  /**
+   * Gets the initialized format reader whose state is saved, or null if the
+   * wrapped reader is neither a format reader nor an image reader.
+   */
+  private FormatReader getFormatReader() {
+    IFormatReader r = reader;
+    if (r instanceof ImageReader) r = ((ImageReader) r).getReader();
+    return r instanceof FormatReader ? (FormatReader) r : null;
+  }
+
+  /**
+   * Gets a string describing the configuration of the given reader; a memo
+   * is only used if it was saved with the same configuration.
+   */
+  private String getConfiguration(IFormatReader r) {
+    MetadataOptions options = r.getMetadataOptions();
+    return "normalized=" + r.isNormalized() +
+      ";group=" + r.isGroupFiles() +
+      ";filtered=" + r.isMetadataFiltered() +
+      ";original=" + r.isOriginalMetadataPopulated() +
+      ";flattened=" + r.hasFlattenedResolutions() +
+      ";level=" + (options == null ? null : options.getMetadataLevel());
+  }
+
+  /** Saves the state of the wrapped reader; returns true on success. */
+  private boolean saveMemo(File memo, String id) {
+    FormatReader r = getFormatReader();
+    if (r == null) return false;
+
+    File tmp = null;
+    try {
+      Object root = null;
+      MetadataStore store = r.getMetadataStore();
+      if (!(store instanceof DummyMetadata)) {
+        OMEXMLService service = getService();
+        if (service == null || !service.isOMEXMLMetadata(store)) {
+          LOGGER.debug("Cannot save metadata store of type {}",
+            store.getClass().getName());
+          return false;
+        }
+        // references are stored in the model, not in the object graph,
+        // until they are resolved
+        ((OMEXMLMetadata) store).resolveReferences();
+        root = store.getRoot();
+      }
+
+      // the memo is out of date as soon as any file that the reader uses
+      // changes, so each of them must be on disk
+      Set<File> files = new LinkedHashSet<File>();
+      files.add(getFile(id));
+      for (String used : r.getUsedFiles()) {
+        File file = getFile(used);
+        if (file == null) {
+          LOGGER.debug("Cannot check whether {} has changed", used);
+          return false;
+        }
+        files.add(file);
+      }
+
+      if (!directory.exists()) {
+        if (!directory.mkdirs()) return false;
+        // memo files are only trusted if no one else could have written them
+        directory.setReadable(false, false);
+        directory.setWritable(false, false);
+        directory.setExecutable(false, false);
+        directory.setReadable(true, true);
+        directory.setWritable(true, true);
+        directory.setExecutable(true, true);
+      }
+      File parent = memo.getParentFile();
+      if (!parent.exists() && !parent.mkdirs()) return false;
+      tmp = File.createTempFile(memo.getName(), ".tmp", parent);
+      ObjectOutputStream out = new ObjectOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(VERSION);
+        out.writeInt(files.size());
+        for (File file : files) {
+          out.writeUTF(file.getPath());
+          out.writeLong(file.length());
+          out.writeLong(file.lastModified());
+        }
+        out.writeUTF(r.getClass().getName());
+        out.writeUTF(getConfiguration(r));
+        out.writeObject(root);
+        out.writeObject(r);
+      }
+      finally {
+        out.close();
+      }
+
+      // replace the memo atomically, in case another process is reading it
+      if (!tmp.renameTo(memo)) {
+        memo.delete();
+        if (!tmp.renameTo(memo)) return false;
+      }
+      tmp = null;
+      return true;
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not save memo file " + memo, e);
+    }
+    finally {
+      if (tmp != null) tmp.delete();
+    }
+    return false;
+  }
+
+  /**
+   * Restores the state of the wrapped reader from the given memo file;
+   * returns false if the memo is out of date or cannot be used.
+   */
+  private boolean loadMemo(File memo, String id) throws IOException {
+    FormatReader restored = null;
+    IFormatReader template = null;
+    Object root = null;
+    ObjectInputStream in = null;
+    try {
+      in = new MemoInputStream(
+        new BufferedInputStream(new FileInputStream(memo)));
+      if (in.readInt() != VERSION || !isUpToDate(in)) {
+        LOGGER.debug("Memo file {} is out of date", memo);
+        in.close();
+        memo.delete();
+        return false;
+      }
+      // the restored reader replaces, and is configured as, the template;
+      // the class name is only matched against readers already in use
+      String readerClass = in.readUTF();
+      if (reader instanceof ImageReader) {
+        for (IFormatReader r : ((ImageReader) reader).getReaders()) {
+          if (r.getClass().getName().equals(readerClass)) {
+            template = r;
+            break;
+          }
+        }
+      }
+      else if (reader.getClass().getName().equals(readerClass)) {
+        template = reader;
+      }
+      if (template == null) {
+        LOGGER.debug("Memo file {} is for unknown reader {}",
+          memo, readerClass);
+        return false;
+      }
+      if (!getConfiguration(template).equals(in.readUTF())) {
+        LOGGER.debug("Memo file {} was saved with another configuration",
+          memo);
+        return false;
+      }
+      root = in.readObject();
+      Object r = in.readObject();
+      if (r.getClass() == template.getClass()) {
+        restored = (FormatReader) r;
+      }
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not load memo file " + memo, e);
+    }
+    catch (ClassNotFoundException e) {
+      LOGGER.debug("Could not load memo file " + memo, e);
+    }
+    finally {
+      if (in != null) in.close();
+    }
+    if (restored == null) {
+      memo.delete();
+      return false;
+    }
+
+    // populate the current metadata store, and configure the restored reader
+    // as the reader that it replaces
+    MetadataStore store = template.getMetadataStore();
+    if (!(store instanceof DummyMetadata)) {
+      OMEXMLService service = getService();
+      if (root == null || service == null || !service.isOMEXMLRoot(root)) {
+        restored.close();
+        return false;
+      }
+      if (service.isOMEXMLMetadata(store)) store.setRoot(root);
+      else {
+        try {
+          OMEXMLMetadata src = service.createOMEXMLMetadata();
+          src.setRoot(root);
+          service.convertMetadata(src, store);
+        }
+        catch (ServiceException e) {
+          LOGGER.debug("Could not restore metadata store", e);
+          restored.close();
+          return false;
+        }
+      }
+    }
+    restored.metadataStore = store;
+    restored.metadataOptions = template.getMetadataOptions();
+
+    if (getCurrentFile() != null) reader.close();
+    if (reader instanceof ImageReader) {
+      ((ImageReader) reader).setReader(id, restored);
+    }
+    else reader = restored;
+    return true;
+  }
+
+  /**
+   * Reads the list of files used by the saved reader from the given memo
+   * stream; returns false if any of them has changed since the memo was
+   * written.
+   */
+  private boolean isUpToDate(ObjectInputStream in) throws IOException {
+    int count = in.readInt();
+    for (int i=0; i<count; i++) {
+      File file = new File(in.readUTF());
+      long length = in.readLong();
+      long lastModified = in.readLong();
+      if (!file.isFile() || file.length() != length ||
+        file.lastModified() != lastModified)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Gets the OME-XML service, or null if it is not available. */
+  private OMEXMLService getService() {
+    if (service == null) {
+      try {
+        service = new ServiceFactory().getInstance(OMEXMLService.class);
+      }
+      catch (DependencyException e) {
+        LOGGER.debug("OMEXMLService not available", e);
+      }
+    }
+    return service;
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Object input stream that only resolves the classes that a memo file may
+   * contain, so that a memo written by someone else cannot instantiate
+   * arbitrary classes.
+   */
+  private static class MemoInputStream extends ObjectInputStream {
+
+    public MemoInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+      throws IOException, ClassNotFoundException
+    {
+      String name = desc.getName();
+      // array classes are named after their element type,
+      // e.g. "[I" or "[[Lloci.formats.CoreMetadata;"
+      String element = name.substring(name.lastIndexOf('[') + 1);
+      boolean allowed;
+      if (element.startsWith("L") && element.endsWith(";")) {
+        allowed = isAllowed(element.substring(1, element.length() - 1));
+      }
+      else if (element.length() < name.length()) {
+        // an array of primitives
+        allowed = element.length() == 1;
+      }
+      else allowed = isAllowed(name);
+
+      if (!allowed) {
+        throw new InvalidClassException(name, "not allowed in a memo file");
+      }
+      return super.resolveClass(desc);
+    }
+
+    protected Class<?> resolveProxyClass(String[] interfaces)
+      throws IOException
+    {
+      throw new InvalidClassException("Proxy classes are not allowed in " +
+        "a memo file");
+    }
+
+    private static boolean isAllowed(String className) {
+      if (ALLOWED_CLASSES.contains(className)) return true;
+      for (String p : ALLOWED_PACKAGES) {
+        if (className.startsWith(p)) return true;
+      }
+      return false;
+    }
+
+  }
+
+}
@@ -24,14 +24,28 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import loci.common.DataTools;
 import loci.formats.meta.IMinMaxStore;
 
 /**
  * Logic to compute minimum and maximum values for each channel.
  *
+ * The mean and standard deviation of each channel are computed in the same
+ * pass, and optionally a histogram (see {@link #setHistogramEnabled}).
+ * Large planes are split into chunks that are processed in parallel.
+ *
  * <dl><dt><b>Source code:</b></dt>
  * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/src/loci/formats/MinMaxCalculator.java">Trac</a>,
  * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/src/loci/formats/MinMaxCalculator.java;hb=HEAD">Gitweb</a></dd></dl>
@@ -46,6 +60,19 @@ public class MinMaxCalculator extends ReaderWrapper {
     return new MinMaxCalculator(r);
   }
 
+  // -- Constants --
+
+  /** Minimum number of samples handled by each parallel task. */
+  private static final int CHUNK_SIZE = 1 << 18;
+
+  /** Number of samples decoded at a time by each task. */
+  private static final int BLOCK_SIZE = 4096;
+
+  // -- Static fields --
+
+  /** Shared pool used to compute the statistics of large planes. */
+  private static ExecutorService statisticsExecutor;
+
   // -- Fields --
 
   /** Min values for each channel. */
@@ -60,6 +87,27 @@ public class MinMaxCalculator extends ReaderWrapper {
   /** Max values for each plane. */
   protected double[][] planeMax;
 
+  /** Number of samples included in the statistics of each channel. */
+  protected long[][] chanCount;
+
+  /** Mean values for each channel. */
+  protected double[][] chanMean;
+
+  /** Sums of squared differences from the mean for each channel. */
+  protected double[][] chanSumSquares;
+
+  /** Histograms for each channel; null until the channel has been read. */
+  protected long[][][] chanHistogram;
+
+  /** Whether histograms are computed. */
+  protected boolean histogramEnabled;
+
+  /**
+   * Whether each plane has been read in full and included in the channel
+   * means, standard deviations and histograms.
+   */
+  protected boolean[][] planeCounted;
+
   /** Number of planes for which min/max computations have been completed. */
   protected int[] minMaxDone;
 
@@ -108,7 +156,7 @@ public class MinMaxCalculator extends ReaderWrapper {
       throw new FormatException("Invalid channel index: " + theC);
     }
 
-    int series = getSeries();
+    int series = getCoreIndex();
 
     // check that all planes have been read
     if (minMaxDone == null || minMaxDone[series] < getImageCount()) {
@@ -130,7 +178,7 @@ public class MinMaxCalculator extends ReaderWrapper {
       throw new FormatException("Invalid channel index: " + theC);
     }
 
-    int series = getSeries();
+    int series = getCoreIndex();
 
     // check that all planes have been read
     if (minMaxDone == null || minMaxDone[series] < getImageCount()) {
@@ -150,7 +198,7 @@ public class MinMaxCalculator extends ReaderWrapper {
     throws FormatException, IOException
   {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    return chanMin == null ? null : new Double(chanMin[getSeries()][theC]);
+    return chanMin == null ? null : new Double(chanMin[getCoreIndex()][theC]);
   }
 
   /**
@@ -164,7 +212,7 @@ public class MinMaxCalculator extends ReaderWrapper {
     throws FormatException, IOException
   {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    return chanMax == null ? null : new Double(chanMax[getSeries()][theC]);
+    return chanMax == null ? null : new Double(chanMax[getCoreIndex()][theC]);
   }
 
   /**
@@ -182,7 +230,7 @@ public class MinMaxCalculator extends ReaderWrapper {
 
     int numRGB = getRGBChannelCount();
     int pBase = no * numRGB;
-    int series = getSeries();
+    int series = getCoreIndex();
     if (Double.isNaN(planeMin[series][pBase])) return null;
 
     Double[] min = new Double[numRGB];
@@ -207,7 +255,7 @@ public class MinMaxCalculator extends ReaderWrapper {
 
     int numRGB = getRGBChannelCount();
     int pBase = no * numRGB;
-    int series = getSeries();
+    int series = getCoreIndex();
     if (Double.isNaN(planeMax[series][pBase])) return null;
 
     Double[] max = new Double[numRGB];
@@ -217,6 +265,74 @@ public class MinMaxCalculator extends ReaderWrapper {
     return max;
   }
 
+  /**
+   * Retrieves the specified channel's mean based on the planes that have
+   * been read in full; sub-images only contribute to the minima and maxima.
+   * Returns null if no plane of the channel has been read in full yet.
+   *
+   * @throws FormatException Not actually thrown.
+   * @throws IOException Not actually thrown.
+   */
+  public Double getChannelMean(int theC) throws FormatException, IOException {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    int series = getCoreIndex();
+    if (chanCount == null || chanCount[series][theC] == 0) return null;
+    return new Double(chanMean[series][theC]);
+  }
+
+  /**
+   * Retrieves the specified channel's (population) standard deviation based
+   * on the planes that have been read in full.  Returns null if no plane of
+   * the channel has been read in full yet.
+   *
+   * @throws FormatException Not actually thrown.
+   * @throws IOException Not actually thrown.
+   */
+  public Double getChannelStandardDeviation(int theC)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    int series = getCoreIndex();
+    if (chanCount == null || chanCount[series][theC] == 0) return null;
+    long count = chanCount[series][theC];
+    return new Double(Math.sqrt(chanSumSquares[series][theC] / count));
+  }
+
+  /**
+   * Retrieves the specified channel's histogram based on the planes that
+   * have been read in full.  There is one bin for each possible pixel value, in
+   * increasing order; bin 0 counts the pixels whose value is the minimum of
+   * the pixel type (e.g. -32768 for {@link FormatTools#INT16}).
+   *
+   * Returns null if histograms are not enabled, if no plane of the channel
+   * has been read in full yet, or if the pixel type is wider than 16 bits.
+   *
+   * @throws FormatException Not actually thrown.
+   * @throws IOException Not actually thrown.
+   */
+  public long[] getChannelHistogram(int theC)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    if (chanHistogram == null) return null;
+    long[] histogram = chanHistogram[getCoreIndex()][theC];
+    return histogram == null ? null : (long[]) histogram.clone();
+  }
+
+  /**
+   * Sets whether histograms are computed for each channel.  Only pixel types
+   * of at most 16 bits have histograms.  Pixels read while histograms are
+   * disabled are not included in the histograms.
+   */
+  public void setHistogramEnabled(boolean enabled) {
+    histogramEnabled = enabled;
+  }
+
+  /** Gets whether histograms are computed for each channel. */
+  public boolean isHistogramEnabled() {
+    return histogramEnabled;
+  }
+
   /**
    * Returns true if the values returned by
    * getChannelGlobalMinimum/Maximum can be trusted.
@@ -226,7 +342,7 @@ public class MinMaxCalculator extends ReaderWrapper {
    */
   public boolean isMinMaxPopulated() throws FormatException, IOException {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    return minMaxDone != null && minMaxDone[getSeries()] == getImageCount();
+    return minMaxDone != null && minMaxDone[getCoreIndex()] == getImageCount();
   }
 
   // -- IFormatReader API methods --
@@ -259,10 +375,33 @@ public class MinMaxCalculator extends ReaderWrapper {
     FormatTools.assertId(getCurrentFile(), true, 2);
     super.openBytes(no, buf, x, y, w, h);
     
-    updateMinMax(no, buf, FormatTools.getBytesPerPixel(getPixelType()) * w * h);
+    updateMinMax(no, buf,
+      FormatTools.getBytesPerPixel(getPixelType()) * w * h *
+      getRGBChannelCount());
     return buf;
   }
 
+  /* @see IFormatReader#openPlane(int, Buffer, int, int, int, int) */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf, x, y, w, h);
+
+    // the pixels must pass through openBytes to update the min/max values
+    ByteBuffer plane = ByteBuffer.wrap(openBytes(no, x, y, w, h));
+    plane.order(isLittleEndian() ?
+      ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    FormatTools.copySamples(plane,
+      FormatTools.getBytesPerPixel(getPixelType()), buf);
+    return buf;
+  }
+
+  /* @see IFormatReader#isThreadSafe() */
+  public boolean isThreadSafe() {
+    // minimum and maximum values are updated by every call to openBytes
+    return false;
+  }
+
   /* @see IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     reader.close(fileOnly);
@@ -271,6 +410,11 @@ public class MinMaxCalculator extends ReaderWrapper {
       chanMax = null;
       planeMin = null;
       planeMax = null;
+      chanCount = null;
+      chanMean = null;
+      chanSumSquares = null;
+      chanHistogram = null;
+      planeCounted = null;
       minMaxDone = null;
     }
   }
@@ -298,69 +442,62 @@ public class MinMaxCalculator extends ReaderWrapper {
     initMinMax();
 
     int numRGB = getRGBChannelCount();
-    int series = getSeries();
+    int series = getCoreIndex();
     int pixelType = getPixelType();
     int bpp = FormatTools.getBytesPerPixel(pixelType);
-    int planeSize = getSizeX() * getSizeY() * bpp;
-    // check whether min/max values have already been computed for this plane
-    // and that the buffer requested is actually the entire plane
-    if (len == planeSize
-        && !Double.isNaN(planeMin[series][no * numRGB])) return;
+    int planeSize = getSizeX() * getSizeY() * bpp * numRGB;
+    // once a plane has been counted in full, reading it again (in full or
+    // in part) cannot change any of the values
+    if (planeCounted[series][no]) return;
+    boolean fullPlane = len == planeSize;
 
-    boolean little = isLittleEndian();
-    
     int pixels = len / (bpp * numRGB);
-    boolean interleaved = isInterleaved();
+    Statistics[] stats = computeStatistics(buf, pixels, numRGB,
+      isInterleaved(), pixelType, isLittleEndian());
 
     int[] coords = getZCTCoords(no);
     int cBase = coords[1] * numRGB;
     int pBase = no * numRGB;
     for (int c=0; c<numRGB; c++) {
-      planeMin[series][pBase + c] = Double.POSITIVE_INFINITY;
-      planeMax[series][pBase + c] = Double.NEGATIVE_INFINITY;
-    }
-
-    boolean signed = FormatTools.isSigned(pixelType);
-
-    long threshold = (long) Math.pow(2, bpp * 8 - 1);
-    for (int i=0; i<pixels; i++) {
-      for (int c=0; c<numRGB; c++) {
-        int idx = bpp * (interleaved ? i * numRGB + c : c * pixels + i);
-        long bits = DataTools.bytesToLong(buf, idx, bpp, little);
-        if (signed) {
-          if (bits >= threshold) bits -= 2*threshold;
-        }
-        double v = bits;
-        if (pixelType == FormatTools.FLOAT) {
-          v = Float.intBitsToFloat((int) bits);
-        }
-        else if (pixelType == FormatTools.DOUBLE) {
-          v = Double.longBitsToDouble(bits);
-        }
-
-        if (v > chanMax[series][cBase + c]) {
-          chanMax[series][cBase + c] = v;
-        }
-        if (v < chanMin[series][cBase + c]) {
-          chanMin[series][cBase + c] = v;
-        }
-      }
-    }
-
-    for (int c=0; c<numRGB; c++) {
-      if (chanMin[series][cBase + c] < planeMin[series][pBase + c]) {
-        planeMin[series][pBase + c] = chanMin[series][cBase + c];
+      Statistics s = stats[c];
+      int p = pBase + c;
+      int channel = cBase + c;
+
+      // a partial plane adds to the values of the parts already read
+      if (fullPlane || Double.isNaN(planeMin[series][p])) {
+        planeMin[series][p] = s.min;
+        planeMax[series][p] = s.max;
       }
-      if (chanMax[series][cBase + c] > planeMax[series][pBase + c]) {
-        planeMax[series][pBase + c] = chanMax[series][cBase + c];
+      else {
+        planeMin[series][p] = Math.min(planeMin[series][p], s.min);
+        planeMax[series][p] = Math.max(planeMax[series][p], s.max);
       }
+      chanMin[series][channel] = Math.min(chanMin[series][channel], s.min);
+      chanMax[series][channel] = Math.max(chanMax[series][channel], s.max);
+
+      // only whole planes are counted, so that overlapping or repeated
+      // sub-images do not count the same pixels more than once
+      if (!fullPlane) continue;
+      Statistics total = new Statistics();
+      total.count = chanCount[series][channel];
+      total.mean = chanMean[series][channel];
+      total.sumSquares = chanSumSquares[series][channel];
+      total.histogram = chanHistogram[series][channel];
+      total.add(s);
+      chanCount[series][channel] = total.count;
+      chanMean[series][channel] = total.mean;
+      chanSumSquares[series][channel] = total.sumSquares;
+      chanHistogram[series][channel] = total.histogram;
     }
+    if (fullPlane) planeCounted[series][no] = true;
     minMaxDone[series] = Math.max(minMaxDone[series], no + 1);
 
-    if (minMaxDone[getSeries()] == getImageCount() && minMaxStore != null) {
+    if (minMaxDone[series] == getImageCount() && minMaxStore != null &&
+      getResolution() == 0)
+    {
       for (int c=0; c<getSizeC(); c++) {
-        minMaxStore.setChannelGlobalMinMax(c, chanMin[getSeries()][c],
-          chanMax[getSeries()][c], getSeries());
+        minMaxStore.setChannelGlobalMinMax(c, chanMin[series][c],
+          chanMax[series][c], getSeries());
       }
     }
   }
@@ -372,48 +509,390 @@ public class MinMaxCalculator extends ReaderWrapper {
    * @throws IOException Not actually thrown.
    */
   protected void initMinMax() throws FormatException, IOException {
-    int seriesCount = getSeriesCount();
-    int oldSeries = getSeries();
+    // NB: min/max values are tracked separately for each resolution
+    int seriesCount = getCoreMetadata().length;
+    int oldSeries = getCoreIndex();
 
     if (chanMin == null) {
       chanMin = new double[seriesCount][];
       for (int i=0; i<seriesCount; i++) {
-        setSeries(i);
+        setCoreIndex(i);
         chanMin[i] = new double[getSizeC()];
         Arrays.fill(chanMin[i], Double.POSITIVE_INFINITY);
       }
-      setSeries(oldSeries);
+      setCoreIndex(oldSeries);
     }
     if (chanMax == null) {
       chanMax = new double[seriesCount][];
       for (int i=0; i<seriesCount; i++) {
-        setSeries(i);
+        setCoreIndex(i);
         chanMax[i] = new double[getSizeC()];
         Arrays.fill(chanMax[i], Double.NEGATIVE_INFINITY);
       }
-      setSeries(oldSeries);
+      setCoreIndex(oldSeries);
     }
     if (planeMin == null) {
       planeMin = new double[seriesCount][];
       for (int i=0; i<seriesCount; i++) {
-        setSeries(i);
+        setCoreIndex(i);
         int numRGB = getRGBChannelCount();
         planeMin[i] = new double[getImageCount() * numRGB];
         Arrays.fill(planeMin[i], Double.NaN);
       }
-      setSeries(oldSeries);
+      setCoreIndex(oldSeries);
     }
     if (planeMax == null) {
       planeMax = new double[seriesCount][];
       for (int i=0; i<seriesCount; i++) {
-        setSeries(i);
+        setCoreIndex(i);
         int numRGB = getRGBChannelCount();
         planeMax[i] = new double[getImageCount() * numRGB];
         Arrays.fill(planeMax[i], Double.NaN);
       }
-      setSeries(oldSeries);
+      setCoreIndex(oldSeries);
+    }
+    if (chanCount == null) {
+      chanCount = new long[seriesCount][];
+      chanMean = new double[seriesCount][];
+      chanSumSquares = new double[seriesCount][];
+      chanHistogram = new long[seriesCount][][];
+      for (int i=0; i<seriesCount; i++) {
+        setCoreIndex(i);
+        chanCount[i] = new long[getSizeC()];
+        chanMean[i] = new double[getSizeC()];
+        chanSumSquares[i] = new double[getSizeC()];
+        chanHistogram[i] = new long[getSizeC()][];
+      }
+      setCoreIndex(oldSeries);
+    }
+    if (planeCounted == null) {
+      planeCounted = new boolean[seriesCount][];
+      for (int i=0; i<seriesCount; i++) {
+        setCoreIndex(i);
+        planeCounted[i] = new boolean[getImageCount()];
+      }
+      setCoreIndex(oldSeries);
     }
     if (minMaxDone == null) minMaxDone = new int[seriesCount];
   }
 
+  /**
+   * Computes the statistics of each channel in the given pixels.  Planes
+   * with many samples are divided into chunks that are processed in
+   * parallel; the results are merged in a fixed order, so they do not
+   * depend on the number of threads.
+   */
+  private Statistics[] computeStatistics(byte[] buf, int pixels, int numRGB,
+    boolean interleaved, int pixelType, boolean little)
+    throws FormatException, IOException
+  {
+    boolean histogram = histogramEnabled &&
+      FormatTools.getBytesPerPixel(pixelType) <= 2;
+    int chunks = Math.max(1, pixels / CHUNK_SIZE);
+    boolean parallel = (long) pixels * numRGB >= 2 * CHUNK_SIZE &&
+      Runtime.getRuntime().availableProcessors() > 1;
+
+    Statistics[] stats = new Statistics[numRGB];
+    List<Future<Statistics>> results = new ArrayList<Future<Statistics>>();
+    for (int c=0; c<numRGB; c++) {
+      stats[c] = new Statistics();
+      int offset = interleaved ? c : c * pixels;
+      int step = interleaved ? numRGB : 1;
+      for (int k=0; k<chunks; k++) {
+        int start = (int) ((long) pixels * k / chunks);
+        int end = (int) ((long) pixels * (k + 1) / chunks);
+        StatisticsTask task = new StatisticsTask(buf, pixelType, little,
+          offset + start * step, step, end - start, histogram);
+        if (parallel) results.add(getExecutor().submit(task));
+        else stats[c].add(task.call());
+      }
+    }
+
+    try {
+      for (int i=0; i<results.size(); i++) {
+        stats[i / chunks].add(results.get(i).get());
+      }
+    }
+    catch (InterruptedException e) {
+      cancel(results);
+      throw new FormatException("Interrupted while computing statistics", e);
+    }
+    catch (ExecutionException e) {
+      cancel(results);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new FormatException(cause);
+    }
+    return stats;
+  }
+
+  private static void cancel(List<Future<Statistics>> results) {
+    for (Future<Statistics> result : results) {
+      result.cancel(true);
+    }
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (statisticsExecutor == null) {
+      int threads = Runtime.getRuntime().availableProcessors();
+      statisticsExecutor = Executors.newFixedThreadPool(threads,
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "MinMaxCalculator-statistics");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return statisticsExecutor;
+  }
+
+  private static int intLE(byte[] buf, int p) {
+    return (buf[p] & 0xff) | ((buf[p + 1] & 0xff) << 8) |
+      ((buf[p + 2] & 0xff) << 16) | (buf[p + 3] << 24);
+  }
+
+  private static int intBE(byte[] buf, int p) {
+    return (buf[p] << 24) | ((buf[p + 1] & 0xff) << 16) |
+      ((buf[p + 2] & 0xff) << 8) | (buf[p + 3] & 0xff);
+  }
+
+  private static long longLE(byte[] buf, int p) {
+    return ((long) intLE(buf, p + 4) << 32) | (intLE(buf, p) & 0xffffffffL);
+  }
+
+  private static long longBE(byte[] buf, int p) {
+    return ((long) intBE(buf, p) << 32) | (intBE(buf, p + 4) & 0xffffffffL);
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Count, extrema, mean, sum of squared differences from the mean and
+   * (optionally) histogram of a set of samples.  Two sets are combined with
+   * the pairwise update of Chan, Golub and LeVeque.
+   */
+  private static class Statistics {
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double mean;
+    private double sumSquares;
+    private long[] histogram;
+
+    /** Adds the given samples, which fit in 16 bits. */
+    void add(int[] values, int n, int histogramOffset) {
+      int lo = values[0], hi = values[0];
+      int shift = values[0];
+      long sum = 0, sum2 = 0;
+      for (int i=0; i<n; i++) {
+        int v = values[i];
+        if (v < lo) lo = v;
+        if (v > hi) hi = v;
+        long d = v - shift;
+        sum += d;
+        sum2 += d * d;
+      }
+      if (histogram != null) {
+        for (int i=0; i<n; i++) histogram[values[i] + histogramOffset]++;
+      }
+      add(n, lo, hi, shift + (double) sum / n,
+        sum2 - (double) sum * sum / n);
+    }
+
+    /** Adds the given samples; NaNs are ignored. */
+    void add(double[] values, int n) {
+      int first = 0;
+      while (first < n && Double.isNaN(values[first])) first++;
+      if (first == n) return;
+      double lo = values[first], hi = values[first];
+      double shift = values[first];
+      double sum = 0, sum2 = 0;
+      int valid = 0;
+      for (int i=first; i<n; i++) {
+        double v = values[i];
+        if (v != v) continue;
+        if (v < lo) lo = v;
+        if (v > hi) hi = v;
+        double d = v - shift;
+        sum += d;
+        sum2 += d * d;
+        valid++;
+      }
+      add(valid, lo, hi, shift + sum / valid, sum2 - sum * sum / valid);
+    }
+
+    void add(Statistics s) {
+      if (s.histogram != null) {
+        if (histogram == null) histogram = s.histogram;
+        else {
+          for (int i=0; i<histogram.length; i++) {
+            histogram[i] += s.histogram[i];
+          }
+        }
+      }
+      add(s.count, s.min, s.max, s.mean, s.sumSquares);
+    }
+
+    private void add(long n, double lo, double hi, double m, double m2) {
+      if (n == 0) return;
+      if (lo < min) min = lo;
+      if (hi > max) max = hi;
+      if (count == 0) {
+        mean = m;
+        sumSquares = m2;
+      }
+      else {
+        long total = count + n;
+        double delta = m - mean;
+        mean += delta * n / total;
+        sumSquares += m2 + delta * delta * ((double) count * n / total);
+      }
+      count += n;
+    }
+  }
+
+  /**
+   * Computes the statistics of one channel within a range of pixels.  Blocks
+   * of samples are decoded with a loop specific to the pixel type and byte
+   * order, then added to the statistics.
+   */
+  private static class StatisticsTask implements Callable<Statistics> {
+    private byte[] buf;
+    private int pixelType;
+    private boolean little;
+    private int offset, step, count;
+    private boolean histogram;
+
+    /**
+     * @param offset index of the first sample
+     * @param step number of samples from one pixel to the next
+     * @param count number of pixels
+     */
+    StatisticsTask(byte[] buf, int pixelType, boolean little,
+      int offset, int step, int count, boolean histogram)
+    {
+      this.buf = buf;
+      this.pixelType = pixelType;
+      this.little = little;
+      this.offset = offset;
+      this.step = step;
+      this.count = count;
+      this.histogram = histogram;
+    }
+
+    public Statistics call() {
+      Statistics stats = new Statistics();
+      if (count == 0) return stats;
+      int bpp = FormatTools.getBytesPerPixel(pixelType);
+      int block = Math.min(count, BLOCK_SIZE);
+      if (bpp <= 2) {
+        if (histogram) stats.histogram = new long[1 << (bpp * 8)];
+        int histogramOffset = FormatTools.isSigned(pixelType) ?
+          1 << (bpp * 8 - 1) : 0;
+        int[] values = new int[block];
+        for (int i=0; i<count; i+=block) {
+          int n = Math.min(block, count - i);
+          decode(values, n, (offset + i * step) * bpp, step * bpp);
+          stats.add(values, n, histogramOffset);
+        }
+      }
+      else {
+        double[] values = new double[block];
+        for (int i=0; i<count; i+=block) {
+          int n = Math.min(block, count - i);
+          decode(values, n, (offset + i * step) * bpp, step * bpp);
+          stats.add(values, n);
+        }
+      }
+      return stats;
+    }
+
+    /** Decodes samples of at most 16 bits, starting at byte p. */
+    private void decode(int[] values, int n, int p, int stride) {
+      switch (pixelType) {
+        case FormatTools.INT8:
+          for (int i=0; i<n; i++, p+=stride) values[i] = buf[p];
+          break;
+        case FormatTools.INT16:
+          if (little) {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = (buf[p] & 0xff) | (buf[p + 1] << 8);
+            }
+          }
+          else {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = (buf[p] << 8) | (buf[p + 1] & 0xff);
+            }
+          }
+          break;
+        case FormatTools.UINT16:
+          if (little) {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = (buf[p] & 0xff) | ((buf[p + 1] & 0xff) << 8);
+            }
+          }
+          else {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = ((buf[p] & 0xff) << 8) | (buf[p + 1] & 0xff);
+            }
+          }
+          break;
+        default:
+          // UINT8 and BIT
+          for (int i=0; i<n; i++, p+=stride) values[i] = buf[p] & 0xff;
+      }
+    }
+
+    /** Decodes samples of 32 or 64 bits, starting at byte p. */
+    private void decode(double[] values, int n, int p, int stride) {
+      switch (pixelType) {
+        case FormatTools.INT32:
+          if (little) {
+            for (int i=0; i<n; i++, p+=stride) values[i] = intLE(buf, p);
+          }
+          else {
+            for (int i=0; i<n; i++, p+=stride) values[i] = intBE(buf, p);
+          }
+          break;
+        case FormatTools.UINT32:
+          if (little) {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = intLE(buf, p) & 0xffffffffL;
+            }
+          }
+          else {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = intBE(buf, p) & 0xffffffffL;
+            }
+          }
+          break;
+        case FormatTools.FLOAT:
+          if (little) {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = Float.intBitsToFloat(intLE(buf, p));
+            }
+          }
+          else {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = Float.intBitsToFloat(intBE(buf, p));
+            }
+          }
+          break;
+        case FormatTools.DOUBLE:
+          if (little) {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = Double.longBitsToDouble(longLE(buf, p));
+            }
+          }
+          else {
+            for (int i=0; i<n; i++, p+=stride) {
+              values[i] = Double.longBitsToDouble(longBE(buf, p));
+            }
+          }
+          break;
+      }
+    }
+  }
+
 }
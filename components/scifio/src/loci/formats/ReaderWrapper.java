@@ -25,7 +25,11 @@ package loci.formats;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Set;
 
 import loci.common.RandomAccessInputStream;
@@ -133,9 +137,11 @@ public abstract class ReaderWrapper implements IFormatReader {
     boolean normalized = isNormalized();
     boolean metadataFiltered = isMetadataFiltered();
     boolean metadataCollected = isMetadataCollected();
+    boolean flattened = hasFlattenedResolutions();
     wrapperCopy.setNormalized(normalized);
     wrapperCopy.setMetadataFiltered(metadataFiltered);
     wrapperCopy.setMetadataCollected(metadataCollected);
+    wrapperCopy.setFlattenedResolutions(flattened);
     return wrapperCopy;
   }
 
@@ -304,6 +310,30 @@ public abstract class ReaderWrapper implements IFormatReader {
     return reader.openBytes(no, buf, x, y, w, h);
   }
 
+  public ByteBuffer openMappedBytes(int no)
+    throws FormatException, IOException
+  {
+    return reader.openMappedBytes(no);
+  }
+
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    return reader.openMappedBytes(no, x, y, w, h);
+  }
+
+  public Buffer openPlane(int no, Buffer buf)
+    throws FormatException, IOException
+  {
+    return openPlane(no, buf, 0, 0, getSizeX(), getSizeY());
+  }
+
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    return reader.openPlane(no, buf, x, y, w, h);
+  }
+
   public Object openPlane(int no, int x, int y, int w, int h)
     throws FormatException, IOException
   {
@@ -314,6 +344,10 @@ public abstract class ReaderWrapper implements IFormatReader {
     return reader.openThumbBytes(no);
   }
 
+  public boolean isThreadSafe() {
+    return reader.isThreadSafe();
+  }
+
   public void close(boolean fileOnly) throws IOException {
     reader.close(fileOnly);
   }
@@ -330,6 +364,42 @@ public abstract class ReaderWrapper implements IFormatReader {
     return reader.getSeries();
   }
 
+  public int getResolutionCount() {
+    return reader.getResolutionCount();
+  }
+
+  public void setResolution(int no) {
+    reader.setResolution(no);
+  }
+
+  public int getResolution() {
+    return reader.getResolution();
+  }
+
+  public boolean hasFlattenedResolutions() {
+    return reader.hasFlattenedResolutions();
+  }
+
+  public void setFlattenedResolutions(boolean flatten) {
+    reader.setFlattenedResolutions(flatten);
+  }
+
+  public int getCoreIndex() {
+    return reader.getCoreIndex();
+  }
+
+  public void setCoreIndex(int no) {
+    reader.setCoreIndex(no);
+  }
+
+  public int seriesToCoreIndex(int series) {
+    return reader.seriesToCoreIndex(series);
+  }
+
+  public int coreIndexToSeries(int index) {
+    return reader.coreIndexToSeries(index);
+  }
+
   public void setGroupFiles(boolean group) {
     reader.setGroupFiles(group);
   }
@@ -565,9 +635,17 @@ public abstract class ReaderWrapper implements IFormatReader {
 
   /** Creates a copy of the core metadata matching to the given reader state. */
   protected CoreMetadata[] copyCoreMetadata(IFormatReader r) {
-    CoreMetadata[] core = new CoreMetadata[r.getSeriesCount()];
-    for (int s=0; s<core.length; s++) core[s] = new CoreMetadata(r, s);
-    return core;
+    List<CoreMetadata> core = new ArrayList<CoreMetadata>();
+    int coreIndex = r.getCoreIndex();
+    for (int s=0; s<r.getSeriesCount(); s++) {
+      r.setSeries(s);
+      int resolutions = r.getResolutionCount();
+      for (int res=0; res<resolutions; res++) {
+        core.add(new CoreMetadata(r, s, res));
+      }
+    }
+    r.setCoreIndex(coreIndex);
+    return core.toArray(new CoreMetadata[core.size()]);
   }
 
 }
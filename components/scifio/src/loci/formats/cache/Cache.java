@@ -23,9 +23,17 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package loci.formats.cache;
 
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 
 import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Cache provides a means of managing subsets of large collections of image
@@ -38,12 +46,24 @@ import loci.formats.FormatTools;
  * strategy indicating which surrounding planes to load into the cache (i.e.,
  * planes within a certain range along each dimensional axis).
  *
+ * The positions to load are computed once for each current position (the
+ * "load plan"), and can be limited to a number of bytes with
+ * {@link #setMaxBytes(long)}.  By default, {@link #recache()} loads the
+ * planes on the calling thread.  If prefetch threads are enabled (see
+ * {@link #setPrefetchThreads(int)}), it returns immediately and the planes
+ * are loaded in the background, in order of preference, by worker threads
+ * that each read from their own copy of the source.
+ *
  * <dl><dt><b>Source code:</b></dt>
  * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/src/loci/formats/cache/Cache.java">Trac</a>,
  * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/src/loci/formats/cache/Cache.java;hb=HEAD">Gitweb</a></dd></dl>
  */
 public class Cache implements CacheReporter {
 
+  // -- Constants --
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Cache.class);
+
   // -- Fields --
 
   /** Current cache strategy. */
@@ -58,20 +78,75 @@ public class Cache implements CacheReporter {
   /** Master array containing cached objects. */
   protected Object[] cache;
 
-  /** Whether each position is currently supposed to be cached. */
+  /** Whether the object at each position has been loaded. */
   protected boolean[] inCache;
 
+  /**
+   * Rasterized positions to load for the current position, in order of
+   * preference; null if it must be recomputed.
+   */
+  protected int[] loadPlan;
+
+  /** Maximum number of bytes of cached objects. */
+  protected long maxBytes = Long.MAX_VALUE;
+
+  /** Number of bytes of cached objects. */
+  protected long cachedBytes;
+
   /** List of cache event listeners. */
   protected Vector<CacheListener> listeners;
 
   /** Whether the cache should automatically update when a parameter changes. */
   protected boolean autoUpdate;
 
+  /** Whether each position is on the current load plan. */
+  private boolean[] onPlan;
+
+  /** Whether each position is being loaded. */
+  private boolean[] loading;
+
+  /** Index of the next load plan entry to consider for prefetching. */
+  private int planCursor;
+
+  /** Incremented whenever the cached objects are discarded. */
+  private int generation;
+
+  /** Size of the most recently loaded object, used to estimate others. */
+  private long objectSize;
+
+  private long hitCount, missCount, loadCount, dropCount, cancelCount;
+
+  private Prefetcher[] prefetchers = new Prefetcher[0];
+
+  /** Marks the load plan as stale when the strategy's parameters change. */
+  private CacheListener strategyListener = new CacheListener() {
+    public void cacheUpdated(CacheEvent e) {
+      switch (e.getType()) {
+        case CacheEvent.PRIORITIES_CHANGED:
+        case CacheEvent.ORDER_CHANGED:
+        case CacheEvent.RANGE_CHANGED:
+          synchronized (Cache.this) {
+            loadPlan = null;
+          }
+      }
+    }
+  };
+
   // -- Constructors --
 
   /** Constructs an object cache with the given cache strategy and source. */
   public Cache(ICacheStrategy strategy, ICacheSource source,
     boolean autoUpdate) throws CacheException
+  {
+    this(strategy, source, autoUpdate, 0);
+  }
+
+  /**
+   * Constructs an object cache with the given cache strategy and source,
+   * that loads objects with the given number of prefetch threads.
+   */
+  public Cache(ICacheStrategy strategy, ICacheSource source,
+    boolean autoUpdate, int prefetchThreads) throws CacheException
   {
     if (strategy == null) throw new CacheException("strategy is null");
     if (source == null) throw new CacheException("source is null");
@@ -79,13 +154,18 @@ public class Cache implements CacheReporter {
     this.source = source;
     this.autoUpdate = autoUpdate;
     listeners = new Vector<CacheListener>();
+    strategy.addCacheListener(strategyListener);
     reset();
+    setPrefetchThreads(prefetchThreads);
     if (autoUpdate) recache();
   }
 
   // -- Cache API methods --
 
-  /** Gets the cached object at the given dimensional position. */
+  /**
+   * Gets the cached object at the given dimensional position, or null if it
+   * has not been loaded.
+   */
   public Object getObject(int[] pos) throws CacheException {
     if (pos.length != strategy.getLengths().length) {
       throw new CacheException("Invalid number of axes; got " + pos.length +
@@ -93,7 +173,11 @@ public class Cache implements CacheReporter {
     }
 
     int ndx = FormatTools.positionToRaster(strategy.getLengths(), pos);
-    return cache[ndx];
+    synchronized (this) {
+      if (cache[ndx] == null) missCount++;
+      else hitCount++;
+      return cache[ndx];
+    }
   }
 
   /**
@@ -105,15 +189,21 @@ public class Cache implements CacheReporter {
   }
 
   /** Returns true if the object at the given index is in the cache. */
-  public boolean isInCache(int pos) throws CacheException {
+  public synchronized boolean isInCache(int pos) throws CacheException {
     return inCache[pos];
   }
 
   /** Reallocates the cache. */
-  public void reset() throws CacheException {
+  public synchronized void reset() throws CacheException {
     currentPos = new int[strategy.getLengths().length];
     cache = new Object[source.getObjectCount()];
     inCache = new boolean[source.getObjectCount()];
+    onPlan = new boolean[source.getObjectCount()];
+    loading = new boolean[source.getObjectCount()];
+    loadPlan = null;
+    cachedBytes = 0;
+    objectSize = 0;
+    generation++;
   }
 
   /** Gets the cache's caching strategy. */
@@ -135,6 +225,8 @@ public class Cache implements CacheReporter {
         strategy.addCacheListener(l);
       }
     }
+    this.strategy.removeCacheListener(strategyListener);
+    strategy.addCacheListener(strategyListener);
     this.strategy = strategy;
     notifyListeners(new CacheEvent(this, CacheEvent.STRATEGY_CHANGED));
     reset();
@@ -164,44 +256,51 @@ public class Cache implements CacheReporter {
           pos[i] + ", expected [0, " + (len[i] - 1) + "])");
       }
     }
-    System.arraycopy(pos, 0, currentPos, 0, pos.length);
+    synchronized (this) {
+      System.arraycopy(pos, 0, currentPos, 0, pos.length);
+      loadPlan = null;
+    }
     int ndx = FormatTools.positionToRaster(len, pos);
     notifyListeners(new CacheEvent(this, CacheEvent.POSITION_CHANGED, ndx));
     if (autoUpdate) recache();
   }
 
-  /** Updates the given plane. */
+  /**
+   * Updates the given plane, i.e. loads the given entry of the load plan.
+   * Objects that are no longer on the load plan are dropped.
+   */
   public void recache(int n) throws CacheException {
-    int[][] indices = strategy.getLoadList(currentPos);
-    int[] len = strategy.getLengths();
-
-    for (int i=0; i<inCache.length; i++) {
-      boolean found = false;
-      for (int j=0; j<indices.length; j++) {
-        if (i == FormatTools.positionToRaster(len, indices[j])) {
-          found = true;
-          break;
-        }
-      }
-      if (!found) {
-        inCache[i] = false;
-        if (cache[i] != null) {
-          cache[i] = null;
-          notifyListeners(new CacheEvent(this, CacheEvent.OBJECT_DROPPED, i));
-        }
+    List<CacheEvent> events = new ArrayList<CacheEvent>();
+    int ndx = -1;
+    int gen;
+    synchronized (this) {
+      updateLoadPlan(events);
+      if (n >= 0 && n < loadPlan.length) {
+        ndx = loadPlan[n];
+        if (cache[ndx] != null || loading[ndx]) ndx = -1;
+        else loading[ndx] = true;
       }
+      gen = generation;
     }
+    notifyListeners(events);
+    if (ndx < 0) return;
 
-    int ndx = FormatTools.positionToRaster(len, indices[n]);
-    if (ndx >= 0) inCache[ndx] = true;
-
-    if (cache[ndx] == null) {
-      cache[ndx] = source.getObject(ndx);
-      notifyListeners(new CacheEvent(this, CacheEvent.OBJECT_LOADED, ndx));
+    Object o = null;
+    try {
+      o = source.getObject(ndx);
+    }
+    finally {
+      synchronized (this) {
+        store(ndx, o, gen, events);
+      }
+      notifyListeners(events);
     }
   }
 
-  /** Updates all planes on the load list. */
+  /**
+   * Updates all planes on the load list.  If prefetch threads are enabled,
+   * the planes are loaded in the background.
+   */
   public void recache() throws CacheException {
     // what happens if cache source and cache strategy lengths do not match?
     // throw exception in that case
@@ -215,11 +314,132 @@ public class Cache implements CacheReporter {
     // each time through the loop only (i.e., only when a recache call occurs)
     //
     // /lo
-    for (int i=0; i<strategy.getLoadList(currentPos).length; i++) {
+    List<CacheEvent> events = new ArrayList<CacheEvent>();
+    boolean prefetch;
+    synchronized (this) {
+      // NB: strategies are not required to report parameter changes
+      loadPlan = null;
+      updateLoadPlan(events);
+      prefetch = prefetchers.length > 0;
+      if (prefetch) notifyAll();
+    }
+    notifyListeners(events);
+    if (prefetch) return;
+
+    for (int i=0; i<getLoadPlanLength(); i++) {
       recache(i);
     }
   }
 
+  /**
+   * Sets the number of threads that load objects in the background.
+   * If zero (the default), objects are loaded by {@link #recache()} on the
+   * calling thread.  Each thread reads from its own copy of the source, if
+   * the source is a {@link CacheSource} (see {@link CacheSource#duplicate()});
+   * other sources are used by one thread at a time.
+   *
+   * Prefetch threads are daemon threads; set the number of threads to zero
+   * to stop them and close their readers.
+   */
+  public synchronized void setPrefetchThreads(int threads) {
+    if (threads < 0) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    }
+    for (Prefetcher p : prefetchers) p.quit = true;
+    prefetchers = new Prefetcher[threads];
+    for (int i=0; i<threads; i++) {
+      prefetchers[i] = new Prefetcher(i);
+      prefetchers[i].start();
+    }
+    planCursor = 0;
+    notifyAll();
+  }
+
+  /** Gets the number of threads that load objects in the background. */
+  public synchronized int getPrefetchThreads() {
+    return prefetchers.length;
+  }
+
+  /**
+   * Sets the maximum number of bytes of cached objects.  Entries at the end
+   * of the load list are left out of the load plan so that the objects on
+   * the plan fit; the object at the current position is always loaded.
+   * The size of an object that has not been loaded yet is estimated from
+   * the most recently loaded object.
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Invalid size: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+    loadPlan = null;
+  }
+
+  /** Gets the maximum number of bytes of cached objects. */
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** Gets the number of bytes of cached objects. */
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  /**
+   * Gets the number of calls to {@link #getObject(int[])} that returned
+   * a cached object.
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Gets the number of calls to {@link #getObject(int[])} that returned null.
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /** Gets the number of objects that have been loaded into the cache. */
+  public synchronized long getLoadCount() {
+    return loadCount;
+  }
+
+  /** Gets the number of objects that have been dropped from the cache. */
+  public synchronized long getDropCount() {
+    return dropCount;
+  }
+
+  /**
+   * Gets the number of objects whose load finished after they were removed
+   * from the load plan, and that were discarded.
+   */
+  public synchronized long getCancelCount() {
+    return cancelCount;
+  }
+
+  /**
+   * Gets the number of entries of the current load plan that have not been
+   * loaded yet.
+   */
+  public synchronized int getPrefetchLag() {
+    if (loadPlan == null) return 0;
+    int lag = 0;
+    for (int ndx : loadPlan) {
+      if (cache[ndx] == null) lag++;
+    }
+    return lag;
+  }
+
+  /** Resets the hit, miss, load, drop and cancel counts. */
+  public synchronized void resetStatistics() {
+    hitCount = 0;
+    missCount = 0;
+    loadCount = 0;
+    dropCount = 0;
+    cancelCount = 0;
+  }
+
   // -- CacheReporter API methods --
 
   /* @see CacheReporter#addCacheListener(CacheListener) */
@@ -260,4 +480,220 @@ public class Cache implements CacheReporter {
     }
   }
 
+  /**
+   * Gets the number of bytes used by the given object.  Primitive arrays are
+   * measured exactly; other objects are assumed to be image planes of the
+   * source's reader.  Objects of unknown size are not counted.
+   */
+  protected long getObjectSize(Object o) {
+    if (o == null) return 0;
+    Class<?> type = o.getClass().getComponentType();
+    if (type != null && type.isPrimitive()) {
+      int bytes = 8;
+      if (type == byte.class || type == boolean.class) bytes = 1;
+      else if (type == short.class || type == char.class) bytes = 2;
+      else if (type == int.class || type == float.class) bytes = 4;
+      return (long) Array.getLength(o) * bytes;
+    }
+    if (source instanceof CacheSource) {
+      IFormatReader r = ((CacheSource) source).reader;
+      return (long) r.getSizeX() * r.getSizeY() * r.getRGBChannelCount() *
+        FormatTools.getBytesPerPixel(r.getPixelType());
+    }
+    return 0;
+  }
+
+  private void notifyListeners(List<CacheEvent> events) {
+    for (CacheEvent e : events) notifyListeners(e);
+    events.clear();
+  }
+
+  private synchronized int getLoadPlanLength() {
+    return loadPlan == null ? 0 : loadPlan.length;
+  }
+
+  /**
+   * Recomputes the load plan if needed, and drops the objects that are
+   * no longer on it.
+   */
+  private void updateLoadPlan(List<CacheEvent> events) throws CacheException {
+    if (loadPlan != null) return;
+    int[][] indices = strategy.getLoadList(currentPos);
+    int[] len = strategy.getLengths();
+
+    boolean[] planned = new boolean[cache.length];
+    int[] plan = new int[indices.length];
+    int count = 0;
+    long bytes = 0;
+    for (int i=0; i<indices.length; i++) {
+      int ndx = FormatTools.positionToRaster(len, indices[i]);
+      if (ndx < 0 || ndx >= cache.length || planned[ndx]) continue;
+      long size = cache[ndx] == null ? objectSize : getObjectSize(cache[ndx]);
+      if (count > 0 && bytes + size > maxBytes) break;
+      bytes += size;
+      planned[ndx] = true;
+      plan[count++] = ndx;
+    }
+
+    for (int i=0; i<cache.length; i++) {
+      if (cache[i] != null && !planned[i]) {
+        cachedBytes -= getObjectSize(cache[i]);
+        cache[i] = null;
+        inCache[i] = false;
+        dropCount++;
+        events.add(new CacheEvent(this, CacheEvent.OBJECT_DROPPED, i));
+      }
+    }
+    onPlan = planned;
+    loadPlan = new int[count];
+    System.arraycopy(plan, 0, loadPlan, 0, count);
+    planCursor = 0;
+  }
+
+  /**
+   * Gets the next position on the load plan that is neither loaded nor being
+   * loaded, and marks it as being loaded.  Returns -1 if there is none.
+   */
+  private int nextLoad() {
+    if (loadPlan == null) return -1;
+    while (planCursor < loadPlan.length) {
+      int ndx = loadPlan[planCursor++];
+      if (cache[ndx] == null && !loading[ndx]) {
+        loading[ndx] = true;
+        return ndx;
+      }
+    }
+    return -1;
+  }
+
+  /** Stores a loaded object, unless it is no longer on the load plan. */
+  private void store(int ndx, Object o, int gen, List<CacheEvent> events)
+    throws CacheException
+  {
+    if (gen != generation) return;
+    loading[ndx] = false;
+    if (o == null) return;
+    if (!onPlan[ndx]) {
+      cancelCount++;
+      events.add(new CacheEvent(this, CacheEvent.LOAD_CANCELLED, ndx));
+      return;
+    }
+    cache[ndx] = o;
+    inCache[ndx] = true;
+    objectSize = getObjectSize(o);
+    cachedBytes += objectSize;
+    loadCount++;
+    events.add(new CacheEvent(this, CacheEvent.OBJECT_LOADED, ndx));
+    if (cachedBytes > maxBytes) {
+      // the plan was based on an estimate that was too small
+      loadPlan = null;
+      updateLoadPlan(events);
+    }
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Thread that loads the entries of the load plan in the background,
+   * with its own copy of the source.
+   */
+  private class Prefetcher extends Thread {
+
+    /** Whether the thread should stop; guarded by the cache's lock. */
+    private boolean quit;
+
+    /** Source from which the copy was made. */
+    private ICacheSource original;
+
+    /** The thread's copy of the source. */
+    private ICacheSource copy;
+
+    /** Whether the copy is shared, and must be used by one thread at once. */
+    private boolean exclusive;
+
+    Prefetcher(int n) {
+      super("Bio-Formats-Cache-Prefetcher-" + n);
+      setDaemon(true);
+      setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void run() {
+      List<CacheEvent> events = new ArrayList<CacheEvent>();
+      try {
+        while (true) {
+          int ndx = -1, gen;
+          ICacheSource s;
+          synchronized (Cache.this) {
+            while (!quit && (ndx = nextLoad()) < 0) Cache.this.wait();
+            if (quit) break;
+            gen = generation;
+            s = source;
+          }
+
+          Object o = null;
+          try {
+            o = load(s, ndx);
+          }
+          catch (CacheException e) {
+            LOGGER.info("Could not load object " + ndx, e);
+          }
+          finally {
+            synchronized (Cache.this) {
+              try {
+                store(ndx, o, gen, events);
+              }
+              catch (CacheException e) {
+                LOGGER.info("", e);
+              }
+            }
+            notifyListeners(events);
+          }
+        }
+      }
+      catch (InterruptedException e) {
+        LOGGER.debug("Prefetch thread interrupted", e);
+      }
+      finally {
+        closeCopy();
+      }
+    }
+
+    private Object load(ICacheSource s, int ndx) throws CacheException {
+      if (s != original) {
+        closeCopy();
+        original = s;
+        copy = s;
+        exclusive = true;
+        if (s instanceof CacheSource) {
+          try {
+            copy = ((CacheSource) s).duplicate();
+            exclusive = false;
+          }
+          catch (CacheException e) {
+            LOGGER.info("Could not copy cache source", e);
+          }
+        }
+      }
+      if (exclusive) {
+        synchronized (copy) {
+          return copy.getObject(ndx);
+        }
+      }
+      return copy.getObject(ndx);
+    }
+
+    private void closeCopy() {
+      if (copy != original && copy instanceof CacheSource) {
+        try {
+          ((CacheSource) copy).reader.close();
+        }
+        catch (IOException e) {
+          LOGGER.info("Could not close reader", e);
+        }
+      }
+      original = null;
+      copy = null;
+    }
+  }
+
 }
@@ -60,6 +60,12 @@ public class CacheEvent {
   /** Event type indicating an object has been removed from the cache. */
   public static final int OBJECT_DROPPED = 8;
 
+  /**
+   * Event type indicating an object finished loading after it was removed
+   * from the load plan, and has been discarded.
+   */
+  public static final int LOAD_CANCELLED = 9;
+
   // -- Fields --
 
   /** Source of the cache update. */
@@ -94,7 +100,7 @@ public class CacheEvent {
   /**
    * Gets the index relevant to the cache update, if any.
    * This parameter is only set for events POSITION_CHANGED,
-   * OBJECT_LOADED and OBJECT_DROPPED.
+   * OBJECT_LOADED, OBJECT_DROPPED and LOAD_CANCELLED.
    */
   public int getIndex() { return index; }
 
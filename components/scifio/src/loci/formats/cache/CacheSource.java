@@ -24,10 +24,12 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats.cache;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 
 import loci.formats.FileStitcher;
 import loci.formats.FormatException;
 import loci.formats.IFormatReader;
+import loci.formats.ReaderWrapper;
 
 /**
  * Superclass of cache sources that retrieve image planes
@@ -57,6 +59,41 @@ public abstract class CacheSource implements ICacheSource {
     catch (IOException exc) { throw new CacheException(exc); }
   }
 
+  // -- CacheSource API methods --
+
+  /**
+   * Creates a source of the same type that reads from its own copy of the
+   * reader, so that objects can be retrieved on another thread.  The copy is
+   * initialized with the reader's current file, series and resolution.
+   * If the reader is thread-safe, it is shared and this source is returned.
+   * Subclasses must have a constructor that takes an {@link IFormatReader}.
+   */
+  public CacheSource duplicate() throws CacheException {
+    if (reader.isThreadSafe()) return this;
+    try {
+      IFormatReader r = null;
+      if (reader instanceof ReaderWrapper) {
+        r = ((ReaderWrapper) reader).duplicate(null);
+      }
+      else r = reader.getClass().newInstance();
+      r.setGroupFiles(reader.isGroupFiles());
+      r.setNormalized(reader.isNormalized());
+      r.setMetadataFiltered(reader.isMetadataFiltered());
+      r.setFlattenedResolutions(reader.hasFlattenedResolutions());
+      r.setId(reader.getCurrentFile());
+      r.setSeries(reader.getSeries());
+      r.setResolution(reader.getResolution());
+      return getClass().getConstructor(
+        new Class<?>[] {IFormatReader.class}).newInstance(new Object[] {r});
+    }
+    catch (FormatException exc) { throw new CacheException(exc); }
+    catch (IOException exc) { throw new CacheException(exc); }
+    catch (InstantiationException exc) { throw new CacheException(exc); }
+    catch (IllegalAccessException exc) { throw new CacheException(exc); }
+    catch (NoSuchMethodException exc) { throw new CacheException(exc); }
+    catch (InvocationTargetException exc) { throw new CacheException(exc); }
+  }
+
   // -- ICacheSource API methods --
 
   /* @see loci.formats.cache.ICacheSource#getObjectCount() */
@@ -0,0 +1,337 @@
+//
+// TileSource.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.cache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+
+/**
+ * Retrieves tiles of image planes as byte arrays, for viewers that read
+ * regions of planes that are too large to cache whole.
+ *
+ * Tiles are aligned to the reader's optimal tile size, and are indexed by
+ * the dimensional position (tileX, tileY, Z, C, T) of the reader's current
+ * series and resolution; see {@link #getLengths()} and {@link TileStrategy}.
+ * Decoded tiles are kept in a store, keyed by series, resolution, plane
+ * and tile, that is limited to a number of bytes; the least recently used
+ * tiles are evicted first.  Copies of this source made for prefetch threads
+ * (see {@link #duplicate()}) share the store.
+ *
+ * A viewer would typically use a tile source together with a {@link Cache}
+ * that prefetches the tiles around the visible region:
+ * <pre>
+ * TileSource source = new TileSource(reader, 512 * 1024 * 1024);
+ * Cache cache = new Cache(new TileStrategy(source.getLengths()),
+ *   source, true, 2);
+ * ...
+ * cache.setCurrentPos(source.getPosition(no, x, y));
+ * byte[] region = source.openBytes(no, buf, x, y, w, h);
+ * </pre>
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/cache/TileSource.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/cache/TileSource.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class TileSource extends CacheSource {
+
+  // -- Constants --
+
+  /** Default maximum number of bytes of stored tiles. */
+  public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  // -- Fields --
+
+  /** Decoded tiles, shared with copies of this source. */
+  private TileStore store;
+
+  // -- Constructors --
+
+  /** Constructs a tile source from the given Bio-Formats reader. */
+  public TileSource(IFormatReader r) { this(r, DEFAULT_MAX_BYTES); }
+
+  /**
+   * Constructs a tile source from the given Bio-Formats reader, that stores
+   * at most the given number of bytes of tiles.
+   */
+  public TileSource(IFormatReader r, long maxBytes) {
+    super(r);
+    store = new TileStore(maxBytes);
+  }
+
+  /** Constructs a tile source that draws from the given file. */
+  public TileSource(String id) throws CacheException {
+    super(id);
+    store = new TileStore(DEFAULT_MAX_BYTES);
+  }
+
+  // -- TileSource API methods --
+
+  /** Gets the width of each tile, except those at the right edge. */
+  public int getTileWidth() {
+    return Math.min(reader.getOptimalTileWidth(), reader.getSizeX());
+  }
+
+  /** Gets the height of each tile, except those at the bottom edge. */
+  public int getTileHeight() {
+    return Math.min(reader.getOptimalTileHeight(), reader.getSizeY());
+  }
+
+  /**
+   * Gets the length of each axis of the tile positions:
+   * tiles along X, tiles along Y, Z, C (effective) and T.
+   */
+  public int[] getLengths() {
+    int tileWidth = getTileWidth();
+    int tileHeight = getTileHeight();
+    return new int[] {
+      (reader.getSizeX() + tileWidth - 1) / tileWidth,
+      (reader.getSizeY() + tileHeight - 1) / tileHeight,
+      reader.getSizeZ(), reader.getEffectiveSizeC(), reader.getSizeT()
+    };
+  }
+
+  /**
+   * Gets the position of the tile containing the given pixel of the given
+   * plane, e.g. for {@link Cache#setCurrentPos(int[])}.
+   */
+  public int[] getPosition(int no, int x, int y) {
+    int[] zct = reader.getZCTCoords(no);
+    return new int[] {
+      x / getTileWidth(), y / getTileHeight(), zct[0], zct[1], zct[2]
+    };
+  }
+
+  /**
+   * Gets the given tile of the given plane, decoding it if it is not stored.
+   * The tile is laid out as for {@link IFormatReader#openBytes(int, int,
+   * int, int, int)}; tiles at the right and bottom edges may be smaller.
+   */
+  public byte[] getTile(int no, int tileX, int tileY) throws CacheException {
+    TileKey key = new TileKey(reader.getSeries(), reader.getResolution(),
+      no, tileX, tileY);
+    byte[] tile = store.get(key);
+    if (tile != null) return tile;
+
+    int tileWidth = getTileWidth();
+    int tileHeight = getTileHeight();
+    int x = tileX * tileWidth;
+    int y = tileY * tileHeight;
+    int w = Math.min(tileWidth, reader.getSizeX() - x);
+    int h = Math.min(tileHeight, reader.getSizeY() - y);
+    try {
+      tile = reader.openBytes(no, x, y, w, h);
+    }
+    catch (FormatException exc) { throw new CacheException(exc); }
+    catch (IOException exc) { throw new CacheException(exc); }
+    store.put(key, tile);
+    return tile;
+  }
+
+  /**
+   * Obtains a sub-image of the given plane from its tiles, into the given
+   * buffer, as {@link IFormatReader#openBytes(int, byte[], int, int, int,
+   * int)} would.
+   */
+  public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+    throws CacheException
+  {
+    try {
+      FormatTools.checkPlaneParameters(reader, no, buf.length, x, y, w, h);
+    }
+    catch (FormatException exc) { throw new CacheException(exc); }
+
+    int rgb = reader.getRGBChannelCount();
+    int bpp = FormatTools.getBytesPerPixel(reader.getPixelType());
+    boolean interleaved = reader.isInterleaved();
+    int pixel = interleaved ? bpp * rgb : bpp;
+    int channels = interleaved ? 1 : rgb;
+
+    int tileWidth = getTileWidth();
+    int tileHeight = getTileHeight();
+    for (int tileY=y / tileHeight; tileY<=(y + h - 1) / tileHeight; tileY++) {
+      for (int tileX=x / tileWidth; tileX<=(x + w - 1) / tileWidth; tileX++) {
+        byte[] tile = getTile(no, tileX, tileY);
+        int x0 = tileX * tileWidth;
+        int y0 = tileY * tileHeight;
+        int tw = Math.min(tileWidth, reader.getSizeX() - x0);
+        int th = Math.min(tileHeight, reader.getSizeY() - y0);
+
+        // intersection of the tile and the region
+        int left = Math.max(x, x0);
+        int top = Math.max(y, y0);
+        int right = Math.min(x + w, x0 + tw);
+        int bottom = Math.min(y + h, y0 + th);
+        int rowLength = (right - left) * pixel;
+        for (int c=0; c<channels; c++) {
+          for (int row=top; row<bottom; row++) {
+            int src = ((c * th + row - y0) * tw + left - x0) * pixel;
+            int dest = ((c * h + row - y) * w + left - x) * pixel;
+            System.arraycopy(tile, src, buf, dest, rowLength);
+          }
+        }
+      }
+    }
+    return buf;
+  }
+
+  /** Gets the maximum number of bytes of stored tiles. */
+  public long getMaxBytes() {
+    synchronized (store) { return store.maxBytes; }
+  }
+
+  /**
+   * Sets the maximum number of bytes of stored tiles, evicting the least
+   * recently used tiles if needed.
+   */
+  public void setMaxBytes(long maxBytes) {
+    synchronized (store) {
+      store.maxBytes = maxBytes;
+      store.evict();
+    }
+  }
+
+  /** Gets the number of bytes of stored tiles. */
+  public long getCachedBytes() {
+    synchronized (store) { return store.bytes; }
+  }
+
+  /** Gets the number of tile requests that were answered from the store. */
+  public long getHitCount() {
+    synchronized (store) { return store.hits; }
+  }
+
+  /** Gets the number of tile requests that needed to decode the tile. */
+  public long getMissCount() {
+    synchronized (store) { return store.misses; }
+  }
+
+  /** Gets the number of tiles evicted from the store. */
+  public long getEvictionCount() {
+    synchronized (store) { return store.evictions; }
+  }
+
+  /** Removes all stored tiles. */
+  public void clear() {
+    synchronized (store) {
+      store.tiles.clear();
+      store.bytes = 0;
+    }
+  }
+
+  // -- CacheSource API methods --
+
+  /* @see CacheSource#duplicate() */
+  public CacheSource duplicate() throws CacheException {
+    TileSource copy = (TileSource) super.duplicate();
+    copy.store = store;
+    return copy;
+  }
+
+  // -- ICacheSource API methods --
+
+  /* @see ICacheSource#getObjectCount() */
+  public int getObjectCount() {
+    return FormatTools.getRasterLength(getLengths());
+  }
+
+  /* @see ICacheSource#getObject(int) */
+  public Object getObject(int index) throws CacheException {
+    int[] pos = FormatTools.rasterToPosition(getLengths(), index);
+    int no = reader.getIndex(pos[2], pos[3], pos[4]);
+    return getTile(no, pos[0], pos[1]);
+  }
+
+  // -- Helper classes --
+
+  /** Identifies a tile of a plane. */
+  private static class TileKey {
+    private int series, resolution, no, tileX, tileY;
+
+    public TileKey(int series, int resolution, int no, int tileX, int tileY) {
+      this.series = series;
+      this.resolution = resolution;
+      this.no = no;
+      this.tileX = tileX;
+      this.tileY = tileY;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof TileKey)) return false;
+      TileKey k = (TileKey) o;
+      return series == k.series && resolution == k.resolution &&
+        no == k.no && tileX == k.tileX && tileY == k.tileY;
+    }
+
+    public int hashCode() {
+      int h = series;
+      h = 31 * h + resolution;
+      h = 31 * h + no;
+      h = 31 * h + tileX;
+      return 31 * h + tileY;
+    }
+  }
+
+  /** Least recently used tiles, limited to a number of bytes. */
+  private static class TileStore {
+    private Map<TileKey, byte[]> tiles =
+      new LinkedHashMap<TileKey, byte[]>(16, 0.75f, true);
+    private long maxBytes, bytes;
+    private long hits, misses, evictions;
+
+    public TileStore(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    public synchronized byte[] get(TileKey key) {
+      byte[] tile = tiles.get(key);
+      if (tile == null) misses++;
+      else hits++;
+      return tile;
+    }
+
+    public synchronized void put(TileKey key, byte[] tile) {
+      byte[] old = tiles.put(key, tile);
+      if (old != null) bytes -= old.length;
+      bytes += tile.length;
+      evict();
+    }
+
+    /** Evicts the least recently used tiles until the store fits. */
+    private void evict() {
+      Iterator<byte[]> it = tiles.values().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        bytes -= it.next().length;
+        it.remove();
+        evictions++;
+      }
+    }
+  }
+
+}
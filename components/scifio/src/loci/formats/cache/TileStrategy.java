@@ -0,0 +1,108 @@
+//
+// TileStrategy.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.cache;
+
+/**
+ * A tile strategy caches the tiles around the current tile of a plane, and
+ * the same tile of the neighboring planes.  Positions have the axes of
+ * {@link TileSource#getLengths()}: tiles along X, tiles along Y, Z, C and T.
+ * Along X and Y the strategy behaves like a {@link RectangleStrategy},
+ * without wrapping around the edges of the plane; along Z, C and T it
+ * behaves like a {@link CrosshairStrategy}, for the current tile only.
+ * <p>
+ * The range is initially 1 along each axis, i.e. the eight surrounding
+ * tiles and the current tile of the previous and next Z, C and T.
+ * <p>
+ * To illustrate the XY part of the tile strategy, here is a diagram of a
+ * plane with 7x5 tiles, for a strategy with only the X and Y axes and range
+ * 2 along both.  The numbers indicate the order tiles will be cached, with
+ * "0" corresponding to the current tile (X3-Y2).
+ * <pre>
+ *      X  0  1  2  3  4  5  6
+ *    Y /---------------------
+ *    0 |    24 18  8 17 23
+ *    1 |    20 12  4 11 19
+ *    2 |     6  2  0  1  5
+ *    3 |    14 10  3  9 13
+ *    4 |    22 16  7 15 21
+ * </pre>
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/cache/TileStrategy.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/cache/TileStrategy.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class TileStrategy extends CacheStrategy {
+
+  // -- Constructor --
+
+  /**
+   * Constructs a tile strategy.
+   * @param lengths the number of tiles along X and Y, followed by the
+   *   lengths of the other axes
+   */
+  public TileStrategy(int[] lengths) {
+    super(lengths);
+    for (int i=0; i<lengths.length; i++) range[i] = 1;
+  }
+
+  // -- ICacheStrategy API methods --
+
+  /* @see ICacheStrategy#getLoadList(int[]) */
+  public int[][] getLoadList(int[] pos) throws CacheException {
+    int[][] list = super.getLoadList(pos);
+
+    // leave out tiles that wrapped around an edge of the plane
+    int count = 0;
+    for (int i=0; i<list.length; i++) {
+      if (Math.abs(list[i][0] - pos[0]) <= range[0] &&
+        Math.abs(list[i][1] - pos[1]) <= range[1])
+      {
+        list[count++] = list[i];
+      }
+    }
+    int[][] loadList = new int[count][];
+    System.arraycopy(list, 0, loadList, 0, count);
+    return loadList;
+  }
+
+  // -- CacheStrategy API methods --
+
+  /* @see CacheStrategy#getPossiblePositions() */
+  protected int[][] getPossiblePositions() {
+    // any combination of tiles in XY, or a single other axis
+    int tiles = lengths[0] * lengths[1];
+    int len = tiles;
+    for (int i=2; i<lengths.length; i++) len += lengths[i] - 1;
+    int[][] p = new int[len][lengths.length];
+    for (int i=0; i<tiles; i++) {
+      p[i][0] = i % lengths[0];
+      p[i][1] = i / lengths[0];
+    }
+    for (int i=2, c=tiles-1; i<lengths.length; i++) {
+      for (int j=1; j<lengths[i]; j++) p[++c][i] = j;
+    }
+    return p;
+  }
+
+}
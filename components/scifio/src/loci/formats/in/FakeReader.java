@@ -48,6 +48,7 @@ import loci.formats.meta.MetadataStore;
  *  <li>showinf '32bit-unsigned&amp;pixelType=uint32&amp;sizeZ=3&amp;sizeC=5&amp;sizeT=7&amp;sizeY=50.fake'</li>
  *  <li>showinf '32bit-floating&amp;pixelType=float&amp;sizeZ=3&amp;sizeC=5&amp;sizeT=7&amp;sizeY=50.fake'</li>
  *  <li>showinf '64bit-floating&amp;pixelType=double&amp;sizeZ=3&amp;sizeC=5&amp;sizeT=7&amp;sizeY=50.fake'</li>
+ *  <li>showinf 'pyramid&amp;resolutions=4&amp;sizeX=4096&amp;sizeY=4096.fake'</li>
  * </ul></p>
  *
  * <dl><dt><b>Source code:</b></dt>
@@ -243,6 +244,7 @@ public class FakeReader extends FormatReader {
     boolean thumbnail = false;
 
     int seriesCount = 1;
+    int resolutionCount = 1;
     int lutLength = 3;
 
     // parse tokens from filename
@@ -289,6 +291,7 @@ public class FakeReader extends FormatReader {
       else if (key.equals("metadataComplete")) metadataComplete = boolValue;
       else if (key.equals("thumbnail")) thumbnail = boolValue;
       else if (key.equals("series")) seriesCount = intValue;
+      else if (key.equals("resolutions")) resolutionCount = intValue;
       else if (key.equals("lutLength")) lutLength = intValue;
       else if (key.equals("scaleFactor")) scaleFactor = doubleValue;
     }
@@ -316,17 +319,22 @@ public class FakeReader extends FormatReader {
     if (seriesCount < 1) {
       throw new FormatException("Invalid seriesCount: " + seriesCount);
     }
+    if (resolutionCount < 1) {
+      throw new FormatException("Invalid resolutionCount: " + resolutionCount);
+    }
     if (lutLength < 1) {
       throw new FormatException("Invalid lutLength: " + lutLength);
     }
 
     // populate core metadata
     int effSizeC = sizeC / rgb;
-    core = new CoreMetadata[seriesCount];
-    for (int s=0; s<seriesCount; s++) {
+    // each resolution is half the size of the previous one
+    core = new CoreMetadata[seriesCount * resolutionCount];
+    for (int s=0; s<core.length; s++) {
+      int resolution = s % resolutionCount;
       core[s] = new CoreMetadata();
-      core[s].sizeX = sizeX;
-      core[s].sizeY = sizeY;
+      core[s].sizeX = Math.max(sizeX >> resolution, 1);
+      core[s].sizeY = Math.max(sizeY >> resolution, 1);
       core[s].sizeZ = sizeZ;
       core[s].sizeC = sizeC;
       core[s].sizeT = sizeT;
@@ -343,13 +351,14 @@ public class FakeReader extends FormatReader {
       core[s].indexed = indexed;
       core[s].falseColor = falseColor;
       core[s].metadataComplete = metadataComplete;
-      core[s].thumbnail = thumbnail;
+      core[s].thumbnail = thumbnail || resolution > 0;
+      if (resolution == 0) core[s].resolutionCount = resolutionCount;
     }
 
     // populate OME metadata
     MetadataStore store = makeFilterMetadata();
     MetadataTools.populatePixels(store, this);
-    for (int s=0; s<seriesCount; s++) {
+    for (int s=0; s<getSeriesCount(); s++) {
       String imageName = s > 0 ? name + " " + (s + 1) : name;
       store.setImageName(imageName, s);
     }
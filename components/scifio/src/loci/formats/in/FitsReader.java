@@ -24,6 +24,7 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats.in;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import loci.common.RandomAccessInputStream;
 import loci.formats.FormatException;
@@ -76,6 +77,17 @@ public class FitsReader extends FormatReader {
     return buf;
   }
 
+  /**
+   * @see loci.formats.IFormatReader#openMappedBytes(int, int, int, int, int)
+   */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, -1, x, y, w, h);
+    long offset = pixelOffset + (long) no * FormatTools.getPlaneSize(this);
+    return mapPlane(currentId, offset, x, y, w, h);
+  }
+
   /* @see loci.formats.IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
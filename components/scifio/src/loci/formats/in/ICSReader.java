@@ -25,6 +25,8 @@ package loci.formats.in;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Hashtable;
@@ -702,6 +704,47 @@ public class ICSReader extends FormatReader {
     return buf;
   }
 
+  /**
+   * @see loci.formats.IFormatReader#openMappedBytes(int, int, int, int, int)
+   */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, -1, x, y, w, h);
+
+    // compressed, flipped and separated channels all require a copy
+    int sizeC = lifetime ? 1 : getSizeC();
+    if (gzip || invertY ||
+      (!isRGB() && sizeC > 4 && channelLengths.size() == 1 && storedRGB))
+    {
+      return null;
+    }
+
+    long len = FormatTools.getPlaneSize(this);
+    String file = versionTwo ? currentIcsId : currentIdsId;
+    return mapPlane(file, offset + no * len, x, y, w, h);
+  }
+
+  /**
+   * @see loci.formats.IFormatReader#openPlane(int, Buffer, int, int, int, int)
+   */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf, x, y, w, h);
+
+    // compressed, flipped and separated channels are decoded by openBytes
+    int sizeC = lifetime ? 1 : getSizeC();
+    if (gzip || invertY ||
+      (!isRGB() && sizeC > 4 && channelLengths.size() == 1 && storedRGB))
+    {
+      return super.openPlane(no, buf, x, y, w, h);
+    }
+
+    in.seek(offset + no * (long) FormatTools.getPlaneSize(this));
+    return readPlane(in, x, y, w, h, buf);
+  }
+
   /* @see loci.formats.IFormatReader#getSeriesUsedFiles(boolean) */
   public String[] getSeriesUsedFiles(boolean noPixels) {
     FormatTools.assertId(currentId, true, 1);
@@ -24,10 +24,14 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats.in;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -79,7 +83,7 @@ public class MinimalTiffReader extends FormatReader {
    */
   protected List<IFDList> subResolutionIFDs;
 
-  protected TiffParser tiffParser;
+  protected transient TiffParser tiffParser;
 
   protected boolean use64Bit = false;
 
@@ -89,7 +93,21 @@ public class MinimalTiffReader extends FormatReader {
   private Integer resolutionLevels;
 
   /** Codec options to use when decoding JPEG 2000 data. */
-  private JPEG2000CodecOptions j2kCodecOptions;
+  private transient JPEG2000CodecOptions j2kCodecOptions;
+
+  /** Executor used to decode tiles concurrently, if any. */
+  private transient ExecutorService tileExecutor;
+
+  /** Thread that initialized the reader, and which owns {@link #tiffParser}. */
+  private transient Thread initThread;
+
+  /** Parsers used by other threads; see {@link #getTiffParser()}. */
+  private transient ThreadLocal<TiffParser> threadParsers =
+    new ThreadLocal<TiffParser>();
+
+  /** Streams opened for other threads, closed along with the reader. */
+  private transient List<RandomAccessInputStream> threadStreams =
+    new ArrayList<RandomAccessInputStream>();
 
   // -- Constructors --
 
@@ -122,6 +140,16 @@ public class MinimalTiffReader extends FormatReader {
     return thumbnailIFDs;
   }
 
+  /**
+   * Sets the executor used to decode the tiles of a single
+   * <code>openBytes</code> call concurrently.
+   * @see TiffParser#setTileExecutor(ExecutorService)
+   */
+  public void setTileExecutor(ExecutorService executor) {
+    tileExecutor = executor;
+    if (tiffParser != null) tiffParser.setTileExecutor(executor);
+  }
+
   // -- IFormatReader API methods --
 
   /* @see loci.formats.IFormatReader#isThisType(RandomAccessInputStream) */
@@ -263,16 +291,19 @@ public class MinimalTiffReader extends FormatReader {
     IFD firstIFD = ifds.get(0);
     lastPlane = no;
     IFD ifd = ifds.get(no);
+    TiffParser parser = getTiffParser();
     if ((firstIFD.getCompression() == TiffCompression.JPEG_2000
         || firstIFD.getCompression() == TiffCompression.JPEG_2000_LOSSY)
         && resolutionLevels != null) {
       if (series > 0) {
         ifd = subResolutionIFDs.get(no).get(series - 1);
       }
-      setResolutionLevel(ifd);
+      setResolutionLevel(ifd, parser);
     }
 
-    tiffParser.getSamples(ifd, buf, x, y, w, h);
+    // read any values that are still deferred with this thread's stream
+    parser.fillInIFD(ifd);
+    parser.getSamples(ifd, buf, x, y, w, h);
 
     boolean float16 = getPixelType() == FormatTools.FLOAT &&
       firstIFD.getBitsPerSample()[0] == 16;
@@ -325,9 +356,66 @@ public class MinimalTiffReader extends FormatReader {
     return buf;
   }
 
+  /**
+   * @see loci.formats.IFormatReader#openMappedBytes(int, int, int, int, int)
+   */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, -1, x, y, w, h);
+    if (!isRawTiffPixels()) return null;
+
+    IFD ifd = ifds.get(no);
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    if (ifd.getBytesPerSample()[0] != bpp) return null;
+    long offset = tiffParser.getContiguousPixelOffset(ifd);
+    if (offset < 0) return null;
+    return mapPlane(currentId, offset, x, y, w, h);
+  }
+
+  /**
+   * @see loci.formats.IFormatReader#openPlane(int, Buffer, int, int, int, int)
+   */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf, x, y, w, h);
+    if (!isRawTiffPixels()) return super.openPlane(no, buf, x, y, w, h);
+
+    // uncompressed pixels are decoded straight from the file
+    IFD ifd = ifds.get(no);
+    TiffParser parser = getTiffParser();
+    parser.fillInIFD(ifd);
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    long offset = ifd.getBytesPerSample()[0] == bpp ?
+      parser.getContiguousPixelOffset(ifd) : -1;
+    if (offset < 0) return super.openPlane(no, buf, x, y, w, h);
+
+    ByteBuffer plane = mapPlane(currentId, offset, x, y, w, h);
+    if (plane != null) FormatTools.copySamples(plane, bpp, buf);
+    else {
+      RandomAccessInputStream s = parser.getStream();
+      s.seek(offset);
+      readPlane(s, x, y, w, h, buf);
+    }
+    return buf;
+  }
+
+  /* @see loci.formats.IFormatReader#isThreadSafe() */
+  public boolean isThreadSafe() {
+    return isRawTiffPixels();
+  }
+
   /* @see loci.formats.IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
+    synchronized (threadStreams) {
+      for (RandomAccessInputStream s : threadStreams) {
+        s.close();
+      }
+      threadStreams.clear();
+    }
+    threadParsers = new ThreadLocal<TiffParser>();
     if (!fileOnly) {
       ifds = null;
       thumbnailIFDs = null;
@@ -371,7 +459,11 @@ public class MinimalTiffReader extends FormatReader {
     in = new RandomAccessInputStream(id);
     tiffParser = new TiffParser(in);
     tiffParser.setDoCaching(false);
+    tiffParser.setLazyIFDs(true);
+    tiffParser.setCompactIFDs(true);
     tiffParser.setUse64BitOffsets(use64Bit);
+    tiffParser.setTileExecutor(tileExecutor);
+    initThread = Thread.currentThread();
     Boolean littleEndian = tiffParser.checkHeader();
     if (littleEndian == null) {
       throw new FormatException("Invalid TIFF file");
@@ -405,7 +497,6 @@ public class MinimalTiffReader extends FormatReader {
     core[0].imageCount = ifds.size();
 
     for (IFD ifd : ifds) {
-      tiffParser.fillInIFD(ifd);
       if (ifd.getCompression() == TiffCompression.JPEG_2000
           || ifd.getCompression() == TiffCompression.JPEG_2000_LOSSY) {
         LOGGER.debug("Found IFD with JPEG 2000 compression");
@@ -519,6 +610,7 @@ public class MinimalTiffReader extends FormatReader {
         newCore[i].thumbnail = true;
         i++;
       }
+      newCore[0].resolutionCount = newCore.length;
       core = newCore;
     }
 
@@ -533,9 +625,81 @@ public class MinimalTiffReader extends FormatReader {
    * IFD if <code>currentSeries > 0</code>.
    */
   protected void setResolutionLevel(IFD ifd) {
-    j2kCodecOptions.resolution = Math.abs(series - resolutionLevels);
-    LOGGER.debug("Using JPEG 2000 resolution level {}",
-        j2kCodecOptions.resolution);
-    tiffParser.setCodecOptions(j2kCodecOptions);
+    setResolutionLevel(ifd, tiffParser);
+  }
+
+  /**
+   * Sets the resolution level used by the given parser when we have
+   * JPEG 2000 compressed data.
+   * @see #setResolutionLevel(IFD)
+   */
+  protected void setResolutionLevel(IFD ifd, TiffParser parser) {
+    // each parser gets its own options, as parsers may be used concurrently
+    JPEG2000CodecOptions options = new JPEG2000CodecOptions(j2kCodecOptions);
+    options.resolution = Math.abs(series - resolutionLevels);
+    LOGGER.debug("Using JPEG 2000 resolution level {}", options.resolution);
+    parser.setCodecOptions(options);
   }
+
+  /**
+   * Gets the parser with which the current thread should read pixels.  The
+   * thread that initialized the reader uses {@link #tiffParser}; every other
+   * thread gets a parser over its own stream, so that planes can be read
+   * concurrently.
+   */
+  protected TiffParser getTiffParser() throws IOException {
+    if (Thread.currentThread() == initThread) return tiffParser;
+    TiffParser parser = threadParsers.get();
+    if (parser == null) {
+      RandomAccessInputStream s = new RandomAccessInputStream(currentId);
+      s.order(in.isLittleEndian());
+      synchronized (threadStreams) {
+        threadStreams.add(s);
+      }
+      parser = new TiffParser(s);
+      parser.setDoCaching(false);
+      parser.setUse64BitOffsets(use64Bit);
+      parser.setTileExecutor(tileExecutor);
+      threadParsers.set(parser);
+    }
+    return parser;
+  }
+
+  // -- Serialization methods --
+
+  private void readObject(ObjectInputStream s)
+    throws IOException, ClassNotFoundException
+  {
+    s.defaultReadObject();
+    j2kCodecOptions = JPEG2000CodecOptions.getDefaultOptions();
+    threadParsers = new ThreadLocal<TiffParser>();
+    threadStreams = new ArrayList<RandomAccessInputStream>();
+    initThread = Thread.currentThread();
+    if (in != null) {
+      tiffParser = new TiffParser(in);
+      tiffParser.setDoCaching(false);
+      tiffParser.setLazyIFDs(true);
+      tiffParser.setCompactIFDs(true);
+      tiffParser.setUse64BitOffsets(use64Bit);
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Returns true if planes are returned exactly as decoded by
+   * {@link #openBytes(int, byte[], int, int, int, int)} in this class, i.e.
+   * if no subclass post-processes or rearranges the pixels.
+   */
+  private boolean isRawTiffPixels() {
+    try {
+      return getClass().getMethod("openBytes", int.class, byte[].class,
+        int.class, int.class, int.class, int.class).getDeclaringClass() ==
+        MinimalTiffReader.class;
+    }
+    catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
 }
@@ -25,10 +25,19 @@ package loci.formats.in;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import loci.common.Location;
@@ -66,6 +75,11 @@ import ome.xml.model.primitives.PositiveInteger;
  */
 public class OMETiffReader extends FormatReader {
 
+  // -- Constants --
+
+  /** Default maximum number of files kept open by a lazily initialized reader. */
+  public static final int DEFAULT_MAX_OPEN_FILES = 16;
+
   // -- Fields --
 
   /** Mapping from series and plane numbers to files and IFD entries. */
@@ -80,7 +94,20 @@ public class OMETiffReader extends FormatReader {
   private int[] tileWidth;
   private int[] tileHeight;
 
-  private OMEXMLService service;
+  private transient OMEXMLService service;
+
+  /** Whether the IFDs of each file are parsed only when first needed. */
+  private boolean lazy = true;
+
+  private int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+
+  /** Files that have been accessed by a lazily initialized reader. */
+  private transient Map<String, OMETiffFile> tiffFiles =
+    new HashMap<String, OMETiffFile>();
+
+  /** Files with an open stream, least recently used first. */
+  private transient LinkedHashMap<String, OMETiffFile> openFiles =
+    new LinkedHashMap<String, OMETiffFile>();
 
   // -- Constructor --
 
@@ -207,9 +234,26 @@ public class OMETiffReader extends FormatReader {
     FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
     lastPlane = no;
     int i = info[series][no].ifd;
+    if (lazy) {
+      OMETiffFile file = getPlaneFile(no);
+      try {
+        IFD ifd = file.getIFD(i);
+        if (ifd == null) {
+          LOGGER.warn(
+            "Error untangling IFDs; the OME-TIFF file may be malformed.");
+        }
+        else file.getSamples(ifd, buf, x, y, w, h);
+      }
+      finally {
+        release(file);
+      }
+      return buf;
+    }
     MinimalTiffReader r = (MinimalTiffReader) info[series][no].reader;
-    if (r.getCurrentFile() == null) {
-      r.setId(info[series][no].id);
+    synchronized (r) {
+      if (r.getCurrentFile() == null) {
+        r.setId(info[series][no].id);
+      }
     }
     IFDList ifdList = r.getIFDs();
     if (i >= ifdList.size()) {
@@ -225,6 +269,89 @@ public class OMETiffReader extends FormatReader {
     return buf;
   }
 
+  /*
+   * @see loci.formats.IFormatReader#openMappedBytes(int, int, int, int, int)
+   */
+  public ByteBuffer openMappedBytes(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, -1, x, y, w, h);
+    int i = info[series][no].ifd;
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    if (lazy) {
+      OMETiffFile file = getPlaneFile(no);
+      long offset = -1;
+      try {
+        IFD ifd = file.getIFD(i);
+        if (ifd != null && ifd.getImageWidth() == getSizeX() &&
+          ifd.getImageLength() == getSizeY() &&
+          ifd.getBytesPerSample()[0] == bpp &&
+          ifd.isLittleEndian() == isLittleEndian())
+        {
+          offset = file.getContiguousPixelOffset(ifd);
+        }
+      }
+      finally {
+        release(file);
+      }
+      return offset < 0 ? null : mapPlane(file.id, offset, x, y, w, h);
+    }
+    MinimalTiffReader r = (MinimalTiffReader) info[series][no].reader;
+    synchronized (r) {
+      if (r.getCurrentFile() == null) {
+        r.setId(info[series][no].id);
+      }
+    }
+    if (i >= r.getImageCount() || r.getSizeX() != getSizeX() ||
+      r.getSizeY() != getSizeY() ||
+      FormatTools.getBytesPerPixel(r.getPixelType()) != bpp)
+    {
+      return null;
+    }
+    return r.openMappedBytes(i, x, y, w, h);
+  }
+
+  /*
+   * @see loci.formats.IFormatReader#openPlane(int, Buffer, int, int, int, int)
+   */
+  public Buffer openPlane(int no, Buffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    FormatTools.checkPlaneParameters(this, no, buf, x, y, w, h);
+    lastPlane = no;
+    // a lazily initialized reader maps or decodes the plane from its own
+    // copy of the file, via openMappedBytes or openBytes
+    if (lazy) return super.openPlane(no, buf, x, y, w, h);
+    int i = info[series][no].ifd;
+    MinimalTiffReader r = (MinimalTiffReader) info[series][no].reader;
+    synchronized (r) {
+      if (r.getCurrentFile() == null) {
+        r.setId(info[series][no].id);
+      }
+    }
+    if (i >= r.getImageCount() || r.getSizeX() != getSizeX() ||
+      r.getSizeY() != getSizeY() || r.getPixelType() != getPixelType() ||
+      r.getRGBChannelCount() != getRGBChannelCount())
+    {
+      return super.openPlane(no, buf, x, y, w, h);
+    }
+    return r.openPlane(i, buf, x, y, w, h);
+  }
+
+  /* @see loci.formats.IFormatReader#isThreadSafe() */
+  public boolean isThreadSafe() {
+    // every call to openBytes reads through a new stream, or through a
+    // pooled stream that is locked for the duration of the read; but the
+    // lookup tables are those of the plane last read, so indexed images
+    // cannot be shared between threads
+    if (core != null) {
+      for (CoreMetadata c : core) {
+        if (c != null && c.indexed) return false;
+      }
+    }
+    return true;
+  }
+
   /* @see loci.formats.IFormatReader#getSeriesUsedFiles(boolean) */
   public String[] getSeriesUsedFiles(boolean noPixels) {
     FormatTools.assertId(currentId, true, 1);
@@ -270,6 +397,17 @@ public class OMETiffReader extends FormatReader {
         }
       }
     }
+    List<OMETiffFile> files;
+    synchronized (tiffFiles) {
+      files = new ArrayList<OMETiffFile>(tiffFiles.values());
+      tiffFiles.clear();
+    }
+    synchronized (openFiles) {
+      openFiles.clear();
+    }
+    for (OMETiffFile file : files) {
+      file.close();
+    }
     if (!fileOnly) {
       info = null;
       used = null;
@@ -282,12 +420,14 @@ public class OMETiffReader extends FormatReader {
   /* @see loci.formats.IFormatReader#getOptimalTileWidth() */
   public int getOptimalTileWidth() {
     FormatTools.assertId(currentId, true, 1);
+    if (tileWidth[getSeries()] == 0) findTileSize();
     return tileWidth[getSeries()];
   }
 
   /* @see loci.formats.IFormatReader#getOptimalTileHeight() */
   public int getOptimalTileHeight() {
     FormatTools.assertId(currentId, true, 1);
+    if (tileHeight[getSeries()] == 0) findTileSize();
     return tileHeight[getSeries()];
   }
 
@@ -644,18 +784,22 @@ public class OMETiffReader extends FormatReader {
       // populate core metadata
       info[s] = planes;
       try {
-        if (!info[s][0].reader.isThisType(info[s][0].id)) {
-          info[s][0].id = currentId;
-        }
-        for (int plane=0; plane<info[s].length; plane++) {
-          if (!info[s][plane].reader.isThisType(info[s][plane].id)) {
-            info[s][plane].id = info[s][0].id;
+        // a lazily initialized reader verifies each file and finds the
+        // tile size when they are first needed
+        if (!lazy) {
+          if (!info[s][0].reader.isThisType(info[s][0].id)) {
+            info[s][0].id = currentId;
+          }
+          for (int plane=0; plane<info[s].length; plane++) {
+            if (!info[s][plane].reader.isThisType(info[s][plane].id)) {
+              info[s][plane].id = info[s][0].id;
+            }
           }
-        }
 
-        info[s][0].reader.setId(info[s][0].id);
-        tileWidth[s] = info[s][0].reader.getOptimalTileWidth();
-        tileHeight[s] = info[s][0].reader.getOptimalTileHeight();
+          info[s][0].reader.setId(info[s][0].id);
+          tileWidth[s] = info[s][0].reader.getOptimalTileWidth();
+          tileHeight[s] = info[s][0].reader.getOptimalTileHeight();
+        }
 
         core[s].sizeX = meta.getPixelsSizeX(i).getValue().intValue();
         int tiffWidth = (int) firstIFD.getImageWidth();
@@ -769,6 +913,52 @@ public class OMETiffReader extends FormatReader {
 
   // -- OMETiffReader API methods --
 
+  /**
+   * Sets whether the reader is initialized lazily (the default).  A lazily
+   * initialized reader maps each TiffData element straight to a file and IFD
+   * index, and opens a file and parses its IFDs only when a plane in that
+   * file is first read, so the time taken by setId does not depend on the
+   * number of files.  Otherwise, every file is opened and checked by setId.
+   */
+  public void setLazyInitialization(boolean lazy) {
+    FormatTools.assertId(currentId, false, 1);
+    this.lazy = lazy;
+  }
+
+  /** Gets whether the reader is initialized lazily. */
+  public boolean isLazyInitialization() {
+    return lazy;
+  }
+
+  /**
+   * Sets the maximum number of files that a lazily initialized reader keeps
+   * open.  The least recently used file is closed when the limit is reached.
+   */
+  public void setMaxOpenFiles(int maxOpenFiles) {
+    if (maxOpenFiles < 1) {
+      throw new IllegalArgumentException("At least one file must be open");
+    }
+    this.maxOpenFiles = maxOpenFiles;
+  }
+
+  /** Gets the maximum number of files that are kept open. */
+  public int getMaxOpenFiles() {
+    return maxOpenFiles;
+  }
+
+  /** Gets the number of files that currently have an open stream. */
+  public int getOpenFileCount() {
+    int count = 0;
+    List<OMETiffFile> files;
+    synchronized (tiffFiles) {
+      files = new ArrayList<OMETiffFile>(tiffFiles.values());
+    }
+    for (OMETiffFile file : files) {
+      if (file.isOpen()) count++;
+    }
+    return count;
+  }
+
   /**
    * Returns a MetadataStore that is populated in such a way as to
    * produce valid OME-XML.  The returned MetadataStore cannot be used
@@ -805,6 +995,16 @@ public class OMETiffReader extends FormatReader {
     return store;
   }
 
+  // -- Serialization methods --
+
+  private void readObject(ObjectInputStream s)
+    throws IOException, ClassNotFoundException
+  {
+    s.defaultReadObject();
+    tiffFiles = new HashMap<String, OMETiffFile>();
+    openFiles = new LinkedHashMap<String, OMETiffFile>();
+  }
+
   // -- Helper methods --
 
   private String normalizeFilename(String dir, String name) {
@@ -813,6 +1013,83 @@ public class OMETiffReader extends FormatReader {
      return new Location(name).getAbsolutePath();
   }
 
+  /**
+   * Gets the file containing the given plane of the current series.  As in
+   * eager initialization, a file that is not a valid TIFF is replaced by the
+   * first file of the series, and then by the current file.
+   */
+  private OMETiffFile getPlaneFile(int no) throws IOException {
+    String[] ids = {info[series][no].id, info[series][0].id, currentId};
+    OMETiffFile file = null;
+    for (String id : ids) {
+      file = getFile(id);
+      boolean valid = file.isValid();
+      if (valid) break;
+      release(file);
+    }
+    return file;
+  }
+
+  private OMETiffFile getFile(String id) {
+    synchronized (tiffFiles) {
+      OMETiffFile file = tiffFiles.get(id);
+      if (file == null) {
+        file = new OMETiffFile(id);
+        tiffFiles.put(id, file);
+      }
+      return file;
+    }
+  }
+
+  /**
+   * Marks the given file as the most recently used, and closes the least
+   * recently used files if too many are open.  This must not be called while
+   * holding the lock on any file.
+   */
+  private void release(OMETiffFile file) throws IOException {
+    List<OMETiffFile> evicted = new ArrayList<OMETiffFile>();
+    synchronized (openFiles) {
+      openFiles.remove(file.id);
+      if (file.isOpen()) openFiles.put(file.id, file);
+      Iterator<OMETiffFile> iter = openFiles.values().iterator();
+      while (openFiles.size() > maxOpenFiles) {
+        evicted.add(iter.next());
+        iter.remove();
+      }
+    }
+    for (OMETiffFile f : evicted) {
+      synchronized (f) {
+        // another thread may have used the file again in the meantime
+        synchronized (openFiles) {
+          if (openFiles.containsKey(f.id)) continue;
+        }
+        f.close();
+      }
+    }
+  }
+
+  /** Finds the tile size of the current series from its first plane. */
+  private void findTileSize() {
+    int s = getSeries();
+    tileWidth[s] = super.getOptimalTileWidth();
+    tileHeight[s] = super.getOptimalTileHeight();
+    try {
+      OMETiffFile file = getPlaneFile(0);
+      IFD ifd = file.getIFD(info[s][0].ifd);
+      release(file);
+      if (ifd != null) {
+        tileWidth[s] = (int) ifd.getTileWidth();
+        tileHeight[s] = (int) ifd.getTileLength();
+      }
+    }
+    catch (FormatException e) {
+      LOGGER.debug("Could not retrieve tile size", e);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not retrieve tile size", e);
+    }
+  }
+
   private void setupService() throws FormatException {
     try {
       ServiceFactory factory = new ServiceFactory();
@@ -826,7 +1103,9 @@ public class OMETiffReader extends FormatReader {
   // -- Helper classes --
 
   /** Structure containing details on where to find a particular image plane. */
-  private class OMETiffPlane {
+  private class OMETiffPlane implements Serializable {
+    private static final long serialVersionUID = -1535054639051995084L;
+
     /** Reader to use for accessing this plane. */
     public IFormatReader reader;
     /** File containing this plane. */
@@ -837,4 +1116,78 @@ public class OMETiffReader extends FormatReader {
     public boolean certain = false;
   }
 
+  /**
+   * A file used by a lazily initialized reader.  IFDs are parsed one at a
+   * time, as they are needed, and kept after the stream has been closed.
+   */
+  private static class OMETiffFile {
+    private String id;
+    private RandomAccessInputStream stream;
+    private TiffParser parser;
+    private Boolean valid;
+    private long[] ifdOffsets;
+    private IFD[] ifds;
+
+    public OMETiffFile(String id) {
+      this.id = id;
+    }
+
+    private void open() throws IOException {
+      if (stream != null) return;
+      stream = new RandomAccessInputStream(id);
+      parser = new TiffParser(stream);
+      parser.setCompactIFDs(true);
+      valid = parser.checkHeader() != null;
+    }
+
+    public synchronized boolean isOpen() {
+      return stream != null;
+    }
+
+    public synchronized boolean isValid() throws IOException {
+      if (valid == null) open();
+      return valid.booleanValue();
+    }
+
+    /** Gets the IFD with the given index, or null if there is no such IFD. */
+    public synchronized IFD getIFD(int index) throws IOException {
+      if (ifdOffsets == null) {
+        open();
+        ifdOffsets = parser.getIFDOffsets();
+        ifds = new IFD[ifdOffsets.length];
+      }
+      if (index < 0 || index >= ifds.length) return null;
+      if (ifds[index] == null) {
+        open();
+        ifds[index] = parser.getIFD(ifdOffsets[index]);
+      }
+      return ifds[index];
+    }
+
+    /**
+     * Gets the offset of the given IFD's pixels, or -1 if they are not
+     * stored uncompressed and contiguously.
+     */
+    public synchronized long getContiguousPixelOffset(IFD ifd)
+      throws FormatException, IOException
+    {
+      open();
+      parser.fillInIFD(ifd);
+      return parser.getContiguousPixelOffset(ifd);
+    }
+
+    public synchronized void getSamples(IFD ifd, byte[] buf,
+      int x, int y, int w, int h) throws FormatException, IOException
+    {
+      open();
+      parser.getSamples(ifd, buf, x, y, w, h);
+    }
+
+    public synchronized void close() throws IOException {
+      if (stream != null) stream.close();
+      stream = null;
+      parser = null;
+    }
+  }
+
 }
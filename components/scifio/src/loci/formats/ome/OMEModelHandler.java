@@ -0,0 +1,256 @@
+//
+// OMEModelHandler.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.ome;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import loci.common.xml.BaseHandler;
+import ome.xml.model.OME;
+import ome.xml.model.OMEModel;
+import ome.xml.model.Pixels;
+import ome.xml.model.Plane;
+import ome.xml.model.TiffData;
+import ome.xml.model.enums.EnumerationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+/**
+ * SAX handler that constructs an OME model object graph from a current
+ * version OME-XML document without holding the whole document as a DOM.
+ *
+ * Plane and TiffData elements are by far the most numerous in large
+ * documents, so each is turned into a model object as soon as it has been
+ * parsed, and its DOM subtree is discarded.  The remaining elements are
+ * collected into a much smaller DOM, from which the rest of the model is
+ * built in {@link #endDocument()}.  References are not resolved; call
+ * {@link OMEModel#resolveReferences()} after parsing.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/ome/OMEModelHandler.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/ome/OMEModelHandler.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class OMEModelHandler extends BaseHandler {
+
+  // -- Fields --
+
+  private OMEModel model;
+
+  /** DOM of everything except the Plane and TiffData elements. */
+  private Document document;
+
+  /** The element that is currently being parsed. */
+  private Element current;
+
+  /**
+   * The Plane or TiffData element that is currently being parsed, or null.
+   * It is not attached to the DOM.
+   */
+  private Element streamed;
+  private Element streamedParent;
+
+  /** Text of the current element that has not yet been added to the DOM. */
+  private StringBuilder text = new StringBuilder();
+
+  /** Image elements, in document order. */
+  private List<Element> images = new ArrayList<Element>();
+  private Element image;
+
+  /** Planes and TiffData parsed for each Image element. */
+  private HashMap<Element, List<Plane>> planes =
+    new HashMap<Element, List<Plane>>();
+  private HashMap<Element, List<TiffData>> tiffData =
+    new HashMap<Element, List<TiffData>>();
+
+  private OME root;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a handler that adds the parsed objects and references to the
+   * given model.
+   */
+  public OMEModelHandler(OMEModel model) {
+    this.model = model;
+  }
+
+  // -- OMEModelHandler API methods --
+
+  /** Gets the root of the parsed model, once parsing has finished. */
+  public OME getRoot() {
+    return root;
+  }
+
+  // -- DefaultHandler API methods --
+
+  public void startDocument() throws SAXException {
+    try {
+      document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .newDocument();
+    }
+    catch (ParserConfigurationException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  public void startElement(String uri, String localName, String qName,
+    Attributes attributes)
+  {
+    flushText();
+    Element element = document.createElement(qName);
+    for (int i=0; i<attributes.getLength(); i++) {
+      element.setAttribute(attributes.getQName(i), attributes.getValue(i));
+    }
+
+    String name = getLocalName(qName);
+    if (current == null) {
+      document.appendChild(element);
+    }
+    else if (streamed == null && (name.equals("Plane") ||
+      name.equals("TiffData")) && isPixels(current))
+    {
+      streamed = element;
+      streamedParent = current;
+    }
+    else {
+      current.appendChild(element);
+      if (name.equals("Image") && current == document.getDocumentElement()) {
+        image = element;
+        images.add(image);
+      }
+    }
+    current = element;
+  }
+
+  public void endElement(String uri, String localName, String qName)
+    throws SAXException
+  {
+    flushText();
+    if (current == streamed) {
+      try {
+        addStreamedElement();
+      }
+      catch (EnumerationException e) {
+        throw new SAXException(e);
+      }
+      current = streamedParent;
+      streamed = null;
+      streamedParent = null;
+    }
+    else {
+      Node parent = current.getParentNode();
+      current = parent instanceof Element ? (Element) parent : null;
+    }
+  }
+
+  public void characters(char[] ch, int start, int length) {
+    if (current != null) {
+      text.append(ch, start, length);
+    }
+  }
+
+  public void endDocument() throws SAXException {
+    try {
+      root = new OME(document.getDocumentElement(), model);
+    }
+    catch (EnumerationException e) {
+      throw new SAXException(e);
+    }
+
+    for (int i=0; i<images.size() && i<root.sizeOfImageList(); i++) {
+      Pixels pixels = root.getImage(i).getPixels();
+      if (pixels == null) {
+        continue;
+      }
+      List<TiffData> imageTiffData = tiffData.get(images.get(i));
+      if (imageTiffData != null) {
+        for (TiffData t : imageTiffData) {
+          pixels.addTiffData(t);
+        }
+      }
+      List<Plane> imagePlanes = planes.get(images.get(i));
+      if (imagePlanes != null) {
+        for (Plane p : imagePlanes) {
+          pixels.addPlane(p);
+        }
+      }
+    }
+
+    document = null;
+    images.clear();
+    planes.clear();
+    tiffData.clear();
+  }
+
+  // -- Helper methods --
+
+  /** Adds any text seen since the last element boundary to the DOM. */
+  private void flushText() {
+    if (text.length() > 0) {
+      current.appendChild(document.createTextNode(text.toString()));
+      text.setLength(0);
+    }
+  }
+
+  /** Checks whether the given element is the Pixels of the current Image. */
+  private boolean isPixels(Element element) {
+    return image != null && element.getParentNode() == image &&
+      getLocalName(element.getTagName()).equals("Pixels");
+  }
+
+  /** Strips the namespace prefix, if any, from the given tag name. */
+  private static String getLocalName(String tagName) {
+    return tagName.substring(tagName.lastIndexOf(':') + 1);
+  }
+
+  /** Constructs a model object from the streamed element. */
+  private void addStreamedElement() throws EnumerationException {
+    String name = getLocalName(streamed.getTagName());
+    if (name.equals("Plane")) {
+      List<Plane> list = planes.get(image);
+      if (list == null) {
+        list = new ArrayList<Plane>();
+        planes.put(image, list);
+      }
+      list.add(new Plane(streamed, model));
+    }
+    else {
+      List<TiffData> list = tiffData.get(image);
+      if (list == null) {
+        list = new ArrayList<TiffData>();
+        tiffData.put(image, list);
+      }
+      list.add(new TiffData(streamed, model));
+    }
+  }
+
+}
@@ -44,4 +44,11 @@ public interface OMEXMLMetadata extends IMetadata {
    */
   public String dumpXML();
 
+  /**
+   * Links the model objects that have been referenced through the
+   * {@link loci.formats.meta.MetadataStore} API but not yet linked.
+   * @return the number of references that could not be resolved.
+   */
+  public int resolveReferences();
+
 }
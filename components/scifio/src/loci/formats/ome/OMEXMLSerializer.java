@@ -0,0 +1,297 @@
+//
+// OMEXMLSerializer.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.ome;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import ome.xml.model.OME;
+import ome.xml.model.OMEModelObject;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes the OME-XML for an {@link OMEXMLMetadata} object directly to an
+ * output stream, as UTF-8.
+ *
+ * The document is never held in memory as a whole, either as a DOM or as a
+ * String.  The model objects can only describe themselves as DOM elements,
+ * so each child of the OME element is converted and written on its own,
+ * and discarded before the next one is converted.  The output is the same
+ * as {@link loci.formats.services.OMEXMLService#getOMEXML}.
+ *
+ * The OME element's start tag and its content can also be written
+ * separately, so that documents which differ only in the root UUID can
+ * share the serialized content; see {@link #writeStartTag} and
+ * {@link #writeContent}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/ome/OMEXMLSerializer.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/ome/OMEXMLSerializer.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class OMEXMLSerializer {
+
+  // -- Constants --
+
+  /** XML declaration written at the start of each document. */
+  public static final String DECLARATION =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+  private static final String ENCODING = "UTF-8";
+
+  // -- Fields --
+
+  private OME root;
+
+  /** Document used to create the DOM for one child of the root at a time. */
+  private Document document;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a serializer for the given metadata object.  As with
+   * {@link OMEXMLMetadata#dumpXML()}, any unresolved references are resolved.
+   */
+  public OMEXMLSerializer(OMEXMLMetadata meta) {
+    if (meta instanceof OMEXMLMetadataImpl) {
+      ((OMEXMLMetadataImpl) meta).resolveReferences();
+    }
+    root = (OME) meta.getRoot();
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      document = factory.newDocumentBuilder().newDocument();
+    }
+    catch (ParserConfigurationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // -- OMEXMLSerializer API methods --
+
+  /** Writes the complete OME-XML document to the given stream. */
+  public void write(OutputStream out) throws IOException {
+    Writer writer = createWriter(out);
+    writer.write(DECLARATION);
+    boolean empty = getChildren().size() == 0;
+    writeStartTag(writer, root.getUUID(), empty);
+    if (!empty) writeContent(writer);
+    writer.flush();
+  }
+
+  /**
+   * Writes the start tag of the OME element, with the given UUID in place
+   * of the metadata's own UUID.  The XML declaration is not included.
+   */
+  public void writeStartTag(OutputStream out, String uuid) throws IOException {
+    Writer writer = createWriter(out);
+    writeStartTag(writer, uuid, false);
+    writer.flush();
+  }
+
+  /** Writes everything after the OME element's start tag. */
+  public void writeContent(OutputStream out) throws IOException {
+    Writer writer = createWriter(out);
+    writeContent(writer);
+    writer.flush();
+  }
+
+  // -- Helper methods --
+
+  private Writer createWriter(OutputStream out) throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(out, ENCODING));
+  }
+
+  private void writeStartTag(Writer writer, String uuid, boolean empty)
+    throws IOException
+  {
+    // an OME with no children has only the root attributes
+    OME attributes = new OME();
+    attributes.setUUID(uuid);
+    attributes.setCreator(root.getCreator());
+    Element element = attributes.asXMLElement(document);
+    element.setAttribute("xmlns", OME.NAMESPACE);
+    element.setAttribute("xmlns:xsi", AbstractOMEXMLMetadata.XSI_NS);
+    element.setAttribute("xsi:schemaLocation",
+      OME.NAMESPACE + " " + AbstractOMEXMLMetadata.SCHEMA);
+    writeStartTag(writer, element, null, empty);
+  }
+
+  private void writeContent(Writer writer) throws IOException {
+    for (OMEModelObject child : getChildren()) {
+      writeElement(writer, child.asXMLElement(document), OME.NAMESPACE);
+    }
+    writer.write("</OME>");
+  }
+
+  /** Gets the children of the root, in the order required by the schema. */
+  private List<OMEModelObject> getChildren() {
+    List<OMEModelObject> children = new ArrayList<OMEModelObject>();
+    children.addAll(root.copyProjectList());
+    children.addAll(root.copyDatasetList());
+    children.addAll(root.copyExperimentList());
+    children.addAll(root.copyPlateList());
+    children.addAll(root.copyScreenList());
+    children.addAll(root.copyExperimenterList());
+    children.addAll(root.copyGroupList());
+    children.addAll(root.copyInstrumentList());
+    children.addAll(root.copyImageList());
+    if (root.getStructuredAnnotations() != null) {
+      children.add(root.getStructuredAnnotations());
+    }
+    children.addAll(root.copyROIList());
+    if (root.getBinaryOnly() != null) children.add(root.getBinaryOnly());
+    return children;
+  }
+
+  /**
+   * Writes the given element and its descendants.
+   * @param namespace the default namespace in effect at the parent
+   */
+  private void writeElement(Writer writer, Element element, String namespace)
+    throws IOException
+  {
+    boolean empty = !element.hasChildNodes();
+    namespace = writeStartTag(writer, element, namespace, empty);
+    if (empty) return;
+
+    for (Node n=element.getFirstChild(); n!=null; n=n.getNextSibling()) {
+      switch (n.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          writeElement(writer, (Element) n, namespace);
+          break;
+        case Node.TEXT_NODE:
+          writeEscaped(writer, n.getNodeValue(), false);
+          break;
+        case Node.CDATA_SECTION_NODE:
+          writer.write("<![CDATA[");
+          writer.write(n.getNodeValue());
+          writer.write("]]>");
+          break;
+        case Node.COMMENT_NODE:
+          writer.write("<!--");
+          writer.write(n.getNodeValue());
+          writer.write("-->");
+          break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+          writer.write("<?");
+          writer.write(n.getNodeName());
+          writer.write(" ");
+          writer.write(n.getNodeValue());
+          writer.write("?>");
+          break;
+      }
+    }
+    writer.write("</");
+    writer.write(element.getNodeName());
+    writer.write(">");
+  }
+
+  /**
+   * Writes the start tag of the given element.  A default namespace
+   * declaration is added if the element's namespace differs from the
+   * parent's.  Namespace declarations are written before the other
+   * attributes, as the standard XML transformer does.
+   *
+   * @return the default namespace in effect for the element's children
+   */
+  private String writeStartTag(Writer writer, Element element,
+    String namespace, boolean empty) throws IOException
+  {
+    writer.write("<");
+    writer.write(element.getNodeName());
+
+    NamedNodeMap attributes = element.getAttributes();
+    String declared = element.hasAttribute("xmlns") ?
+      element.getAttribute("xmlns") : null;
+    String elementNamespace = element.getNamespaceURI();
+    if (declared != null) namespace = declared;
+    else if (elementNamespace != null && element.getPrefix() == null &&
+      !elementNamespace.equals(namespace))
+    {
+      namespace = elementNamespace;
+      writeAttribute(writer, "xmlns", namespace);
+    }
+
+    for (int pass=0; pass<2; pass++) {
+      for (int i=0; i<attributes.getLength(); i++) {
+        Node attribute = attributes.item(i);
+        String name = attribute.getNodeName();
+        boolean declaration = name.equals("xmlns") || name.startsWith("xmlns:");
+        if (declaration == (pass == 0)) {
+          writeAttribute(writer, name, attribute.getNodeValue());
+        }
+      }
+    }
+    writer.write(empty ? "/>" : ">");
+    return namespace;
+  }
+
+  private void writeAttribute(Writer writer, String name, String value)
+    throws IOException
+  {
+    writer.write(" ");
+    writer.write(name);
+    writer.write("=\"");
+    writeEscaped(writer, value, true);
+    writer.write("\"");
+  }
+
+  private void writeEscaped(Writer writer, String s, boolean attribute)
+    throws IOException
+  {
+    int start = 0;
+    for (int i=0; i<s.length(); i++) {
+      String entity = null;
+      char c = s.charAt(i);
+      switch (c) {
+        case '&': entity = "&amp;"; break;
+        case '<': entity = "&lt;"; break;
+        case '>': entity = "&gt;"; break;
+        case '\r': entity = "&#13;"; break;
+        case '"': if (attribute) entity = "&quot;"; break;
+        case '\n': if (attribute) entity = "&#10;"; break;
+        case '\t': if (attribute) entity = "&#9;"; break;
+      }
+      if (entity != null) {
+        writer.write(s, start, i - start);
+        writer.write(entity);
+        start = i + 1;
+      }
+    }
+    writer.write(s, start, s.length() - start);
+  }
+
+}
@@ -23,16 +23,23 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package loci.formats.out;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
 
+import loci.common.Constants;
 import loci.common.Location;
 import loci.common.RandomAccessInputStream;
 import loci.common.RandomAccessOutputStream;
@@ -44,6 +51,7 @@ import loci.formats.FormatTools;
 import loci.formats.meta.MetadataRetrieve;
 import loci.formats.ome.OMEXMLMetadata;
 import loci.formats.ome.OMEXMLMetadataImpl;
+import loci.formats.ome.OMEXMLSerializer;
 import loci.formats.services.OMEXMLService;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.TiffSaver;
@@ -88,6 +96,9 @@ public class OMETiffWriter extends TiffWriter {
   public void close() throws IOException {
     try {
       if (currentId != null) {
+        // all planes must be complete before the OME-XML is written
+        finishPyramid();
+
         setupServiceAndMetadata();
 
         // remove any BinData elements from the OME-XML
@@ -103,14 +114,12 @@ public class OMETiffWriter extends TiffWriter {
           for (String f : s) {
             if (!files.contains(f) && f != null) {
               files.add(f);
-
-              String xml = getOMEXML(f);
-
-              // write OME-XML to the first IFD's comment
-              saveComment(f, xml);
             }
           }
         }
+
+        // write OME-XML to the first IFD's comment of each file
+        saveComments(files);
       }
     }
     catch (DependencyException de) {
@@ -216,7 +225,7 @@ public class OMETiffWriter extends TiffWriter {
   }
 
   private void setupServiceAndMetadata()
-    throws DependencyException, ServiceException
+    throws DependencyException, ServiceException, IOException
   {
     // extract OME-XML string from metadata object
     MetadataRetrieve retrieve = getMetadataRetrieve();
@@ -227,40 +236,89 @@ public class OMETiffWriter extends TiffWriter {
     if (originalOMEMeta instanceof OMEXMLMetadataImpl) {
       ((OMEXMLMetadataImpl) originalOMEMeta).resolveReferences();
 
-      String omexml = service.getOMEXML(originalOMEMeta);
-      omeMeta = service.createOMEXMLMetadata(omexml);
+      ByteArrayOutputStream omexml = new ByteArrayOutputStream();
+      new OMEXMLSerializer(originalOMEMeta).write(omexml);
+      omeMeta = service.createOMEXMLMetadata(
+        omexml.toString(Constants.ENCODING));
     }
   }
 
-  private String getOMEXML(String file) throws FormatException, IOException {
-    // generate UUID and add to OME element
-    String uuid = "urn:uuid:" + getUUID(new Location(file).getName());
-    omeMeta.setUUID(uuid);
+  /**
+   * Writes the OME-XML to the first IFD's comment of each of the given files.
+   * The comments differ only in the root UUID, so the rest of the OME-XML is
+   * serialized just once; the files are then updated concurrently.
+   */
+  private void saveComments(List<String> files) throws IOException {
+    OMEXMLSerializer serializer = new OMEXMLSerializer(omeMeta);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    serializer.writeContent(stream);
+    byte[] content = stream.toByteArray();
+
+    // the serializer is not thread-safe, so all start tags are written first
+    byte[][] headers = new byte[files.size()][];
+    for (int i=0; i<headers.length; i++) {
+      String uuid = "urn:uuid:" + getUUID(new Location(files.get(i)).getName());
+      stream.reset();
+      stream.write((OMEXMLSerializer.DECLARATION + WARNING_COMMENT).getBytes(
+        Constants.ENCODING));
+      serializer.writeStartTag(stream, uuid);
+      headers[i] = stream.toByteArray();
+    }
 
-    String xml;
+    if (out != null) out.close();
+    if (files.size() == 1) {
+      saveComment(files.get(0), headers[0], content);
+      return;
+    }
+
+    int threads =
+      Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
     try {
-      xml = service.getOMEXML(omeMeta);
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (int i=0; i<headers.length; i++) {
+        final String file = files.get(i);
+        final byte[] header = headers[i];
+        final byte[] xml = content;
+        results.add(executor.submit(new Callable<Object>() {
+          public Object call() throws IOException {
+            saveComment(file, header, xml);
+            return null;
+          }
+        }));
+      }
+      for (Future<Object> result : results) {
+        result.get();
+      }
     }
-    catch (ServiceException se) {
-      throw new FormatException(se);
+    catch (InterruptedException e) {
+      IOException io = new IOException("Interrupted while saving OME-XML");
+      io.initCause(e);
+      throw io;
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      IOException io = new IOException("Unable to append OME-XML comment");
+      io.initCause(e.getCause());
+      throw io;
+    }
+    finally {
+      executor.shutdownNow();
     }
-
-    // insert warning comment
-    String prefix = xml.substring(0, xml.indexOf(">") + 1);
-    String suffix = xml.substring(xml.indexOf(">") + 1);
-    return prefix + WARNING_COMMENT + suffix;
   }
 
-  private void saveComment(String file, String xml) throws IOException {
-    if (out != null) out.close();
-    out = new RandomAccessOutputStream(file);
+  private void saveComment(String file, byte[] header, byte[] content)
+    throws IOException
+  {
+    RandomAccessOutputStream output = new RandomAccessOutputStream(file);
     RandomAccessInputStream in = null;
     try {
-      TiffSaver saver = new TiffSaver(out, file);
+      TiffSaver saver = new TiffSaver(output, file);
       in = new RandomAccessInputStream(file);
       saver.overwriteLastIFDOffset(in);
-      saver.overwriteComment(in, xml);
-      in.close();
+      saver.writeComment(in, header, content);
     }
     catch (FormatException exc) {
       IOException io = new IOException("Unable to append OME-XML comment");
@@ -268,7 +326,7 @@ public class OMETiffWriter extends TiffWriter {
       throw io;
     }
     finally {
-      if (out != null) out.close();
+      output.close();
       if (in != null) in.close();
     }
   }
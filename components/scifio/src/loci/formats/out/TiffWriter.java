@@ -24,6 +24,7 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats.out;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 import loci.common.RandomAccessInputStream;
 import loci.common.RandomAccessOutputStream;
@@ -37,6 +38,7 @@ import loci.formats.meta.MetadataRetrieve;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.TiffCompression;
 import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffPyramidSaver;
 import loci.formats.tiff.TiffRational;
 import loci.formats.tiff.TiffSaver;
 
@@ -78,6 +80,19 @@ public class TiffWriter extends FormatWriter {
   /** Whether or not to check the parameters passed to saveBytes. */
   private boolean checkParams = true;
 
+  /** Number of resolutions to write for each plane. */
+  private int resolutions = 1;
+
+  /** Tile size to use when writing multiple resolutions. */
+  private int pyramidTileWidth = TiffPyramidSaver.DEFAULT_TILE_SIZE;
+  private int pyramidTileHeight = TiffPyramidSaver.DEFAULT_TILE_SIZE;
+
+  /** Saver for multi-resolution planes; null if writing one resolution. */
+  protected TiffPyramidSaver pyramidSaver;
+
+  /** Executor used to compress strips and tiles; null if not concurrent. */
+  private ExecutorService compressionExecutor;
+
   /**
    * Sets the compression code for the specified IFD.
    * 
@@ -127,6 +142,8 @@ public class TiffWriter extends FormatWriter {
 
   /* @see loci.formats.IFormatHandler#setId(String) */
   public void setId(String id) throws FormatException, IOException {
+    // NB: the file is already open, and may have partially written planes
+    if (id.equals(currentId)) return;
     super.setId(id);
 
     synchronized (this) {
@@ -175,6 +192,11 @@ public class TiffWriter extends FormatWriter {
       }
     }
 
+    if (pyramidSaver != null) {
+      pyramidSaver.writeImage(buf, ifd, index, type, x, y, w, h);
+      return;
+    }
+
     tiffSaver.writeImage(buf, ifd, index, type, x, y, w, h,
       no == getPlaneCount() - 1 && getSeries() == retrieve.getImageCount() - 1);
   }
@@ -188,9 +210,6 @@ public class TiffWriter extends FormatWriter {
       int no, byte[] buf, IFD ifd, int x, int y, int w, int h)
   throws IOException, FormatException {
     MetadataRetrieve retrieve = getMetadataRetrieve();
-    Boolean bigEndian = retrieve.getPixelsBinDataBigEndian(series, 0);
-    boolean littleEndian = bigEndian == null ?
-      false : !bigEndian.booleanValue();
 
     // Ensure that no more than one thread manipulated the initialized array
     // at one time.
@@ -237,6 +256,47 @@ public class TiffWriter extends FormatWriter {
       return -1;
     }
 
+    populateIFD(ifd, type);
+
+    int width = retrieve.getPixelsSizeX(series).getValue().intValue();
+    int height = retrieve.getPixelsSizeY(series).getValue().intValue();
+    if (!isBigTiff) {
+      isBigTiff = (out.length() + 2
+          * (width * height * c * bytesPerPixel)) >= 4294967296L;
+      if (isBigTiff) {
+        throw new FormatException("File is too large; call setBigTiff(true)");
+      }
+    }
+
+    // write the image
+    if (!ifd.containsKey(IFD.REUSE)) {
+      ifd.put(IFD.REUSE, out.length());
+      out.seek(out.length());
+    }
+    else {
+      out.seek((Long) ifd.get(IFD.REUSE));
+    }
+
+    int index = no;
+    int realSeries = getSeries();
+    for (int i=0; i<realSeries; i++) {
+      setSeries(i);
+      index += getPlaneCount();
+    }
+    setSeries(realSeries);
+    return index;
+  }
+
+  /**
+   * Sets the entries of the given IFD that describe the pixels of the
+   * current series, and that do not depend upon where the plane is written.
+   */
+  private void populateIFD(IFD ifd, int type) throws FormatException {
+    MetadataRetrieve retrieve = getMetadataRetrieve();
+    Boolean bigEndian = retrieve.getPixelsBinDataBigEndian(series, 0);
+    boolean littleEndian = bigEndian == null ?
+      false : !bigEndian.booleanValue();
+
     formatCompression(ifd);
     byte[][] lut = AWTImageTools.get8BitLookupTable(cm);
     if (lut != null) {
@@ -274,24 +334,7 @@ public class TiffWriter extends FormatWriter {
     ifd.put(IFD.Y_RESOLUTION,
       new TiffRational((long) (physicalSizeY * 1000 * 10000), 1000));
 
-    if (!isBigTiff) {
-      isBigTiff = (out.length() + 2
-          * (width * height * c * bytesPerPixel)) >= 4294967296L;
-      if (isBigTiff) {
-        throw new FormatException("File is too large; call setBigTiff(true)");
-      }
-    }
-
-    // write the image
     ifd.put(new Integer(IFD.LITTLE_ENDIAN), new Boolean(littleEndian));
-    if (!ifd.containsKey(IFD.REUSE)) {
-      ifd.put(IFD.REUSE, out.length());
-      out.seek(out.length());
-    }
-    else {
-      out.seek((Long) ifd.get(IFD.REUSE));
-    }
-    
     ifd.putIFDValue(IFD.PLANAR_CONFIGURATION,
       interleaved || getSamplesPerPixel() == 1 ? 1 : 2);
 
@@ -299,15 +342,6 @@ public class TiffWriter extends FormatWriter {
     if (FormatTools.isSigned(type)) sampleFormat = 2;
     if (FormatTools.isFloatingPoint(type)) sampleFormat = 3;
     ifd.putIFDValue(IFD.SAMPLE_FORMAT, sampleFormat);
-
-    int index = no;
-    int realSeries = getSeries();
-    for (int i=0; i<realSeries; i++) {
-      setSeries(i);
-      index += getPlaneCount();
-    }
-    setSeries(realSeries);
-    return index;
   }
 
   // -- FormatWriter API methods --
@@ -317,6 +351,7 @@ public class TiffWriter extends FormatWriter {
    */
   @Override
   public void close() throws IOException {
+    finishPyramid();
     super.close();
     if (in != null) {
       in.close();
@@ -395,6 +430,121 @@ public class TiffWriter extends FormatWriter {
     isBigTiff = bigTiff;
   }
 
+  /**
+   * Sets the number of resolutions to write for each plane, including the
+   * full resolution.  If greater than 1, each plane is written as tiles,
+   * and each smaller resolution is downsampled by 2 from the previous one
+   * as the tiles are saved.  The smaller resolutions are stored as SubIFDs
+   * of the full resolution IFD.
+   * This flag is not reset when close() is called.
+   */
+  public void setPyramidResolutions(int resolutions) {
+    FormatTools.assertId(currentId, false, 1);
+    if (resolutions < 1) {
+      throw new IllegalArgumentException(
+        "Invalid resolution count: " + resolutions);
+    }
+    this.resolutions = resolutions;
+  }
+
+  /** Gets the number of resolutions to write for each plane. */
+  public int getPyramidResolutions() {
+    return resolutions;
+  }
+
+  /**
+   * Sets the tile size to use when writing multiple resolutions.
+   * Both dimensions must be multiples of 16.
+   * This setting is not reset when close() is called.
+   */
+  public void setPyramidTileSize(int tileWidth, int tileHeight) {
+    FormatTools.assertId(currentId, false, 1);
+    if (tileWidth <= 0 || tileWidth % 16 != 0 ||
+      tileHeight <= 0 || tileHeight % 16 != 0)
+    {
+      throw new IllegalArgumentException("Invalid tile size: " + tileWidth +
+        "x" + tileHeight + " (must be a multiple of 16)");
+    }
+    pyramidTileWidth = tileWidth;
+    pyramidTileHeight = tileHeight;
+  }
+
+  /**
+   * Sets the executor used to compress the strips or tiles of each plane
+   * concurrently.  The written file is identical whether or not an executor
+   * is used.
+   * This setting is not reset when close() is called.
+   * @see TiffSaver#setCompressionExecutor(ExecutorService)
+   */
+  public void setCompressionExecutor(ExecutorService executor) {
+    FormatTools.assertId(currentId, false, 1);
+    compressionExecutor = executor;
+  }
+
+  /** Gets the executor used to compress strips and tiles concurrently. */
+  public ExecutorService getCompressionExecutor() {
+    return compressionExecutor;
+  }
+
+  /**
+   * Compresses a block of the current series ahead of saving it, so that
+   * compression can run on other threads than the one that writes the file.
+   * The compressed strips are stored in the IFD, which must then be passed
+   * to {@link #saveBytes(int, byte[], IFD, int, int, int, int)} with the
+   * same buffer and rectangle; saving only appends them to the file.
+   * Blocks of multi-resolution planes, and of planes whose channels are
+   * saved as separate planes, are not compressed ahead.
+   *
+   * @param buf the block that is to be compressed
+   * @param ifd the IFD with which the block will be saved, or null to
+   *   create a new IFD
+   * @param w the width of the block
+   * @param h the height of the block
+   * @return the IFD with which to save the block
+   */
+  public IFD compressBytes(byte[] buf, IFD ifd, int w, int h)
+    throws FormatException, IOException
+  {
+    if (ifd == null) ifd = new IFD();
+    MetadataRetrieve retrieve = getMetadataRetrieve();
+    int type = FormatTools.pixelTypeFromString(
+      retrieve.getPixelsType(series).toString());
+    int c = getSamplesPerPixel();
+    int bytesPerPixel = FormatTools.getBytesPerPixel(type);
+    if (w * h * c * bytesPerPixel > buf.length) {
+      c = buf.length / (w * h * bytesPerPixel);
+    }
+    TiffSaver saver;
+    synchronized (this) {
+      if (resolutions > 1 || (bytesPerPixel > 1 && c != 1 && c != 3)) {
+        return ifd;
+      }
+      populateIFD(ifd, type);
+      saver = tiffSaver;
+    }
+    saver.compressImage(buf, ifd, type, w, h);
+    return ifd;
+  }
+
+  /**
+   * Writes any incomplete tiles of multi-resolution planes.  This is called
+   * automatically when the writer is closed.
+   */
+  protected void finishPyramid() throws IOException {
+    if (pyramidSaver == null) return;
+    try {
+      pyramidSaver.finish();
+    }
+    catch (FormatException exc) {
+      IOException io = new IOException("Unable to finish writing resolutions");
+      io.initCause(exc);
+      throw io;
+    }
+    finally {
+      pyramidSaver = null;
+    }
+  }
+
   // -- Helper methods --
 
   private void setupTiffSaver() throws IOException {
@@ -411,6 +561,18 @@ public class TiffWriter extends FormatWriter {
     tiffSaver.setLittleEndian(littleEndian);
     tiffSaver.setBigTiff(isBigTiff);
     tiffSaver.setCodecOptions(options);
+    tiffSaver.setCompressionExecutor(compressionExecutor);
+
+    pyramidSaver = null;
+    if (resolutions > 1) {
+      TiffSaver saver = new TiffSaver(out, currentId);
+      saver.setLittleEndian(littleEndian);
+      saver.setBigTiff(isBigTiff);
+      saver.setCodecOptions(options);
+      saver.setCompressionExecutor(compressionExecutor);
+      pyramidSaver = new TiffPyramidSaver(saver, resolutions,
+        pyramidTileWidth, pyramidTileHeight);
+    }
   }
 
 }
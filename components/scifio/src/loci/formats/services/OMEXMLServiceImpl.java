@@ -36,6 +36,7 @@ import javax.xml.transform.TransformerException;
 
 import loci.common.services.AbstractService;
 import loci.common.services.ServiceException;
+import loci.common.xml.BaseHandler;
 import loci.common.xml.XMLTools;
 import loci.formats.FormatTools;
 import loci.formats.MetadataTools;
@@ -43,6 +44,7 @@ import loci.formats.meta.IMetadata;
 import loci.formats.meta.MetadataConverter;
 import loci.formats.meta.MetadataRetrieve;
 import loci.formats.meta.MetadataStore;
+import loci.formats.ome.OMEModelHandler;
 import loci.formats.ome.OMEXMLMetadata;
 import loci.formats.ome.OMEXMLMetadataImpl;
 import ome.xml.OMEXMLFactory;
@@ -65,6 +67,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
 /**
@@ -264,7 +267,9 @@ public class OMEXMLServiceImpl extends AbstractService implements OMEXMLService
   private OMEModelObject createRoot(String xml) throws ServiceException {
     try {
       OMEModel model = new OMEModelImpl();
-      OME ome = new OME(XMLTools.parseDOM(xml).getDocumentElement(), model);
+      OMEModelHandler handler = new OMEModelHandler(model);
+      XMLTools.parseXML(xml, handler);
+      OME ome = handler.getRoot();
       model.resolveReferences();
       return ome;
     }
@@ -281,19 +286,18 @@ public class OMEXMLServiceImpl extends AbstractService implements OMEXMLService
     }
     else if (o instanceof String) {
       String xml = (String) o;
-      try {
-        Element e = XMLTools.parseDOM(xml).getDocumentElement();
-        String namespace = e.getAttribute("xmlns");
-        if (namespace == null || namespace.equals("")) {
-          namespace = e.getAttribute("xmlns:ome");
-        }
 
+      // only the root element needs to be parsed
+      RootNamespaceHandler handler = new RootNamespaceHandler();
+      try {
+        XMLTools.parseXML(xml, handler);
+      }
+      catch (IOException e) { }
+      String namespace = handler.namespace;
+      if (namespace != null) {
         return namespace.endsWith("ome.xsd") ? "2003-FC" :
           namespace.substring(namespace.lastIndexOf("/") + 1);
       }
-      catch (ParserConfigurationException pce) { }
-      catch (SAXException se) { }
-      catch (IOException ioe) { }
     }
     return null;
   }
@@ -723,7 +727,28 @@ public class OMEXMLServiceImpl extends AbstractService implements OMEXMLService
     return null;
   }
 
-  // -- Helper class --
+  // -- Helper classes --
+
+  /**
+   * SAX handler that records the namespace of the root element, and then
+   * stops parsing.
+   */
+  static class RootNamespaceHandler extends BaseHandler {
+    private String namespace;
+
+    public void startElement(String uri, String localName, String qName,
+      Attributes attributes) throws SAXException
+    {
+      namespace = attributes.getValue("xmlns");
+      if (namespace == null || namespace.equals("")) {
+        namespace = attributes.getValue("xmlns:ome");
+      }
+      if (namespace == null) {
+        namespace = "";
+      }
+      throw new SAXException("Root element parsed");
+    }
+  }
 
   class OriginalMetadataAnnotation extends XMLAnnotation {
     private static final String ORIGINAL_METADATA_NS =
@@ -0,0 +1,499 @@
+//
+// CompactIFD.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.tiff;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An {@link IFD} that stores its entries in sorted parallel arrays instead
+ * of hash table nodes.  Tags are kept in a sorted <code>short[]</code>, and
+ * scalar numbers, booleans and rationals are kept unboxed in a
+ * <code>long[]</code>, alongside a <code>byte[]</code> recording the type
+ * of each value.  Arrays, strings and other objects are stored as they are.
+ *
+ * A typical IFD then needs less than half as much memory, which matters
+ * for files with tens of thousands of IFDs.  All of the
+ * {@link IFD} getters and the {@link Map} API behave as they do for an
+ * ordinary IFD; values are boxed again when they are retrieved, and
+ * iteration is in ascending tag order.  Only tags from 0 to 65535 can be
+ * stored.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/tiff/CompactIFD.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/tiff/CompactIFD.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class CompactIFD extends IFD {
+
+  // -- Constants --
+
+  private static final long serialVersionUID = -3364281077971844880L;
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  // types of the values stored in the values array
+  private static final byte OBJECT = 0;
+  private static final byte BOOLEAN = 1;
+  private static final byte BYTE = 2;
+  private static final byte SHORT = 3;
+  private static final byte INTEGER = 4;
+  private static final byte LONG = 5;
+  private static final byte FLOAT = 6;
+  private static final byte DOUBLE = 7;
+  private static final byte RATIONAL = 8;
+
+  // -- Fields --
+
+  /** Number of entries. */
+  private int size;
+
+  /** Tag of each entry, in ascending (unsigned) order. */
+  private short[] tags;
+
+  /** Type of each entry's value. */
+  private byte[] types;
+
+  /** Unboxed value of each entry whose type is not OBJECT. */
+  private long[] values;
+
+  /** Value of each entry whose type is OBJECT; null until one is stored. */
+  private Object[] objects;
+
+  /** Number of structural modifications, for fail-fast iteration. */
+  private transient int modCount;
+
+  // -- Constructors --
+
+  public CompactIFD() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /** Constructs an empty IFD with room for the given number of entries. */
+  public CompactIFD(int capacity) {
+    super();
+    tags = new short[capacity];
+    types = new byte[capacity];
+    values = new long[capacity];
+  }
+
+  /** Constructs a compact copy of the given IFD. */
+  public CompactIFD(IFD ifd) {
+    this(ifd.size());
+    putAll(ifd);
+    setParser(ifd.getParser());
+  }
+
+  // -- CompactIFD API methods --
+
+  /** Releases any unused capacity. */
+  public void trimToSize() {
+    if (size < tags.length) resize(size);
+  }
+
+  // -- Internal IFD API methods --
+
+  /* @see IFD#getStoredValue(Object) */
+  Object getStoredValue(Object key) {
+    int index = indexOf(key);
+    return index < 0 ? null : getValue(index);
+  }
+
+  // -- Map API methods --
+
+  /* @see java.util.Map#size() */
+  public int size() {
+    return size;
+  }
+
+  /* @see java.util.Map#isEmpty() */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /* @see java.util.Map#containsKey(Object) */
+  public boolean containsKey(Object key) {
+    return indexOf(key) >= 0;
+  }
+
+  /* @see java.util.Map#containsValue(Object) */
+  public boolean containsValue(Object value) {
+    for (int i=0; i<size; i++) {
+      Object v = getValue(i);
+      if (value == null ? v == null : value.equals(v)) return true;
+    }
+    return false;
+  }
+
+  /* @see java.util.Map#put(Object, Object) */
+  public Object put(Integer key, Object value) {
+    int tag = key.intValue();
+    if (tag < 0 || tag > 0xffff) {
+      throw new IllegalArgumentException("Invalid tag: " + tag);
+    }
+
+    // entries are usually added in ascending order
+    int index = size == 0 || (tags[size - 1] & 0xffff) < tag ?
+      -size - 1 : search(tag);
+    Object old = null;
+    if (index >= 0) old = getValue(index);
+    else {
+      index = -index - 1;
+      if (size == tags.length) resize(Math.max(DEFAULT_CAPACITY, size * 2));
+      int moved = size - index;
+      if (moved > 0) {
+        System.arraycopy(tags, index, tags, index + 1, moved);
+        System.arraycopy(types, index, types, index + 1, moved);
+        System.arraycopy(values, index, values, index + 1, moved);
+        if (objects != null) {
+          System.arraycopy(objects, index, objects, index + 1, moved);
+        }
+      }
+      tags[index] = (short) tag;
+      size++;
+      modCount++;
+    }
+    setValue(index, value);
+    return old;
+  }
+
+  /* @see java.util.Map#putAll(Map) */
+  public void putAll(Map<? extends Integer, ? extends Object> map) {
+    for (Map.Entry<? extends Integer, ? extends Object> e : map.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  /* @see java.util.Map#remove(Object) */
+  public Object remove(Object key) {
+    int index = indexOf(key);
+    if (index < 0) return null;
+    Object old = getValue(index);
+    removeEntry(index);
+    return old;
+  }
+
+  /* @see java.util.Map#clear() */
+  public void clear() {
+    size = 0;
+    objects = null;
+    modCount++;
+  }
+
+  /* @see java.util.Map#keySet() */
+  public Set<Integer> keySet() {
+    return new AbstractSet<Integer>() {
+      public int size() {
+        return size;
+      }
+
+      public boolean contains(Object o) {
+        return containsKey(o);
+      }
+
+      public boolean remove(Object o) {
+        int oldSize = size;
+        CompactIFD.this.remove(o);
+        return size != oldSize;
+      }
+
+      public void clear() {
+        CompactIFD.this.clear();
+      }
+
+      public Iterator<Integer> iterator() {
+        return new EntryIterator<Integer>() {
+          public Integer next() {
+            return new Integer(tags[nextIndex()] & 0xffff);
+          }
+        };
+      }
+    };
+  }
+
+  /* @see java.util.Map#values() */
+  public Collection<Object> values() {
+    return new AbstractCollection<Object>() {
+      public int size() {
+        return size;
+      }
+
+      public void clear() {
+        CompactIFD.this.clear();
+      }
+
+      public Iterator<Object> iterator() {
+        return new EntryIterator<Object>() {
+          public Object next() {
+            return getValue(nextIndex());
+          }
+        };
+      }
+    };
+  }
+
+  /* @see java.util.Map#entrySet() */
+  public Set<Map.Entry<Integer, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<Integer, Object>>() {
+      public int size() {
+        return size;
+      }
+
+      public void clear() {
+        CompactIFD.this.clear();
+      }
+
+      public Iterator<Map.Entry<Integer, Object>> iterator() {
+        return new EntryIterator<Map.Entry<Integer, Object>>() {
+          public Map.Entry<Integer, Object> next() {
+            return new Entry(tags[nextIndex()] & 0xffff);
+          }
+        };
+      }
+    };
+  }
+
+  // -- Object API methods --
+
+  /* @see java.lang.Object#clone() */
+  public Object clone() {
+    return new CompactIFD(this);
+  }
+
+  // -- Helper methods --
+
+  /** Gets the index of the given key, or a negative number if absent. */
+  private int indexOf(Object key) {
+    if (!(key instanceof Integer)) return -1;
+    int tag = ((Integer) key).intValue();
+    if (tag < 0 || tag > 0xffff) return -1;
+    return search(tag);
+  }
+
+  /**
+   * Binary search for the given tag.
+   * @return the tag's index, or (-(insertion point) - 1) if it is absent
+   */
+  private int search(int tag) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int t = tags[mid] & 0xffff;
+      if (t < tag) low = mid + 1;
+      else if (t > tag) high = mid - 1;
+      else return mid;
+    }
+    return -low - 1;
+  }
+
+  private void resize(int capacity) {
+    short[] newTags = new short[capacity];
+    byte[] newTypes = new byte[capacity];
+    long[] newValues = new long[capacity];
+    System.arraycopy(tags, 0, newTags, 0, size);
+    System.arraycopy(types, 0, newTypes, 0, size);
+    System.arraycopy(values, 0, newValues, 0, size);
+    tags = newTags;
+    types = newTypes;
+    values = newValues;
+    if (objects != null) {
+      Object[] newObjects = new Object[capacity];
+      System.arraycopy(objects, 0, newObjects, 0, size);
+      objects = newObjects;
+    }
+  }
+
+  private void removeEntry(int index) {
+    int moved = size - index - 1;
+    if (moved > 0) {
+      System.arraycopy(tags, index + 1, tags, index, moved);
+      System.arraycopy(types, index + 1, types, index, moved);
+      System.arraycopy(values, index + 1, values, index, moved);
+      if (objects != null) {
+        System.arraycopy(objects, index + 1, objects, index, moved);
+      }
+    }
+    size--;
+    if (objects != null) objects[size] = null;
+    modCount++;
+  }
+
+  /** Boxes the value of the given entry. */
+  private Object getValue(int index) {
+    long v = values[index];
+    switch (types[index]) {
+      case BOOLEAN:
+        return Boolean.valueOf(v != 0);
+      case BYTE:
+        return new Byte((byte) v);
+      case SHORT:
+        return new Short((short) v);
+      case INTEGER:
+        return Integer.valueOf((int) v);
+      case LONG:
+        return Long.valueOf(v);
+      case FLOAT:
+        return new Float(Float.intBitsToFloat((int) v));
+      case DOUBLE:
+        return new Double(Double.longBitsToDouble(v));
+      case RATIONAL:
+        return new TiffRational(v >> 32, (int) v);
+      default:
+        return objects[index];
+    }
+  }
+
+  /** Stores the given value in the given entry, unboxing it if possible. */
+  private void setValue(int index, Object value) {
+    byte type = OBJECT;
+    long v = 0;
+    if (value instanceof Boolean) {
+      type = BOOLEAN;
+      v = ((Boolean) value).booleanValue() ? 1 : 0;
+    }
+    else if (value instanceof Byte) {
+      type = BYTE;
+      v = ((Byte) value).byteValue();
+    }
+    else if (value instanceof Short) {
+      type = SHORT;
+      v = ((Short) value).shortValue();
+    }
+    else if (value instanceof Integer) {
+      type = INTEGER;
+      v = ((Integer) value).intValue();
+    }
+    else if (value instanceof Long) {
+      type = LONG;
+      v = ((Long) value).longValue();
+    }
+    else if (value instanceof Float) {
+      type = FLOAT;
+      v = Float.floatToRawIntBits(((Float) value).floatValue());
+    }
+    else if (value instanceof Double) {
+      type = DOUBLE;
+      v = Double.doubleToRawLongBits(((Double) value).doubleValue());
+    }
+    else if (value instanceof TiffRational) {
+      TiffRational r = (TiffRational) value;
+      long numerator = r.getNumerator();
+      long denominator = r.getDenominator();
+      if (numerator == (int) numerator && denominator == (int) denominator) {
+        type = RATIONAL;
+        v = (numerator << 32) | (denominator & 0xffffffffL);
+      }
+    }
+
+    // the type is written last, so that an unsynchronized reader sees
+    // either the old value or the new one
+    if (type == OBJECT) {
+      if (objects == null) objects = new Object[tags.length];
+      objects[index] = value;
+    }
+    else {
+      values[index] = v;
+      if (objects != null) objects[index] = null;
+    }
+    types[index] = type;
+  }
+
+  // -- Helper classes --
+
+  /** Iterates over the entries in tag order. */
+  private abstract class EntryIterator<T> implements Iterator<T> {
+    private int next;
+    private int last = -1;
+    private int expectedModCount = modCount;
+
+    public boolean hasNext() {
+      return next < size;
+    }
+
+    protected int nextIndex() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (next >= size) throw new NoSuchElementException();
+      last = next++;
+      return last;
+    }
+
+    public void remove() {
+      if (last < 0) throw new IllegalStateException();
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      removeEntry(last);
+      next = last;
+      last = -1;
+      expectedModCount = modCount;
+    }
+  }
+
+  /** An entry that reads and writes through to the IFD. */
+  private class Entry implements Map.Entry<Integer, Object> {
+    private Integer key;
+
+    public Entry(int tag) {
+      key = new Integer(tag);
+    }
+
+    public Integer getKey() {
+      return key;
+    }
+
+    public Object getValue() {
+      return getStoredValue(key);
+    }
+
+    public Object setValue(Object value) {
+      return put(key, value);
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) return false;
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      Object value = getValue();
+      return key.equals(e.getKey()) &&
+        (value == null ? e.getValue() == null : value.equals(e.getValue()));
+    }
+
+    public int hashCode() {
+      Object value = getValue();
+      return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
+
+    public String toString() {
+      return key + "=" + getValue();
+    }
+  }
+
+}
@@ -23,6 +23,7 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package loci.formats.tiff;
 
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.util.Arrays;
@@ -50,12 +51,15 @@ public class IFD extends HashMap<Integer, Object> {
 
   // -- Constants --
 
+  private static final long serialVersionUID = -265349464726923274L;
+
   private static final Logger LOGGER = LoggerFactory.getLogger(IFD.class);
 
   // non-IFD tags (for internal use)
   public static final int LITTLE_ENDIAN = 0;
   public static final int BIG_TIFF = 1;
   public static final int REUSE = 3;
+  public static final int COMPRESSED_STRIPS = 4;
 
   // IFD tags
   public static final int NEW_SUBFILE_TYPE = 254;
@@ -191,6 +195,14 @@ public class IFD extends HashMap<Integer, Object> {
   public static final int SHARPNESS = 41994;
   public static final int SUBJECT_DISTANCE_RANGE = 41996;
 
+  // -- Fields --
+
+  /**
+   * Parser from which the values of deferred entries are read,
+   * or null if this IFD was not parsed lazily.
+   */
+  private transient TiffParser parser;
+
   // -- Constructors --
 
   public IFD() {
@@ -199,6 +211,56 @@ public class IFD extends HashMap<Integer, Object> {
 
   public IFD(IFD ifd) {
     super(ifd);
+    parser = ifd.parser;
+  }
+
+  // -- HashMap API methods --
+
+  /**
+   * Gets the value stored for the given tag.  If the IFD was parsed in
+   * lazy mode (see {@link TiffParser#setLazyIFDs(boolean)}) and the value
+   * has not been read yet, it is read now and replaces the deferred entry.
+   */
+  public Object get(Object key) {
+    Object value = getStoredValue(key);
+    if (value instanceof TiffIFDEntry && parser != null) {
+      synchronized (this) {
+        value = getStoredValue(key);
+        if (value instanceof TiffIFDEntry) {
+          TiffIFDEntry entry = (TiffIFDEntry) value;
+          try {
+            value = parser.loadIFDValue(entry);
+          }
+          catch (IOException e) {
+            LOGGER.debug("Could not read " + getIFDTagName(entry.getTag()), e);
+            return null;
+          }
+          if (value == null) remove(key);
+          else put(new Integer(entry.getTag()), value);
+        }
+      }
+    }
+    return value;
+  }
+
+  // -- Internal IFD API methods --
+
+  /** Sets the parser from which the values of deferred entries are read. */
+  void setParser(TiffParser parser) {
+    this.parser = parser;
+  }
+
+  /** Gets the parser from which the values of deferred entries are read. */
+  TiffParser getParser() {
+    return parser;
+  }
+
+  /**
+   * Gets the value stored for the given key, without reading it if it was
+   * deferred.
+   */
+  Object getStoredValue(Object key) {
+    return super.get(key);
   }
 
   // -- Tag retrieval methods --
@@ -899,7 +961,7 @@ public class IFD extends HashMap<Integer, Object> {
     LOGGER.trace("IFD directory entry values:");
 
     for (Integer tag : keySet()) {
-      Object value = get(tag);
+      Object value = getStoredValue(tag);
       String v = null;
       if (value == null) {
         LOGGER.trace("\t{}=null", getIFDTagName(tag.intValue()));
@@ -34,4 +34,8 @@ import java.util.ArrayList;
  *
  * @author Curtis Rueden ctrueden at wisc.edu
  */
-public class IFDList extends ArrayList<IFD> { }
+public class IFDList extends ArrayList<IFD> {
+
+  private static final long serialVersionUID = -113738094423984626L;
+
+}
@@ -23,6 +23,8 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package loci.formats.tiff;
 
+import java.io.Serializable;
+
 /**
  * This class represents a single raw TIFF IFD entry. It does not retrieve or
  * store the values from the entry's specific offset and is based on the TIFF
@@ -34,7 +36,9 @@ package loci.formats.tiff;
  *
  * @author Chris Allan callan at blackcat.ca
  */
-public class TiffIFDEntry implements Comparable<Object> {
+public class TiffIFDEntry implements Comparable<Object>, Serializable {
+
+  private static final long serialVersionUID = -2386064491133633059L;
 
   /** The <i>Tag</i> that identifies the field. */
   private int tag;
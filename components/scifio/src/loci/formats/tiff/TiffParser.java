@@ -24,9 +24,15 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package loci.formats.tiff;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import loci.common.DataTools;
 import loci.common.RandomAccessInputStream;
@@ -35,6 +41,7 @@ import loci.common.enumeration.EnumException;
 import loci.formats.FormatException;
 import loci.formats.codec.BitBuffer;
 import loci.formats.codec.CodecOptions;
+import loci.formats.codec.JPEG2000CodecOptions;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +65,12 @@ public class TiffParser {
   private static final Logger LOGGER =
     LoggerFactory.getLogger(TiffParser.class);
 
+  /**
+   * Largest gap, in bytes, between two tiles or strips that will still be
+   * fetched with a single read.
+   */
+  private static final int MAX_READ_GAP = 64 * 1024;
+
   // -- Fields --
 
   /** Input source from which to parse TIFF data. */
@@ -74,6 +87,15 @@ public class TiffParser {
 
   private boolean doCaching;
 
+  /**
+   * Whether or not entries whose values are stored outside of the IFD are
+   * read only when first requested.
+   */
+  private boolean lazyIFDs = false;
+
+  /** Whether or not IFDs are stored as {@link CompactIFD}s. */
+  private boolean compactIFDs = false;
+
   /** Cached list of IFDs in the current file. */
   private IFDList ifdList;
 
@@ -87,6 +109,12 @@ public class TiffParser {
 
   private HashMap<IFD, byte[]> cachedPixels = new HashMap<IFD, byte[]>();
 
+  /**
+   * Executor used to decode tiles concurrently, or null if tiles should be
+   * decoded on the calling thread.
+   */
+  private ExecutorService tileExecutor;
+
   // -- Constructors --
 
   /** Constructs a new TIFF parser from the given file name. */
@@ -125,11 +153,61 @@ public class TiffParser {
     return codecOptions;
   }
 
+  /**
+   * Sets the executor used to decode tiles concurrently when reading a
+   * region that spans more than one tile.  Reads from the underlying stream
+   * are still serialized, but decompression and unpacking of each tile runs
+   * as a separate task with its own scratch buffer.
+   * @param executor the executor to use, or null (the default) to decode
+   *   every tile on the calling thread.
+   */
+  public void setTileExecutor(ExecutorService executor) {
+    this.tileExecutor = executor;
+  }
+
+  /**
+   * Retrieves the executor used to decode tiles concurrently.
+   * @return See above; null if tiles are decoded on the calling thread.
+   */
+  public ExecutorService getTileExecutor() {
+    return tileExecutor;
+  }
+
   /** Sets whether or not IFD entries should be cached. */
   public void setDoCaching(boolean doCaching) {
     this.doCaching = doCaching;
   }
 
+  /**
+   * Sets whether or not IFD entries whose values are stored elsewhere in the
+   * file are read only when first requested.  In lazy mode, each such entry
+   * is recorded as a {@link TiffIFDEntry} (tag, type, count and offset),
+   * and its value is read from this parser's stream the first time
+   * {@link IFD#getIFDValue(int)} asks for it.  The stream must therefore
+   * remain open for as long as the IFDs are in use.
+   */
+  public void setLazyIFDs(boolean lazy) {
+    lazyIFDs = lazy;
+  }
+
+  /** Gets whether or not IFD entry values are read only when requested. */
+  public boolean isLazyIFDs() {
+    return lazyIFDs;
+  }
+
+  /**
+   * Sets whether or not parsed IFDs are stored as {@link CompactIFD}s,
+   * which use much less memory than ordinary IFDs.
+   */
+  public void setCompactIFDs(boolean compact) {
+    compactIFDs = compact;
+  }
+
+  /** Gets whether or not parsed IFDs are stored as {@link CompactIFD}s. */
+  public boolean isCompactIFDs() {
+    return compactIFDs;
+  }
+
   /** Sets whether or not 64-bit offsets are used for non-BigTIFF files. */
   public void setUse64BitOffsets(boolean use64Bit) {
     fakeBigTiff = use64Bit;
@@ -267,6 +345,29 @@ public class TiffParser {
     return exif;
   }
 
+  /**
+   * Gets the number of IFDs in the file, without reading any of their
+   * entries or allocating space for their offsets.  SubIFDs are not counted.
+   */
+  public int getIFDCount() throws IOException {
+    int bytesPerEntry = bigTiff ? TiffConstants.BIG_TIFF_BYTES_PER_ENTRY :
+      TiffConstants.BYTES_PER_ENTRY;
+    long length = in.length();
+
+    int count = 0;
+    long offset = getFirstOffset();
+    while (offset > 0 && offset < length) {
+      in.seek(offset);
+      count++;
+      long nEntries = bigTiff ? in.readLong() : in.readUnsignedShort();
+      in.seek(in.getFilePointer() + nEntries * bytesPerEntry);
+      offset = getNextOffset(offset);
+    }
+    ifdCount = count;
+
+    return count;
+  }
+
   /** Gets the offsets to every IFD in the file. */
   public long[] getIFDOffsets() throws IOException {
     // check TIFF header
@@ -350,7 +451,7 @@ public class TiffParser {
   /** Gets the IFD stored at the given offset.  */
   public IFD getIFD(long offset) throws IOException {
     if (offset < 0 || offset >= in.length()) return null;
-    IFD ifd = new IFD();
+    IFD ifd = compactIFDs ? new CompactIFD() : new IFD();
 
     // save little-endian flag to internal LITTLE_ENDIAN tag
     ifd.put(new Integer(IFD.LITTLE_ENDIAN), new Boolean(in.isLittleEndian()));
@@ -362,6 +463,7 @@ public class TiffParser {
     long numEntries = bigTiff ? in.readLong() : in.readUnsignedShort();
     LOGGER.trace("getIFDs: {} directory entries to read", numEntries);
     if (numEntries == 0 || numEntries == 1) return ifd;
+    if (lazyIFDs) ifd.setParser(this);
 
     int bytesPerEntry = bigTiff ?
       TiffConstants.BIG_TIFF_BYTES_PER_ENTRY : TiffConstants.BYTES_PER_ENTRY;
@@ -400,8 +502,9 @@ public class TiffParser {
       }
       if (count < 0 || count > in.length()) break;
 
-      if (pointer != in.getFilePointer() && !doCaching) {
-        value = entry;
+      if (pointer != in.getFilePointer() && (lazyIFDs || !doCaching)) {
+        value = count == entry.getValueCount() ? entry :
+          new TiffIFDEntry(tag, entry.getType(), count, pointer);
       }
       else value = getIFDValue(entry);
 
@@ -411,22 +514,55 @@ public class TiffParser {
     }
 
     in.seek(offset + baseOffset + bytesPerEntry * numEntries);
+    if (ifd instanceof CompactIFD) ((CompactIFD) ifd).trimToSize();
 
     return ifd;
   }
 
   /** Fill in IFD entries that are stored at an arbitrary offset. */
   public void fillInIFD(IFD ifd) throws IOException {
-    HashSet<TiffIFDEntry> entries = new HashSet<TiffIFDEntry>();
-    for (Object key : ifd.keySet()) {
-      if (ifd.get(key) instanceof TiffIFDEntry) {
-        entries.add((TiffIFDEntry) ifd.get(key));
+    synchronized (ifd) {
+      HashSet<TiffIFDEntry> entries = new HashSet<TiffIFDEntry>();
+      for (Object value : ifd.values()) {
+        if (value instanceof TiffIFDEntry) {
+          entries.add((TiffIFDEntry) value);
+        }
+      }
+
+      for (TiffIFDEntry entry : entries) {
+        ifd.put(new Integer(entry.getTag()), loadIFDValue(entry));
+      }
+    }
+  }
+
+  /**
+   * Reads the value of an entry whose reading was deferred, leaving the
+   * stream's file pointer where it was.  Offsets and byte counts are always
+   * returned as a long[], as that is how {@link IFD} hands them out.
+   */
+  Object loadIFDValue(TiffIFDEntry entry) throws IOException {
+    Object value = null;
+    synchronized (in) {
+      long fp = in.getFilePointer();
+      try {
+        value = getIFDValue(entry);
+      }
+      finally {
+        in.seek(fp);
       }
     }
 
-    for (TiffIFDEntry entry : entries) {
-      ifd.put(new Integer(entry.getTag()), getIFDValue(entry));
+    int tag = entry.getTag();
+    if (value instanceof int[] && (tag == IFD.STRIP_OFFSETS ||
+      tag == IFD.STRIP_BYTE_COUNTS || tag == IFD.TILE_OFFSETS ||
+      tag == IFD.TILE_BYTE_COUNTS))
+    {
+      int[] ints = (int[]) value;
+      long[] longs = new long[ints.length];
+      for (int i=0; i<ints.length; i++) longs[i] = ints[i];
+      value = longs;
     }
+    return value;
   }
 
   /** Retrieve the value corresponding to the given TiffIFDEntry. */
@@ -577,10 +713,25 @@ public class TiffParser {
   public byte[] getTile(IFD ifd, byte[] buf, int row, int col)
     throws FormatException, IOException
   {
-    byte[] jpegTable = (byte[]) ifd.getIFDValue(IFD.JPEG_TABLES);
-
     codecOptions.interleaved = true;
     codecOptions.littleEndian = ifd.isLittleEndian();
+    return getTile(ifd, buf, row, col, null, codecOptions);
+  }
+
+  /**
+   * Decodes a single tile using the given codec options.
+   * If <code>tile</code> is null, the compressed bytes are read from the
+   * input stream first; only that read is synchronized, so this may be
+   * called concurrently as long as each caller supplies its own buffer and
+   * codec options.
+   *
+   * @param tile the compressed bytes of the tile as returned by
+   *   {@link #readTiles(IFD, int[])}, or null.
+   */
+  private byte[] getTile(IFD ifd, byte[] buf, int row, int col, byte[] tile,
+    CodecOptions options) throws FormatException, IOException
+  {
+    byte[] jpegTable = (byte[]) ifd.getIFDValue(IFD.JPEG_TABLES);
 
     long tileWidth = ifd.getTileWidth();
     long tileLength = ifd.getTileLength();
@@ -593,45 +744,29 @@ public class TiffParser {
     int pixel = ifd.getBytesPerSample()[0];
     int effectiveChannels = planarConfig == 2 ? 1 : samplesPerPixel;
 
-    long[] stripOffsets = ifd.getStripOffsets();
-    long[] stripByteCounts = ifd.getStripByteCounts();
-    long[] rowsPerStrip = ifd.getRowsPerStrip();
-
-    int tileNumber = (int) (row * numTileCols + col);
-    if (stripByteCounts[tileNumber] == (rowsPerStrip[0] * tileWidth) &&
-      pixel > 1)
-    {
-      stripByteCounts[tileNumber] *= pixel;
-    }
     int size = (int) (tileWidth * tileLength * pixel * effectiveChannels);
 
     if (buf == null) buf = new byte[size];
-    if (stripByteCounts[tileNumber] == 0 ||
-      stripOffsets[tileNumber] >= in.length())
-    {
-      return buf;
+    if (tile == null) {
+      int tileNumber = (int) (row * numTileCols + col);
+      tile = readTiles(ifd, new int[] {tileNumber})[0];
     }
-    byte[] tile = new byte[(int) stripByteCounts[tileNumber]];
-
-    LOGGER.debug("Reading tile Length {} Offset {}",
-        tile.length, stripOffsets[tileNumber]);
-    in.seek(stripOffsets[tileNumber]);
-    in.read(tile);
+    if (tile.length == 0) return buf;
 
-    codecOptions.maxBytes = (int) Math.max(size, tile.length);
+    options.maxBytes = (int) Math.max(size, tile.length);
 
     if (jpegTable != null) {
       byte[] q = new byte[jpegTable.length + tile.length - 4];
       System.arraycopy(jpegTable, 0, q, 0, jpegTable.length - 2);
       System.arraycopy(tile, 2, q, jpegTable.length - 2, tile.length - 2);
-      tile = compression.decompress(q, codecOptions);
+      tile = compression.decompress(q, options);
     }
-    else tile = compression.decompress(tile, codecOptions);
+    else tile = compression.decompress(tile, options);
     TiffCompression.undifference(tile, ifd);
     unpackBytes(buf, 0, tile, ifd);
 
     if (planarConfig == 2 && !ifd.isTiled() && ifd.getSamplesPerPixel() > 1) {
-      int channel = row % stripOffsets.length;
+      int channel = row % ifd.getStripOffsets().length;
       if (channel < ifd.getBytesPerSample().length) {
         int realBytes = ifd.getBytesPerSample()[channel];
         if (realBytes != pixel) {
@@ -655,6 +790,47 @@ public class TiffParser {
     return buf;
   }
 
+  /**
+   * Gets the offset to the first pixel of the given image, if its pixels can
+   * be read verbatim from the file: the image must be uncompressed, have one
+   * sample per pixel of a whole number of bytes, need no photometric
+   * conversion, and be stored as full-width strips (or tiles) that lie
+   * end to end in the file.
+   *
+   * @return the offset of the first pixel, or -1 if the image has to be
+   *   decoded by {@link #getSamples(IFD, byte[])}
+   */
+  public long getContiguousPixelOffset(IFD ifd) throws FormatException {
+    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
+    if (ifd.getCompression() != TiffCompression.UNCOMPRESSED ||
+      ifd.getSamplesPerPixel() != 1 || (ifd.getBitsPerSample()[0] % 8) != 0 ||
+      photoInterp == PhotoInterp.WHITE_IS_ZERO ||
+      photoInterp == PhotoInterp.CMYK || photoInterp == PhotoInterp.Y_CB_CR ||
+      ifd.getTileWidth() != ifd.getImageWidth())
+    {
+      return -1;
+    }
+
+    long[] stripOffsets = ifd.getStripOffsets();
+    long[] stripByteCounts = ifd.getStripByteCounts();
+    if (stripOffsets == null || stripByteCounts == null ||
+      stripOffsets.length == 0 || stripByteCounts.length < stripOffsets.length)
+    {
+      return -1;
+    }
+
+    long planeSize = ifd.getImageWidth() * ifd.getImageLength() *
+      ifd.getBytesPerSample()[0];
+    long next = stripOffsets[0];
+    for (int i=0; i<stripOffsets.length && next - stripOffsets[0] < planeSize;
+      i++)
+    {
+      if (stripOffsets[i] != next) return -1;
+      next += stripByteCounts[i];
+    }
+    return next - stripOffsets[0] >= planeSize ? stripOffsets[0] : -1;
+  }
+
   public byte[] getSamples(IFD ifd, byte[] buf)
     throws FormatException, IOException
   {
@@ -751,17 +927,25 @@ public class TiffParser {
           (int) (((y + height) / tileLength) * numTileCols + column);
         lastTile = (int) Math.min(lastTile, stripOffsets.length - 1);
 
+        int nTiles = lastTile - firstTile + 1;
+        long[] offsets = new long[nTiles];
+        int[] lengths = new int[nTiles];
+        int[] bufferOffsets = new int[nTiles];
+        byte[][] buffers = new byte[nTiles][];
         int offset = 0;
         for (int tile=firstTile; tile<=lastTile; tile++) {
           if (stripByteCounts[tile] == numSamples && pixel > 1) {
             stripByteCounts[tile] *= pixel;
           }
 
-          in.seek(stripOffsets[tile]);
-          int len = (int) Math.min(buf.length - offset, stripByteCounts[tile]);
-          in.read(buf, offset, len);
-          offset += len;
+          int i = tile - firstTile;
+          offsets[i] = stripOffsets[tile];
+          lengths[i] = (int) Math.min(buf.length - offset, stripByteCounts[tile]);
+          bufferOffsets[i] = offset;
+          buffers[i] = buf;
+          offset += lengths[i];
         }
+        in.read(offsets, lengths, buffers, bufferOffsets, MAX_READ_GAP);
       }
       return buf;
     }
@@ -797,59 +981,84 @@ public class TiffParser {
 
     Region tileBounds = new Region(0, 0, (int) tileWidth, (int) tileLength);
 
-    for (int row=0; row<numTileRows; row++) {
-      for (int col=0; col<numTileCols; col++) {
-        tileBounds.x = col * (int) (tileWidth - overlapX);
-        tileBounds.y = row * (int) (tileLength - overlapY);
-
-        if (planarConfig == 2) {
-          tileBounds.y = (int) ((row % nrows) * (tileLength - overlapY));
-        }
+    List<int[]> tiles = getIntersectingTiles(imageBounds, tileWidth,
+      tileLength, overlapX, overlapY, numTileRows, numTileCols, nrows);
+
+    // fetch the compressed bytes of every tile up front, so that tiles which
+    // are stored next to each other are read together
+    byte[][] rawTiles = null;
+    byte[][] decodedTiles = null;
+    if (tiles.size() > 1 && !cachedPixels.containsKey(ifd)) {
+      int[] tileNumbers = new int[tiles.size()];
+      for (int i=0; i<tileNumbers.length; i++) {
+        int[] tile = tiles.get(i);
+        tileNumbers[i] = (int) (tile[0] * numTileCols + tile[1]);
+      }
+      rawTiles = readTiles(ifd, tileNumbers);
+      if (tileExecutor != null) {
+        decodedTiles = decodeTiles(ifd, tiles, rawTiles, bufferSize);
+        rawTiles = null;
+      }
+    }
 
-        if (!imageBounds.intersects(tileBounds)) continue;
+    for (int i=0; i<tiles.size(); i++) {
+      int row = tiles.get(i)[0];
+      int col = tiles.get(i)[1];
+      tileBounds.x = col * (int) (tileWidth - overlapX);
+      tileBounds.y = (int) ((row % nrows) * (tileLength - overlapY));
 
-        if (!cachedPixels.containsKey(ifd)) {
-          getTile(ifd, cachedTileBuffer, row, col);
-          if (numTileRows * numTileCols == 1) {
-            cachedPixels.clear();
-            cachedPixels.put(ifd, cachedTileBuffer);
-          }
+      byte[] tilePixels = cachedTileBuffer;
+      if (decodedTiles != null) {
+        tilePixels = decodedTiles[i];
+        decodedTiles[i] = null;
+      }
+      else if (!cachedPixels.containsKey(ifd)) {
+        byte[] rawTile = null;
+        if (rawTiles != null) {
+          rawTile = rawTiles[i];
+          rawTiles[i] = null;
         }
-        else {
-          cachedTileBuffer = cachedPixels.get(ifd);
+        getTile(ifd, cachedTileBuffer, row, col, rawTile, codecOptions);
+        if (numTileRows * numTileCols == 1) {
+          cachedPixels.clear();
+          cachedPixels.put(ifd, cachedTileBuffer);
         }
+      }
+      else {
+        cachedTileBuffer = cachedPixels.get(ifd);
+        tilePixels = cachedTileBuffer;
+      }
 
-        // adjust tile bounds, if necessary
+      // adjust tile bounds, if necessary
 
-        int tileX = (int) Math.max(tileBounds.x, x);
-        int tileY = (int) Math.max(tileBounds.y, y);
-        int realX = tileX % (int) (tileWidth - overlapX);
-        int realY = tileY % (int) (tileLength - overlapY);
+      int tileX = (int) Math.max(tileBounds.x, x);
+      int tileY = (int) Math.max(tileBounds.y, y);
+      int realX = tileX % (int) (tileWidth - overlapX);
+      int realY = tileY % (int) (tileLength - overlapY);
 
-        int twidth = (int) Math.min(endX - tileX, tileWidth - realX);
-        int theight = (int) Math.min(endY - tileY, tileLength - realY);
-        // copy appropriate portion of the tile to the output buffer
+      int twidth = (int) Math.min(endX - tileX, tileWidth - realX);
+      int theight = (int) Math.min(endY - tileY, tileLength - realY);
+      // copy appropriate portion of the tile to the output buffer
 
-        int copy = pixel * twidth;
+      int copy = pixel * twidth;
 
-        realX *= pixel;
-        realY *= rowLen;
+      realX *= pixel;
+      realY *= rowLen;
 
-        for (int q=0; q<effectiveChannels; q++) {
-          int src = (int) (q * tileSize) + realX + realY;
-          int dest = (int) (q * planeSize) + pixel * (tileX - x) +
-            outputRowLen * (tileY - y);
-          if (planarConfig == 2) dest += (planeSize * (row / nrows));
+      for (int q=0; q<effectiveChannels; q++) {
+        int src = (int) (q * tileSize) + realX + realY;
+        int dest = (int) (q * planeSize) + pixel * (tileX - x) +
+          outputRowLen * (tileY - y);
+        if (planarConfig == 2) dest += (planeSize * (row / nrows));
 
-          if (rowLen == outputRowLen) {
-            System.arraycopy(cachedTileBuffer, src, buf, dest, copy * theight);
-          }
-          else {
-            for (int tileRow=0; tileRow<theight; tileRow++) {
-              System.arraycopy(cachedTileBuffer, src, buf, dest, copy);
-              src += rowLen;
-              dest += outputRowLen;
-            }
+        if (rowLen == outputRowLen) {
+          System.arraycopy(tilePixels, src, buf, dest, copy * theight);
+        }
+        else {
+          for (int tileRow=0; tileRow<theight; tileRow++) {
+            System.arraycopy(tilePixels, src, buf, dest, copy);
+            src += rowLen;
+            dest += outputRowLen;
           }
         }
       }
@@ -858,6 +1067,131 @@ public class TiffParser {
     return buf;
   }
 
+  // -- Helper methods --
+
+  /**
+   * Reads the compressed bytes of the given tiles (or strips), merging reads
+   * of tiles that are adjacent or nearly adjacent on disk.
+   *
+   * @param tileNumbers indices into the StripOffsets/TileOffsets array.
+   * @return the compressed bytes for each requested tile, in the same order
+   *   as <code>tileNumbers</code>; tiles with no data are represented by
+   *   an empty array.
+   */
+  private byte[][] readTiles(IFD ifd, int[] tileNumbers)
+    throws FormatException, IOException
+  {
+    long tileWidth = ifd.getTileWidth();
+    int pixel = ifd.getBytesPerSample()[0];
+    long[] stripOffsets = ifd.getStripOffsets();
+    long[] stripByteCounts = ifd.getStripByteCounts();
+    long[] rowsPerStrip = ifd.getRowsPerStrip();
+
+    byte[][] tiles = new byte[tileNumbers.length][];
+    long[] offsets = new long[tileNumbers.length];
+    synchronized (in) {
+      long length = in.length();
+      for (int i=0; i<tileNumbers.length; i++) {
+        int tileNumber = tileNumbers[i];
+        long byteCount = stripByteCounts[tileNumber];
+        if (byteCount == (rowsPerStrip[0] * tileWidth) && pixel > 1) {
+          byteCount *= pixel;
+        }
+        offsets[i] = stripOffsets[tileNumber];
+        if (byteCount == 0 || offsets[i] >= length) {
+          tiles[i] = new byte[0];
+        }
+        else {
+          LOGGER.debug("Reading tile Length {} Offset {}",
+            byteCount, offsets[i]);
+          tiles[i] = new byte[(int) byteCount];
+        }
+      }
+      in.read(offsets, tiles, MAX_READ_GAP);
+    }
+    return tiles;
+  }
+
+  /**
+   * Lists the row and column of every tile that intersects the given region.
+   * For planar data, <code>numTileRows</code> includes the tile rows of
+   * every channel and <code>nrows</code> is the number of tile rows in a
+   * single channel.
+   */
+  private List<int[]> getIntersectingTiles(Region imageBounds, long tileWidth,
+    long tileLength, int overlapX, int overlapY, long numTileRows,
+    long numTileCols, long nrows)
+  {
+    Region tileBounds = new Region(0, 0, (int) tileWidth, (int) tileLength);
+    List<int[]> tiles = new ArrayList<int[]>();
+    for (int row=0; row<numTileRows; row++) {
+      for (int col=0; col<numTileCols; col++) {
+        tileBounds.x = col * (int) (tileWidth - overlapX);
+        tileBounds.y = (int) ((row % nrows) * (tileLength - overlapY));
+        if (imageBounds.intersects(tileBounds)) {
+          tiles.add(new int[] {row, col});
+        }
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * Decodes the given tiles concurrently using {@link #tileExecutor}.
+   *
+   * @param tiles the row and column of each tile.
+   * @param rawTiles the compressed bytes of each tile.
+   * @param bufferSize the size of a decoded tile.
+   * @return the decoded tiles, in the same order as <code>tiles</code>.
+   */
+  private byte[][] decodeTiles(final IFD ifd, List<int[]> tiles,
+    final byte[][] rawTiles, final int bufferSize)
+    throws FormatException, IOException
+  {
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int i=0; i<tiles.size(); i++) {
+      final int row = tiles.get(i)[0];
+      final int col = tiles.get(i)[1];
+      final byte[] rawTile = rawTiles[i];
+      // each task needs its own codec options, as maxBytes is set per tile
+      final CodecOptions options =
+        codecOptions instanceof JPEG2000CodecOptions ?
+        new JPEG2000CodecOptions(codecOptions) : new CodecOptions(codecOptions);
+      results.add(tileExecutor.submit(new Callable<byte[]>() {
+        public byte[] call() throws FormatException, IOException {
+          return getTile(ifd, new byte[bufferSize], row, col, rawTile, options);
+        }
+      }));
+    }
+
+    byte[][] decoded = new byte[tiles.size()][];
+    try {
+      for (int i=0; i<decoded.length; i++) {
+        decoded[i] = results.get(i).get();
+      }
+    }
+    catch (InterruptedException e) {
+      cancel(results);
+      throw new FormatException("Interrupted while decoding tiles", e);
+    }
+    catch (ExecutionException e) {
+      cancel(results);
+      Throwable cause = e.getCause();
+      if (cause instanceof FormatException) throw (FormatException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new FormatException(cause);
+    }
+    return decoded;
+  }
+
+  /** Cancels any of the given tasks that have not yet completed. */
+  private static void cancel(List<Future<byte[]>> results) {
+    for (Future<byte[]> result : results) {
+      result.cancel(false);
+    }
+  }
+
   // -- Utility methods - byte stream decoding --
 
   /**
@@ -0,0 +1,584 @@
+//
+// TiffPyramidSaver.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.tiff;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import loci.common.DataTools;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes tiled, multi-resolution TIFF images.  Each plane is written as a
+ * tiled full resolution IFD in the main IFD chain, with each 2x downsampled
+ * resolution level written as a tiled SubIFD of that plane.
+ *
+ * Pixel data may be supplied in arbitrary rectangles.  Data is accumulated
+ * into tiles, and each tile is written and downsampled into the next level
+ * as soon as it is complete, so only partially filled tiles are ever held in
+ * memory.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/tiff/TiffPyramidSaver.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/tiff/TiffPyramidSaver.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class TiffPyramidSaver {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(TiffPyramidSaver.class);
+
+  /** Default width and height of each tile, in pixels. */
+  public static final int DEFAULT_TILE_SIZE = 256;
+
+  // -- Fields --
+
+  /** The saver used to write each tile. */
+  private TiffSaver saver;
+
+  /** Maximum number of resolutions, including the full resolution. */
+  private int resolutions;
+
+  private int tileWidth;
+  private int tileHeight;
+
+  /** Planes that have not yet been completely written, keyed by index. */
+  private Map<Integer, Plane> planes = new HashMap<Integer, Plane>();
+
+  /** Full resolution IFD offsets for each plane index in the main chain. */
+  private TreeMap<Integer, Long> chainOffsets = new TreeMap<Integer, Long>();
+
+  /** Position of the next IFD offset for each plane in the main chain. */
+  private Map<Integer, Long> nextPointers = new HashMap<Integer, Long>();
+
+  // -- Constructors --
+
+  /**
+   * Constructs a new pyramid saver that writes through the given TIFF saver,
+   * using the default tile size.
+   */
+  public TiffPyramidSaver(TiffSaver saver, int resolutions) {
+    this(saver, resolutions, DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE);
+  }
+
+  /**
+   * Constructs a new pyramid saver that writes through the given TIFF saver.
+   *
+   * @param saver the saver to which tiles are written; it is switched to
+   *   sequential writing, as IFD placement is managed by this class
+   * @param resolutions the maximum number of resolutions to write for each
+   *   plane, including the full resolution
+   * @param tileWidth the width of each tile; must be a multiple of 16
+   * @param tileHeight the height of each tile; must be a multiple of 16
+   */
+  public TiffPyramidSaver(TiffSaver saver, int resolutions,
+    int tileWidth, int tileHeight)
+  {
+    if (saver == null) {
+      throw new IllegalArgumentException("TIFF saver cannot be null");
+    }
+    if (resolutions < 1) {
+      throw new IllegalArgumentException(
+        "Invalid resolution count: " + resolutions);
+    }
+    if (tileWidth <= 0 || tileWidth % 16 != 0 ||
+      tileHeight <= 0 || tileHeight % 16 != 0)
+    {
+      throw new IllegalArgumentException("Invalid tile size: " + tileWidth +
+        "x" + tileHeight + " (must be a multiple of 16)");
+    }
+    this.saver = saver;
+    this.resolutions = resolutions;
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+    saver.setWritingSequentially(true);
+  }
+
+  // -- TiffPyramidSaver API methods --
+
+  /** Gets the maximum number of resolutions written for each plane. */
+  public int getResolutionCount() {
+    return resolutions;
+  }
+
+  /** Gets the tile width, in pixels. */
+  public int getTileWidth() {
+    return tileWidth;
+  }
+
+  /** Gets the tile height, in pixels. */
+  public int getTileHeight() {
+    return tileHeight;
+  }
+
+  /**
+   * Writes a rectangle of full resolution pixels for the given plane.
+   * The rectangles supplied for a plane must not overlap.
+   *
+   * @param buf the pixel data; interleaved or not according to the planar
+   *   configuration of the IFD
+   * @param ifd the IFD describing the full resolution image.  The IFD passed
+   *   with the first rectangle of each plane is used as the template for all
+   *   resolutions of that plane; image width and length must be set.
+   * @param no the index of the plane within the file
+   * @param pixelType the pixel type, as defined in {@link FormatTools}
+   * @param x the X coordinate of the rectangle's upper-left corner
+   * @param y the Y coordinate of the rectangle's upper-left corner
+   * @param w the width of the rectangle
+   * @param h the height of the rectangle
+   */
+  public synchronized void writeImage(byte[] buf, IFD ifd, int no,
+    int pixelType, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    if (buf == null) {
+      throw new FormatException("Image data cannot be null");
+    }
+    if (ifd == null) {
+      throw new FormatException("IFD cannot be null");
+    }
+
+    Plane plane = planes.get(no);
+    if (plane == null) {
+      if (chainOffsets.containsKey(no)) {
+        throw new FormatException("Plane " + no + " was already written");
+      }
+      plane = new Plane(no, ifd, pixelType, buf.length, w, h);
+      planes.put(no, plane);
+    }
+    if (x < 0 || y < 0 || w < 1 || h < 1 ||
+      x + w > plane.widths[0] || y + h > plane.heights[0])
+    {
+      throw new FormatException("Invalid rectangle: " + x + ", " + y +
+        ", " + w + ", " + h);
+    }
+    if (buf.length < w * h * plane.pixelSize) {
+      throw new FormatException("Buffer too small: expected " +
+        (w * h * plane.pixelSize) + " bytes, got " + buf.length);
+    }
+
+    paste(plane, 0, buf, x, y, w, h);
+    if (plane.pending == 0) planes.remove(no);
+  }
+
+  /**
+   * Writes all incomplete tiles, so that every plane that has been started
+   * is fully written.  Missing pixels are written as zeros.
+   */
+  public synchronized void finish() throws FormatException, IOException {
+    for (Plane plane : new ArrayList<Plane>(planes.values())) {
+      for (int level=0; level<plane.levels; level++) {
+        int tilesPerRow = plane.getTilesPerRow(level);
+        int tileCount = tilesPerRow * plane.getTilesPerColumn(level);
+        for (int key=0; key<tileCount; key++) {
+          if (plane.written[level].get(key)) continue;
+          Tile tile = plane.tiles.get(level).remove(key);
+          if (tile == null) {
+            tile = new Tile(plane, level, (key % tilesPerRow) * tileWidth,
+              (key / tilesPerRow) * tileHeight);
+          }
+          completeTile(plane, level, key, tile);
+        }
+      }
+      planes.remove(plane.no);
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Copies a rectangle of pixels at the given level into the tiles that
+   * intersect it, writing any tiles that become complete.
+   */
+  private void paste(Plane plane, int level, byte[] buf,
+    int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    int firstCol = x / tileWidth;
+    int lastCol = (x + w - 1) / tileWidth;
+    int firstRow = y / tileHeight;
+    int lastRow = (y + h - 1) / tileHeight;
+    int tilesPerRow = plane.getTilesPerRow(level);
+
+    for (int row=firstRow; row<=lastRow; row++) {
+      for (int col=firstCol; col<=lastCol; col++) {
+        int key = row * tilesPerRow + col;
+        Tile tile = plane.tiles.get(level).get(key);
+        if (tile == null) {
+          tile = new Tile(plane, level, col * tileWidth, row * tileHeight);
+          plane.tiles.get(level).put(key, tile);
+        }
+
+        int x0 = Math.max(x, tile.x);
+        int y0 = Math.max(y, tile.y);
+        int x1 = Math.min(x + w, tile.x + tile.width);
+        int y1 = Math.min(y + h, tile.y + tile.height);
+
+        copy(plane, buf, w, h, x0 - x, y0 - y,
+          tile.data, tile.width, tile.height, x0 - tile.x, y0 - tile.y,
+          x1 - x0, y1 - y0);
+        tile.filled += (long) (x1 - x0) * (y1 - y0);
+
+        if (tile.filled >= (long) tile.width * tile.height) {
+          plane.tiles.get(level).remove(key);
+          completeTile(plane, level, key, tile);
+        }
+      }
+    }
+  }
+
+  /** Writes a complete tile and feeds it to the next resolution level. */
+  private void completeTile(Plane plane, int level, int key, Tile tile)
+    throws FormatException, IOException
+  {
+    writeTile(plane, level, tile);
+    plane.written[level].set(key);
+    plane.pending--;
+
+    if (level + 1 < plane.levels) {
+      int w = (tile.width + 1) / 2;
+      int h = (tile.height + 1) / 2;
+      byte[] half = new byte[w * h * plane.pixelSize];
+      downsample(plane, tile.data, tile.width, tile.height, half, w, h);
+      paste(plane, level + 1, half, tile.x / 2, tile.y / 2, w, h);
+    }
+  }
+
+  /** Writes a single tile at the given level. */
+  private void writeTile(Plane plane, int level, Tile tile)
+    throws FormatException, IOException
+  {
+    RandomAccessOutputStream out = saver.getStream();
+    IFD ifd = plane.ifds[level];
+
+    if (plane.offsets[level] == 0) {
+      // first tile at this level; the IFD goes at the end of the file
+      plane.offsets[level] = out.length();
+      if (level == 0) linkPlane(plane);
+    }
+    out.seek(plane.offsets[level]);
+
+    // NB: the next IFD offset is always written as 0, and patched afterwards
+    // for the full resolution IFD of each plane
+    saver.writeImage(tile.data, ifd, plane.no, plane.pixelType,
+      tile.x, tile.y, tile.width, tile.height, true, plane.nChannels, false);
+
+    if (level == 0) {
+      if (!nextPointers.containsKey(plane.no)) {
+        nextPointers.put(plane.no, getNextPointer(ifd, plane.offsets[0]));
+      }
+      patchNextPointer(plane.no);
+    }
+    else if (level > 0 && !plane.linked[level]) {
+      // record the new SubIFD offset in the full resolution IFD
+      plane.linked[level] = true;
+      long[] subIFDs = (long[]) plane.ifds[0].get(IFD.SUB_IFD);
+      subIFDs[level - 1] = plane.offsets[level];
+      out.seek(plane.offsets[0]);
+      saver.writeIFD(plane.ifds[0], 0);
+      patchNextPointer(plane.no);
+    }
+  }
+
+  /**
+   * Inserts the given plane's full resolution IFD into the main IFD chain,
+   * which is kept in plane index order.
+   */
+  private void linkPlane(Plane plane) throws IOException {
+    Integer previous = chainOffsets.lowerKey(plane.no);
+    chainOffsets.put(plane.no, plane.offsets[0]);
+    if (previous != null) {
+      if (nextPointers.containsKey(previous)) patchNextPointer(previous);
+    }
+    else {
+      // this is now the first IFD in the file
+      RandomAccessOutputStream out = saver.getStream();
+      out.seek(saver.isBigTiff() ? 8 : 4);
+      writeOffset(out, plane.offsets[0]);
+    }
+  }
+
+  /** Points the given plane's IFD at the IFD of the next plane, if any. */
+  private void patchNextPointer(int no) throws IOException {
+    Integer next = chainOffsets.higherKey(no);
+    RandomAccessOutputStream out = saver.getStream();
+    out.seek(nextPointers.get(no));
+    writeOffset(out, next == null ? 0 : chainOffsets.get(next));
+  }
+
+  private void writeOffset(RandomAccessOutputStream out, long offset)
+    throws IOException
+  {
+    if (saver.isBigTiff()) out.writeLong(offset);
+    else out.writeInt((int) offset);
+  }
+
+  /**
+   * Gets the position of the next IFD offset within an IFD that was written
+   * at the given offset.
+   */
+  private long getNextPointer(IFD ifd, long offset) {
+    int keyCount = ifd.size();
+    if (ifd.containsKey(IFD.LITTLE_ENDIAN)) keyCount--;
+    if (ifd.containsKey(IFD.BIG_TIFF)) keyCount--;
+    if (ifd.containsKey(IFD.REUSE)) keyCount--;
+    boolean bigTiff = saver.isBigTiff();
+    int bytesPerEntry = bigTiff ? TiffConstants.BIG_TIFF_BYTES_PER_ENTRY :
+      TiffConstants.BYTES_PER_ENTRY;
+    return offset + (bigTiff ? 8 : 2) + (long) bytesPerEntry * keyCount;
+  }
+
+  /**
+   * Copies a rectangle between two pixel buffers with the same pixel type,
+   * channel count and planar configuration.
+   */
+  private void copy(Plane plane, byte[] src, int srcW, int srcH,
+    int srcX, int srcY, byte[] dest, int destW, int destH,
+    int destX, int destY, int w, int h)
+  {
+    if (plane.interleaved) {
+      int rowLen = w * plane.pixelSize;
+      for (int row=0; row<h; row++) {
+        System.arraycopy(src, ((srcY + row) * srcW + srcX) * plane.pixelSize,
+          dest, ((destY + row) * destW + destX) * plane.pixelSize, rowLen);
+      }
+    }
+    else {
+      int bpp = plane.bpp;
+      int rowLen = w * bpp;
+      for (int c=0; c<plane.nChannels; c++) {
+        int srcPlane = c * srcW * srcH * bpp;
+        int destPlane = c * destW * destH * bpp;
+        for (int row=0; row<h; row++) {
+          System.arraycopy(src,
+            srcPlane + ((srcY + row) * srcW + srcX) * bpp, dest,
+            destPlane + ((destY + row) * destW + destX) * bpp, rowLen);
+        }
+      }
+    }
+  }
+
+  /**
+   * Downsamples the source image by a factor of 2 in each dimension,
+   * averaging each 2x2 block of pixels.
+   */
+  private void downsample(Plane plane, byte[] src, int srcW, int srcH,
+    byte[] dest, int destW, int destH)
+  {
+    int bpp = plane.bpp;
+    int nChannels = plane.nChannels;
+    boolean little = plane.littleEndian;
+    boolean floating = FormatTools.isFloatingPoint(plane.pixelType);
+    boolean signed = FormatTools.isSigned(plane.pixelType);
+    long threshold = 1L << (bpp * 8 - 1);
+
+    for (int c=0; c<nChannels; c++) {
+      for (int y=0; y<destH; y++) {
+        int y1 = Math.min(2 * y + 1, srcH - 1);
+        for (int x=0; x<destW; x++) {
+          int x1 = Math.min(2 * x + 1, srcW - 1);
+          double sum = 0;
+          int count = 0;
+          for (int sy=2*y; sy<=y1; sy++) {
+            for (int sx=2*x; sx<=x1; sx++) {
+              int index = plane.interleaved ?
+                ((sy * srcW + sx) * nChannels + c) * bpp :
+                ((c * srcH + sy) * srcW + sx) * bpp;
+              long bits = DataTools.bytesToLong(src, index, bpp, little);
+              if (floating) {
+                sum += bpp == 4 ?
+                  Float.intBitsToFloat((int) bits) : Double.longBitsToDouble(bits);
+              }
+              else if (signed && bits >= threshold) {
+                sum += bits - 2 * threshold;
+              }
+              else sum += bits;
+              count++;
+            }
+          }
+
+          double mean = sum / count;
+          long bits;
+          if (floating) {
+            bits = bpp == 4 ? Float.floatToIntBits((float) mean) :
+              Double.doubleToLongBits(mean);
+          }
+          else bits = Math.round(mean);
+
+          int index = plane.interleaved ?
+            ((y * destW + x) * nChannels + c) * bpp :
+            ((c * destH + y) * destW + x) * bpp;
+          DataTools.unpackBytes(bits, dest, index, bpp, little);
+        }
+      }
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Write state for a single plane. */
+  private class Plane {
+    public int no;
+    public int pixelType;
+    public int bpp;
+    public int nChannels;
+    public int pixelSize;
+    public boolean interleaved;
+    public boolean littleEndian;
+
+    /** Number of resolution levels written for this plane. */
+    public int levels;
+    public int[] widths;
+    public int[] heights;
+    public IFD[] ifds;
+    public long[] offsets;
+    public boolean[] linked;
+
+    /** Partially filled tiles at each level, keyed by tile index. */
+    public List<Map<Integer, Tile>> tiles;
+
+    /** Indices of the tiles that have been written at each level. */
+    public BitSet[] written;
+
+    /** Number of tiles, at all levels, that are not yet written. */
+    public long pending;
+
+    public Plane(int no, IFD ifd, int pixelType, int bufLength, int w, int h)
+      throws FormatException
+    {
+      this.no = no;
+      this.pixelType = pixelType;
+      bpp = FormatTools.getBytesPerPixel(pixelType);
+      nChannels = Math.max(1, bufLength / (w * h * bpp));
+      pixelSize = nChannels * bpp;
+      interleaved = ifd.getPlanarConfiguration() == 1;
+      littleEndian = ifd.isLittleEndian();
+
+      // compute the size of each level, stopping when a level would fit
+      // within a single tile
+      List<int[]> sizes = new ArrayList<int[]>();
+      int width = (int) ifd.getImageWidth();
+      int height = (int) ifd.getImageLength();
+      sizes.add(new int[] {width, height});
+      while (sizes.size() < resolutions &&
+        (width > tileWidth || height > tileHeight))
+      {
+        width = (width + 1) / 2;
+        height = (height + 1) / 2;
+        sizes.add(new int[] {width, height});
+      }
+      levels = sizes.size();
+      widths = new int[levels];
+      heights = new int[levels];
+      ifds = new IFD[levels];
+      offsets = new long[levels];
+      linked = new boolean[levels];
+      tiles = new ArrayList<Map<Integer, Tile>>(levels);
+      written = new BitSet[levels];
+
+      for (int level=0; level<levels; level++) {
+        widths[level] = sizes.get(level)[0];
+        heights[level] = sizes.get(level)[1];
+        tiles.add(new HashMap<Integer, Tile>());
+        written[level] = new BitSet();
+        pending += (long) getTilesPerRow(level) * getTilesPerColumn(level);
+
+        IFD levelIFD = new IFD(ifd);
+        levelIFD.remove(IFD.REUSE);
+        levelIFD.remove(IFD.STRIP_OFFSETS);
+        levelIFD.remove(IFD.STRIP_BYTE_COUNTS);
+        levelIFD.remove(IFD.TILE_OFFSETS);
+        levelIFD.remove(IFD.TILE_BYTE_COUNTS);
+        levelIFD.remove(IFD.SUB_IFD);
+        levelIFD.put(IFD.IMAGE_WIDTH, (long) widths[level]);
+        levelIFD.put(IFD.IMAGE_LENGTH, (long) heights[level]);
+        levelIFD.put(IFD.TILE_WIDTH, tileWidth);
+        levelIFD.put(IFD.TILE_LENGTH, tileHeight);
+
+        if (level > 0) {
+          // reduced resolution image
+          levelIFD.put(IFD.NEW_SUBFILE_TYPE, 1L);
+          scaleResolution(levelIFD, IFD.X_RESOLUTION, 1 << level);
+          scaleResolution(levelIFD, IFD.Y_RESOLUTION, 1 << level);
+        }
+        ifds[level] = levelIFD;
+      }
+      if (levels > 1) {
+        // placeholder SubIFD offsets, filled in as each level is started
+        ifds[0].put(IFD.SUB_IFD, new long[levels - 1]);
+      }
+
+      LOGGER.debug("Writing plane {} with {} resolutions", no, levels);
+    }
+
+    public int getTilesPerRow(int level) {
+      return (widths[level] + tileWidth - 1) / tileWidth;
+    }
+
+    public int getTilesPerColumn(int level) {
+      return (heights[level] + tileHeight - 1) / tileHeight;
+    }
+
+    /** Divides the given resolution tag by the given factor. */
+    private void scaleResolution(IFD ifd, int tag, int factor) {
+      Object value = ifd.get(tag);
+      if (value instanceof TiffRational) {
+        TiffRational r = (TiffRational) value;
+        ifd.put(tag,
+          new TiffRational(r.getNumerator(), r.getDenominator() * factor));
+      }
+    }
+  }
+
+  /** A partially filled tile. */
+  private class Tile {
+    /** Position and size of this tile, clipped to the level's bounds. */
+    public int x, y, width, height;
+
+    public byte[] data;
+
+    /** Number of pixels that have been copied into this tile. */
+    public long filled;
+
+    public Tile(Plane plane, int level, int x, int y) {
+      this.x = x;
+      this.y = y;
+      width = Math.min(tileWidth, plane.widths[level] - x);
+      height = Math.min(tileHeight, plane.heights[level] - y);
+      data = new byte[width * height * plane.pixelSize];
+    }
+  }
+
+}
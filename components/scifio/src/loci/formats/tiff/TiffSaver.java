@@ -23,13 +23,15 @@ Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 package loci.formats.tiff;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import loci.common.ByteArrayHandle;
 import loci.common.RandomAccessInputStream;
@@ -77,6 +79,12 @@ public class TiffSaver {
   /** The codec options if set. */
   private CodecOptions options;
 
+  /**
+   * Executor used to compress strips and tiles concurrently, or null if
+   * they should be compressed on the calling thread.
+   */
+  private ExecutorService compressionExecutor;
+
   // -- Constructors --
 
   /**
@@ -168,6 +176,27 @@ public class TiffSaver {
     this.options = options;
   }
 
+  /**
+   * Sets the executor used to compress strips and tiles concurrently when
+   * an image is split into more than one strip or tile.  Strips and tiles
+   * are always written to the file in order, so the layout of the file does
+   * not depend upon whether or not an executor is used.
+   * @param executor the executor to use, or null (the default) to compress
+   *   every strip and tile on the calling thread.
+   */
+  public void setCompressionExecutor(ExecutorService executor) {
+    this.compressionExecutor = executor;
+  }
+
+  /**
+   * Retrieves the executor used to compress strips and tiles concurrently.
+   * @return See above; null if strips and tiles are compressed on the
+   *   calling thread.
+   */
+  public ExecutorService getCompressionExecutor() {
+    return compressionExecutor;
+  }
+
   /** Writes the TIFF file header. */
   public void writeHeader() throws IOException {
     // write endianness indicator
@@ -267,104 +296,214 @@ public class TiffSaver {
       throw new FormatException("IFD cannot be null");
     }
 
+    if (nChannels == null) {
+      int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+      nChannels = buf.length / (w * h * bytesPerPixel);
+    }
+
+    // strips that were compressed by compressImage are only written
+    byte[][] strips = (byte[][]) ifd.remove(IFD.COMPRESSED_STRIPS);
+    if (strips == null) {
+      strips = splitStrips(buf, ifd, pixelType, w, h, nChannels, copyDirectly);
+
+      // Compress strips according to given differencing and compression
+      // schemes, this operation is NOT synchronized and is the ONLY portion
+      // of the TiffWriter.saveBytes() --> TiffSaver.writeImage() stack that
+      // is NOT synchronized.
+      compressStrips(strips, ifd, compressionExecutor);
+    }
+    else {
+      synchronized (this) {
+        makeValidIFD(ifd, pixelType, nChannels);
+      }
+    }
+
+    // This operation is synchronized
+    synchronized (this) {
+      writeImageIFD(ifd, no, strips, nChannels, last, x ,y);
+    }
+  }
+
+  /**
+   * Splits a w x h block into strips or tiles and compresses them on the
+   * calling thread, without writing anything.  The compressed strips are
+   * stored in the IFD as {@link IFD#COMPRESSED_STRIPS}; when the same block
+   * is then written with the same IFD, or with an IFD that has the same
+   * compression, tile and strip entries, only the compressed strips are
+   * written.  This allows blocks to be compressed on other threads than the
+   * one that writes them.
+   *
+   * @param buf The block that is to be compressed.
+   * @param ifd The Image File Directory that the block will be written with.
+   * @param pixelType The type of pixels.
+   * @param w The width of the block.
+   * @param h The height of the block.
+   * @throws FormatException
+   * @throws IOException
+   */
+  public void compressImage(byte[] buf, IFD ifd, int pixelType, int w, int h)
+    throws FormatException, IOException
+  {
+    if (buf == null) {
+      throw new FormatException("Image data cannot be null");
+    }
+    if (ifd == null) {
+      throw new FormatException("IFD cannot be null");
+    }
+    int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+    int nChannels = buf.length / (w * h * bytesPerPixel);
+    byte[][] strips =
+      splitStrips(buf, ifd, pixelType, w, h, nChannels, false);
+    compressStrips(strips, ifd, null);
+    ifd.put(IFD.COMPRESSED_STRIPS, strips);
+  }
+
+  /**
+   * Makes the IFD valid for the given pixel type and channel count, and
+   * splits a w x h block into a separate buffer for each strip or tile.
+   */
+  private byte[][] splitStrips(byte[] buf, IFD ifd, int pixelType, int w,
+    int h, int nChannels, boolean copyDirectly)
+    throws FormatException
+  {
     // These operations are synchronized
-    TiffCompression compression;
-    int tileWidth, tileHeight, nStrips;
-    ByteArrayOutputStream[] stripBuf;
     synchronized (this) {
       int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
-      int blockSize = w * h * bytesPerPixel;
-      if (nChannels == null) {
-        nChannels = buf.length / (w * h * bytesPerPixel);
-      }
       boolean interleaved = ifd.getPlanarConfiguration() == 1;
 
       makeValidIFD(ifd, pixelType, nChannels);
 
       // create pixel output buffers
 
-      compression = ifd.getCompression();
-      tileWidth = (int) ifd.getTileWidth();
-      tileHeight = (int) ifd.getTileLength();
+      int tileWidth = (int) ifd.getTileWidth();
+      int tileHeight = (int) ifd.getTileLength();
       int tilesPerRow = (int) ifd.getTilesPerRow();
-      int rowsPerStrip = (int) ifd.getRowsPerStrip()[0];
-      int stripSize = rowsPerStrip * tileWidth * bytesPerPixel;
-      nStrips =
+      int nStrips =
         ((w + tileWidth - 1) / tileWidth) * ((h + tileHeight - 1) / tileHeight);
 
-      if (interleaved) stripSize *= nChannels;
-      else nStrips *= nChannels;
-
-      stripBuf = new ByteArrayOutputStream[nStrips];
-      DataOutputStream[] stripOut = new DataOutputStream[nStrips];
-      for (int strip=0; strip<nStrips; strip++) {
-        stripBuf[strip] = new ByteArrayOutputStream(stripSize);
-        stripOut[strip] = new DataOutputStream(stripBuf[strip]);
-      }
-      int[] bps = ifd.getBitsPerSample();
-      int off;
+      if (!interleaved) nStrips *= nChannels;
 
       // write pixel strips to output buffers
       int effectiveStrips = !interleaved ? nStrips / nChannels : nStrips;
       if (effectiveStrips == 1 && copyDirectly) {
-        stripOut[0].write(buf);
+        // the buffer is differenced in place, so it must be copied
+        return new byte[][] {buf.clone()};
       }
-      else {
-        for (int strip = 0; strip < effectiveStrips; strip++) {
-          int xOffset = (strip % tilesPerRow) * tileWidth;
-          int yOffset = (strip / tilesPerRow) * tileHeight;
-          for (int row=0; row<tileHeight; row++) {
-            for (int col=0; col<tileWidth; col++) {
-              int ndx = ((row+yOffset) * w + col + xOffset) * bytesPerPixel;
-              for (int c=0; c<nChannels; c++) {
-                for (int n=0; n<bps[c]/8; n++) {
-                  if (interleaved) {
-                    off = ndx * nChannels + c * bytesPerPixel + n;
-                    if (row >= h || col >= w) {
-                      stripOut[strip].writeByte(0);
-                    } else {
-                      stripOut[strip].writeByte(buf[off]);
-                    }
-                  }
-                  else {
-                    off = c * blockSize + ndx + n;
-                    if (row >= h || col >= w) {
-                      stripOut[strip].writeByte(0);
-                    } else {
-                      stripOut[c * (nStrips / nChannels) + strip].writeByte(
-                          buf[off]);
-                    }
-                  }
-                }
-              }
-            }
-          }
+      return splitStrips(buf, w, h, bytesPerPixel, nChannels, interleaved,
+        tileWidth, tileHeight, tilesPerRow, nStrips);
+    }
+  }
+
+  /**
+   * Copies the pixels of a w x h rectangle into a separate buffer for each
+   * strip or tile.  Each buffer holds a whole strip or tile, and any part of
+   * it that lies outside the rectangle is filled with zeros.  When the
+   * planar configuration is separate, the strips for each channel follow
+   * those for the previous channel.
+   */
+  private byte[][] splitStrips(byte[] buf, int w, int h, int bytesPerPixel,
+    int nChannels, boolean interleaved, int tileWidth, int tileHeight,
+    int tilesPerRow, int nStrips)
+  {
+    byte[][] strips = new byte[nStrips][];
+    int planes = interleaved ? 1 : nChannels;
+    int effectiveStrips = nStrips / planes;
+    int pixelSize = interleaved ? bytesPerPixel * nChannels : bytesPerPixel;
+    int planeSize = w * h * bytesPerPixel;
+    int tileRowSize = tileWidth * pixelSize;
+
+    for (int strip=0; strip<effectiveStrips; strip++) {
+      int xOffset = (strip % tilesPerRow) * tileWidth;
+      int yOffset = (strip / tilesPerRow) * tileHeight;
+      int copyWidth = Math.max(0, Math.min(tileWidth, w - xOffset));
+      int copyRows = Math.max(0, Math.min(tileHeight, h - yOffset));
+      for (int plane=0; plane<planes; plane++) {
+        byte[] tile = new byte[tileRowSize * tileHeight];
+        for (int row=0; row<copyRows; row++) {
+          int src = plane * planeSize +
+            ((yOffset + row) * w + xOffset) * pixelSize;
+          System.arraycopy(buf, src, tile, row * tileRowSize,
+            copyWidth * pixelSize);
         }
+        strips[plane * effectiveStrips + strip] = tile;
       }
     }
+    return strips;
+  }
 
-    // Compress strips according to given differencing and compression schemes,
-    // this operation is NOT synchronized and is the ONLY portion of the
-    // TiffWriter.saveBytes() --> TiffSaver.writeImage() stack that is NOT
-    // synchronized.
-    byte[][] strips = new byte[nStrips][];
-    for (int strip=0; strip<nStrips; strip++) {
-      strips[strip] = stripBuf[strip].toByteArray();
-      TiffCompression.difference(strips[strip], ifd);
-      CodecOptions codecOptions = compression.getCompressionCodecOptions(
-          ifd, options);
-      codecOptions.height = tileHeight;
-      codecOptions.width = tileWidth;
-      strips[strip] = compression.compress(strips[strip], codecOptions);
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.debug(String.format("Compressed strip %d/%d length %d",
-            strip + 1, nStrips, strips[strip].length));
+  /**
+   * Differences and compresses each of the given strips in place, using
+   * the given executor if it is not null.
+   */
+  private void compressStrips(final byte[][] strips, final IFD ifd,
+    ExecutorService executor)
+    throws FormatException, IOException
+  {
+    final TiffCompression compression = ifd.getCompression();
+    final int tileWidth = (int) ifd.getTileWidth();
+    final int tileHeight = (int) ifd.getTileLength();
+    if (executor == null || strips.length == 1 ||
+      compression == TiffCompression.UNCOMPRESSED)
+    {
+      for (int strip=0; strip<strips.length; strip++) {
+        strips[strip] = compressStrip(strips[strip], strip, strips.length,
+          ifd, compression, tileWidth, tileHeight);
       }
+      return;
     }
 
-    // This operation is synchronized
-    synchronized (this) {
-      writeImageIFD(ifd, no, strips, nChannels, last, x ,y);
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int i=0; i<strips.length; i++) {
+      final int strip = i;
+      results.add(executor.submit(new Callable<byte[]>() {
+        public byte[] call() throws FormatException, IOException {
+          return compressStrip(strips[strip], strip, strips.length, ifd,
+            compression, tileWidth, tileHeight);
+        }
+      }));
+    }
+
+    try {
+      for (int strip=0; strip<strips.length; strip++) {
+        strips[strip] = results.get(strip).get();
+      }
+    }
+    catch (InterruptedException e) {
+      cancel(results);
+      throw new FormatException("Interrupted while compressing strips", e);
+    }
+    catch (ExecutionException e) {
+      cancel(results);
+      Throwable cause = e.getCause();
+      if (cause instanceof FormatException) throw (FormatException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new FormatException(cause);
+    }
+  }
+
+  /** Differences and compresses a single strip or tile. */
+  private byte[] compressStrip(byte[] strip, int index, int count, IFD ifd,
+    TiffCompression compression, int tileWidth, int tileHeight)
+    throws FormatException, IOException
+  {
+    TiffCompression.difference(strip, ifd);
+    CodecOptions codecOptions =
+      compression.getCompressionCodecOptions(ifd, options);
+    codecOptions.height = tileHeight;
+    codecOptions.width = tileWidth;
+    byte[] compressed = compression.compress(strip, codecOptions);
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug(String.format("Compressed strip %d/%d length %d",
+          index + 1, count, compressed.length));
+    }
+    return compressed;
+  }
+
+  /** Cancels any of the given tasks that have not yet completed. */
+  private static void cancel(List<Future<byte[]>> results) {
+    for (Future<byte[]> result : results) {
+      result.cancel(false);
     }
   }
 
@@ -844,6 +983,67 @@ public class TiffSaver {
     overwriteIFDValue(in, 0, IFD.IMAGE_DESCRIPTION, value);
   }
 
+  /**
+   * Replaces a file's first ImageDescription with the concatenation of the
+   * given pre-encoded parts.  Unlike {@link #overwriteComment}, the comment
+   * is never copied into a String or an intermediate buffer: it is written
+   * with a single positional write, either over the old comment if that was
+   * the last thing in the file, or at the end of the file.  The directory
+   * entry is updated only after the comment has been written.
+   */
+  public void writeComment(RandomAccessInputStream in, byte[]... parts)
+    throws FormatException, IOException
+  {
+    if (in == null) throw new FormatException("Output cannot be null");
+    in.seek(0);
+    TiffParser parser = new TiffParser(in);
+    Boolean valid = parser.checkHeader();
+    if (valid == null) {
+      throw new FormatException("Invalid TIFF header");
+    }
+    setLittleEndian(valid.booleanValue());
+    setBigTiff(parser.isBigTiff());
+
+    int bytesPerEntry = bigTiff ?
+      TiffConstants.BIG_TIFF_BYTES_PER_ENTRY : TiffConstants.BYTES_PER_ENTRY;
+    long[] offsets = parser.getIFDOffsets();
+    if (offsets.length == 0) throw new FormatException("No IFDs found");
+    in.seek(offsets[0]);
+    long num = bigTiff ? in.readLong() : in.readUnsignedShort();
+
+    for (int i=0; i<num; i++) {
+      long entryOffset = offsets[0] + (bigTiff ? 8 : 2) + bytesPerEntry * i;
+      in.seek(entryOffset);
+      TiffIFDEntry entry = parser.readTiffIFDEntry();
+      if (entry.getTag() != IFD.IMAGE_DESCRIPTION) continue;
+
+      long count = 1; // concluding NULL byte
+      for (byte[] part : parts) count += part.length;
+
+      // reuse the old comment's space only if nothing follows it
+      long oldLength =
+        entry.getValueCount() * entry.getType().getBytesPerElement();
+      boolean inline = oldLength <= (bigTiff ? 8 : 4);
+      long offset = in.length();
+      if (!inline && entry.getValueOffset() + oldLength == offset) {
+        offset = entry.getValueOffset();
+      }
+
+      out.seek(offset);
+      for (byte[] part : parts) out.write(part);
+      out.writeByte(0);
+
+      out.seek(entryOffset + 2);
+      out.writeShort(IFDType.ASCII.getCode());
+      writeIntValue(out, count);
+      writeIntValue(out, offset);
+      return;
+    }
+
+    throw new FormatException("Tag not found (" +
+      IFD.getIFDTagName(IFD.IMAGE_DESCRIPTION) + ")");
+  }
+
   // -- Helper methods --
 
   /**
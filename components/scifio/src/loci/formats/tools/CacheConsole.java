@@ -111,6 +111,11 @@ public final class CacheConsole {
             pos = FormatTools.rasterToPosition(len, ndx);
             printArray("dropped:", pos);
             break;
+          case CacheEvent.LOAD_CANCELLED:
+            len = cache.getStrategy().getLengths();
+            pos = FormatTools.rasterToPosition(len, ndx);
+            printArray("cancelled:", pos);
+            break;
         }
       }
     };
@@ -27,7 +27,16 @@ import java.awt.image.IndexColorModel;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import loci.common.DataTools;
 import loci.common.DebugTools;
@@ -94,6 +103,8 @@ public final class ImageConverter {
   private boolean autoscale = false;
   private Boolean overwrite = null;
   private int series = -1;
+  private int resolutions = 1;
+  private int threads = 1;
   private int firstPlane = 0;
   private int lastPlane = Integer.MAX_VALUE;
   private int channel = -1, zSection = -1, timepoint = -1;
@@ -102,9 +113,21 @@ public final class ImageConverter {
   private IFormatReader reader;
   private MinMaxCalculator minMax;
 
+  /** Executor used to read planes when more than one thread is requested. */
+  private ExecutorService executor;
+
+  /** Executor used to compress TIFF strips and tiles. */
+  private ExecutorService compressionExecutor;
+
+  /** Idle readers available to the worker threads. */
+  private BlockingQueue<IFormatReader> readerPool;
+
+  /** Readers initialized for the worker threads. */
+  private List<IFormatReader> readerClones;
+
   // -- Constructor --
 
-  private ImageConverter() { }
+  public ImageConverter() { }
 
   // -- Utility methods --
 
@@ -126,6 +149,12 @@ public final class ImageConverter {
           else if (args[i].equals("-bigtiff")) bigtiff = true;
           else if (args[i].equals("-map")) map = args[++i];
           else if (args[i].equals("-compression")) compression = args[++i];
+          else if (args[i].equals("-pyramid-resolutions")) {
+            resolutions = Integer.parseInt(args[++i]);
+          }
+          else if (args[i].equals("-threads")) {
+            threads = Math.max(1, Integer.parseInt(args[++i]));
+          }
           else if (args[i].equals("-nogroup")) group = false;
           else if (args[i].equals("-autoscale")) autoscale = true;
           else if (args[i].equals("-overwrite")) {
@@ -196,6 +225,7 @@ public final class ImageConverter {
         "    [-bigtiff] [-compression codec] [-series series] [-map id]",
         "    [-range start end] [-crop x,y,w,h] [-channel channel] [-z Z]",
         "    [-timepoint timepoint] [-nogroup] [-autoscale] [-version]",
+        "    [-pyramid-resolutions count] [-threads count]",
         "    in_file out_file",
         "",
         "    -version: print the library version and exit",
@@ -220,6 +250,12 @@ public final class ImageConverter {
         "    -channel: only convert the specified channel (indexed from 0)",
         "          -z: only convert the specified Z section (indexed from 0)",
         "  -timepoint: only convert the specified timepoint (indexed from 0)",
+        "-pyramid-resolutions: number of resolutions to write for each",
+        "              TIFF plane, including the full resolution; each",
+        "              resolution is half the size of the previous one",
+        "    -threads: number of threads to use for reading planes and",
+        "              compressing TIFF strips; planes are still written in",
+        "              order",
         "",
         "If any of the following patterns are present in out_file, they will",
         "be replaced with the indicated metadata value from the input file.",
@@ -278,9 +314,7 @@ public final class ImageConverter {
 
     long start = System.currentTimeMillis();
     LOGGER.info(in);
-    reader = new ImageReader();
     if (stitch) {
-      reader = new FileStitcher(reader);
       Location f = new Location(in);
       String pat = null;
       if (!f.exists()) {
@@ -291,14 +325,8 @@ public final class ImageConverter {
       }
       if (pat != null) in = pat;
     }
-    if (separate) reader = new ChannelSeparator(reader);
-    if (merge) reader = new ChannelMerger(reader);
-    if (fill) reader = new ChannelFiller(reader);
-    minMax = null;
-    if (autoscale) {
-      reader = new MinMaxCalculator(reader);
-      minMax = (MinMaxCalculator) reader;
-    }
+    reader = createReader();
+    minMax = autoscale ? (MinMaxCalculator) reader : null;
 
     reader.setGroupFiles(group);
     reader.setMetadataFiltered(true);
@@ -375,13 +403,20 @@ public final class ImageConverter {
     }
     writer.setWriteSequentially(true);
 
+    if (threads > 1) {
+      compressionExecutor = Executors.newFixedThreadPool(threads);
+    }
     if (writer instanceof TiffWriter) {
       ((TiffWriter) writer).setBigTiff(bigtiff);
+      ((TiffWriter) writer).setPyramidResolutions(resolutions);
+      ((TiffWriter) writer).setCompressionExecutor(compressionExecutor);
     }
     else if (writer instanceof ImageWriter) {
       IFormatWriter w = ((ImageWriter) writer).getWriter(out);
       if (w instanceof TiffWriter) {
         ((TiffWriter) w).setBigTiff(bigtiff);
+        ((TiffWriter) w).setPyramidResolutions(resolutions);
+        ((TiffWriter) w).setCompressionExecutor(compressionExecutor);
       }
     }
 
@@ -396,76 +431,104 @@ public final class ImageConverter {
     int first = series == -1 ? 0 : series;
     int last = series == -1 ? num : series + 1;
     long timeLastLogged = System.currentTimeMillis();
-    for (int q=first; q<last; q++) {
-      reader.setSeries(q);
+    try {
+      for (int q=first; q<last; q++) {
+        reader.setSeries(q);
 
-      if (!dimensionsSet) {
-        width = reader.getSizeX();
-        height = reader.getSizeY();
-      }
+        if (!dimensionsSet) {
+          width = reader.getSizeX();
+          height = reader.getSizeY();
+        }
 
-      int writerSeries = series == -1 ? q : 0;
-      writer.setSeries(writerSeries);
-      writer.setInterleaved(reader.isInterleaved() && !autoscale);
-      writer.setValidBitsPerPixel(reader.getBitsPerPixel());
-      int numImages = writer.canDoStacks() ? reader.getImageCount() : 1;
+        int writerSeries = series == -1 ? q : 0;
+        writer.setSeries(writerSeries);
+        writer.setInterleaved(reader.isInterleaved() && !autoscale);
+        writer.setValidBitsPerPixel(reader.getBitsPerPixel());
+        int numImages = writer.canDoStacks() ? reader.getImageCount() : 1;
 
-      int startPlane = (int) Math.max(0, firstPlane);
-      int endPlane = (int) Math.min(numImages, lastPlane);
-      numImages = endPlane - startPlane;
+        int startPlane = (int) Math.max(0, firstPlane);
+        int endPlane = (int) Math.min(numImages, lastPlane);
+        numImages = endPlane - startPlane;
 
-      if (channel >= 0) {
-        numImages /= reader.getEffectiveSizeC();
-      }
-      if (zSection >= 0) {
-        numImages /= reader.getSizeZ();
-      }
-      if (timepoint >= 0) {
-        numImages /= reader.getSizeT();
-      }
+        if (channel >= 0) {
+          numImages /= reader.getEffectiveSizeC();
+        }
+        if (zSection >= 0) {
+          numImages /= reader.getSizeZ();
+        }
+        if (timepoint >= 0) {
+          numImages /= reader.getSizeT();
+        }
 
-      total += numImages;
+        total += numImages;
 
-      int count = 0;
-      for (int i=startPlane; i<endPlane; i++) {
-        int[] coords = reader.getZCTCoords(i);
+        List<Integer> planes = new ArrayList<Integer>();
+        for (int i=startPlane; i<endPlane; i++) {
+          int[] coords = reader.getZCTCoords(i);
 
-        if ((zSection >= 0 && coords[0] != zSection) || (channel >= 0 &&
-          coords[1] != channel) || (timepoint >= 0 && coords[2] != timepoint))
-        {
-          continue;
+          if ((zSection >= 0 && coords[0] != zSection) || (channel >= 0 &&
+            coords[1] != channel) || (timepoint >= 0 && coords[2] != timepoint))
+          {
+            continue;
+          }
+          planes.add(i);
         }
 
-        writer.setId(FormatTools.getFilename(q, i, reader, out));
-        if (compression != null) writer.setCompression(compression);
-
-        long s = System.currentTimeMillis();
-        long m = convertPlane(writer, i, startPlane);
-        long e = System.currentTimeMillis();
-        read += m - s;
-        write += e - m;
-
-        // log number of planes processed every second or so
-        if (count == numImages - 1 || (e - timeLastLogged) / 1000 > 0) {
-          int current = (count - startPlane) + 1;
-          int percent = 100 * current / numImages;
-          StringBuilder sb = new StringBuilder();
-          sb.append("\t");
-          int numSeries = last - first;
-          if (numSeries > 1) {
-            sb.append("Series ");
-            sb.append(q);
-            sb.append(": converted ");
+        // planes, or the strips of planes that are converted one tile at a
+        // time, are read (and compressed, if the whole series is written to
+        // one TIFF file) on the worker threads, and written here in order
+        Pipeline pipeline = null;
+        if (threads > 1) {
+          applyLUT(writer);
+          boolean tiled = isTiledConversion(writer);
+          TiffWriter compressor = null;
+          if (isSingleFile(q, planes)) compressor = getTiffWriter(writer);
+          pipeline = new Pipeline(q, planes, tiled, startPlane, compressor);
+        }
+
+        int count = 0;
+        try {
+          for (int i : planes) {
+            writer.setId(FormatTools.getFilename(q, i, reader, out));
+            if (compression != null) writer.setCompression(compression);
+
+            long s = System.currentTimeMillis();
+            long m;
+            if (pipeline != null) m = pipeline.writePlane(writer);
+            else m = convertPlane(writer, i, startPlane);
+            long e = System.currentTimeMillis();
+            read += m - s;
+            write += e - m;
+
+            // log number of planes processed every second or so
+            if (count == numImages - 1 || (e - timeLastLogged) / 1000 > 0) {
+              int current = (count - startPlane) + 1;
+              int percent = 100 * current / numImages;
+              StringBuilder sb = new StringBuilder();
+              sb.append("\t");
+              int numSeries = last - first;
+              if (numSeries > 1) {
+                sb.append("Series ");
+                sb.append(q);
+                sb.append(": converted ");
+              }
+              else sb.append("Converted ");
+              LOGGER.info(sb.toString() + "{}/{} planes ({}%)",
+                new Object[] {current, numImages, percent});
+              timeLastLogged = e;
+            }
+            count++;
           }
-          else sb.append("Converted ");
-          LOGGER.info(sb.toString() + "{}/{} planes ({}%)",
-            new Object[] {current, numImages, percent});
-          timeLastLogged = e;
         }
-        count++;
+        finally {
+          if (pipeline != null) pipeline.cancel();
+        }
       }
+      writer.close();
+    }
+    finally {
+      closeWorkers();
     }
-    writer.close();
     long end = System.currentTimeMillis();
     LOGGER.info("[done]");
 
@@ -482,18 +545,133 @@ public final class ImageConverter {
 
   // -- Helper methods --
 
-  private long convertPlane(IFormatWriter writer, int index, int startPlane)
+  /** Creates the reader used to read the input file. */
+  private IFormatReader createReader() {
+    IFormatReader r = new ImageReader();
+    if (stitch) r = new FileStitcher(r);
+    if (separate) r = new ChannelSeparator(r);
+    if (merge) r = new ChannelMerger(r);
+    if (fill) r = new ChannelFiller(r);
+    if (autoscale) r = new MinMaxCalculator(r);
+    return r;
+  }
+
+  /**
+   * Returns true if planes will be converted one tile at a time, which is
+   * the case for large images and pyramids written to TIFF.
+   */
+  private boolean isTiledConversion(IFormatWriter writer)
+    throws FormatException
+  {
+    if (width * height >= 4096 * 4096 || resolutions > 1) {
+      return (writer instanceof TiffWriter) || ((writer instanceof ImageWriter)
+        && (((ImageWriter) writer).getWriter(out) instanceof TiffWriter));
+    }
+    return false;
+  }
+
+  /** Gets the TIFF writer that will write the output file, if there is one. */
+  private TiffWriter getTiffWriter(IFormatWriter writer)
+    throws FormatException
+  {
+    if (writer instanceof ImageWriter) {
+      writer = ((ImageWriter) writer).getWriter(out);
+    }
+    return writer instanceof TiffWriter ? (TiffWriter) writer : null;
+  }
+
+  /**
+   * Returns true if all of the given planes of the given series are written
+   * to the same file.
+   */
+  private boolean isSingleFile(int series, List<Integer> planes)
     throws FormatException, IOException
   {
-    if (width * height >= 4096 * 4096) {
-      // this is a "big image", so we will attempt to convert it one tile
-      // at a time
-
-      if ((writer instanceof TiffWriter) || ((writer instanceof ImageWriter) &&
-        (((ImageWriter) writer).getWriter(out) instanceof TiffWriter)))
-      {
-        return convertTilePlane(writer, index, startPlane);
+    String file = null;
+    for (int i : planes) {
+      String name = FormatTools.getFilename(series, i, reader, out);
+      if (file != null && !file.equals(name)) return false;
+      file = name;
+    }
+    return true;
+  }
+
+  private ExecutorService executor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threads);
+      readerPool = new LinkedBlockingQueue<IFormatReader>();
+      readerClones = new ArrayList<IFormatReader>();
+    }
+    return executor;
+  }
+
+  /**
+   * Returns an idle reader for a worker thread.  If the main reader can be
+   * shared between threads it is returned, otherwise a new reader is
+   * initialized when none are idle.
+   */
+  private IFormatReader takeReader() throws FormatException, IOException {
+    if (reader.isThreadSafe()) return reader;
+    IFormatReader r = readerPool.poll();
+    if (r == null) {
+      r = createReader();
+      r.setGroupFiles(group);
+      r.setMetadataFiltered(true);
+      r.setFlattenedResolutions(reader.hasFlattenedResolutions());
+      synchronized (readerClones) {
+        readerClones.add(r);
       }
+      r.setId(in);
+    }
+    return r;
+  }
+
+  private void releaseReader(IFormatReader r) {
+    if (r != reader) readerPool.add(r);
+  }
+
+  /** Waits for the given block to be read. */
+  private Block getBlock(Future<Block> block)
+    throws FormatException, IOException
+  {
+    try {
+      return block.get();
+    }
+    catch (InterruptedException e) {
+      throw new FormatException("Interrupted while reading planes", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof FormatException) throw (FormatException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new FormatException(cause);
+    }
+  }
+
+  /** Stops the worker threads and closes their readers. */
+  private void closeWorkers() throws IOException {
+    if (compressionExecutor != null) {
+      compressionExecutor.shutdownNow();
+      compressionExecutor = null;
+    }
+    if (executor == null) return;
+    executor.shutdownNow();
+    executor = null;
+    for (IFormatReader r : readerClones) {
+      r.close();
+    }
+    readerClones = null;
+    readerPool = null;
+  }
+
+  private long convertPlane(IFormatWriter writer, int index, int startPlane)
+    throws FormatException, IOException
+  {
+    if (isTiledConversion(writer)) {
+      // this is a "big image" or a pyramid, so we will attempt to convert
+      // it one tile at a time
+      return convertTilePlane(writer, index, startPlane);
     }
 
     byte[] buf =
@@ -552,6 +730,13 @@ public final class ImageConverter {
 
   private void autoscalePlane(byte[] buf, int index)
     throws FormatException, IOException
+  {
+    autoscalePlane(reader, minMax, buf, index);
+  }
+
+  private void autoscalePlane(IFormatReader reader, MinMaxCalculator minMax,
+    byte[] buf, int index)
+    throws FormatException, IOException
   {
     if (autoscale) {
       Double min = null;
@@ -603,6 +788,167 @@ public final class ImageConverter {
     }
   }
 
+  // -- Helper classes --
+
+  /** A plane, or a strip of a plane, that is read on a worker thread. */
+  private static class Block {
+    private int index;
+    private int x, y, w, h;
+    private byte[] buf;
+
+    /** IFD holding the compressed block, or null if it is not compressed. */
+    private IFD ifd;
+
+    public Block(int index, int x, int y, int w, int h) {
+      this.index = index;
+      this.x = x;
+      this.y = y;
+      this.w = w;
+      this.h = h;
+    }
+  }
+
+  /**
+   * Reads and autoscales a single block on a worker thread, and compresses
+   * it if a TIFF writer is given.
+   */
+  private class BlockTask implements Callable<Block> {
+    private int series;
+    private Block block;
+    private boolean tiled;
+    private TiffWriter compressor;
+
+    public BlockTask(int series, Block block, boolean tiled,
+      TiffWriter compressor)
+    {
+      this.series = series;
+      this.block = block;
+      this.tiled = tiled;
+      this.compressor = compressor;
+    }
+
+    public Block call() throws FormatException, IOException {
+      IFormatReader r = takeReader();
+      try {
+        // the series of a shared reader is only changed between series
+        if (r != reader) r.setSeries(series);
+        block.buf = r.openBytes(block.index, block.x, block.y, block.w,
+          block.h);
+        autoscalePlane(r, autoscale ? (MinMaxCalculator) r : null,
+          block.buf, block.index);
+      }
+      finally {
+        releaseReader(r);
+      }
+      if (compressor != null) {
+        IFD ifd = new IFD();
+        if (tiled) {
+          ifd.put(IFD.TILE_WIDTH, block.w);
+          ifd.put(IFD.TILE_LENGTH, block.h);
+        }
+        block.ifd = compressor.compressBytes(block.buf, ifd, block.w, block.h);
+      }
+      return block;
+    }
+  }
+
+  /**
+   * Reads the planes of a series on the worker threads, keeping a bounded
+   * number of blocks in flight so that memory use does not depend upon the
+   * number of planes, and writes them in order.
+   */
+  private class Pipeline {
+    private int series;
+    private boolean tiled;
+    private int startPlane;
+    private TiffWriter compressor;
+
+    /** Blocks to read, in the order in which they are written. */
+    private List<Block> blocks = new ArrayList<Block>();
+    private int submitted;
+    private LinkedList<Future<Block>> pending =
+      new LinkedList<Future<Block>>();
+
+    /** Number of blocks in each plane. */
+    private int blocksPerPlane;
+
+    public Pipeline(int series, List<Integer> planes, boolean tiled,
+      int startPlane, TiffWriter compressor)
+    {
+      this.series = series;
+      this.tiled = tiled;
+      this.startPlane = startPlane;
+      this.compressor = compressor;
+      // strips are one row high, as in convertTilePlane
+      blocksPerPlane = tiled ? height : 1;
+      for (int index : planes) {
+        if (tiled) {
+          for (int y=0; y<height; y++) {
+            blocks.add(new Block(index, xCoordinate, yCoordinate + y,
+              width, 1));
+          }
+        }
+        else {
+          blocks.add(
+            new Block(index, xCoordinate, yCoordinate, width, height));
+        }
+      }
+    }
+
+    /**
+     * Writes the next plane; returns the time at which its first block was
+     * available.
+     */
+    public long writePlane(IFormatWriter writer)
+      throws FormatException, IOException
+    {
+      Long m = null;
+      IFD tileIFD = tiled ? new IFD() : null;
+      for (int b=0; b<blocksPerPlane; b++) {
+        Block block = next();
+        if (m == null) m = System.currentTimeMillis();
+        int no = block.index - startPlane;
+        if (tiled) {
+          // the tiles of a plane are saved with the same IFD
+          tileIFD.put(IFD.TILE_WIDTH, block.w);
+          tileIFD.put(IFD.TILE_LENGTH, block.h);
+          if (block.ifd != null &&
+            block.ifd.containsKey(IFD.COMPRESSED_STRIPS))
+          {
+            tileIFD.put(IFD.COMPRESSED_STRIPS,
+              block.ifd.get(IFD.COMPRESSED_STRIPS));
+          }
+          getTiffWriter(writer).saveBytes(no, block.buf, tileIFD,
+            block.x, block.y, block.w, block.h);
+        }
+        else if (block.ifd != null) {
+          compressor.saveBytes(no, block.buf, block.ifd, 0, 0, width, height);
+        }
+        else writer.saveBytes(no, block.buf);
+      }
+      return m;
+    }
+
+    /** Cancels the blocks that have not been read yet. */
+    public void cancel() {
+      for (Future<Block> f : pending) {
+        f.cancel(false);
+      }
+      pending.clear();
+    }
+
+    private Block next() throws FormatException, IOException {
+      while (submitted < blocks.size() && pending.size() < threads * 2) {
+        Block block = blocks.get(submitted);
+        // blocks are only referenced by their tasks once submitted
+        blocks.set(submitted++, null);
+        pending.add(executor().submit(
+          new BlockTask(series, block, tiled, compressor)));
+      }
+      return getBlock(pending.removeFirst());
+    }
+  }
+
   // -- Main method --
 
   public static void main(String[] args) throws FormatException, IOException {
@@ -0,0 +1,318 @@
+//
+// CacheTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import loci.common.Location;
+import loci.formats.FormatTools;
+import loci.formats.cache.ByteArraySource;
+import loci.formats.cache.Cache;
+import loci.formats.cache.CacheEvent;
+import loci.formats.cache.CacheException;
+import loci.formats.cache.CacheListener;
+import loci.formats.cache.CrosshairStrategy;
+import loci.formats.cache.ICacheSource;
+import loci.formats.cache.TileSource;
+import loci.formats.cache.TileStrategy;
+import loci.formats.in.FakeReader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the load plan, byte budget and prefetch threads of {@link Cache},
+ * and caching of tiles with {@link TileSource}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/CacheTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/CacheTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class CacheTest {
+
+  private static final String TEST_FILE =
+    "cache&sizeX=16&sizeY=16&sizeZ=10&sizeT=10.fake";
+
+  private static final String TILED_FILE =
+    "tiles&sizeX=100&sizeY=70&sizeZ=3&sizeC=3&rgb=3&pixelType=uint16.fake";
+
+  private static final int TILE_SIZE = 32;
+
+  private static final int PLANE_SIZE = 16 * 16;
+
+  private static final int[] LENGTHS = {10, 10};
+
+  /** Number of positions within range 2 of a crosshair's center. */
+  private static final int LOAD_COUNT = 9;
+
+  private FakeReader reader;
+
+  private CrosshairStrategy strategy;
+
+  private Cache cache;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    Location.mapId(TEST_FILE, TEST_FILE);
+    reader = new FakeReader();
+    reader.setId(TEST_FILE);
+    strategy = new CrosshairStrategy(LENGTHS);
+    strategy.setRange(2, 0);
+    strategy.setRange(2, 1);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    if (cache != null) cache.setPrefetchThreads(0);
+    reader.close();
+  }
+
+  /** Checks that exactly the positions on the load list are cached. */
+  private void assertCached(int[] pos) throws Exception {
+    int[][] loadList = strategy.getLoadList(pos);
+    boolean[] expected = new boolean[reader.getImageCount()];
+    for (int[] p : loadList) {
+      expected[FormatTools.positionToRaster(LENGTHS, p)] = true;
+    }
+    for (int i=0; i<expected.length; i++) {
+      int[] p = FormatTools.rasterToPosition(LENGTHS, i);
+      Object o = cache.getObject(p);
+      assertEquals(expected[i], o != null);
+      assertEquals(expected[i], cache.isInCache(i));
+      if (o != null) {
+        assertTrue(Arrays.equals(reader.openBytes(i), (byte[]) o));
+      }
+    }
+    assertEquals(LOAD_COUNT * PLANE_SIZE, cache.getCachedBytes());
+  }
+
+  private void waitForPrefetch() throws Exception {
+    long end = System.currentTimeMillis() + 10000;
+    while (cache.getPrefetchLag() > 0) {
+      assertTrue(System.currentTimeMillis() < end);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testRecache() throws Exception {
+    cache = new Cache(strategy, new ByteArraySource(reader), true);
+    assertEquals(LOAD_COUNT, cache.getLoadCount());
+    assertEquals(0, cache.getPrefetchLag());
+    assertCached(new int[] {0, 0});
+    assertEquals(LOAD_COUNT, cache.getHitCount());
+    assertEquals(100 - LOAD_COUNT, cache.getMissCount());
+
+    cache.resetStatistics();
+    cache.setCurrentPos(new int[] {5, 5});
+    assertCached(new int[] {5, 5});
+    assertEquals(LOAD_COUNT, cache.getLoadCount());
+    assertEquals(LOAD_COUNT, cache.getDropCount());
+  }
+
+  @Test
+  public void testRecacheSingleEntries() throws Exception {
+    cache = new Cache(strategy, new ByteArraySource(reader), false);
+    cache.setCurrentPos(new int[] {3, 7});
+    for (int i=0; i<strategy.getLoadList(cache.getCurrentPos()).length; i++) {
+      cache.recache(i);
+    }
+    assertCached(new int[] {3, 7});
+  }
+
+  @Test
+  public void testMaxBytes() throws Exception {
+    cache = new Cache(strategy, new ByteArraySource(reader), false);
+    cache.setMaxBytes(3 * PLANE_SIZE);
+    cache.recache();
+    assertEquals(3 * PLANE_SIZE, cache.getCachedBytes());
+
+    int[][] loadList = strategy.getLoadList(cache.getCurrentPos());
+    for (int i=0; i<loadList.length; i++) {
+      assertEquals(i < 3, cache.getObject(loadList[i]) != null);
+    }
+
+    cache.setCurrentPos(new int[] {4, 4});
+    cache.recache();
+    assertEquals(3 * PLANE_SIZE, cache.getCachedBytes());
+    assertTrue(cache.getObject(new int[] {4, 4}) != null);
+  }
+
+  @Test
+  public void testPrefetch() throws Exception {
+    cache = new Cache(strategy, new ByteArraySource(reader), true, 2);
+    assertEquals(2, cache.getPrefetchThreads());
+    waitForPrefetch();
+    assertCached(new int[] {0, 0});
+
+    cache.setCurrentPos(new int[] {9, 2});
+    waitForPrefetch();
+    assertCached(new int[] {9, 2});
+  }
+
+  @Test
+  public void testCancelledLoad() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    ICacheSource source = new ICacheSource() {
+      public int getObjectCount() {
+        return reader.getImageCount();
+      }
+
+      public Object getObject(int index) throws CacheException {
+        if (index == 0) {
+          started.countDown();
+          try {
+            release.await();
+          }
+          catch (InterruptedException e) {
+            throw new CacheException(e);
+          }
+        }
+        return new byte[PLANE_SIZE];
+      }
+    };
+    final int[] cancelled = new int[1];
+    cache = new Cache(strategy, source, true, 1);
+    cache.addCacheListener(new CacheListener() {
+      public void cacheUpdated(CacheEvent e) {
+        if (e.getType() == CacheEvent.LOAD_CANCELLED) cancelled[0]++;
+      }
+    });
+    started.await();
+    // planned, but not loaded yet
+    assertFalse(cache.isInCache(0));
+    cache.setCurrentPos(new int[] {5, 5});
+    release.countDown();
+    waitForPrefetch();
+
+    assertEquals(1, cache.getCancelCount());
+    assertEquals(1, cancelled[0]);
+    assertNull(cache.getObject(new int[] {0, 0}));
+    assertFalse(cache.isInCache(0));
+    assertEquals(LOAD_COUNT * PLANE_SIZE, cache.getCachedBytes());
+  }
+
+  @Test
+  public void testTileRegions() throws Exception {
+    assertTileRegions(TILED_FILE);
+    assertTileRegions(TILED_FILE.replace(".fake", "&interleaved=true.fake"));
+  }
+
+  private void assertTileRegions(String id) throws Exception {
+    TiledFakeReader tiled = new TiledFakeReader();
+    Location.mapId(id, id);
+    tiled.setId(id);
+    TileSource source = new TileSource(tiled);
+    assertEquals(TILE_SIZE, source.getTileWidth());
+    assertTrue(Arrays.equals(new int[] {4, 3, 3, 1, 1}, source.getLengths()));
+
+    int[][] regions = {
+      {0, 0, 100, 70}, {10, 5, 60, 50}, {90, 60, 10, 10}, {31, 31, 2, 2}
+    };
+    for (int[] r : regions) {
+      byte[] expected = tiled.openBytes(2, r[0], r[1], r[2], r[3]);
+      byte[] buf = new byte[expected.length];
+      assertTrue(Arrays.equals(expected,
+        source.openBytes(2, buf, r[0], r[1], r[2], r[3])));
+    }
+    // each tile was decoded once
+    assertEquals(12, source.getMissCount());
+    assertEquals(0, source.getEvictionCount());
+    tiled.close();
+  }
+
+  @Test
+  public void testTileEviction() throws Exception {
+    TiledFakeReader tiled = new TiledFakeReader();
+    Location.mapId(TILED_FILE, TILED_FILE);
+    tiled.setId(TILED_FILE);
+    long tileBytes = TILE_SIZE * TILE_SIZE * 3 * 2;
+    TileSource source = new TileSource(tiled, 3 * tileBytes);
+
+    for (int tileX=0; tileX<3; tileX++) source.getTile(0, tileX, 0);
+    source.getTile(0, 0, 0);
+    assertEquals(1, source.getHitCount());
+
+    // the least recently used tile (1, 0) is evicted
+    source.getTile(0, 0, 1);
+    assertEquals(1, source.getEvictionCount());
+    assertEquals(3 * tileBytes, source.getCachedBytes());
+    source.getTile(0, 2, 0);
+    assertEquals(2, source.getHitCount());
+    source.getTile(0, 1, 0);
+    assertEquals(5, source.getMissCount());
+    tiled.close();
+  }
+
+  @Test
+  public void testTileStrategy() throws Exception {
+    TileStrategy tiles = new TileStrategy(new int[] {4, 3, 3, 1, 1});
+    int[][] loadList = tiles.getLoadList(new int[] {0, 0, 1, 0, 0});
+    // current tile, 3 neighbors in XY (no wrapping) and 2 in Z
+    assertEquals(6, loadList.length);
+    assertTrue(Arrays.equals(new int[] {0, 0, 1, 0, 0}, loadList[0]));
+    for (int[] pos : loadList) {
+      assertTrue(pos[0] <= 1 && pos[1] <= 1);
+      if (pos[2] != 1) assertTrue(pos[0] == 0 && pos[1] == 0);
+    }
+  }
+
+  @Test
+  public void testTilePrefetch() throws Exception {
+    TiledFakeReader tiled = new TiledFakeReader();
+    Location.mapId(TILED_FILE, TILED_FILE);
+    tiled.setId(TILED_FILE);
+    TileSource source = new TileSource(tiled);
+    cache = new Cache(new TileStrategy(source.getLengths()), source, false, 2);
+    cache.setCurrentPos(source.getPosition(1, 50, 40));
+    cache.recache();
+    waitForPrefetch();
+
+    // the visible region and the same tile of the other planes were decoded
+    // by the prefetch threads
+    long misses = source.getMissCount();
+    byte[] buf = new byte[64 * 48 * 3 * 2];
+    source.openBytes(1, buf, 16, 16, 64, 48);
+    source.getTile(0, 1, 1);
+    source.getTile(2, 1, 1);
+    assertEquals(misses, source.getMissCount());
+    cache.setPrefetchThreads(0);
+    tiled.close();
+  }
+
+  /** Fake reader with small optimal tiles. */
+  public static class TiledFakeReader extends FakeReader {
+    public int getOptimalTileWidth() { return TILE_SIZE; }
+    public int getOptimalTileHeight() { return TILE_SIZE; }
+  }
+
+}
@@ -0,0 +1,173 @@
+//
+// ChannelSeparatorTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.ImageTools;
+import loci.formats.in.FakeReader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link ChannelSeparator} decodes each region of an RGB plane
+ * once for all of its channels.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/ChannelSeparatorTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/ChannelSeparatorTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class ChannelSeparatorTest {
+
+  private static final String INTERLEAVED_FILE =
+    "interleaved&sizeX=64&sizeY=48&sizeZ=2&sizeC=3&rgb=3&interleaved=true" +
+    "&pixelType=uint16.fake";
+
+  private static final String PLANAR_FILE =
+    "planar&sizeX=64&sizeY=48&sizeZ=2&sizeC=3&rgb=3&interleaved=false.fake";
+
+  private CountingFakeReader fake;
+
+  private ChannelSeparator separator;
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    separator.close();
+  }
+
+  @Test
+  public void testChannels() throws FormatException, IOException {
+    for (String id : new String[] {INTERLEAVED_FILE, PLANAR_FILE}) {
+      open(id);
+      separator.setRegionCacheSize(0);
+      for (int no=0; no<separator.getImageCount(); no++) {
+        assertRegion(no, 0, 0, 64, 48);
+        assertRegion(no, 5, 7, 20, 13);
+      }
+      separator.close();
+    }
+  }
+
+  @Test
+  public void testNeighboringTiles() throws FormatException, IOException {
+    open(INTERLEAVED_FILE);
+    separator.setRegionCacheSize(4);
+    for (int c=0; c<3; c++) {
+      for (int tile=0; tile<4; tile++) {
+        separator.openBytes(c, tile * 16, 0, 16, 16);
+      }
+    }
+    assertEquals(4, fake.decodes);
+
+    // the least recently used region is dropped
+    separator.openBytes(0, 0, 16, 16, 16);
+    separator.openBytes(1, 0, 0, 16, 16);
+    assertEquals(6, fake.decodes);
+  }
+
+  @Test
+  public void testDefaultCacheSize() throws FormatException, IOException {
+    open(INTERLEAVED_FILE);
+    assertEquals(ChannelSeparator.DEFAULT_REGION_CACHE_SIZE,
+      separator.getRegionCacheSize());
+    separator.openBytes(0);
+    separator.openBytes(3);
+    separator.openBytes(1);
+    assertEquals(3, fake.decodes);
+    separator.openBytes(2, 8, 8, 16, 16);
+    assertEquals(3, fake.decodes);
+  }
+
+  @Test
+  public void testContainedRegion() throws FormatException, IOException {
+    open(PLANAR_FILE);
+    byte[] whole = separator.openBytes(4);
+    byte[] part = separator.openBytes(5, 10, 20, 30, 8);
+    assertEquals(1, fake.decodes);
+    assertRegion(5, 10, 20, 30, 8);
+    assertTrue(whole.length > part.length);
+  }
+
+  @Test
+  public void testOpenChannels() throws FormatException, IOException {
+    for (String id : new String[] {INTERLEAVED_FILE, PLANAR_FILE}) {
+      open(id);
+      separator.setRegionCacheSize(0);
+      byte[][] channels = separator.openChannels(4, 3, 2, 40, 30);
+      assertEquals(1, fake.decodes);
+      assertEquals(3, channels.length);
+      for (int c=0; c<channels.length; c++) {
+        int no = separator.getIndex(1, c, 0);
+        assertTrue(Arrays.equals(separator.openBytes(no, 3, 2, 40, 30),
+          channels[c]));
+      }
+      separator.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  private void open(String id) throws FormatException, IOException {
+    fake = new CountingFakeReader();
+    separator = new ChannelSeparator(fake);
+    separator.setId(id);
+  }
+
+  /**
+   * Checks a sub-image of one channel against the channel split from the
+   * wrapped reader's plane.
+   */
+  private void assertRegion(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    int bpp = fake.getBitsPerPixel() / 8;
+    byte[] rgb = fake.openBytes(separator.getOriginalIndex(no), x, y, w, h);
+    byte[] expected = ImageTools.splitChannels(rgb, no % 3, 3, bpp, false,
+      fake.isInterleaved());
+    assertTrue(Arrays.equals(expected, separator.openBytes(no, x, y, w, h)));
+  }
+
+  // -- Helper classes --
+
+  /** FakeReader that counts the number of regions it decodes. */
+  private static class CountingFakeReader extends FakeReader {
+    private int decodes;
+
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException
+    {
+      decodes++;
+      return super.openBytes(no, buf, x, y, w, h);
+    }
+  }
+
+}
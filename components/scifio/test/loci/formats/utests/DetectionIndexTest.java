@@ -0,0 +1,183 @@
+//
+// DetectionIndexTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.DetectionIndex;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.in.APNGReader;
+import loci.formats.in.OMETiffReader;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link DetectionIndex} does not change the result of format
+ * detection in {@link ImageReader}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/DetectionIndexTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/DetectionIndexTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class DetectionIndexTest {
+
+  private static final byte[] PNG_HEADER = {
+    (byte) 0x89, 0x50, 0x4e, 0x47, 0x0d, 0x0a, 0x1a, 0x0a
+  };
+
+  private File directory;
+
+  private List<File> files = new ArrayList<File>();
+
+  private File tiff;
+
+  @BeforeMethod
+  public void setUp() throws FormatException, IOException {
+    directory = File.createTempFile("detection", "");
+    directory.delete();
+    directory.mkdir();
+    tiff = createFile(".tif", createTiff());
+    createFile(".tiff", createTiff());
+    createFile(".dat", createTiff());
+    createFile(".txt", "1\t2\t3\n4\t5\t6\n".getBytes());
+    createFile(".png", PNG_HEADER);
+    createFile(".xyz", new byte[] {1, 2, 3});
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    DetectionIndex.cacheDetectionResults(false);
+    for (File f : files) {
+      f.delete();
+    }
+    files.clear();
+    directory.delete();
+  }
+
+  private File createFile(String suffix, byte[] data) throws IOException {
+    File file = File.createTempFile("detection", suffix, directory);
+    FileOutputStream stream = new FileOutputStream(file);
+    stream.write(data);
+    stream.close();
+    files.add(file);
+    return file;
+  }
+
+  private byte[] createTiff() throws FormatException, IOException {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.writeHeader();
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, 8);
+    ifd.put(IFD.IMAGE_LENGTH, 8);
+    ifd.put(IFD.BITS_PER_SAMPLE, new int[] {8});
+    ifd.put(IFD.SAMPLES_PER_PIXEL, 1);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.FALSE);
+    saver.writeImage(new byte[64], ifd, 0, FormatTools.UINT8, true);
+    out.close();
+    byte[] data = new byte[(int) handle.length()];
+    System.arraycopy(handle.getBytes(), 0, data, 0, data.length);
+    return data;
+  }
+
+  private Class<?> detect(ImageReader reader, File file) throws IOException {
+    try {
+      Class<?> c = reader.getReader(file.getAbsolutePath()).getClass();
+      reader.close();
+      return c;
+    }
+    catch (FormatException e) {
+      return null;
+    }
+  }
+
+  @Test
+  public void testSameReaderDetected() throws IOException {
+    ImageReader indexed = new ImageReader();
+    ImageReader unindexed = new ImageReader();
+    unindexed.setDetectionIndexEnabled(false);
+    assertTrue(indexed.isDetectionIndexEnabled());
+    for (File file : files) {
+      assertEquals(file.getName(), detect(unindexed, file),
+        detect(indexed, file));
+    }
+  }
+
+  @Test
+  public void testExcludes() {
+    IFormatReader[] readers = {new OMETiffReader(), new APNGReader()};
+    DetectionIndex index = new DetectionIndex(readers);
+    assertTrue(index.isIndexed(0));
+    byte[] tiffHeader = {0x49, 0x49, 0x2a, 0x00, 8, 0, 0, 0};
+    assertFalse(index.excludes(0, tiffHeader));
+    assertTrue(index.excludes(1, tiffHeader));
+    assertTrue(index.excludes(0, PNG_HEADER));
+    assertFalse(index.excludes(1, PNG_HEADER));
+    assertTrue(index.excludes(0, new byte[2]));
+    assertFalse(index.excludes(0, null));
+  }
+
+  @Test
+  public void testCachedResult() throws IOException {
+    DetectionIndex.cacheDetectionResults(true);
+    ImageReader reader = new ImageReader();
+    DetectionIndex index = new DetectionIndex(reader.getReaders());
+    String id = tiff.getAbsolutePath();
+    assertEquals(-1, index.getCachedReader(id, true));
+
+    Class<?> detected = detect(reader, tiff);
+    int cached = index.getCachedReader(id, true);
+    assertTrue(cached >= 0);
+    assertEquals(detected, reader.getReaders()[cached].getClass());
+    assertEquals(-1, index.getCachedReader(id, false));
+    assertEquals(detected, detect(reader, tiff));
+
+    // modifying the file invalidates the cached result
+    assertTrue(tiff.setLastModified(tiff.lastModified() - 10000));
+    assertEquals(-1, index.getCachedReader(id, true));
+
+    detect(reader, tiff);
+    DetectionIndex.cacheDetectionResults(false);
+    assertEquals(-1, index.getCachedReader(id, true));
+  }
+
+}
@@ -0,0 +1,152 @@
+//
+// ImageConverterTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.common.Location;
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+import loci.formats.ImageWriter;
+import loci.formats.in.FakeReader;
+import loci.formats.in.TiffReader;
+import loci.formats.tools.ImageConverter;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a pipelined conversion with more than one thread writes the
+ * same file as a single-threaded conversion, with the planes in order.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/ImageConverterTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/ImageConverterTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class ImageConverterTest {
+
+  private static final String PLANES_FILE =
+    "planes&sizeX=160&sizeY=120&sizeZ=5&sizeT=4.fake";
+
+  private static final String PYRAMID_FILE =
+    "pyramid&sizeX=600&sizeY=400&sizeZ=3.fake";
+
+  /** Large enough to be converted one strip at a time. */
+  private static final String LARGE_FILE =
+    "large&sizeX=4096&sizeY=4096.fake";
+
+  private File directory;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    directory = File.createTempFile("converter", "");
+    directory.delete();
+    directory.mkdir();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    for (File f : directory.listFiles()) {
+      f.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testPlanes() throws FormatException, IOException {
+    assertEquivalent(PLANES_FILE, "-compression", "LZW");
+  }
+
+  @Test
+  public void testPyramid() throws FormatException, IOException {
+    assertEquivalent(PYRAMID_FILE, "-pyramid-resolutions", "2");
+  }
+
+  @Test
+  public void testLargePlanes() throws FormatException, IOException {
+    assertEquivalent(LARGE_FILE, "-compression", "LZW");
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Converts the given file with one and with four threads, and checks that
+   * the files are identical and contain the input planes in order.
+   */
+  private void assertEquivalent(String id, String... options)
+    throws FormatException, IOException
+  {
+    Location.mapId(id, id);
+    File single = convert(id, 1, options);
+    File pipelined = convert(id, 4, options);
+    assertTrue(Arrays.equals(readFile(single), readFile(pipelined)));
+
+    FakeReader fake = new FakeReader();
+    fake.setId(id);
+    TiffReader tiff = new TiffReader();
+    tiff.setId(pipelined.getAbsolutePath());
+    assertEquals(fake.getImageCount(), tiff.getImageCount());
+    for (int no=0; no<fake.getImageCount(); no++) {
+      assertTrue("plane " + no,
+        Arrays.equals(fake.openBytes(no), tiff.openBytes(no)));
+    }
+    tiff.close();
+    fake.close();
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    RandomAccessInputStream in =
+      new RandomAccessInputStream(file.getAbsolutePath());
+    try {
+      byte[] b = new byte[(int) in.length()];
+      in.readFully(b);
+      return b;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private File convert(String id, int threads, String... options)
+    throws FormatException, IOException
+  {
+    File out = new File(directory, "threads" + threads + ".tif");
+    String[] args = new String[options.length + 5];
+    System.arraycopy(options, 0, args, 0, options.length);
+    args[options.length] = "-threads";
+    args[options.length + 1] = String.valueOf(threads);
+    args[options.length + 2] = "-overwrite";
+    args[options.length + 3] = id;
+    args[options.length + 4] = out.getAbsolutePath();
+    assertTrue(new ImageConverter().testConvert(new ImageWriter(), args));
+    return out;
+  }
+
+}
@@ -0,0 +1,341 @@
+//
+// MemoizerTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
+import loci.formats.in.FakeReader;
+import loci.formats.in.ICSReader;
+import loci.formats.in.TiffReader;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.ICSWriter;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a {@link Memoizer} saves and restores reader state.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/MemoizerTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/MemoizerTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class MemoizerTest {
+
+  private static final int IMAGE_WIDTH = 64;
+
+  private static final int IMAGE_LENGTH = 48;
+
+  private File file;
+
+  private File memoDirectory;
+
+  private byte[] plane;
+
+  private File ics;
+
+  private File ids;
+
+  @BeforeMethod
+  public void setUp() throws FormatException, IOException {
+    file = File.createTempFile("memoizer", ".tif");
+    memoDirectory = File.createTempFile("memoizer", "");
+    memoDirectory.delete();
+
+    plane = new byte[IMAGE_WIDTH * IMAGE_LENGTH];
+    for (int i=0; i<plane.length; i++) {
+      plane[i] = (byte) (i / 3);
+    }
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.writeHeader();
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    ifd.put(IFD.BITS_PER_SAMPLE, new int[] {8});
+    ifd.put(IFD.SAMPLES_PER_PIXEL, 1);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.FALSE);
+    saver.writeImage(plane, ifd, 0, FormatTools.UINT8, true);
+    out.close();
+    FileOutputStream stream = new FileOutputStream(file);
+    stream.write(handle.getBytes(), 0, (int) handle.length());
+    stream.close();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(memoDirectory);
+    file.delete();
+    if (ics != null) {
+      ics.delete();
+      ids.delete();
+    }
+  }
+
+  @Test
+  public void testSaveAndLoad() throws FormatException, IOException {
+    Memoizer memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    assertFalse(memoizer.isLoadedFromMemo());
+    assertTrue(memoizer.isSavedToMemo());
+    assertTrue(memoizer.getSaveTime() >= 0);
+    assertTrue(memoizer.getMemoFile(file.getAbsolutePath()).exists());
+    memoizer.close();
+
+    memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    assertTrue(memoizer.isLoadedFromMemo());
+    assertFalse(memoizer.isSavedToMemo());
+    assertTrue(memoizer.getLoadTime() >= 0);
+    assertEquals(-1, memoizer.getInitTime());
+    assertEquals(IMAGE_WIDTH, memoizer.getSizeX());
+    assertEquals(IMAGE_LENGTH, memoizer.getSizeY());
+    assertEquals(1, memoizer.getImageCount());
+    assertEquals(FormatTools.UINT8, memoizer.getPixelType());
+    assertTrue(Arrays.equals(plane, memoizer.openBytes(0)));
+    memoizer.close();
+  }
+
+  @Test
+  public void testImageReader() throws FormatException, IOException {
+    ImageReader reader = new ImageReader();
+    Memoizer memoizer = new Memoizer(reader, 0, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    assertTrue(memoizer.isSavedToMemo());
+    Class<?> readerClass = reader.getReader().getClass();
+    memoizer.close();
+
+    reader = new ImageReader();
+    memoizer = new Memoizer(reader, 0, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    assertTrue(memoizer.isLoadedFromMemo());
+    assertEquals(readerClass, reader.getReader().getClass());
+    assertTrue(Arrays.equals(plane, memoizer.openBytes(0)));
+    memoizer.close();
+  }
+
+  @Test
+  public void testMetadataStore() throws FormatException, IOException {
+    Memoizer memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    memoizer.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+    memoizer.setId(file.getAbsolutePath());
+    assertTrue(memoizer.isSavedToMemo());
+    memoizer.close();
+
+    memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    IMetadata store = MetadataTools.createOMEXMLMetadata();
+    memoizer.setMetadataStore(store);
+    memoizer.setId(file.getAbsolutePath());
+    assertTrue(memoizer.isLoadedFromMemo());
+    assertEquals(1, store.getImageCount());
+    assertEquals(IMAGE_WIDTH, store.getPixelsSizeX(0).getValue().intValue());
+    memoizer.close();
+  }
+
+  @Test
+  public void testModifiedFile() throws FormatException, IOException {
+    Memoizer memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    assertTrue(memoizer.isSavedToMemo());
+    memoizer.close();
+
+    file.setLastModified(file.lastModified() - 10000);
+    memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    assertFalse(memoizer.isLoadedFromMemo());
+    assertTrue(memoizer.isSavedToMemo());
+    memoizer.close();
+  }
+
+  @Test
+  public void testChangedConfiguration() throws FormatException, IOException {
+    Memoizer memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    memoizer.close();
+
+    memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    memoizer.setGroupFiles(false);
+    memoizer.setId(file.getAbsolutePath());
+    assertFalse(memoizer.isLoadedFromMemo());
+    memoizer.close();
+  }
+
+  @Test
+  public void testMinimumElapsed() throws FormatException, IOException {
+    Memoizer memoizer =
+      new Memoizer(new TiffReader(), Long.MAX_VALUE, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    assertFalse(memoizer.isSavedToMemo());
+    assertTrue(memoizer.getInitTime() >= 0);
+    assertFalse(memoizer.getMemoFile(file.getAbsolutePath()).exists());
+    memoizer.close();
+  }
+
+  @Test
+  public void testDefaultDirectory() {
+    Memoizer memoizer = new Memoizer(new TiffReader());
+    assertEquals(Memoizer.getDefaultDirectory(), memoizer.getDirectory());
+    File memo = memoizer.getMemoFile(file.getAbsolutePath());
+    assertTrue(memo.getPath().startsWith(
+      Memoizer.getDefaultDirectory().getPath()));
+  }
+
+  @Test
+  public void testRejectedClass() throws FormatException, IOException {
+    Memoizer memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    memoizer.close();
+
+    // keep the header of the memo, but replace the saved state with an
+    // object of a class that a memo cannot contain
+    File memo = memoizer.getMemoFile(file.getAbsolutePath());
+    ObjectInputStream in = new ObjectInputStream(new FileInputStream(memo));
+    int version = in.readInt();
+    String[] paths = new String[in.readInt()];
+    long[] lengths = new long[paths.length];
+    long[] lastModified = new long[paths.length];
+    for (int i=0; i<paths.length; i++) {
+      paths[i] = in.readUTF();
+      lengths[i] = in.readLong();
+      lastModified[i] = in.readLong();
+    }
+    String readerClass = in.readUTF();
+    String configuration = in.readUTF();
+    in.close();
+    ObjectOutputStream out =
+      new ObjectOutputStream(new FileOutputStream(memo));
+    out.writeInt(version);
+    out.writeInt(paths.length);
+    for (int i=0; i<paths.length; i++) {
+      out.writeUTF(paths[i]);
+      out.writeLong(lengths[i]);
+      out.writeLong(lastModified[i]);
+    }
+    out.writeUTF(readerClass);
+    out.writeUTF(configuration);
+    out.writeObject(null);
+    out.writeObject(new java.util.Date());
+    out.close();
+
+    memoizer = new Memoizer(new TiffReader(), 0, memoDirectory);
+    memoizer.setId(file.getAbsolutePath());
+    assertFalse(memoizer.isLoadedFromMemo());
+    assertTrue(memoizer.isSavedToMemo());
+    assertTrue(Arrays.equals(plane, memoizer.openBytes(0)));
+    memoizer.close();
+  }
+
+  @Test
+  public void testCompanionFile() throws Exception {
+    writeIcs();
+    ICSReader reader = new ICSReader();
+    reader.setId(ics.getAbsolutePath());
+    byte[] expected = reader.openBytes(0);
+    reader.close();
+
+    Memoizer memoizer = new Memoizer(new ICSReader(), 0, memoDirectory);
+    memoizer.setId(ics.getAbsolutePath());
+    assertTrue(memoizer.isSavedToMemo());
+    memoizer.close();
+
+    // the restored reader must read pixels from the .ids file
+    memoizer = new Memoizer(new ICSReader(), 0, memoDirectory);
+    memoizer.setId(ics.getAbsolutePath());
+    assertTrue(memoizer.isLoadedFromMemo());
+    assertTrue(Arrays.equals(expected, memoizer.openBytes(0)));
+    memoizer.close();
+  }
+
+  @Test
+  public void testModifiedCompanionFile() throws Exception {
+    writeIcs();
+    Memoizer memoizer = new Memoizer(new ICSReader(), 0, memoDirectory);
+    memoizer.setId(ics.getAbsolutePath());
+    assertTrue(memoizer.isSavedToMemo());
+    memoizer.close();
+
+    ids.setLastModified(ids.lastModified() - 10000);
+    memoizer = new Memoizer(new ICSReader(), 0, memoDirectory);
+    memoizer.setId(ics.getAbsolutePath());
+    assertFalse(memoizer.isLoadedFromMemo());
+    assertTrue(memoizer.isSavedToMemo());
+    memoizer.close();
+  }
+
+  // -- Helper methods --
+
+  /** Writes a version 1 ICS dataset, with the pixels in a separate file. */
+  private void writeIcs() throws FormatException, IOException {
+    ids = File.createTempFile("memoizer", ".ids");
+    ids.delete();
+    String base = ids.getAbsolutePath();
+    ics = new File(base.substring(0, base.lastIndexOf(".")) + ".ics");
+
+    IMetadata meta = MetadataTools.createOMEXMLMetadata();
+    FakeReader fake = new FakeReader();
+    fake.setMetadataStore(meta);
+    fake.setId("memoizer&pixelType=uint16&sizeZ=3&sizeX=" + IMAGE_WIDTH +
+      "&sizeY=" + IMAGE_LENGTH + ".fake");
+    ICSWriter writer = new ICSWriter();
+    writer.setMetadataRetrieve(meta);
+    writer.setId(ids.getAbsolutePath());
+    for (int no=0; no<fake.getImageCount(); no++) {
+      writer.saveBytes(no, fake.openBytes(no));
+    }
+    writer.close();
+    fake.close();
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
+}
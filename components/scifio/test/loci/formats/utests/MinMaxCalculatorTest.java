@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import loci.common.DataTools;
 import loci.common.Location;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
@@ -193,6 +194,141 @@ public class MinMaxCalculatorTest {
     assertMinMax(-2.0, 2.0);
   }
 
+  @Test
+  public void testStatisticsUInt8() throws Exception {
+    assertStatistics("test&pixelType=uint8&sizeX=64&sizeY=48&sizeZ=3.fake");
+  }
+
+  @Test
+  public void testStatisticsInt16() throws Exception {
+    assertStatistics("test&pixelType=int16&sizeX=64&sizeY=48&sizeC=2" +
+      "&little=true.fake");
+  }
+
+  @Test
+  public void testStatisticsUInt16RGB() throws Exception {
+    // large enough to be split into parallel chunks
+    assertStatistics("test&pixelType=uint16&sizeX=700&sizeY=800&sizeC=3" +
+      "&rgb=3&interleaved=true&little=false.fake");
+  }
+
+  @Test
+  public void testStatisticsInt32() throws Exception {
+    assertStatistics("test&pixelType=int32&sizeX=64&sizeY=48&sizeZ=2" +
+      "&little=false.fake");
+  }
+
+  @Test
+  public void testStatisticsFloat() throws Exception {
+    assertStatistics("test&pixelType=float&sizeX=64&sizeY=48&sizeC=3" +
+      "&rgb=3&little=true.fake");
+  }
+
+  @Test
+  public void testStatisticsDouble() throws Exception {
+    assertStatistics("test&pixelType=double&sizeX=64&sizeY=48&sizeT=2.fake");
+  }
+
+  @Test
+  public void testStatisticsAfterTiles() throws Exception {
+    // repeated and overlapping tiles must not be counted twice, nor stop
+    // the whole plane from being counted when it is read
+    assertStatistics("test&pixelType=uint16&sizeX=64&sizeY=48&sizeZ=2" +
+      "&little=true.fake", true);
+  }
+
+  private void assertStatistics(String id) throws Exception {
+    assertStatistics(id, false);
+  }
+
+  /**
+   * Reads every plane of the given fake file through a MinMaxCalculator and
+   * checks its statistics against values computed one sample at a time.
+   * If <code>tilesFirst</code> is set, overlapping tiles of each plane are
+   * read before the whole plane.
+   */
+  private void assertStatistics(String id, boolean tilesFirst)
+    throws Exception
+  {
+    Location.mapId(id, id);
+    MinMaxCalculator calculator = new MinMaxCalculator(new FakeReader());
+    calculator.setHistogramEnabled(true);
+    calculator.setId(id);
+
+    int pixelType = calculator.getPixelType();
+    int bpp = FormatTools.getBytesPerPixel(pixelType);
+    int numRGB = calculator.getRGBChannelCount();
+    int pixels = calculator.getSizeX() * calculator.getSizeY();
+    boolean little = calculator.isLittleEndian();
+    boolean interleaved = calculator.isInterleaved();
+    boolean signed = FormatTools.isSigned(pixelType);
+    int sizeC = calculator.getSizeC();
+
+    double[] min = new double[sizeC];
+    double[] max = new double[sizeC];
+    double[] sum = new double[sizeC];
+    double[] sumSquares = new double[sizeC];
+    long[] count = new long[sizeC];
+    long[][] histogram = new long[sizeC][bpp <= 2 ? 1 << (bpp * 8) : 0];
+    Arrays.fill(min, Double.POSITIVE_INFINITY);
+    Arrays.fill(max, Double.NEGATIVE_INFINITY);
+
+    for (int no=0; no<calculator.getImageCount(); no++) {
+      if (tilesFirst) {
+        int w = calculator.getSizeX() / 2, h = calculator.getSizeY() / 2;
+        calculator.openBytes(no, 0, 0, w, h);
+        calculator.openBytes(no, 0, 0, w, h);
+        calculator.openBytes(no, w / 2, h / 2, w, h);
+      }
+      byte[] plane = calculator.openBytes(no);
+      int cBase = calculator.getZCTCoords(no)[1] * numRGB;
+      for (int c=0; c<numRGB; c++) {
+        for (int i=0; i<pixels; i++) {
+          int index = interleaved ? i * numRGB + c : c * pixels + i;
+          long bits = DataTools.bytesToLong(plane, index * bpp, bpp, little);
+          double v = bits;
+          if (pixelType == FormatTools.FLOAT) {
+            v = Float.intBitsToFloat((int) bits);
+          }
+          else if (pixelType == FormatTools.DOUBLE) {
+            v = Double.longBitsToDouble(bits);
+          }
+          else if (signed && bits >= 1L << (bpp * 8 - 1)) {
+            v = bits - (1L << (bpp * 8));
+          }
+          int channel = cBase + c;
+          min[channel] = Math.min(min[channel], v);
+          max[channel] = Math.max(max[channel], v);
+          sum[channel] += v;
+          sumSquares[channel] += v * v;
+          count[channel]++;
+          if (bpp <= 2) {
+            int bin = (int) v + (signed ? 1 << (bpp * 8 - 1) : 0);
+            histogram[channel][bin]++;
+          }
+        }
+      }
+    }
+
+    assertTrue(calculator.isMinMaxPopulated());
+    for (int c=0; c<sizeC; c++) {
+      double mean = sum[c] / count[c];
+      double stddev = Math.sqrt(sumSquares[c] / count[c] - mean * mean);
+      double delta = 1e-6 * Math.max(1, Math.abs(max[c] - min[c]));
+      assertEquals(min[c], calculator.getChannelGlobalMinimum(c));
+      assertEquals(max[c], calculator.getChannelGlobalMaximum(c));
+      assertEquals(mean, calculator.getChannelMean(c).doubleValue(), delta);
+      assertEquals(stddev,
+        calculator.getChannelStandardDeviation(c).doubleValue(), delta);
+      if (bpp <= 2) {
+        assertTrue(Arrays.equals(histogram[c],
+          calculator.getChannelHistogram(c)));
+      }
+      else assertNull(calculator.getChannelHistogram(c));
+    }
+    calculator.close();
+  }
+
   /**
    * A testing implementation of {@link loci.formats.meta.IMinMaxStore} that
    * we'll use to ensure that the various methods are called with the correct
@@ -0,0 +1,316 @@
+//
+// OpenPlaneTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import loci.common.DataTools;
+import loci.common.services.ServiceFactory;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.MinMaxCalculator;
+import loci.formats.in.FakeReader;
+import loci.formats.in.ICSReader;
+import loci.formats.in.TiffReader;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.ICSWriter;
+import loci.formats.services.OMEXMLService;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link IFormatReader#openPlane(int, Buffer, int, int, int, int)}
+ * decodes the same samples as <code>openBytes</code> followed by
+ * {@link DataTools#makeDataArray(byte[], int, boolean, boolean)}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/OpenPlaneTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/OpenPlaneTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class OpenPlaneTest {
+
+  private static final int IMAGE_WIDTH = 64;
+
+  private static final int IMAGE_LENGTH = 48;
+
+  private IFormatReader reader;
+
+  private File file;
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    if (reader != null) reader.close();
+    if (file != null) file.delete();
+    reader = null;
+    file = null;
+  }
+
+  @Test
+  public void testShorts() throws FormatException, IOException {
+    open(new FakeReader(), "shorts&pixelType=int16&sizeZ=3&little=false.fake");
+    assertSamples(1, 0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+    assertSamples(2, 5, 7, 20, 11);
+  }
+
+  @Test
+  public void testInts() throws FormatException, IOException {
+    open(new FakeReader(), "ints&pixelType=uint32&little=true.fake");
+    assertSamples(0, 0, 3, IMAGE_WIDTH, 9);
+    assertSamples(0, 13, 0, 1, IMAGE_LENGTH);
+  }
+
+  @Test
+  public void testFloats() throws FormatException, IOException {
+    open(new FakeReader(), "floats&pixelType=float&sizeC=3&rgb=3.fake");
+    assertSamples(0, 0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+    assertSamples(0, 31, 17, 9, 4);
+  }
+
+  @Test
+  public void testDoubles() throws FormatException, IOException {
+    open(new FakeReader(), "doubles&pixelType=double&interleaved=true" +
+      "&sizeC=3&rgb=3.fake");
+    assertSamples(0, 2, 2, 40, 30);
+  }
+
+  @Test
+  public void testBytes() throws FormatException, IOException {
+    open(new FakeReader(), "bytes&pixelType=uint16&little=true.fake");
+    byte[] expected = reader.openBytes(0, 3, 4, 10, 6);
+
+    ByteBuffer same = ByteBuffer.allocate(expected.length);
+    same.order(ByteOrder.LITTLE_ENDIAN);
+    reader.openPlane(0, same, 3, 4, 10, 6);
+    assertEquals(expected.length, same.position());
+    for (int i=0; i<expected.length; i++) {
+      assertEquals(expected[i], same.get(i));
+    }
+
+    // samples are written in the buffer's own byte order
+    ByteBuffer swapped = ByteBuffer.allocateDirect(expected.length);
+    swapped.order(ByteOrder.BIG_ENDIAN);
+    reader.openPlane(0, swapped, 3, 4, 10, 6);
+    for (int i=0; i<expected.length; i+=2) {
+      assertEquals(expected[i], swapped.get(i + 1));
+      assertEquals(expected[i + 1], swapped.get(i));
+    }
+  }
+
+  @Test
+  public void testWrappers() throws FormatException, IOException {
+    open(new MinMaxCalculator(new ChannelSeparator(new FakeReader())),
+      "wrapped&pixelType=uint16&sizeC=3&rgb=3.fake");
+    assertSamples(1, 0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+    assertSamples(2, 8, 8, 16, 16);
+    // the samples still pass through the min/max calculator
+    assertNotNull(((MinMaxCalculator) reader).getPlaneMinimum(1));
+  }
+
+  @Test
+  public void testBufferPosition() throws FormatException, IOException {
+    open(new FakeReader(), "position&pixelType=uint16.fake");
+    short[] expected = (short[]) DataTools.makeDataArray(
+      reader.openBytes(0, 0, 0, 4, 4), 2, false, reader.isLittleEndian());
+
+    short[] array = new short[expected.length + 8];
+    ShortBuffer buf = ShortBuffer.wrap(array);
+    buf.position(5);
+    assertSame(buf, reader.openPlane(0, buf, 0, 0, 4, 4));
+    assertEquals(5 + expected.length, buf.position());
+    for (int i=0; i<expected.length; i++) {
+      assertEquals(expected[i], array[i + 5]);
+    }
+    assertEquals(0, array[4]);
+    assertEquals(0, array[5 + expected.length]);
+  }
+
+  @Test
+  public void testInvalidBuffers() throws FormatException, IOException {
+    open(new FakeReader(), "invalid&pixelType=uint16.fake");
+    try {
+      reader.openPlane(0, FloatBuffer.allocate(IMAGE_WIDTH * IMAGE_LENGTH));
+      fail("A float buffer is not valid for 16-bit pixels");
+    }
+    catch (FormatException e) { }
+    try {
+      reader.openPlane(0, ShortBuffer.allocate(IMAGE_WIDTH));
+      fail("The buffer cannot hold the whole plane");
+    }
+    catch (FormatException e) { }
+  }
+
+  @Test
+  public void testTiff() throws FormatException, IOException {
+    writeTiff(TiffCompression.UNCOMPRESSED);
+    open(new TiffReader(), file.getAbsolutePath());
+    // full-width bands are mapped, other regions are read row by row
+    assertSamples(0, 0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+    assertSamples(0, 0, 5, IMAGE_WIDTH, 21);
+    assertSamples(0, 4, 5, 16, 21);
+  }
+
+  @Test
+  public void testCompressedTiff() throws FormatException, IOException {
+    writeTiff(TiffCompression.LZW);
+    open(new TiffReader(), file.getAbsolutePath());
+    assertSamples(0, 0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+    assertSamples(0, 7, 9, 30, 3);
+  }
+
+  @Test
+  public void testIcs() throws Exception {
+    writeIcs("ics&pixelType=int16&sizeZ=2&little=true.fake");
+    open(new ICSReader(), file.getAbsolutePath());
+    assertSamples(1, 0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+    assertSamples(0, 5, 7, 20, 11);
+  }
+
+  // -- Helper methods --
+
+  private void open(IFormatReader r, String id)
+    throws FormatException, IOException
+  {
+    if (id.endsWith(".fake")) {
+      id = id.replace(".fake", "&sizeX=" + IMAGE_WIDTH +
+        "&sizeY=" + IMAGE_LENGTH + ".fake");
+    }
+    reader = r;
+    reader.setId(id);
+  }
+
+  private void writeTiff(TiffCompression compression)
+    throws FormatException, IOException
+  {
+    file = File.createTempFile("typed", ".tif");
+    file.deleteOnExit();
+    byte[] data = new byte[IMAGE_WIDTH * IMAGE_LENGTH * 2];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i * 7 + i / 5);
+    }
+
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    ifd.put(IFD.ROWS_PER_STRIP, new long[] {8});
+    ifd.put(IFD.BITS_PER_SAMPLE, new int[] {16});
+    ifd.put(IFD.SAMPLES_PER_PIXEL, 1);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.FALSE);
+    ifd.put(IFD.COMPRESSION, compression.getCode());
+    TiffSaver saver = new TiffSaver(file.getAbsolutePath());
+    saver.setLittleEndian(false);
+    saver.writeHeader();
+    saver.writeImage(data, ifd, 0, FormatTools.UINT16, true);
+    saver.getStream().close();
+  }
+
+  /** Writes the planes of the given fake image to an ICS file. */
+  private void writeIcs(String fakeId) throws Exception {
+    file = File.createTempFile("typed", ".ics");
+    file.deleteOnExit();
+    file.delete();
+
+    ServiceFactory factory = new ServiceFactory();
+    OMEXMLService service = factory.getInstance(OMEXMLService.class);
+    IMetadata meta = service.createOMEXMLMetadata();
+    IFormatReader fake = new FakeReader();
+    fake.setMetadataStore(meta);
+    open(fake, fakeId);
+
+    ICSWriter writer = new ICSWriter();
+    writer.setMetadataRetrieve(meta);
+    writer.setId(file.getAbsolutePath());
+    for (int no=0; no<fake.getImageCount(); no++) {
+      writer.saveBytes(no, fake.openBytes(no));
+    }
+    writer.close();
+    fake.close();
+  }
+
+  /**
+   * Checks that the given sub-image is decoded identically by openPlane
+   * and by openBytes, using a buffer of the pixel type's element type.
+   */
+  private void assertSamples(int no, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    int pixelType = reader.getPixelType();
+    int bpp = FormatTools.getBytesPerPixel(pixelType);
+    boolean fp = FormatTools.isFloatingPoint(pixelType);
+    Object expected = DataTools.makeDataArray(
+      reader.openBytes(no, x, y, w, h), bpp, fp, reader.isLittleEndian());
+    int n = w * h * reader.getRGBChannelCount();
+
+    if (expected instanceof short[]) {
+      short[] actual = new short[n];
+      reader.openPlane(no, ShortBuffer.wrap(actual), x, y, w, h);
+      for (int i=0; i<n; i++) {
+        assertEquals(((short[]) expected)[i], actual[i]);
+      }
+    }
+    else if (expected instanceof int[]) {
+      int[] actual = new int[n];
+      reader.openPlane(no, IntBuffer.wrap(actual), x, y, w, h);
+      for (int i=0; i<n; i++) {
+        assertEquals(((int[]) expected)[i], actual[i]);
+      }
+    }
+    else if (expected instanceof float[]) {
+      float[] actual = new float[n];
+      reader.openPlane(no, FloatBuffer.wrap(actual), x, y, w, h);
+      for (int i=0; i<n; i++) {
+        assertEquals(((float[]) expected)[i], actual[i], 0);
+      }
+    }
+    else if (expected instanceof double[]) {
+      // a direct buffer has no backing array
+      DoubleBuffer actual = ByteBuffer.allocateDirect(n * 8).asDoubleBuffer();
+      reader.openPlane(no, actual, x, y, w, h);
+      for (int i=0; i<n; i++) {
+        assertEquals(((double[]) expected)[i], actual.get(i), 0);
+      }
+    }
+    else fail("Unexpected pixel type " + pixelType);
+  }
+
+}
@@ -0,0 +1,146 @@
+//
+// ResolutionTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import loci.common.Location;
+import loci.formats.DimensionSwapper;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.in.FakeReader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the resolution API of {@link IFormatReader} using a
+ * {@link FakeReader} with multiple resolutions per series.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/ResolutionTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/ResolutionTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class ResolutionTest {
+
+  private static final String TEST_FILE =
+    "test&series=2&resolutions=3&sizeX=64&sizeY=32&sizeZ=2.fake";
+
+  private IFormatReader reader;
+
+  @BeforeMethod
+  public void setUp() {
+    Location.mapId(TEST_FILE, TEST_FILE);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    if (reader != null) reader.close();
+    reader = null;
+  }
+
+  @Test
+  public void testFlattened() throws Exception {
+    reader = new FakeReader();
+    reader.setId(TEST_FILE);
+    assertTrue(reader.hasFlattenedResolutions());
+    assertEquals(6, reader.getSeriesCount());
+    reader.setSeries(4);
+    assertEquals(1, reader.getResolutionCount());
+    assertEquals(0, reader.getResolution());
+    assertEquals(4, reader.getCoreIndex());
+    assertEquals(32, reader.getSizeX());
+    assertEquals(16, reader.getSizeY());
+  }
+
+  @Test
+  public void testUnflattened() throws Exception {
+    reader = new FakeReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(TEST_FILE);
+    assertFalse(reader.hasFlattenedResolutions());
+    assertEquals(2, reader.getSeriesCount());
+    assertEquals(3, reader.getResolutionCount());
+
+    reader.setSeries(1);
+    assertEquals(3, reader.getCoreIndex());
+    assertEquals(0, reader.getResolution());
+    assertEquals(64, reader.getSizeX());
+
+    reader.setResolution(2);
+    assertEquals(1, reader.getSeries());
+    assertEquals(2, reader.getResolution());
+    assertEquals(5, reader.getCoreIndex());
+    assertEquals(16, reader.getSizeX());
+    assertEquals(8, reader.getSizeY());
+    assertEquals(16 * 8, reader.openBytes(1).length);
+
+    assertEquals(3, reader.seriesToCoreIndex(1));
+    assertEquals(1, reader.coreIndexToSeries(4));
+    assertEquals(0, reader.coreIndexToSeries(2));
+
+    reader.setSeries(0);
+    assertEquals(0, reader.getResolution());
+    assertEquals(0, reader.getCoreIndex());
+  }
+
+  @Test(expectedExceptions={ IllegalArgumentException.class })
+  public void testInvalidResolution() throws Exception {
+    reader = new FakeReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(TEST_FILE);
+    reader.setResolution(3);
+  }
+
+  @Test(expectedExceptions={ IllegalStateException.class })
+  public void testFlattenAfterInitialization() throws Exception {
+    reader = new FakeReader();
+    reader.setId(TEST_FILE);
+    reader.setFlattenedResolutions(false);
+  }
+
+  @Test
+  public void testWrappedImageReader() throws Exception {
+    ImageReader imageReader = new ImageReader();
+    imageReader.setFlattenedResolutions(false);
+    DimensionSwapper swapper = new DimensionSwapper(imageReader);
+    reader = swapper;
+    reader.setId(TEST_FILE);
+    assertEquals(2, reader.getSeriesCount());
+    assertEquals(3, reader.getResolutionCount());
+
+    swapper.swapDimensions("XYCZT");
+    reader.setResolution(1);
+    assertEquals(32, reader.getSizeX());
+    assertEquals("XYCZT", swapper.getInputOrder());
+
+    reader.setSeries(1);
+    assertEquals(3, reader.getCoreIndex());
+    assertEquals("XYZCT", swapper.getInputOrder());
+  }
+
+}
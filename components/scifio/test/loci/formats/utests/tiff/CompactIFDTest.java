@@ -0,0 +1,202 @@
+//
+// TiffPixelsTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.CompactIFD;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffRational;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a {@link CompactIFD} behaves in the same way as an ordinary
+ * {@link IFD}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/tiff/CompactIFDTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/tiff/CompactIFDTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class CompactIFDTest {
+
+  private IFD ifd;
+
+  private CompactIFD compact;
+
+  @BeforeMethod
+  public void setUp() {
+    ifd = new IFD();
+    ifd.put(IFD.SOFTWARE, "software");
+    ifd.put(IFD.IMAGE_WIDTH, 512);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    ifd.put(IFD.IMAGE_LENGTH, 256L);
+    ifd.put(IFD.BITS_PER_SAMPLE, new int[] {8, 8, 8});
+    ifd.put(IFD.X_RESOLUTION, new TiffRational(72, 1));
+    ifd.put(IFD.NEW_SUBFILE_TYPE, new Short((short) 1));
+    ifd.put(IFD.FILL_ORDER, new Byte((byte) 2));
+    ifd.put(IFD.STRIP_OFFSETS, new long[] {8, 1024, 2048});
+    ifd.put(IFD.X_POSITION, new Float(1.5f));
+    ifd.put(IFD.Y_POSITION, new Double(-2.25));
+    ifd.put(IFD.Y_RESOLUTION, new TiffRational(Long.MAX_VALUE, 3));
+    compact = new CompactIFD(ifd);
+  }
+
+  @Test
+  public void testValues() {
+    assertEquals(ifd.size(), compact.size());
+    for (Integer tag : ifd.keySet()) {
+      Object expected = ifd.get(tag);
+      Object actual = compact.get(tag);
+      assertEquals(expected.getClass(), actual.getClass());
+      if (expected instanceof int[]) {
+        assertTrue(Arrays.equals((int[]) expected, (int[]) actual));
+      }
+      else if (expected instanceof long[]) {
+        assertTrue(Arrays.equals((long[]) expected, (long[]) actual));
+      }
+      else assertEquals(expected, actual);
+    }
+    assertNull(compact.get(IFD.COMPRESSION));
+    assertNull(compact.get("not a tag"));
+  }
+
+  @Test
+  public void testGetters() throws FormatException {
+    assertEquals(ifd.getImageWidth(), compact.getImageWidth());
+    assertEquals(ifd.getImageLength(), compact.getImageLength());
+    assertTrue(Arrays.equals(ifd.getBitsPerSample(),
+      compact.getBitsPerSample()));
+    assertEquals(ifd.isLittleEndian(), compact.isLittleEndian());
+    assertEquals(ifd.getXResolution(), compact.getXResolution());
+    assertEquals(ifd.getIFDStringValue(IFD.SOFTWARE),
+      compact.getIFDStringValue(IFD.SOFTWARE));
+    assertEquals(ifd.getIFDIntValue(IFD.NEW_SUBFILE_TYPE),
+      compact.getIFDIntValue(IFD.NEW_SUBFILE_TYPE));
+  }
+
+  @Test
+  public void testMapContract() {
+    assertTrue(compact.equals(ifd));
+    assertTrue(ifd.equals(compact));
+    assertEquals(ifd.hashCode(), compact.hashCode());
+
+    // keys are iterated in ascending order
+    int last = -1;
+    for (Integer tag : compact.keySet()) {
+      assertTrue(tag.intValue() > last);
+      last = tag.intValue();
+    }
+
+    assertEquals(new Integer(512), compact.put(IFD.IMAGE_WIDTH, 1024));
+    assertEquals(new Integer(1024), compact.get(IFD.IMAGE_WIDTH));
+    assertFalse(compact.equals(ifd));
+
+    int size = compact.size();
+    assertEquals("software", compact.remove(IFD.SOFTWARE));
+    assertFalse(compact.containsKey(IFD.SOFTWARE));
+    assertEquals(size - 1, compact.size());
+
+    Iterator<Map.Entry<Integer, Object>> entries =
+      compact.entrySet().iterator();
+    while (entries.hasNext()) {
+      if (entries.next().getKey().intValue() == IFD.IMAGE_LENGTH) {
+        entries.remove();
+      }
+    }
+    assertFalse(compact.containsKey(IFD.IMAGE_LENGTH));
+    assertEquals(size - 2, compact.size());
+    assertTrue(compact.containsKey(IFD.Y_RESOLUTION));
+
+    IFD copy = (IFD) compact.clone();
+    compact.clear();
+    assertTrue(compact.isEmpty());
+    assertEquals(size - 2, copy.size());
+  }
+
+  @Test(expectedExceptions={ IllegalArgumentException.class })
+  public void testInvalidTag() {
+    compact.put(0x10000, 1);
+  }
+
+  @Test
+  public void testParsedIFDs() throws FormatException, IOException {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setWritingSequentially(true);
+    saver.writeHeader();
+    for (int no=0; no<3; no++) {
+      IFD plane = new IFD();
+      plane.put(IFD.IMAGE_WIDTH, 8);
+      plane.put(IFD.IMAGE_LENGTH, 8);
+      plane.put(IFD.ROWS_PER_STRIP, new long[] {2});
+      plane.put(IFD.LITTLE_ENDIAN, Boolean.FALSE);
+      plane.put(IFD.COMPRESSION, TiffCompression.UNCOMPRESSED.getCode());
+      plane.put(IFD.IMAGE_DESCRIPTION, "plane " + no);
+      out.seek(out.length());
+      saver.writeImage(new byte[64], plane, no, FormatTools.UINT8, no == 2);
+    }
+    out.close();
+
+    TiffParser parser = new TiffParser(new RandomAccessInputStream(handle));
+    IFDList ifds = parser.getIFDs();
+    parser = new TiffParser(new RandomAccessInputStream(handle));
+    parser.setCompactIFDs(true);
+    assertTrue(parser.isCompactIFDs());
+    IFDList compactIFDs = parser.getIFDs();
+
+    assertEquals(ifds.size(), compactIFDs.size());
+    for (int i=0; i<ifds.size(); i++) {
+      IFD a = ifds.get(i);
+      IFD b = compactIFDs.get(i);
+      assertTrue(b instanceof CompactIFD);
+      assertEquals(a.keySet(), b.keySet());
+      assertEquals(a.getComment(), b.getComment());
+      assertEquals(a.getImageWidth(), b.getImageWidth());
+      assertTrue(Arrays.equals(a.getStripOffsets(), b.getStripOffsets()));
+      assertTrue(Arrays.equals(a.getStripByteCounts(),
+        b.getStripByteCounts()));
+      assertTrue(Arrays.equals(a.getRowsPerStrip(), b.getRowsPerStrip()));
+    }
+  }
+
+}
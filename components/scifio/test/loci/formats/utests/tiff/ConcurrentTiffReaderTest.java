@@ -0,0 +1,148 @@
+//
+// ConcurrentTiffReaderTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.ChannelFiller;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MinMaxCalculator;
+import loci.formats.in.TiffReader;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a single initialized {@link TiffReader} returns correct planes
+ * when <code>openBytes</code> is called from several threads at once.
+ */
+public class ConcurrentTiffReaderTest {
+
+  private static final int IMAGE_WIDTH = 128;
+
+  private static final int IMAGE_LENGTH = 96;
+
+  private static final int PLANES = 8;
+
+  private static final int THREADS = 4;
+
+  private File file;
+
+  private byte[][] planes;
+
+  private TiffReader reader;
+
+  private ExecutorService executor;
+
+  @BeforeMethod
+  public void setUp() throws FormatException, IOException {
+    file = File.createTempFile("concurrent", ".tif");
+    file.deleteOnExit();
+    planes = new byte[PLANES][IMAGE_WIDTH * IMAGE_LENGTH * 2];
+
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setWritingSequentially(true);
+    saver.writeHeader();
+    for (int p=0; p<PLANES; p++) {
+      for (int i=0; i<planes[p].length; i++) {
+        planes[p][i] = (byte) (i * (p + 1) / 5);
+      }
+      IFD ifd = new IFD();
+      ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+      ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+      ifd.put(IFD.TILE_WIDTH, 32);
+      ifd.put(IFD.TILE_LENGTH, 32);
+      ifd.put(IFD.BITS_PER_SAMPLE, new int[] {16});
+      ifd.put(IFD.SAMPLES_PER_PIXEL, 1);
+      ifd.put(IFD.LITTLE_ENDIAN, Boolean.FALSE);
+      ifd.put(IFD.COMPRESSION, TiffCompression.LZW.getCode());
+      out.seek(out.length());
+      saver.writeImage(planes[p], ifd, p, FormatTools.UINT16, p == PLANES - 1);
+    }
+    out.close();
+    FileOutputStream stream = new FileOutputStream(file);
+    stream.write(handle.getBytes(), 0, (int) handle.length());
+    stream.close();
+
+    reader = new TiffReader();
+    reader.setId(file.getAbsolutePath());
+    executor = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    reader.close();
+    file.delete();
+  }
+
+  @Test
+  public void testThreadSafe() {
+    assertTrue(reader.isThreadSafe());
+    assertTrue(!new MinMaxCalculator(reader).isThreadSafe());
+    assertTrue(new ChannelFiller(reader).isThreadSafe());
+  }
+
+  @Test
+  public void testConcurrentOpenBytes() throws Exception {
+    List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+    for (int t=0; t<THREADS; t++) {
+      final int offset = t;
+      results.add(executor.submit(new Callable<Boolean>() {
+        public Boolean call() throws FormatException, IOException {
+          for (int i=0; i<PLANES * 4; i++) {
+            int p = (i + offset) % PLANES;
+            if (!Arrays.equals(planes[p], reader.openBytes(p))) return false;
+          }
+          return true;
+        }
+      }));
+    }
+    for (Future<Boolean> result : results) {
+      assertEquals(Boolean.TRUE, result.get());
+    }
+  }
+
+}
@@ -0,0 +1,146 @@
+//
+// LazyIFDTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffIFDEntry;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that IFDs parsed in lazy mode return the same values as IFDs that
+ * are read in full.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/tiff/LazyIFDTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/tiff/LazyIFDTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class LazyIFDTest {
+
+  private static final int IMAGE_WIDTH = 16;
+
+  private static final int IMAGE_LENGTH = 16;
+
+  private static final int PLANE_COUNT = 3;
+
+  private ByteArrayHandle handle;
+
+  @BeforeMethod
+  public void setUp() throws FormatException, IOException {
+    handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setWritingSequentially(true);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    for (int no=0; no<PLANE_COUNT; no++) {
+      IFD ifd = new IFD();
+      ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+      ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+      ifd.put(IFD.ROWS_PER_STRIP, new long[] {1});
+      ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+      ifd.put(IFD.COMPRESSION, TiffCompression.UNCOMPRESSED.getCode());
+      ifd.put(IFD.IMAGE_DESCRIPTION, "plane " + no + " of " + PLANE_COUNT);
+      byte[] plane = new byte[IMAGE_WIDTH * IMAGE_LENGTH];
+      Arrays.fill(plane, (byte) no);
+      out.seek(out.length());
+      saver.writeImage(plane, ifd, no, FormatTools.UINT8,
+        no == PLANE_COUNT - 1);
+    }
+    out.close();
+  }
+
+  @Test
+  public void testDeferredValues() throws FormatException, IOException {
+    TiffParser lazy = new TiffParser(new RandomAccessInputStream(handle));
+    lazy.setLazyIFDs(true);
+    assertTrue(lazy.isLazyIFDs());
+    IFDList lazyIFDs = lazy.getIFDs();
+    IFDList ifds = new TiffParser(new RandomAccessInputStream(handle)).getIFDs();
+    assertEquals(PLANE_COUNT, lazyIFDs.size());
+
+    for (int i=0; i<PLANE_COUNT; i++) {
+      IFD ifd = lazyIFDs.get(i);
+      assertTrue(hasDeferredEntry(ifd));
+
+      long fp = lazy.getStream().getFilePointer();
+      assertEquals(ifds.get(i).getComment(), ifd.getComment());
+      assertTrue(Arrays.equals(ifds.get(i).getStripOffsets(),
+        ifd.getStripOffsets()));
+      assertTrue(Arrays.equals(ifds.get(i).getStripByteCounts(),
+        ifd.getStripByteCounts()));
+      assertEquals(fp, lazy.getStream().getFilePointer());
+
+      // offsets are kept as a primitive array once they have been read
+      assertTrue(ifd.getIFDValue(IFD.STRIP_OFFSETS) instanceof long[]);
+    }
+  }
+
+  @Test
+  public void testFillInIFD() throws FormatException, IOException {
+    TiffParser parser = new TiffParser(new RandomAccessInputStream(handle));
+    parser.setLazyIFDs(true);
+    IFD ifd = parser.getFirstIFD();
+    assertTrue(hasDeferredEntry(ifd));
+    parser.fillInIFD(ifd);
+    assertFalse(hasDeferredEntry(ifd));
+
+    byte[] plane = new byte[IMAGE_WIDTH * IMAGE_LENGTH];
+    parser.getSamples(ifd, plane);
+    for (byte b : plane) assertEquals(0, b);
+  }
+
+  @Test
+  public void testIFDCount() throws IOException {
+    TiffParser parser = new TiffParser(new RandomAccessInputStream(handle));
+    assertEquals(PLANE_COUNT, parser.getIFDCount());
+    assertEquals(parser.getIFDOffsets().length, parser.getIFDCount());
+  }
+
+  // -- Helper methods --
+
+  private boolean hasDeferredEntry(IFD ifd) {
+    for (Object value : ifd.values()) {
+      if (value instanceof TiffIFDEntry) return true;
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,137 @@
+//
+// MappedTiffPixelsTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.in.TiffReader;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link TiffReader#openMappedBytes(int, int, int, int, int)}
+ * returns the same pixels as <code>openBytes</code> for uncompressed planes.
+ */
+public class MappedTiffPixelsTest {
+
+  private static final int IMAGE_WIDTH = 64;
+
+  private static final int IMAGE_LENGTH = 48;
+
+  private static final int ROWS_PER_STRIP = 8;
+
+  private File file;
+
+  private byte[] data;
+
+  private TiffReader reader;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    file = File.createTempFile("mapped", ".tif");
+    file.deleteOnExit();
+    data = new byte[IMAGE_WIDTH * IMAGE_LENGTH * 2];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i / 3);
+    }
+    reader = new TiffReader();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    reader.close();
+    file.delete();
+  }
+
+  @Test
+  public void testUncompressed() throws FormatException, IOException {
+    write(TiffCompression.UNCOMPRESSED);
+    reader.setId(file.getAbsolutePath());
+
+    ByteBuffer plane = reader.openMappedBytes(0);
+    assertNotNull(plane);
+    assertTrue(plane.isReadOnly());
+    assertEquals(ByteOrder.LITTLE_ENDIAN, plane.order());
+    assertBytes(reader.openBytes(0), plane);
+
+    // a band of full-width rows that does not start on a strip boundary
+    int y = 5, h = 21;
+    ByteBuffer band = reader.openMappedBytes(0, 0, y, IMAGE_WIDTH, h);
+    assertNotNull(band);
+    assertBytes(reader.openBytes(0, 0, y, IMAGE_WIDTH, h), band);
+
+    // partial rows are not stored contiguously
+    assertNull(reader.openMappedBytes(0, 4, y, 16, h));
+  }
+
+  @Test
+  public void testCompressed() throws FormatException, IOException {
+    write(TiffCompression.LZW);
+    reader.setId(file.getAbsolutePath());
+    assertNull(reader.openMappedBytes(0));
+  }
+
+  // -- Helper methods --
+
+  private void write(TiffCompression compression)
+    throws FormatException, IOException
+  {
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    ifd.put(IFD.ROWS_PER_STRIP, new long[] {ROWS_PER_STRIP});
+    ifd.put(IFD.BITS_PER_SAMPLE, new int[] {16});
+    ifd.put(IFD.SAMPLES_PER_PIXEL, 1);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    ifd.put(IFD.COMPRESSION, compression.getCode());
+    TiffSaver saver = new TiffSaver(file.getAbsolutePath());
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    saver.writeImage(data, ifd, 0, FormatTools.UINT16, true);
+    saver.getStream().close();
+  }
+
+  private void assertBytes(byte[] expected, ByteBuffer actual) {
+    assertEquals(expected.length, actual.remaining());
+    for (int i=0; i<expected.length; i++) {
+      assertEquals(expected[i], actual.get(i));
+    }
+  }
+
+}
@@ -0,0 +1,196 @@
+//
+// OMETiffReaderTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import loci.common.services.ServiceFactory;
+import loci.formats.in.OMETiffReader;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.services.OMEXMLService;
+
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a lazily initialized {@link OMETiffReader} reads the same
+ * pixels as an eagerly initialized one, from a dataset spread over many
+ * files.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/tiff/OMETiffReaderTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/tiff/OMETiffReaderTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class OMETiffReaderTest {
+
+  private static final int FILE_COUNT = 12;
+
+  private static final int PLANES_PER_FILE = 2;
+
+  private static final int SIZE = 8;
+
+  private File directory;
+
+  private File[] files = new File[FILE_COUNT];
+
+  @BeforeClass
+  public void setUp() throws Exception {
+    directory = File.createTempFile("OMETiffReaderTest", "");
+    directory.delete();
+    directory.mkdir();
+
+    ServiceFactory sf = new ServiceFactory();
+    OMEXMLService service = sf.getInstance(OMEXMLService.class);
+    OMEXMLMetadata meta = service.createOMEXMLMetadata();
+    meta.setImageID("Image:0", 0);
+    meta.setPixelsID("Pixels:0", 0);
+    meta.setPixelsDimensionOrder(DimensionOrder.XYZCT, 0);
+    meta.setPixelsSizeX(new PositiveInteger(SIZE), 0);
+    meta.setPixelsSizeY(new PositiveInteger(SIZE), 0);
+    meta.setPixelsSizeZ(new PositiveInteger(FILE_COUNT * PLANES_PER_FILE), 0);
+    meta.setPixelsSizeC(new PositiveInteger(1), 0);
+    meta.setPixelsSizeT(new PositiveInteger(1), 0);
+    meta.setPixelsType(PixelType.UINT8, 0);
+    meta.setPixelsBinDataBigEndian(true, 0, 0);
+    meta.setChannelID("Channel:0", 0, 0);
+    meta.setChannelSamplesPerPixel(new PositiveInteger(1), 0, 0);
+
+    OMETiffWriter writer = new OMETiffWriter();
+    writer.setMetadataRetrieve(meta);
+    for (int f=0; f<FILE_COUNT; f++) {
+      files[f] = new File(directory, "plane" + f + ".ome.tif");
+      writer.changeOutputFile(files[f].getAbsolutePath());
+      for (int p=0; p<PLANES_PER_FILE; p++) {
+        int no = f * PLANES_PER_FILE + p;
+        writer.saveBytes(no, createPlane(no));
+      }
+    }
+    writer.close();
+  }
+
+  @AfterClass
+  public void tearDown() {
+    for (File file : files) {
+      if (file != null) file.delete();
+    }
+    directory.delete();
+  }
+
+  private byte[] createPlane(int no) {
+    byte[] plane = new byte[SIZE * SIZE];
+    for (int i=0; i<plane.length; i++) {
+      plane[i] = (byte) (no * 7 + i);
+    }
+    return plane;
+  }
+
+  @Test
+  public void testLazyInitialization() throws Exception {
+    OMETiffReader reader = new OMETiffReader();
+    assertTrue(reader.isLazyInitialization());
+    reader.setMaxOpenFiles(4);
+    reader.setId(files[3].getAbsolutePath());
+    assertEquals(FILE_COUNT * PLANES_PER_FILE, reader.getImageCount());
+    assertEquals(FILE_COUNT, reader.getUsedFiles().length);
+    assertEquals(0, reader.getOpenFileCount());
+    // the planes have no lookup tables
+    assertTrue(reader.isThreadSafe());
+
+    OMETiffReader eager = new OMETiffReader();
+    eager.setLazyInitialization(false);
+    eager.setId(files[3].getAbsolutePath());
+    for (int no=0; no<reader.getImageCount(); no++) {
+      assertTrue(Arrays.equals(eager.openBytes(no), reader.openBytes(no)));
+      assertTrue(reader.getOpenFileCount() <= 4);
+    }
+    assertEquals(SIZE, reader.getOptimalTileWidth());
+    eager.close();
+    reader.close();
+    assertEquals(0, reader.getOpenFileCount());
+  }
+
+  @Test
+  public void testSameAsEager() throws Exception {
+    OMETiffReader lazy = new OMETiffReader();
+    OMETiffReader eager = new OMETiffReader();
+    eager.setLazyInitialization(false);
+    lazy.setId(files[0].getAbsolutePath());
+    eager.setId(files[0].getAbsolutePath());
+    assertEquals(eager.getImageCount(), lazy.getImageCount());
+    assertEquals(eager.getOptimalTileWidth(), lazy.getOptimalTileWidth());
+    assertEquals(eager.getOptimalTileHeight(), lazy.getOptimalTileHeight());
+    for (int no=eager.getImageCount()-1; no>=0; no--) {
+      assertTrue(Arrays.equals(eager.openBytes(no, 1, 2, 5, 3),
+        lazy.openBytes(no, 1, 2, 5, 3)));
+    }
+    lazy.close();
+    eager.close();
+  }
+
+  @Test
+  public void testLazyMappedBytes() throws Exception {
+    OMETiffReader reader = new OMETiffReader();
+    reader.setMaxOpenFiles(4);
+    reader.setId(files[0].getAbsolutePath());
+    for (int no=0; no<reader.getImageCount(); no++) {
+      ByteBuffer plane = reader.openMappedBytes(no);
+      assertNotNull(plane);
+      byte[] bytes = new byte[plane.remaining()];
+      plane.get(bytes);
+      assertTrue(Arrays.equals(reader.openBytes(no), bytes));
+      assertTrue(reader.getOpenFileCount() <= 4);
+    }
+    reader.close();
+    assertEquals(0, reader.getOpenFileCount());
+  }
+
+  @Test
+  public void testLazyOpenPlane() throws Exception {
+    OMETiffReader reader = new OMETiffReader();
+    reader.setMaxOpenFiles(4);
+    reader.setId(files[0].getAbsolutePath());
+    for (int no=reader.getImageCount()-1; no>=0; no--) {
+      ByteBuffer plane = ByteBuffer.allocate(15);
+      reader.openPlane(no, plane, 1, 2, 5, 3);
+      assertTrue(Arrays.equals(reader.openBytes(no, 1, 2, 5, 3),
+        plane.array()));
+      assertTrue(reader.getOpenFileCount() <= 4);
+    }
+    reader.close();
+    assertEquals(0, reader.getOpenFileCount());
+  }
+
+}
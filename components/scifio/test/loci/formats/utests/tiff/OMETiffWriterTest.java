@@ -33,7 +33,9 @@ import loci.common.RandomAccessInputStream;
 import loci.common.services.ServiceFactory;
 import loci.formats.ImageWriter;
 import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.out.OMETiffWriter;
 import loci.formats.services.OMEXMLService;
+import loci.formats.tiff.TiffParser;
 
 import ome.xml.model.enums.DimensionOrder;
 import ome.xml.model.enums.PixelType;
@@ -122,6 +124,63 @@ public class OMETiffWriterTest {
     System.err.println("Tracker length: " + app.map.size());
   }
 
+  @Test
+  public void testMultipleFiles() throws Exception {
+    ServiceFactory sf = new ServiceFactory();
+    OMEXMLService service = sf.getInstance(OMEXMLService.class);
+    OMEXMLMetadata meta = service.createOMEXMLMetadata();
+    File[] files = new File[3];
+    for (int i=0; i<files.length; i++) {
+      files[i] = File.createTempFile("OMETiffWriterTest", ".ome.tiff");
+      meta.setImageID("Image:" + i, i);
+      meta.setPixelsID("Pixels:" + i, i);
+      meta.setPixelsDimensionOrder(DimensionOrder.XYZCT, i);
+      meta.setPixelsSizeX(new PositiveInteger(4), i);
+      meta.setPixelsSizeY(new PositiveInteger(4), i);
+      meta.setPixelsSizeZ(new PositiveInteger(2), i);
+      meta.setPixelsSizeC(new PositiveInteger(1), i);
+      meta.setPixelsSizeT(new PositiveInteger(1), i);
+      meta.setPixelsType(PixelType.UINT8, i);
+      meta.setPixelsBinDataBigEndian(true, i, 0);
+      meta.setChannelID("Channel:" + i, i, 0);
+      meta.setChannelSamplesPerPixel(new PositiveInteger(1), i, 0);
+    }
+
+    try {
+      OMETiffWriter writer = new OMETiffWriter();
+      writer.setMetadataRetrieve(meta);
+      for (int i=0; i<files.length; i++) {
+        writer.changeOutputFile(files[i].getAbsolutePath());
+        writer.setSeries(i);
+        writer.saveBytes(0, buf);
+        writer.saveBytes(1, buf);
+      }
+      writer.close();
+
+      String content = null;
+      for (int i=0; i<files.length; i++) {
+        RandomAccessInputStream in =
+          new RandomAccessInputStream(files[i].getAbsolutePath());
+        String xml = new TiffParser(in).getComment();
+        in.close();
+        OMEXMLMetadata omexml = service.createOMEXMLMetadata(xml);
+        assertEquals(files.length, omexml.getImageCount());
+        assertEquals(files[i].getName(), omexml.getUUIDFileName(i, 0));
+        assertEquals(omexml.getUUIDValue(i, 0), omexml.getUUID());
+
+        // only the root UUID differs between the files
+        String rest = xml.substring(xml.indexOf("<Image"));
+        if (content == null) content = rest;
+        assertEquals(content, rest);
+      }
+    }
+    finally {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
   class FileHandleTrackingAppender implements Appender {
 
     public Map<Long, Boolean> map = new HashMap<Long, Boolean>(); 
@@ -0,0 +1,149 @@
+//
+// TiffParserTileExecutorTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that decoding tiles concurrently in
+ * {@link TiffParser#getSamples(IFD, byte[], int, int, long, long)} produces
+ * the same pixels as decoding them on the calling thread.
+ */
+public class TiffParserTileExecutorTest {
+
+  private static final int IMAGE_WIDTH = 256;
+
+  private static final int IMAGE_LENGTH = 192;
+
+  private static final int TILE_SIZE = 64;
+
+  private static final int BYTES_PER_PIXEL = 2;
+
+  private IFD ifd;
+
+  private byte[] data;
+
+  private ExecutorService executor;
+
+  @BeforeMethod
+  public void setUp() {
+    ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    ifd.put(IFD.TILE_WIDTH, TILE_SIZE);
+    ifd.put(IFD.TILE_LENGTH, TILE_SIZE);
+    ifd.put(IFD.BITS_PER_SAMPLE, new int[] {BYTES_PER_PIXEL * 8});
+    ifd.put(IFD.SAMPLES_PER_PIXEL, 1);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    data = new byte[IMAGE_WIDTH * IMAGE_LENGTH * BYTES_PER_PIXEL];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i / 7);
+    }
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testLZW() throws FormatException, IOException {
+    assertRegions(TiffCompression.LZW);
+  }
+
+  @Test
+  public void testDEFLATE() throws FormatException, IOException {
+    assertRegions(TiffCompression.DEFLATE);
+  }
+
+  @Test
+  public void testUNCOMPRESSED() throws FormatException, IOException {
+    assertRegions(TiffCompression.UNCOMPRESSED);
+  }
+
+  // -- Helper methods --
+
+  private void assertRegions(TiffCompression compression)
+    throws FormatException, IOException
+  {
+    ifd.put(IFD.COMPRESSION, compression.getCode());
+    ByteArrayHandle savedData = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(savedData);
+    TiffSaver saver = new TiffSaver(out, savedData);
+    saver.writeHeader();
+    saver.writeImage(data, ifd, 0, FormatTools.UINT16, true);
+    out.close();
+
+    RandomAccessInputStream in = new RandomAccessInputStream(savedData);
+    try {
+      TiffParser parser = new TiffParser(in);
+      IFD saved = parser.getFirstIFD();
+
+      byte[] serial = new byte[data.length];
+      parser.getSamples(saved, serial);
+      assertTrue(Arrays.equals(data, serial));
+
+      parser.setTileExecutor(executor);
+      byte[] parallel = new byte[data.length];
+      parser.getSamples(saved, parallel);
+      assertTrue(Arrays.equals(data, parallel));
+
+      // a region that partially covers several tiles in both directions
+      int x = 40, y = 30, w = 150, h = 100;
+      byte[] region = new byte[w * h * BYTES_PER_PIXEL];
+      parser.getSamples(saved, region, x, y, w, h);
+      for (int row=0; row<h; row++) {
+        for (int col=0; col<w * BYTES_PER_PIXEL; col++) {
+          int src = ((y + row) * IMAGE_WIDTH + x) * BYTES_PER_PIXEL + col;
+          assertEquals(data[src], region[row * w * BYTES_PER_PIXEL + col]);
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+}
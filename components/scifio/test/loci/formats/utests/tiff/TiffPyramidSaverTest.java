@@ -0,0 +1,195 @@
+//
+// TiffPyramidSaverTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffPyramidSaver;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests writing multi-resolution TIFF files with {@link TiffPyramidSaver}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/tiff/TiffPyramidSaverTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/tiff/TiffPyramidSaverTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class TiffPyramidSaverTest {
+
+  private static final int IMAGE_WIDTH = 100;
+
+  private static final int IMAGE_LENGTH = 70;
+
+  private static final int TILE_SIZE = 16;
+
+  private static final int ROWS_PER_WRITE = 7;
+
+  private ByteArrayHandle handle;
+
+  private RandomAccessOutputStream out;
+
+  private TiffPyramidSaver pyramidSaver;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    handle = new ByteArrayHandle();
+    out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    pyramidSaver = new TiffPyramidSaver(saver, 3, TILE_SIZE, TILE_SIZE);
+  }
+
+  private byte[] createPlane(int seed) {
+    byte[] plane = new byte[IMAGE_WIDTH * IMAGE_LENGTH];
+    for (int y=0; y<IMAGE_LENGTH; y++) {
+      for (int x=0; x<IMAGE_WIDTH; x++) {
+        plane[y * IMAGE_WIDTH + x] = (byte) (x * 2 + y * 3 + seed);
+      }
+    }
+    return plane;
+  }
+
+  private IFD createIFD() {
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, (long) IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, (long) IMAGE_LENGTH);
+    ifd.put(IFD.BITS_PER_SAMPLE, new int[] {8});
+    ifd.put(IFD.SAMPLES_PER_PIXEL, 1);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    return ifd;
+  }
+
+  /** Writes the plane in strips of rows, as ImageConverter does. */
+  private void writePlane(byte[] plane, int no)
+    throws FormatException, IOException
+  {
+    IFD ifd = createIFD();
+    for (int y=0; y<IMAGE_LENGTH; y+=ROWS_PER_WRITE) {
+      int h = Math.min(ROWS_PER_WRITE, IMAGE_LENGTH - y);
+      byte[] strip = new byte[IMAGE_WIDTH * h];
+      System.arraycopy(plane, y * IMAGE_WIDTH, strip, 0, strip.length);
+      pyramidSaver.writeImage(strip, ifd, no, FormatTools.UINT8,
+        0, y, IMAGE_WIDTH, h);
+    }
+  }
+
+  private TiffParser createParser() throws IOException {
+    out.close();
+    return new TiffParser(new RandomAccessInputStream(handle));
+  }
+
+  @Test
+  public void testResolutions() throws FormatException, IOException {
+    byte[] plane = createPlane(0);
+    writePlane(plane, 0);
+    pyramidSaver.finish();
+
+    TiffParser parser = createParser();
+    IFDList ifds = parser.getNonThumbnailIFDs();
+    assertEquals(1, ifds.size());
+    IFD full = ifds.get(0);
+    assertEquals(IMAGE_WIDTH, full.getImageWidth());
+    assertEquals(TILE_SIZE, full.getTileWidth());
+
+    long[] subIFDs = full.getIFDLongArray(IFD.SUB_IFD);
+    assertEquals(2, subIFDs.length);
+    IFD half = parser.getIFD(subIFDs[0]);
+    IFD quarter = parser.getIFD(subIFDs[1]);
+    assertEquals(IMAGE_WIDTH / 2, half.getImageWidth());
+    assertEquals(IMAGE_LENGTH / 2, half.getImageLength());
+    assertEquals(IMAGE_WIDTH / 4, quarter.getImageWidth());
+    assertEquals(1, half.getIFDIntValue(IFD.NEW_SUBFILE_TYPE));
+
+    byte[] samples = new byte[plane.length];
+    parser.getSamples(full, samples);
+    assertTrue(Arrays.equals(plane, samples));
+
+    byte[] halfSamples =
+      new byte[(int) (half.getImageWidth() * half.getImageLength())];
+    parser.getSamples(half, halfSamples);
+    int x = 30, y = 20;
+    int sum = (plane[2 * y * IMAGE_WIDTH + 2 * x] & 0xff) +
+      (plane[2 * y * IMAGE_WIDTH + 2 * x + 1] & 0xff) +
+      (plane[(2 * y + 1) * IMAGE_WIDTH + 2 * x] & 0xff) +
+      (plane[(2 * y + 1) * IMAGE_WIDTH + 2 * x + 1] & 0xff);
+    assertEquals(sum / 4,
+      halfSamples[y * (int) half.getImageWidth() + x] & 0xff, 1);
+  }
+
+  @Test
+  public void testMultiplePlanes() throws FormatException, IOException {
+    byte[] first = createPlane(0);
+    byte[] second = createPlane(17);
+    writePlane(first, 0);
+    writePlane(second, 1);
+    pyramidSaver.finish();
+
+    TiffParser parser = createParser();
+    IFDList ifds = parser.getNonThumbnailIFDs();
+    assertEquals(2, ifds.size());
+    byte[] samples = new byte[second.length];
+    parser.getSamples(ifds.get(1), samples);
+    assertTrue(Arrays.equals(second, samples));
+    assertEquals(6, parser.getIFDs().size());
+  }
+
+  @Test
+  public void testIncompletePlane() throws FormatException, IOException {
+    IFD ifd = createIFD();
+    byte[] strip = new byte[IMAGE_WIDTH * ROWS_PER_WRITE];
+    Arrays.fill(strip, (byte) 5);
+    pyramidSaver.writeImage(strip, ifd, 0, FormatTools.UINT8,
+      0, 0, IMAGE_WIDTH, ROWS_PER_WRITE);
+    pyramidSaver.finish();
+
+    TiffParser parser = createParser();
+    IFD full = parser.getFirstIFD();
+    byte[] samples = new byte[IMAGE_WIDTH * IMAGE_LENGTH];
+    parser.getSamples(full, samples);
+    assertEquals(5, samples[0]);
+    assertEquals(0, samples[samples.length - 1]);
+  }
+
+  @Test(expectedExceptions={ IllegalArgumentException.class })
+  public void testInvalidTileSize() {
+    new TiffPyramidSaver(new TiffSaver(out, handle), 2, 20, 16);
+  }
+
+}
@@ -0,0 +1,179 @@
+//
+// TiffSaverCompressionExecutorTest.java
+//
+
+/*
+OME Bio-Formats package for reading and converting biological file formats.
+Copyright (C) 2005-@year@ UW-Madison LOCI and Glencoe Software, Inc.
+
+This program is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that compressing strips and tiles concurrently in
+ * {@link TiffSaver#writeImage(byte[], IFD, int, int, boolean)} writes the
+ * same file as compressing them on the calling thread.
+ */
+public class TiffSaverCompressionExecutorTest {
+
+  private static final int IMAGE_WIDTH = 200;
+
+  private static final int IMAGE_LENGTH = 150;
+
+  private static final int CHANNELS = 3;
+
+  private static final int TILE_SIZE = 64;
+
+  private static final int ROWS_PER_STRIP = 16;
+
+  private byte[] data;
+
+  private ExecutorService executor;
+
+  @BeforeMethod
+  public void setUp() {
+    data = new byte[IMAGE_WIDTH * IMAGE_LENGTH * CHANNELS];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i / 7 + i % 5);
+    }
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testTiledLZW() throws FormatException, IOException {
+    assertSameFile(createIFD(TiffCompression.LZW, 1, true));
+  }
+
+  @Test
+  public void testTiledInterleavedDEFLATE()
+    throws FormatException, IOException
+  {
+    assertSameFile(createIFD(TiffCompression.DEFLATE, CHANNELS, true));
+  }
+
+  @Test
+  public void testStripsPlanarLZW() throws FormatException, IOException {
+    IFD ifd = createIFD(TiffCompression.LZW, CHANNELS, false);
+    ifd.put(IFD.PLANAR_CONFIGURATION, 2);
+    assertSameFile(ifd);
+  }
+
+  @Test
+  public void testStripsInterleavedUNCOMPRESSED()
+    throws FormatException, IOException
+  {
+    assertSameFile(createIFD(TiffCompression.UNCOMPRESSED, CHANNELS, false));
+  }
+
+  // -- Helper methods --
+
+  private IFD createIFD(TiffCompression compression, int channels,
+    boolean tiled)
+  {
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    if (tiled) {
+      ifd.put(IFD.TILE_WIDTH, TILE_SIZE);
+      ifd.put(IFD.TILE_LENGTH, TILE_SIZE);
+    }
+    else {
+      ifd.put(IFD.ROWS_PER_STRIP, new long[] {ROWS_PER_STRIP});
+    }
+    int[] bitsPerSample = new int[channels];
+    Arrays.fill(bitsPerSample, 8);
+    ifd.put(IFD.BITS_PER_SAMPLE, bitsPerSample);
+    ifd.put(IFD.SAMPLES_PER_PIXEL, channels);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    ifd.put(IFD.COMPRESSION, compression.getCode());
+    return ifd;
+  }
+
+  private byte[] write(IFD ifd, byte[] pixels, ExecutorService executor)
+    throws FormatException, IOException
+  {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setCompressionExecutor(executor);
+    saver.writeHeader();
+    saver.writeImage(pixels, new IFD(ifd), 0, FormatTools.UINT8, true);
+    out.close();
+    byte[] file = new byte[(int) handle.length()];
+    System.arraycopy(handle.getBytes(), 0, file, 0, file.length);
+    return file;
+  }
+
+  private void assertSameFile(IFD ifd) throws FormatException, IOException {
+    int channels = ifd.getSamplesPerPixel();
+    byte[] pixels = new byte[IMAGE_WIDTH * IMAGE_LENGTH * channels];
+    System.arraycopy(data, 0, pixels, 0, pixels.length);
+
+    byte[] serial = write(ifd, pixels, null);
+    byte[] parallel = write(ifd, pixels, executor);
+    assertTrue(Arrays.equals(serial, parallel));
+
+    RandomAccessInputStream in =
+      new RandomAccessInputStream(new ByteArrayHandle(parallel));
+    try {
+      TiffParser parser = new TiffParser(in);
+      byte[] samples = new byte[pixels.length];
+      parser.getSamples(parser.getFirstIFD(), samples);
+
+      // samples are always returned with channels stored separately
+      byte[] expected = pixels;
+      if (ifd.getPlanarConfiguration() == 1) {
+        expected = new byte[pixels.length];
+        int planeSize = IMAGE_WIDTH * IMAGE_LENGTH;
+        for (int i=0; i<pixels.length; i++) {
+          expected[(i % channels) * planeSize + i / channels] = pixels[i];
+        }
+      }
+      assertTrue(Arrays.equals(expected, samples));
+    }
+    finally {
+      in.close();
+    }
+  }
+
+}
@@ -156,4 +156,19 @@ public class TiffSaverTest {
     assertTrue("new comment".equals(tiffParser.getComment()));
   }
 
+  @Test
+  public void testWriteComment() throws FormatException, IOException {
+    out.seek(0);
+    tiffSaver.writeHeader();
+    tiffSaver.writeIFD(ifd, 0);
+    tiffSaver.writeComment(in, "new ".getBytes(), "comment".getBytes());
+    assertEquals("new comment", tiffParser.getComment());
+
+    // the previous comment is at the end of the file, so it is overwritten
+    long length = in.length();
+    tiffSaver.writeComment(in, "newer".getBytes(), " comment".getBytes());
+    assertEquals("newer comment", new TiffParser(in).getComment());
+    assertEquals(length + 2, in.length());
+  }
+
 }